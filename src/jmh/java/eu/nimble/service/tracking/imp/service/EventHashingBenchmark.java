@@ -0,0 +1,65 @@
+package eu.nimble.service.tracking.imp.service;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.IOUtils;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Canonicalization and hashing of EPCIS events for the Blockchain verification.
+ * One operation hashes the golden events of the unit tests and 100 synthetic object events.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EventHashingBenchmark {
+
+	private List<JSONObject> events;
+
+	@Setup
+	public void setUp() throws IOException {
+		events = new ArrayList<>();
+		JSONArray goldenEvents = new JSONArray(IOUtils.toString(
+				getClass().getClassLoader().getResourceAsStream("testFile/golden-events.json"), StandardCharsets.UTF_8));
+		for (int i = 0; i < goldenEvents.length(); i++) {
+			events.add(goldenEvents.getJSONObject(i));
+		}
+		JSONArray objectEvents = SyntheticEvents.objectEvents(100);
+		for (int i = 0; i < objectEvents.length(); i++) {
+			events.add(objectEvents.getJSONObject(i));
+		}
+	}
+
+	@Benchmark
+	public void hash(Blackhole blackhole) {
+		for (JSONObject event : events) {
+			blackhole.consume(CanonicalEventHasher.hash(event));
+		}
+	}
+
+	@Benchmark
+	public void legacyHash(Blackhole blackhole) {
+		for (JSONObject event : events) {
+			blackhole.consume(CanonicalEventHasher.legacyHash(event));
+		}
+	}
+}
@@ -0,0 +1,68 @@
+package eu.nimble.service.tracking.imp.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import eu.nimble.service.tracking.model.EpcisEvent;
+import eu.nimble.service.tracking.model.ObjectEvent;
+
+/**
+ * Parsing of a SimpleEventQuery response with 100k object events and reading the EPCs and times of each event,
+ * into the org.json tree and into the typed events. Run with -prof gc to compare the allocation per operation.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EventParsingBenchmark {
+
+	private static final int EVENT_COUNT = 100000;
+
+	private byte[] body;
+
+	@Setup
+	public void setUp() {
+		body = SyntheticEvents.objectEvents(EVENT_COUNT).toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Benchmark
+	public void jsonTree(Blackhole blackhole) {
+		JSONArray events = new JSONArray(new String(body, StandardCharsets.UTF_8));
+		for (int i = 0; i < events.length(); i++) {
+			JSONObject event = events.getJSONObject(i);
+			blackhole.consume(EpcisService.getTime(event, "eventTime"));
+			JSONArray epcList = event.getJSONArray("epcList");
+			for (int j = 0; j < epcList.length(); j++) {
+				blackhole.consume(epcList.getJSONObject(j).getString("epc"));
+			}
+		}
+	}
+
+	@Benchmark
+	public void typedStream(Blackhole blackhole) throws IOException {
+		for (EpcisEvent event : EpcisEventCodec.read(new ByteArrayInputStream(body))) {
+			blackhole.consume(event.getEventTime());
+			for (String epc : ((ObjectEvent) event).getEpcList()) {
+				blackhole.consume(epc);
+			}
+		}
+	}
+}
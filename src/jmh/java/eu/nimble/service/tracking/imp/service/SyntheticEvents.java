@@ -0,0 +1,145 @@
+package eu.nimble.service.tracking.imp.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import eu.nimble.service.tracking.model.AggregationEvent;
+import eu.nimble.service.tracking.model.EpcisEvent;
+import eu.nimble.service.tracking.model.TransformationEvent;
+
+/**
+ * Synthetic EPCIS event sets for the benchmarks
+ */
+public final class SyntheticEvents {
+
+	private static final String EPC_PREFIX = "urn:epc:id:sgtin:0614141.bench.";
+
+	private static final long START_TIME = 1523414011116L;
+
+	private static final String BIZ_STEP = "urn:epcglobal:cbv:bizstep:packing";
+
+	private static final String[] READ_POINTS = locations("urn:epc:id:sgln:readPoint.bench.", 7);
+
+	private static final String[] BIZ_LOCATIONS = locations("urn:epc:id:sgln:bizLocation.bench.", 5);
+
+	private SyntheticEvents() {
+	}
+
+	public static String epc(long number) {
+		return EPC_PREFIX + number;
+	}
+
+	/**
+	 * Aggregation events, which pack the EPCs into a tree with 10 children per parent.
+	 * The event i adds the EPCs 10i+1 .. 10i+10 to the parent EPC i, so EPC 0 is the root.
+	 * The events are created as typed events, as the indexes receive them, so that a million of them fit into the heap.
+	 */
+	public static List<EpcisEvent> aggregationEvents(int eventCount) {
+		List<EpcisEvent> events = new ArrayList<>(eventCount);
+		for (int i = 0; i < eventCount; i++) {
+			List<String> childEPCs = new ArrayList<>(10);
+			for (int j = 1; j <= 10; j++) {
+				childEPCs.add(epc(10L * i + j));
+			}
+			events.add(new AggregationEvent(eventId(i), START_TIME + i, START_TIME + i + 1000, "ADD", BIZ_STEP,
+					READ_POINTS[i % READ_POINTS.length], BIZ_LOCATIONS[i % BIZ_LOCATIONS.length], epc(i), childEPCs));
+		}
+		return events;
+	}
+
+	/**
+	 * @return the EPC with the longest parent chain in {@link #aggregationEvents(int)}
+	 */
+	public static String deepestAggregatedEpc(int eventCount) {
+		return epc(10L * (eventCount - 1) + 10);
+	}
+
+	/**
+	 * Transformation events, which transform the EPC i into the EPCs 2i+1 and 2i+2.
+	 * Every 8th event also outputs the EPC i+1, so that some outputs are shared.
+	 */
+	public static List<EpcisEvent> transformationEvents(int eventCount) {
+		List<EpcisEvent> events = new ArrayList<>(eventCount);
+		for (int i = 0; i < eventCount; i++) {
+			List<String> outputEPCList = new ArrayList<>(3);
+			outputEPCList.add(epc(2L * i + 1));
+			outputEPCList.add(epc(2L * i + 2));
+			if (i % 8 == 0) {
+				outputEPCList.add(epc(i + 1));
+			}
+			events.add(new TransformationEvent(eventId(i), START_TIME + i, START_TIME + i + 1000, BIZ_STEP,
+					READ_POINTS[i % READ_POINTS.length], BIZ_LOCATIONS[i % BIZ_LOCATIONS.length],
+					Collections.singletonList(epc(i)), outputEPCList));
+		}
+		return events;
+	}
+
+	/**
+	 * Object events of a single EPC, as returned by simpleTracking
+	 */
+	public static JSONArray objectEvents(int eventCount) {
+		JSONArray events = new JSONArray();
+		for (int i = 0; i < eventCount; i++) {
+			JSONObject event = baseEvent("ObjectEvent", i);
+			event.put("action", "OBSERVE");
+			event.put("epcList", new JSONArray().put(new JSONObject().put("epc", epc(0))));
+			events.put(event);
+		}
+		return events;
+	}
+
+	/**
+	 * EPCIS service, which returns the given events for any query
+	 */
+	public static EpcisService staticEpcisService(List<EpcisEvent> events) {
+		return new EpcisService() {
+			@Override
+			public List<EpcisEvent> pollEvents(Map<String, String> queryParams, String bearerToken) {
+				return queryParams.containsKey("GE_recordTime") ? Collections.emptyList() : events;
+			}
+		};
+	}
+
+	/**
+	 * @return token validator, which accepts every token without asking the EPCIS repository
+	 */
+	public static TokenValidator acceptingTokenValidator() {
+		return new TokenValidator() {
+			@Override
+			public CompletableFuture<Void> validate(String bearerToken) {
+				return CompletableFuture.completedFuture(null);
+			}
+		};
+	}
+
+	private static JSONObject baseEvent(String eventType, int i) {
+		JSONObject event = new JSONObject();
+		event.put("eventType", eventType);
+		event.put("eventTime", new JSONObject().put("$date", START_TIME + i));
+		event.put("recordTime", new JSONObject().put("$date", START_TIME + i + 1000));
+		event.put("eventTimeZoneOffset", "-06:00");
+		event.put("_id", new JSONObject().put("$oid", eventId(i)));
+		event.put("bizStep", BIZ_STEP);
+		event.put("readPoint", new JSONObject().put("id", READ_POINTS[i % READ_POINTS.length]));
+		event.put("bizLocation", new JSONObject().put("id", BIZ_LOCATIONS[i % BIZ_LOCATIONS.length]));
+		return event;
+	}
+
+	private static String eventId(int i) {
+		return String.format("%024x", i);
+	}
+
+	private static String[] locations(String prefix, int count) {
+		String[] locations = new String[count];
+		for (int i = 0; i < count; i++) {
+			locations[i] = prefix + i;
+		}
+		return locations;
+	}
+}
@@ -0,0 +1,143 @@
+package eu.nimble.service.tracking.imp.service;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import eu.nimble.service.tracking.imp.service.AggregationContainmentIndex.Containment;
+import eu.nimble.service.tracking.model.EpcisEvent;
+
+/**
+ * Building the aggregation and transformation indexes from an event list, and the trace tree lookups on a built index.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class TraceTreeBenchmark {
+
+	// The events and the built index are separate states, so that a fork holds only what its benchmarks use;
+	// at 1000000 events the events and two indexes do not fit into the heap together.
+
+	@State(Scope.Benchmark)
+	public static class AggregationEvents {
+		@Param({ "1000", "10000", "100000", "1000000" })
+		public int eventCount;
+
+		List<EpcisEvent> events;
+		String epc;
+
+		@Setup
+		public void setUp() {
+			events = SyntheticEvents.aggregationEvents(eventCount);
+			epc = SyntheticEvents.deepestAggregatedEpc(eventCount);
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class AggregationState {
+		@Param({ "1000", "10000", "100000", "1000000" })
+		public int eventCount;
+
+		AggregationContainmentIndex index;
+		String epc;
+
+		@Setup
+		public void setUp() {
+			epc = SyntheticEvents.deepestAggregatedEpc(eventCount);
+			index = newAggregationIndex(SyntheticEvents.aggregationEvents(eventCount));
+			index.whenLoaded("").join();
+			index.getParentChain(epc);
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class TransformationEvents {
+		@Param({ "1000", "10000", "100000", "1000000" })
+		public int eventCount;
+
+		List<EpcisEvent> events;
+
+		@Setup
+		public void setUp() {
+			events = SyntheticEvents.transformationEvents(eventCount);
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class TransformationState {
+		@Param({ "1000", "10000", "100000", "1000000" })
+		public int eventCount;
+
+		TransformationGraphIndex index;
+
+		@Setup
+		public void setUp() {
+			index = newTransformationIndex(SyntheticEvents.transformationEvents(eventCount));
+			index.whenLoaded("").join();
+			index.getOutputTree(SyntheticEvents.epc(0), 100, 10000);
+		}
+	}
+
+	@Benchmark
+	public List<Containment> buildAggregationIndex(AggregationEvents state) {
+		AggregationContainmentIndex index = newAggregationIndex(state.events);
+		try {
+			index.whenLoaded("").join();
+			return index.getParentChain(state.epc);
+		} finally {
+			// the refresh thread would keep the index reachable
+			index.shutdown();
+		}
+	}
+
+	@Benchmark
+	public List<Containment> aggregationParentChain(AggregationState state) {
+		return state.index.getParentChain(state.epc);
+	}
+
+	@Benchmark
+	public EpcGraphTraversal.Result buildTransformationIndex(TransformationEvents state) {
+		TransformationGraphIndex index = newTransformationIndex(state.events);
+		try {
+			index.whenLoaded("").join();
+			return index.getOutputTree(SyntheticEvents.epc(0), 100, 10000);
+		} finally {
+			index.shutdown();
+		}
+	}
+
+	@Benchmark
+	public EpcGraphTraversal.Result transformationOutputTree(TransformationState state) {
+		return state.index.getOutputTree(SyntheticEvents.epc(0), 100, 10000);
+	}
+
+	static AggregationContainmentIndex newAggregationIndex(List<EpcisEvent> events) {
+		AggregationContainmentIndex index = new AggregationContainmentIndex();
+		ReflectionTestUtils.setField(index, "epcisService", SyntheticEvents.staticEpcisService(events));
+		ReflectionTestUtils.setField(index, "refreshIntervalMs", Long.MAX_VALUE);
+		ReflectionTestUtils.setField(index, "tokenValidator", SyntheticEvents.acceptingTokenValidator());
+		return index;
+	}
+
+	static TransformationGraphIndex newTransformationIndex(List<EpcisEvent> events) {
+		TransformationGraphIndex index = new TransformationGraphIndex();
+		ReflectionTestUtils.setField(index, "epcisService", SyntheticEvents.staticEpcisService(events));
+		ReflectionTestUtils.setField(index, "refreshIntervalMs", Long.MAX_VALUE);
+		ReflectionTestUtils.setField(index, "tokenValidator", SyntheticEvents.acceptingTokenValidator());
+		return index;
+	}
+}
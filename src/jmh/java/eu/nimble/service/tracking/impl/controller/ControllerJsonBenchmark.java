@@ -0,0 +1,87 @@
+package eu.nimble.service.tracking.impl.controller;
+
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import eu.nimble.service.tracking.imp.service.AggregationContainmentIndex;
+import eu.nimble.service.tracking.imp.service.SyntheticEvents;
+import eu.nimble.service.tracking.imp.service.TransformationGraphIndex;
+
+/**
+ * JSON parsing of EPCIS responses and the JSON trace tree responses of the controllers.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class ControllerJsonBenchmark {
+
+	@Param({ "1000", "10000", "100000" })
+	public int eventCount;
+
+	private String eventListBody;
+	private JSONArray eventList;
+	private AggregationEventController aggregationEventController;
+	private TransformationEventController transformationEventController;
+
+	@Setup
+	public void setUp() {
+		eventList = SyntheticEvents.objectEvents(eventCount);
+		eventListBody = eventList.toString();
+
+		AggregationContainmentIndex aggregationIndex = new AggregationContainmentIndex();
+		ReflectionTestUtils.setField(aggregationIndex, "epcisService",
+				SyntheticEvents.staticEpcisService(SyntheticEvents.aggregationEvents(eventCount)));
+		ReflectionTestUtils.setField(aggregationIndex, "refreshIntervalMs", Long.MAX_VALUE);
+		ReflectionTestUtils.setField(aggregationIndex, "tokenValidator", SyntheticEvents.acceptingTokenValidator());
+		aggregationEventController = new AggregationEventController();
+		ReflectionTestUtils.setField(aggregationEventController, "aggregationContainmentIndex", aggregationIndex);
+
+		TransformationGraphIndex transformationIndex = new TransformationGraphIndex();
+		ReflectionTestUtils.setField(transformationIndex, "epcisService",
+				SyntheticEvents.staticEpcisService(SyntheticEvents.transformationEvents(eventCount)));
+		ReflectionTestUtils.setField(transformationIndex, "refreshIntervalMs", Long.MAX_VALUE);
+		ReflectionTestUtils.setField(transformationIndex, "tokenValidator", SyntheticEvents.acceptingTokenValidator());
+		transformationEventController = new TransformationEventController();
+		ReflectionTestUtils.setField(transformationEventController, "transformationGraphIndex", transformationIndex);
+		// the whole output tree of the synthetic events is serialized
+		ReflectionTestUtils.setField(transformationEventController, "maxDepth", 100);
+		ReflectionTestUtils.setField(transformationEventController, "maxNodes", Integer.MAX_VALUE);
+	}
+
+	@Benchmark
+	public JSONArray parseEventList() {
+		return new JSONArray(eventListBody);
+	}
+
+	@Benchmark
+	public String serializeEventList() {
+		return eventList.toString();
+	}
+
+	@Benchmark
+	public ResponseEntity<?> aggregationTraceTree() {
+		return aggregationEventController.getEpcAggregationOutput(SyntheticEvents.deepestAggregatedEpc(eventCount), "").join();
+	}
+
+	@Benchmark
+	public ResponseEntity<?> transformationTraceTree() {
+		return transformationEventController.getEpcTransformationOutput(SyntheticEvents.epc(0), "").join();
+	}
+}
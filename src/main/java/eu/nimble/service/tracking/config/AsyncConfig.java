@@ -0,0 +1,62 @@
+package eu.nimble.service.tracking.config;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.web.servlet.config.annotation.AsyncSupportConfigurer;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurerAdapter;
+
+/**
+ * Asynchronous request processing. Controllers return futures, which are completed by the non-blocking HTTP client,
+ * so that the Tomcat worker threads are released while waiting for upstream responses.
+ *
+ * Streamed responses are written by a bounded thread pool instead of a new thread per response.
+ * Upstream responses are processed by another bounded thread pool, not by the few I/O threads of the HTTP client,
+ * so that parsing a large response does not hold the other upstream exchanges.
+ */
+@Configuration
+public class AsyncConfig extends WebMvcConfigurerAdapter {
+
+    @Value("${tracking.async.max-threads:32}")
+    private int maxThreads;
+
+    @Value("${tracking.async.queue-capacity:1000}")
+    private int queueCapacity;
+
+    @Value("${tracking.async.worker-threads:8}")
+    private int workerThreads;
+
+    @Value("${tracking.async.worker-queue-capacity:1000}")
+    private int workerQueueCapacity;
+
+    @Bean
+    public ThreadPoolTaskExecutor mvcAsyncTaskExecutor() {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(maxThreads);
+        executor.setMaxPoolSize(maxThreads);
+        executor.setQueueCapacity(queueCapacity);
+        executor.setAllowCoreThreadTimeOut(true);
+        executor.setThreadNamePrefix("mvc-async-");
+        return executor;
+    }
+
+    /**
+     * Threads, on which the futures of the upstream calls are completed, so that the dependent stages run on them
+     */
+    @Bean
+    public ThreadPoolTaskExecutor upstreamWorkerExecutor() {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(workerThreads);
+        executor.setMaxPoolSize(workerThreads);
+        executor.setQueueCapacity(workerQueueCapacity);
+        executor.setAllowCoreThreadTimeOut(true);
+        executor.setThreadNamePrefix("upstream-worker-");
+        return executor;
+    }
+
+    @Override
+    public void configureAsyncSupport(AsyncSupportConfigurer configurer) {
+        configurer.setTaskExecutor(this.mvcAsyncTaskExecutor());
+    }
+}
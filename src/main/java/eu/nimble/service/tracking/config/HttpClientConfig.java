@@ -0,0 +1,279 @@
+package eu.nimble.service.tracking.config;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PreDestroy;
+
+import org.apache.http.HttpHost;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.pool.ConnPoolControl;
+import org.apache.http.pool.PoolStats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.boot.web.client.RestTemplateBuilder;
+import org.springframework.cloud.sleuth.Tracer;
+import org.springframework.cloud.sleuth.instrument.web.client.TraceAsyncRestTemplate;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.client.HttpComponentsAsyncClientHttpRequestFactory;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.web.client.AsyncRestTemplate;
+import org.springframework.web.client.RestTemplate;
+
+/**
+ * Pooled HTTP clients used for all calls to the EPCIS repository and to the Blockchain service.
+ *
+ * Each upstream host has its own route limit in the pool, so that slow Blockchain lookups cannot use up
+ * the connections needed for EPCIS queries and vice versa.
+ *
+ * The blocking client backs the {@link RestTemplate}, which is used by background tasks and streamed responses.
+ * The non-blocking client backs the {@link AsyncRestTemplate}, so that requests waiting for an upstream response
+ * do not hold a thread.
+ */
+@Configuration
+public class HttpClientConfig {
+    private static Logger log = LoggerFactory.getLogger(HttpClientConfig.class);
+
+    @Value("${spring.epcis.url}")
+    private String epcisURL;
+
+    @Value("${spring.epcis.max-connections:50}")
+    private int epcisMaxConnections;
+
+    @Value("${spring.blockchain-service.url}")
+    private String blockchainServiceURL;
+
+    @Value("${spring.blockchain-service.max-connections:20}")
+    private int blockchainMaxConnections;
+
+    /**
+     * Maximal connections per route to any other host
+     */
+    @Value("${spring.http-client.max-connections-per-route:10}")
+    private int defaultMaxConnectionsPerRoute;
+
+    @Value("${spring.http-client.connect-timeout-ms:5000}")
+    private int connectTimeoutMs;
+
+    @Value("${spring.http-client.read-timeout-ms:30000}")
+    private int readTimeoutMs;
+
+    /**
+     * Maximal time to wait for a free connection of the pool
+     */
+    @Value("${spring.http-client.pool-acquire-timeout-ms:5000}")
+    private int poolAcquireTimeoutMs;
+
+    /**
+     * Idle connections are closed after this time
+     */
+    @Value("${spring.http-client.idle-timeout-ms:30000}")
+    private long idleTimeoutMs;
+
+    /**
+     * Time to keep a connection alive, if the server does not send a Keep-Alive timeout
+     */
+    @Value("${spring.http-client.keep-alive-ms:30000}")
+    private long keepAliveMs;
+
+    /**
+     * Connections idle for longer than this time are validated before they are reused
+     */
+    @Value("${spring.http-client.validate-after-inactivity-ms:2000}")
+    private int validateAfterInactivityMs;
+
+    /**
+     * Number of I/O threads of the non-blocking client; the number of processors, if 0
+     */
+    @Value("${spring.http-client.io-threads:0}")
+    private int ioThreads;
+
+    private ScheduledExecutorService asyncEvictionExecutor;
+
+    @PreDestroy
+    public void shutdown() {
+        if (asyncEvictionExecutor != null) {
+            asyncEvictionExecutor.shutdownNow();
+        }
+    }
+
+    @Bean
+    public PoolingHttpClientConnectionManager httpClientConnectionManager() {
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setValidateAfterInactivity(validateAfterInactivityMs);
+        this.setPoolLimits(connectionManager);
+        return connectionManager;
+    }
+
+    @Bean
+    public PoolingNHttpClientConnectionManager asyncHttpClientConnectionManager() throws IOReactorException {
+        IOReactorConfig ioReactorConfig = IOReactorConfig.custom()
+                .setIoThreadCount(ioThreads > 0 ? ioThreads : Runtime.getRuntime().availableProcessors())
+                .setConnectTimeout(connectTimeoutMs)
+                .setSoTimeout(readTimeoutMs)
+                .build();
+        PoolingNHttpClientConnectionManager connectionManager = new PoolingNHttpClientConnectionManager(
+                new DefaultConnectingIOReactor(ioReactorConfig));
+        this.setPoolLimits(connectionManager);
+
+        // the non-blocking client has no eviction thread of its own
+        asyncEvictionExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "async-http-client-eviction");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long evictionIntervalMs = Math.max(1000, idleTimeoutMs / 2);
+        asyncEvictionExecutor.scheduleWithFixedDelay(() -> {
+            connectionManager.closeExpiredConnections();
+            connectionManager.closeIdleConnections(idleTimeoutMs, TimeUnit.MILLISECONDS);
+        }, evictionIntervalMs, evictionIntervalMs, TimeUnit.MILLISECONDS);
+        return connectionManager;
+    }
+
+    private void setPoolLimits(ConnPoolControl<HttpRoute> pool) {
+        pool.setMaxTotal(epcisMaxConnections + blockchainMaxConnections + defaultMaxConnectionsPerRoute);
+        pool.setDefaultMaxPerRoute(defaultMaxConnectionsPerRoute);
+
+        HttpRoute epcisRoute = getRoute(epcisURL);
+        HttpRoute blockchainRoute = getRoute(blockchainServiceURL);
+        if (epcisRoute != null && epcisRoute.equals(blockchainRoute)) {
+            pool.setMaxPerRoute(epcisRoute, epcisMaxConnections + blockchainMaxConnections);
+        } else {
+            if (epcisRoute != null) {
+                pool.setMaxPerRoute(epcisRoute, epcisMaxConnections);
+            }
+            if (blockchainRoute != null) {
+                pool.setMaxPerRoute(blockchainRoute, blockchainMaxConnections);
+            }
+        }
+    }
+
+    @Bean
+    public CloseableHttpClient httpClient(PoolingHttpClientConnectionManager connectionManager) {
+        return HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(this.getRequestConfig())
+                .setKeepAliveStrategy(this.getKeepAliveStrategy())
+                .evictExpiredConnections()
+                .evictIdleConnections(idleTimeoutMs, TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    @Bean
+    public CloseableHttpAsyncClient asyncHttpClient(PoolingNHttpClientConnectionManager asyncConnectionManager) {
+        return HttpAsyncClients.custom()
+                .setConnectionManager(asyncConnectionManager)
+                .setDefaultRequestConfig(this.getRequestConfig())
+                .setKeepAliveStrategy(this.getKeepAliveStrategy())
+                .build();
+    }
+
+    @Bean
+    public RestTemplate restTemplate(RestTemplateBuilder builder, CloseableHttpClient httpClient) {
+        return builder.requestFactory(new HttpComponentsClientHttpRequestFactory(httpClient)).build();
+    }
+
+    /**
+     * Traced like the {@link RestTemplate}, so that each non-blocking call is a client span of the request, if Sleuth is enabled
+     */
+    @Bean
+    public AsyncRestTemplate asyncRestTemplate(CloseableHttpAsyncClient asyncHttpClient, RestTemplate restTemplate,
+            ObjectProvider<Tracer> tracer) {
+        HttpComponentsAsyncClientHttpRequestFactory requestFactory = new HttpComponentsAsyncClientHttpRequestFactory(asyncHttpClient);
+        Tracer availableTracer = tracer.getIfAvailable();
+        if (availableTracer == null) {
+            return new AsyncRestTemplate(requestFactory, restTemplate);
+        }
+        return new TraceAsyncRestTemplate(requestFactory, restTemplate, availableTracer);
+    }
+
+    private RequestConfig getRequestConfig() {
+        return RequestConfig.custom()
+                .setConnectTimeout(connectTimeoutMs)
+                .setSocketTimeout(readTimeoutMs)
+                .setConnectionRequestTimeout(poolAcquireTimeoutMs)
+                .build();
+    }
+
+    private ConnectionKeepAliveStrategy getKeepAliveStrategy() {
+        return (response, context) -> {
+            long keepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+            return keepAlive > 0 ? keepAlive : keepAliveMs;
+        };
+    }
+
+    /**
+     * Saturation of the connection pools, in total and for the EPCIS and Blockchain routes.
+     * Pending requests wait for a free connection.
+     */
+    @Bean
+    public PublicMetrics httpClientPoolMetrics(PoolingHttpClientConnectionManager connectionManager,
+            PoolingNHttpClientConnectionManager asyncConnectionManager) {
+        return () -> {
+            List<Metric<?>> metrics = new ArrayList<>();
+            this.addPoolMetrics(metrics, "httpclient.pool", connectionManager);
+            this.addPoolMetrics(metrics, "httpclient.async.pool", asyncConnectionManager);
+            return metrics;
+        };
+    }
+
+    private void addPoolMetrics(Collection<Metric<?>> metrics, String prefix, ConnPoolControl<HttpRoute> pool) {
+        addPoolMetrics(metrics, prefix, pool.getTotalStats());
+        HttpRoute epcisRoute = getRoute(epcisURL);
+        if (epcisRoute != null) {
+            addPoolMetrics(metrics, prefix + ".epcis", pool.getStats(epcisRoute));
+        }
+        HttpRoute blockchainRoute = getRoute(blockchainServiceURL);
+        if (blockchainRoute != null) {
+            addPoolMetrics(metrics, prefix + ".blockchain", pool.getStats(blockchainRoute));
+        }
+    }
+
+    private static void addPoolMetrics(Collection<Metric<?>> metrics, String prefix, PoolStats stats) {
+        metrics.add(new Metric<Integer>(prefix + ".leased", stats.getLeased()));
+        metrics.add(new Metric<Integer>(prefix + ".pending", stats.getPending()));
+        metrics.add(new Metric<Integer>(prefix + ".available", stats.getAvailable()));
+        metrics.add(new Metric<Integer>(prefix + ".max", stats.getMax()));
+    }
+
+    /**
+     * @return the pool route to the host of the given URL, as it is planned by the HTTP client; null, if the URL is invalid
+     */
+    static HttpRoute getRoute(String url) {
+        try {
+            URI uri = URI.create(url.trim());
+            String scheme = uri.getScheme() == null ? "http" : uri.getScheme().toLowerCase();
+            boolean secure = "https".equals(scheme);
+            int port = uri.getPort() >= 0 ? uri.getPort() : (secure ? 443 : 80);
+            if (uri.getHost() == null) {
+                throw new IllegalArgumentException("no host");
+            }
+            return new HttpRoute(new HttpHost(uri.getHost(), port, scheme), null, secure);
+        } catch (IllegalArgumentException e) {
+            log.error("No connection pool route for URL " + url + ": " + e.getMessage());
+            return null;
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package eu.nimble.service.tracking.config;
+
+import java.util.Collection;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.web.servlet.FilterRegistrationBean;
+import org.springframework.cloud.sleuth.Tracer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.Ordered;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurerAdapter;
+
+import eu.nimble.service.tracking.imp.service.RequestMetrics;
+
+/**
+ * Latency histograms of the endpoints and upstreams, exposed by the actuator in the Prometheus text format at /prometheus,
+ * and the Server-Timing breakdown of each request.
+ */
+@Configuration
+public class MetricsConfig extends WebMvcConfigurerAdapter {
+
+    @Autowired(required = false)
+    private Tracer tracer;
+
+    @Override
+    public void addInterceptors(InterceptorRegistry registry) {
+        registry.addInterceptor(new RequestTimingInterceptor(tracer));
+    }
+
+    /**
+     * Runs before all other filters, so that their time is included
+     */
+    @Bean
+    public FilterRegistrationBean requestMetricsFilter(RequestMetrics requestMetrics) {
+        FilterRegistrationBean registration = new FilterRegistrationBean(new RequestMetricsFilter(requestMetrics));
+        registration.setOrder(Ordered.HIGHEST_PRECEDENCE);
+        return registration;
+    }
+
+    @Bean
+    public PrometheusEndpoint prometheusEndpoint(RequestMetrics requestMetrics, Collection<PublicMetrics> publicMetrics) {
+        return new PrometheusEndpoint(requestMetrics, publicMetrics);
+    }
+}
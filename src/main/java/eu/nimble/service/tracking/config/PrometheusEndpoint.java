@@ -0,0 +1,65 @@
+package eu.nimble.service.tracking.config;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.endpoint.mvc.AbstractMvcEndpoint;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.ResponseBody;
+
+import eu.nimble.service.tracking.imp.service.RequestMetrics;
+
+/**
+ * Actuator endpoint /prometheus, which is scraped by Prometheus.
+ *
+ * It contains the latency histograms of {@link RequestMetrics} and all metrics of the /metrics endpoint as gauges,
+ * with the characters invalid in Prometheus names replaced by '_', e.g. masterdata_cache_hits.
+ */
+public class PrometheusEndpoint extends AbstractMvcEndpoint {
+
+    static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final RequestMetrics requestMetrics;
+
+    private final Collection<PublicMetrics> publicMetrics;
+
+    public PrometheusEndpoint(RequestMetrics requestMetrics, Collection<PublicMetrics> publicMetrics) {
+        super("/prometheus", false);
+        this.requestMetrics = requestMetrics;
+        this.publicMetrics = publicMetrics;
+    }
+
+    @RequestMapping(method = RequestMethod.GET)
+    @ResponseBody
+    public ResponseEntity<String> scrape() throws IOException {
+        StringWriter writer = new StringWriter();
+        requestMetrics.writePrometheus(writer);
+
+        Set<String> names = new HashSet<>();
+        for (PublicMetrics metrics : publicMetrics) {
+            for (Metric<?> metric : metrics.metrics()) {
+                String name = toPrometheusName(metric.getName());
+                // the first of the metrics with the same name is kept, as by /metrics
+                if (metric.getValue() != null && names.add(name)) {
+                    writer.write("# TYPE " + name + " gauge\n");
+                    writer.write(name + " " + metric.getValue().doubleValue() + "\n");
+                }
+            }
+        }
+
+        return ResponseEntity.ok().header(HttpHeaders.CONTENT_TYPE, CONTENT_TYPE).body(writer.toString());
+    }
+
+    static String toPrometheusName(String name) {
+        String prometheusName = name.replaceAll("[^a-zA-Z0-9_:]", "_");
+        return Character.isDigit(prometheusName.charAt(0)) ? "_" + prometheusName : prometheusName;
+    }
+}
@@ -0,0 +1,52 @@
+package eu.nimble.service.tracking.config;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.cloud.sleuth.Tracer;
+import org.springframework.web.servlet.ModelAndView;
+import org.springframework.web.servlet.handler.HandlerInterceptorAdapter;
+
+import eu.nimble.service.tracking.imp.service.RequestTiming;
+
+/**
+ * Binds the {@link RequestTiming} of a request to the thread running its handler. The timing is kept as request attribute,
+ * so that the dispatch of the asynchronous result continues it.
+ */
+public class RequestTimingInterceptor extends HandlerInterceptorAdapter {
+
+    private final Tracer tracer;
+
+    /**
+     * @param tracer tracer of the phase spans; null, if Sleuth is disabled
+     */
+    public RequestTimingInterceptor(Tracer tracer) {
+        this.tracer = tracer;
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+        RequestTiming timing = (RequestTiming) request.getAttribute(RequestTiming.ATTRIBUTE);
+        if (timing == null) {
+            timing = new RequestTiming(tracer, tracer == null ? null : tracer.getCurrentSpan());
+            request.setAttribute(RequestTiming.ATTRIBUTE, timing);
+        }
+        RequestTiming.bind(timing);
+        return true;
+    }
+
+    @Override
+    public void postHandle(HttpServletRequest request, HttpServletResponse response, Object handler, ModelAndView modelAndView) {
+        RequestTiming.bind(null);
+    }
+
+    @Override
+    public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler, Exception ex) {
+        RequestTiming.bind(null);
+    }
+
+    @Override
+    public void afterConcurrentHandlingStarted(HttpServletRequest request, HttpServletResponse response, Object handler) {
+        RequestTiming.bind(null);
+    }
+}
@@ -0,0 +1,37 @@
+package eu.nimble.service.tracking.config;
+
+import org.springframework.core.MethodParameter;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.http.server.ServerHttpRequest;
+import org.springframework.http.server.ServerHttpResponse;
+import org.springframework.http.server.ServletServerHttpRequest;
+import org.springframework.web.bind.annotation.ControllerAdvice;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyAdvice;
+
+import eu.nimble.service.tracking.imp.service.RequestTiming;
+
+/**
+ * Adds the Server-Timing header with the phases of the {@link RequestTiming} to each response body, before it is written.
+ * Streamed responses are written after their headers, so they have no Server-Timing header.
+ */
+@ControllerAdvice
+public class ServerTimingAdvice implements ResponseBodyAdvice<Object> {
+
+    @Override
+    public boolean supports(MethodParameter returnType, Class<? extends HttpMessageConverter<?>> converterType) {
+        return true;
+    }
+
+    @Override
+    public Object beforeBodyWrite(Object body, MethodParameter returnType, MediaType selectedContentType,
+            Class<? extends HttpMessageConverter<?>> selectedConverterType, ServerHttpRequest request, ServerHttpResponse response) {
+        if (request instanceof ServletServerHttpRequest) {
+            Object timing = ((ServletServerHttpRequest) request).getServletRequest().getAttribute(RequestTiming.ATTRIBUTE);
+            if (timing != null) {
+                response.getHeaders().set(RequestTiming.SERVER_TIMING, ((RequestTiming) timing).getServerTiming());
+            }
+        }
+        return body;
+    }
+}
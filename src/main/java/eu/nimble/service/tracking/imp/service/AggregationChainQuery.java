@@ -0,0 +1,88 @@
+package eu.nimble.service.tracking.imp.service;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import eu.nimble.service.tracking.imp.service.AggregationContainmentIndex.Containment;
+import eu.nimble.service.tracking.model.AggregationEvent;
+import eu.nimble.service.tracking.model.EpcisEvent;
+
+/**
+ * Parent chain of an EPC, queried from the EPCIS repository hop by hop instead of the in-memory index.
+ *
+ * Each hop asks only for the aggregation events, which contain the current EPC as a child (MATCH_epc),
+ * so that the number of transferred events depends on the depth of the chain and not on the size of the repository.
+ */
+@Service
+public class AggregationChainQuery {
+
+	/**
+	 * Maximal number of hops up the chain
+	 */
+	@Value("${tracking.aggregation.max-depth:100}")
+	private int maxDepth;
+
+	@Autowired
+	private EpcisService epcisService;
+
+	/**
+	 * Get the chain of containers of the given EPC, starting with the direct parent.
+	 * @param epc EPC of the contained item
+	 * @param bearerToken The Bearer token provided by the identity service
+	 * @return the same chain as {@link AggregationContainmentIndex#getParentChain(String)}
+	 */
+	public CompletableFuture<List<Containment>> getParentChain(String epc, String bearerToken) {
+		return this.addParents(new ArrayList<>(), new HashSet<>(), epc, bearerToken);
+	}
+
+	private CompletableFuture<List<Containment>> addParents(List<Containment> chain, Set<String> visited, String epc,
+			String bearerToken) {
+		if (chain.size() >= maxDepth || !visited.add(epc)) {
+			return CompletableFuture.completedFuture(chain);
+		}
+
+		Map<String, String> queryParams = new LinkedHashMap<>();
+		queryParams.put("eventType", "AggregationEvent");
+		queryParams.put("MATCH_epc", epc);
+		return epcisService.pollEventsAsync(queryParams, bearerToken).thenCompose(events -> {
+			Containment latest = getLatestContainment(epc, events);
+			if (latest == null) {
+				return CompletableFuture.completedFuture(chain);
+			}
+			chain.add(latest);
+			return this.addParents(chain, visited, latest.getParent(), bearerToken);
+		});
+	}
+
+	/**
+	 * @param events aggregation events containing the EPC as a child, in any order
+	 * @return the latest containment of the EPC; null, if the EPC has never been aggregated
+	 */
+	static Containment getLatestContainment(String epc, List<EpcisEvent> events) {
+		List<AggregationEvent> sortedEvents = new ArrayList<>(events.size());
+		for (EpcisEvent event : events) {
+			if (event instanceof AggregationEvent) {
+				sortedEvents.add((AggregationEvent) event);
+			}
+		}
+		sortedEvents.sort(Comparator.comparingLong(EpcisEvent::getEventTime));
+
+		Map<String, List<Containment>> containmentsByChild = new HashMap<>();
+		for (AggregationEvent event : sortedEvents) {
+			AggregationContainmentIndex.addContainments(containmentsByChild, null, event);
+		}
+		List<Containment> containments = containmentsByChild.get(epc);
+		return containments == null || containments.isEmpty() ? null : containments.get(containments.size() - 1);
+	}
+}
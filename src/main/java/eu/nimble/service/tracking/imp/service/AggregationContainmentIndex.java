@@ -0,0 +1,205 @@
+package eu.nimble.service.tracking.imp.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import eu.nimble.service.tracking.model.AggregationEvent;
+import eu.nimble.service.tracking.model.EpcisEvent;
+
+/**
+ * In-memory child to parent containment index of EPCIS aggregation events.
+ */
+@Service
+public class AggregationContainmentIndex extends EpcisEventIndex {
+
+	/**
+	 * Minimal interval between two incremental refreshes from the EPCIS repository
+	 */
+	@Value("${tracking.aggregation.refresh-interval-ms:30000}")
+	private long refreshIntervalMs;
+
+	// child EPC -> containments of the child, sorted by start time. Guarded by lock.
+	private final Map<String, List<Containment>> containmentsByChild = new HashMap<>();
+
+	// parent EPC -> containments of its children, in the order of the ADD events. Each containment is its own key, which is
+	// equal to it before and after its DELETE event, so that the DELETE replaces it in place. Guarded by lock.
+	private final Map<String, Map<Containment, Containment>> containmentsByParent = new HashMap<>();
+
+	@Override
+	protected String getEventType() {
+		return "AggregationEvent";
+	}
+
+	@Override
+	protected long getRefreshIntervalMs() {
+		return refreshIntervalMs;
+	}
+
+	/**
+	 * Get the chain of containers of the given EPC, starting with the direct parent. The index has to be loaded, see {@link #whenLoaded(String)}.
+	 * @param epc EPC of the contained item
+	 * @return the latest containment of the EPC, followed by the latest containment of its parent and so on;
+	 * 		an empty list, if the EPC has never been aggregated
+	 */
+	public List<Containment> getParentChain(String epc) {
+		List<Containment> chain = new ArrayList<>();
+		Set<String> visited = new HashSet<>();
+		lock.readLock().lock();
+		try {
+			String current = epc;
+			while (current != null && visited.add(current)) {
+				List<Containment> containments = containmentsByChild.get(current);
+				if (containments == null || containments.isEmpty()) {
+					break;
+				}
+				Containment latest = containments.get(containments.size() - 1);
+				chain.add(latest);
+				current = latest.getParent();
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		return chain;
+	}
+
+	@Override
+	protected void addEvent(EpcisEvent event) {
+		if (event instanceof AggregationEvent) {
+			addContainments(containmentsByChild, containmentsByParent, (AggregationEvent) event);
+		}
+	}
+
+	/**
+	 * Get all containments of an EPC, as child or as parent. The index has to be loaded, see {@link #whenLoaded(String)}.
+	 * @param epc EPC of the item or container
+	 * @param asChild true, the containers of the EPC; false, the items contained in the EPC
+	 * @return containments in any order; an empty list, if there are none
+	 */
+	public List<Containment> getContainments(String epc, boolean asChild) {
+		lock.readLock().lock();
+		try {
+			if (asChild) {
+				List<Containment> containments = containmentsByChild.get(epc);
+				return containments == null ? Collections.emptyList() : new ArrayList<>(containments);
+			}
+			Map<Containment, Containment> containments = containmentsByParent.get(epc);
+			return containments == null ? Collections.emptyList() : new ArrayList<>(containments.values());
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Apply a single aggregation event to containments. An ADD event starts a containment for each child,
+	 * a DELETE event ends the open containment of each child in the same parent.
+	 * @param containmentsByChild child EPC -> containments of the child, sorted by start time
+	 * @param containmentsByParent parent EPC -> containments of its children, keyed by themselves; null, if not needed
+	 * @param event aggregation event; events have to be applied in eventTime order
+	 */
+	static void addContainments(Map<String, List<Containment>> containmentsByChild,
+			Map<String, Map<Containment, Containment>> containmentsByParent, AggregationEvent event) {
+		String action = event.getAction();
+		String parent = event.getParentID();
+		long eventTime = event.getEventTime();
+		if (parent == null) {
+			return;
+		}
+
+		for (String child : event.getChildEPCs()) {
+			if ("ADD".equals(action)) {
+				List<Containment> containments = containmentsByChild.computeIfAbsent(child, key -> new ArrayList<>(1));
+				Containment containment = new Containment(child, parent, eventTime, -1);
+				if (!containments.contains(containment)) {
+					int index = Collections.binarySearch(containments, containment, Comparator.comparingLong(Containment::getStartTime));
+					containments.add(index < 0 ? -index - 1 : index + 1, containment);
+					if (containmentsByParent != null) {
+						containmentsByParent.computeIfAbsent(parent, key -> new LinkedHashMap<>()).put(containment, containment);
+					}
+				}
+			} else if ("DELETE".equals(action)) {
+				List<Containment> containments = containmentsByChild.get(child);
+				if (containments == null) {
+					continue;
+				}
+				for (int j = containments.size() - 1; j >= 0; j--) {
+					Containment containment = containments.get(j);
+					if (parent.equals(containment.getParent()) && containment.getStartTime() <= eventTime) {
+						if (!containment.hasEndTime()) {
+							Containment ended = new Containment(child, parent, containment.getStartTime(), eventTime);
+							containments.set(j, ended);
+							if (containmentsByParent != null) {
+								// equal to the open containment, so that its value is replaced and its position kept
+								containmentsByParent.get(parent).put(ended, ended);
+							}
+						}
+						break;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Time interval, in which a child EPC is aggregated in a parent EPC.
+	 */
+	public static final class Containment {
+		private final String child;
+		private final String parent;
+		private final long startTime;
+		private final long endTime;
+
+		public Containment(String child, String parent, long startTime, long endTime) {
+			this.child = child;
+			this.parent = parent;
+			this.startTime = startTime;
+			this.endTime = endTime;
+		}
+
+		public String getChild() {
+			return child;
+		}
+
+		public String getParent() {
+			return parent;
+		}
+
+		public long getStartTime() {
+			return startTime;
+		}
+
+		/**
+		 * @return time of the DELETE event; -1, if the child is still in the parent
+		 */
+		public long getEndTime() {
+			return endTime;
+		}
+
+		public boolean hasEndTime() {
+			return endTime >= 0;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Containment)) {
+				return false;
+			}
+			Containment other = (Containment) obj;
+			return child.equals(other.child) && parent.equals(other.parent) && startTime == other.startTime;
+		}
+
+		@Override
+		public int hashCode() {
+			return (child.hashCode() * 31 + parent.hashCode()) * 31 + Long.hashCode(startTime);
+		}
+	}
+}
@@ -8,10 +8,19 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
-import java.util.regex.Pattern;
-import java.util.stream.Collectors;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 
-import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.IOUtils;
 import org.json.JSONArray;
 import org.json.JSONObject;
@@ -22,6 +31,7 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Service;
 
 import com.fasterxml.jackson.core.JsonParseException;
@@ -29,8 +39,9 @@ import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.JsonMappingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.github.wnameless.json.flattener.JsonFlattener;
 
+import eu.nimble.service.tracking.imp.service.RequestTiming.Phase;
+import eu.nimble.service.tracking.imp.service.UpstreamCommands.Upstream;
 import eu.nimble.service.tracking.impl.controller.TrackingController;
 
 import org.springframework.stereotype.Service;
@@ -47,126 +58,169 @@ public class BlockchainService {
 	@Autowired
 	private RestTemplate restTemplate;
 	
+	@Autowired
+	private VerifiedHashCache verifiedHashCache;
+	
+	@Autowired
+	private UpstreamCommands upstreamCommands;
+	
+	@Autowired
+	private RequestMetrics requestMetrics;
+	
 	@Value("${spring.blockchain-service.url}")
 	public String blockchainURL;
 	
 	/**
-	 * Verify tracking event in Blockchain
-	 * @param jsonEventArray an string representation of JSON array of tracking events
-	 * @return true, all tracking events found in Blockchain; false, otherwise
+	 * Maximal time to verify a list of events. If the events are not verified in time, the verification fails with 504,
+	 * as they are neither found nor not found.
 	 */
-	public boolean verifyTrackingEvents(String jsonEventArray)
-	{
-		boolean verified = true;
-		JSONArray eventList = new JSONArray(jsonEventArray);
-		
-		 for (int i = 0 ; i < eventList.length(); i++) {
-		        JSONObject obj = eventList.getJSONObject(i);
-
-		        if(!this.verifyTrackingEvent(obj))
-		        {
-		        	verified = false;
-		        }
-		    }
-		
-		
-		return verified;
-	}
+	@Value("${spring.blockchain-service.batch-timeout-ms:30000}")
+	private long batchTimeoutMs;
 	
 	/**
-	 * Verify a single tracking event in Blockchain
-	 * @param jsonEventObj single tracking event in json
-	 * @return true, found in Blockchain; false, otherwise
+	 * Stop verifying the remaining events of a list, as soon as one event is not found in Blockchain
 	 */
-	public boolean verifyTrackingEvent(JSONObject jsonEventObj) 
+	@Value("${spring.blockchain-service.fail-fast:false}")
+	private boolean failFast;
+	
+	private ScheduledExecutorService timeoutExecutor;
+	
+	@PostConstruct
+	public void init()
 	{
-		String completeHash = this.generateUnifiedHashCode(jsonEventObj);
-		
-		boolean found  = this.verifyHashCode(completeHash);
-		
-		return found;
+		timeoutExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "blockchain-verification-timeout");
+			thread.setDaemon(true);
+			return thread;
+		});
 	}
-
 	
-	/**
-	 * Generate complete hash for a given Json event object
-	 * @param jsonObj
-	 * @return
-	 */
-	private String generateUnifiedHashCode(JSONObject jsonObj)
+	@PreDestroy
+	public void shutdown()
 	{
-		JSONObject unifiedJsonFields = this.unifyJsonObjFields(jsonObj);
-		String unifiedJsonStr = this.unifyJsonStringForHash(unifiedJsonFields);
-		String completeHash = DigestUtils.sha256Hex(unifiedJsonStr);
-		
-		System.out.print("unifiedJSONStr: " + unifiedJsonStr + "\n");
-		System.out.print("completeHash: " + completeHash + "\n");
-		return completeHash;
+		timeoutExecutor.shutdownNow();
 	}
-
+	
 	/**
-	 * Transform a given JSON Event back to the format when the event is sent to the Blockchain. 
-	 * Because, the hash code stored in the blockchain was calculated base on that format. 
-	 * Without a unified JSON format i.e. fields, it is not possible to compare hash code for verification. 
-	 * @param jsonObj 
-	 * @return JSON Event with a unified JSON fields
+	 * Verify tracking event in Blockchain.
+	 * 
+	 * The events are hashed and looked up in parallel in the thread pool of the Blockchain upstream.
+	 * @param jsonEventArray an string representation of JSON array of tracking events
+	 * @return true, all tracking events found in Blockchain; false, otherwise
 	 */
-	private JSONObject unifyJsonObjFields(JSONObject jsonObj)
+	public boolean verifyTrackingEvents(String jsonEventArray)
 	{
-		// Shallow copy
-		JSONObject unifiedJsonObj = new JSONObject(jsonObj, JSONObject.getNames(jsonObj));
-		
-		// When company calculate hash, or send event data to Block-chain and local data storage,
-		// the fields "_id", "userPartyID" are not included.
-		List<String> removableFields =  Arrays.asList(new String[] { "_id", "userPartyID", "recordTime" });;
-
-		for(String removableField : removableFields)
-		{
-			unifiedJsonObj.remove(removableField);
+		try {
+			return this.verifyTrackingEventsAsync(jsonEventArray).join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw e;
 		}
-		
-		return unifiedJsonObj;
 	}
 	
 	/**
-	 * Unify string representation of a JSON Event Object, in order to have same hash code for identical JSON objects.
-	 * 
-	 * It can often happen, that identical JSON objects are presented as different strings. It will lead to different hash codes.
-	 * Because, for example, 1) key locations is different 2) value is different sorted in array 
+	 * Verify tracking event in Blockchain, without waiting for the lookups.
 	 * 
-	 * In order to avoid this problem, this method will do following to have a unified string representation:
-	 * 1) Flatten key value pairs
-	 * 2) Remove the generated list numbers in the flattened key
-	 * 3) Each key value pair is connected as a string
-	 * 4) Sort the key value string
-	 * @param jsonObj JSON Event Object.
-	 * @return unified string representation.
+	 * The events are hashed on the calling thread, and the hash codes, which are not cached, are looked up in parallel in the
+	 * thread pool of the Blockchain upstream (see {@link UpstreamCommands}), which is shared by all requests.
+	 * The lookups, which have not started yet, are cancelled after fail fast, timeout or error.
+	 * @param jsonEventArray an string representation of JSON array of tracking events
+	 * @return completed with true, all tracking events found in Blockchain; false, otherwise.
+	 * 		Fails with {@link UpstreamUnavailableException}, 504 if the events are not verified in time, or 503 if too many lookups are waiting.
 	 */
-	private String unifyJsonStringForHash(JSONObject jsonObj) 
-	{		
-		Map<String, Object> flattenJson = JsonFlattener.flattenAsMap(jsonObj.toString());
+	public CompletableFuture<Boolean> verifyTrackingEventsAsync(String jsonEventArray)
+	{
+		RequestTiming timing = RequestTiming.current();
+		JSONArray eventList = timing.time(Phase.PARSE, () -> new JSONArray(jsonEventArray));
+		CompletableFuture<Boolean> verified = new CompletableFuture<>();
+		if (eventList.length() == 0) {
+			verified.complete(true);
+			return verified;
+		}
 		
-		// Remove numbers from key e.g. "[0]" from "a.d[0]", because the number could be different each time during JSON flatten
-		String regexListNr = "\\[\\d+\\]";
-		List<String> flattenKeyValPairList = flattenJson.entrySet().stream().
-				map(entry -> entry.getKey().replaceAll(regexListNr, "") + "=" + entry.getValue()).
-				collect(Collectors.toList());
+		AtomicInteger remaining = new AtomicInteger(eventList.length());
+		AtomicBoolean allFound = new AtomicBoolean(true);
+		List<CompletableFuture<Boolean>> verifications = new ArrayList<>(eventList.length());
+		for (int i = 0 ; i < eventList.length() && !verified.isDone(); i++) {
+			CompletableFuture<Boolean> verification = this.verifyTrackingEventAsync(eventList.getJSONObject(i), timing);
+			verifications.add(verification);
+			verification.whenComplete((found, e) -> {
+				if (e != null) {
+					// errors other than HTTP status errors of the lookup are propagated, as without parallel verification
+					verified.completeExceptionally(e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+					return;
+				}
+				if (!found) {
+					allFound.set(false);
+					if (failFast) {
+						verified.complete(false);
+					}
+				}
+				if (remaining.decrementAndGet() == 0) {
+					verified.complete(allFound.get());
+				}
+			});
+		}
 		
-		List<String> sortedFlattenKeyValPairList = flattenKeyValPairList.stream().sorted().collect(Collectors.toList());
+		ScheduledFuture<?> timeout = timeoutExecutor.schedule(() -> {
+			String reason = "Blockchain verification of " + remaining.get() + " events timed out after " + batchTimeoutMs + " ms";
+			if (verified.completeExceptionally(new UpstreamUnavailableException(Upstream.BLOCKCHAIN, HttpStatus.GATEWAY_TIMEOUT, reason))) {
+				log.error(reason);
+			}
+		}, batchTimeoutMs, TimeUnit.MILLISECONDS);
 		
-		return String.join(",", sortedFlattenKeyValPairList);
+		// completed after the lookups are cancelled
+		return verified.whenComplete((result, e) -> {
+			timeout.cancel(false);
+			for (CompletableFuture<Boolean> verification : verifications) {
+				verification.cancel(true);
+			}
+		});
 	}
 	
+	/**
+	 * Verify a single tracking event in Blockchain
+	 * @param jsonEventObj single tracking event in json
+	 * @return true, found in Blockchain; false, otherwise
+	 */
+	public boolean verifyTrackingEvent(JSONObject jsonEventObj) 
+	{
+		try {
+			return this.verifyTrackingEventAsync(jsonEventObj, RequestTiming.current()).join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw e;
+		}
+	}
 	
+	/**
+	 * Verify a single tracking event in Blockchain, without waiting for the lookup
+	 * @param timing timing of the request, which verifies the event
+	 */
+	private CompletableFuture<Boolean> verifyTrackingEventAsync(JSONObject jsonEventObj, RequestTiming timing)
+	{
+		String completeHash = timing.time(Phase.HASHING, () -> CanonicalEventHasher.hash(jsonEventObj));
+		
+		return this.verifyHashCode(completeHash, timing);
+	}
 	
 	/**
-	 * Verify hash code in Blockchain
+	 * Verify hash code in Blockchain. Results of earlier lookups are served from {@link VerifiedHashCache}.
+	 * The lookups are isolated by {@link UpstreamCommands}, so that a slow Blockchain service does not hold the request threads.
 	 * @param eventHash
-	 * @return true, hash code is found; false, otherwise
+	 * @return completed with true, hash code is found; false, otherwise.
+	 * 		Fails with {@link UpstreamUnavailableException}, if the Blockchain service does not answer in time, as the event is neither found nor not found
 	 */
-	private boolean verifyHashCode(String eventHash)
+	private CompletableFuture<Boolean> verifyHashCode(String eventHash, RequestTiming timing)
 	{
-		boolean found = false;
+		Boolean cachedFound = verifiedHashCache.get(eventHash);
+		if (cachedFound != null) {
+			return CompletableFuture.completedFuture(cachedFound);
+		}
 		
 		String url = blockchainURL;		
 
@@ -177,17 +231,52 @@ public class BlockchainService {
 		UriComponentsBuilder builder = UriComponentsBuilder.fromHttpUrl(url).queryParam("hash", hashParmForAPI);
 		HttpEntity<?> entity = new HttpEntity<>(headers);
 		
-		try {
-			HttpEntity<String> response = restTemplate.exchange(builder.toUriString(), HttpMethod.GET, entity,
-					String.class);
+		CompletableFuture<HttpEntity<String>> lookup = this.lookUpHashCode(builder.toUriString(), entity, timing);
+		CompletableFuture<Boolean> verified = lookup.handle((response, e) -> {
+			Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+			if (cause instanceof HttpStatusCodeException && !(cause instanceof UpstreamUnavailableException)) {
+				log.error("Received error during call blockchain services: " + ((HttpStatusCodeException) cause).getResponseBodyAsString());
+				return false;
+			}
+			if (cause != null) {
+				throw cause instanceof RuntimeException ? (RuntimeException) cause : new CompletionException(cause);
+			}
 			
-			 JSONObject jsonResponse = new JSONObject(response.getBody());
-			 found = jsonResponse.getBoolean("result");
-		} catch (HttpStatusCodeException e) {
-			log.error("Received error during call blockchain services: " + e.getResponseBodyAsString());
-		}
-
-		return found;
+			JSONObject jsonResponse = new JSONObject(response.getBody());
+			boolean found = jsonResponse.getBoolean("result");
+			verifiedHashCache.put(eventHash, found);
+			return found;
+		});
+		verified.whenComplete((found, e) -> {
+			if (verified.isCancelled()) {
+				lookup.cancel(true);
+			}
+		});
+		return verified;
+	}
+	
+	/**
+	 * Look up a hash code in the thread pool of the Blockchain service, recording the latency of the lookup
+	 */
+	private CompletableFuture<HttpEntity<String>> lookUpHashCode(String url, HttpEntity<?> entity, RequestTiming timing)
+	{
+		long startTime = System.nanoTime();
+		RequestTiming.Stopwatch upstreamTime = timing.start(Phase.UPSTREAM);
+		CompletableFuture<HttpEntity<String>> response = upstreamCommands.submit(Upstream.BLOCKCHAIN,
+				() -> restTemplate.exchange(url, HttpMethod.GET, entity, String.class));
+		response.whenComplete((result, e) -> {
+			upstreamTime.stop();
+			Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+			if (cause == null) {
+				requestMetrics.recordUpstreamCall(Upstream.BLOCKCHAIN, "hash", startTime, null, result.hasBody() ? result.getBody().length() : 0);
+			} else if (cause instanceof HttpStatusCodeException) {
+				requestMetrics.recordUpstreamCall(Upstream.BLOCKCHAIN, "hash", startTime, cause,
+						((HttpStatusCodeException) cause).getResponseBodyAsByteArray().length);
+			} else if (!(cause instanceof CancellationException)) {
+				requestMetrics.recordUpstreamCall(Upstream.BLOCKCHAIN, "hash", startTime, cause, -1);
+			}
+		});
+		return response;
 	}
 	
 	private String getFileWithUtil(String fileName) throws IOException {
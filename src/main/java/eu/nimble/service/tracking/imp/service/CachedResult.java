@@ -0,0 +1,33 @@
+package eu.nimble.service.tracking.imp.service;
+
+/**
+ * Result served from a local cache or index, which is stale, if the upstream was unavailable to revalidate or refresh it
+ */
+public final class CachedResult<T> {
+	private final T value;
+	private final boolean stale;
+
+	private CachedResult(T value, boolean stale) {
+		this.value = value;
+		this.stale = stale;
+	}
+
+	public static <T> CachedResult<T> fresh(T value) {
+		return new CachedResult<>(value, false);
+	}
+
+	public static <T> CachedResult<T> stale(T value) {
+		return new CachedResult<>(value, true);
+	}
+
+	public T getValue() {
+		return value;
+	}
+
+	/**
+	 * @return true, if the value may be outdated
+	 */
+	public boolean isStale() {
+		return stale;
+	}
+}
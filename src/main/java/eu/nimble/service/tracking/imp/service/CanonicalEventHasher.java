@@ -0,0 +1,244 @@
+package eu.nimble.service.tracking.imp.service;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.github.wnameless.json.flattener.JsonFlattener;
+
+/**
+ * Unified hash code of a JSON Event Object, which is compared with the hash code stored in Blockchain.
+ *
+ * It can often happen, that identical JSON objects are presented as different strings. It will lead to different hash codes.
+ * Because, for example, 1) key locations is different 2) value is different sorted in array
+ *
+ * In order to avoid this problem, the hash code is calculated from a unified string representation:
+ * 1) Remove the fields "_id", "userPartyID", "recordTime", which are not included when the event is sent to Blockchain
+ * 2) Flatten key value pairs
+ * 3) Remove the generated list numbers in the flattened key
+ * 4) Each key value pair is connected as a string
+ * 5) Sort the key value strings and join them with ","
+ *
+ * {@link #hash(JSONObject)} walks the event once and feeds the sorted pairs directly into the digest.
+ * It produces the same hash code as {@link #legacyHash(JSONObject)}, which serializes the event and flattens it with {@link JsonFlattener}.
+ * Events with keys, which {@link JsonFlattener} escapes, are hashed with {@link #legacyHash(JSONObject)}.
+ */
+public final class CanonicalEventHasher {
+
+	// When company calculate hash, or send event data to Block-chain and local data storage,
+	// the fields "_id", "userPartyID" are not included.
+	private static final Set<String> REMOVABLE_FIELDS = Collections.unmodifiableSet(
+			new HashSet<>(Arrays.asList("_id", "userPartyID", "recordTime")));
+
+	// Remove numbers from key e.g. "[0]" from "a.d[0]", because the number could be different each time during JSON flatten
+	private static final Pattern LIST_NUMBER = Pattern.compile("\\[\\d+\\]");
+
+	private CanonicalEventHasher() {
+	}
+
+	/**
+	 * Generate the unified hash code of the given JSON Event Object
+	 * @param event JSON Event Object
+	 * @return SHA-256 hash code in hex
+	 */
+	public static String hash(JSONObject event) {
+		List<KeyValuePair> pairs = new ArrayList<>();
+		if (!collectPairs(event, new StringBuilder(), true, pairs)) {
+			return legacyHash(event);
+		}
+		pairs.sort(KeyValuePair::compareTo);
+
+		MessageDigest digest = DigestUtils.getSha256Digest();
+		for (int i = 0; i < pairs.size(); i++) {
+			if (i > 0) {
+				digest.update((byte) ',');
+			}
+			KeyValuePair pair = pairs.get(i);
+			digest.update(pair.key.getBytes(StandardCharsets.UTF_8));
+			digest.update((byte) '=');
+			digest.update(pair.value.getBytes(StandardCharsets.UTF_8));
+		}
+		return Hex.encodeHexString(digest.digest());
+	}
+
+	/**
+	 * Generate the unified hash code by serializing and flattening the event, as the hash code has been generated originally.
+	 * @param event JSON Event Object
+	 * @return SHA-256 hash code in hex
+	 */
+	public static String legacyHash(JSONObject event) {
+		// Shallow copy
+		JSONObject unifiedJsonObj = new JSONObject(event, JSONObject.getNames(event));
+		for (String removableField : REMOVABLE_FIELDS) {
+			unifiedJsonObj.remove(removableField);
+		}
+
+		Map<String, Object> flattenJson = JsonFlattener.flattenAsMap(unifiedJsonObj.toString());
+		String unifiedJsonStr = flattenJson.entrySet().stream()
+				.map(entry -> LIST_NUMBER.matcher(entry.getKey()).replaceAll("") + "=" + entry.getValue())
+				.sorted()
+				.collect(Collectors.joining(","));
+		return DigestUtils.sha256Hex(unifiedJsonStr);
+	}
+
+	/**
+	 * Collect the flattened key value pairs of a JSON value.
+	 * @param value JSON value
+	 * @param key flattened key of the value without list numbers
+	 * @param root whether the value is the event itself; member names of nested objects are separated by "."
+	 * @param pairs collected pairs
+	 * @return false, if the value contains a key or value, for which the flattened form is not known
+	 */
+	private static boolean collectPairs(Object value, StringBuilder key, boolean root, List<KeyValuePair> pairs) {
+		int keyLength = key.length();
+
+		if (value instanceof JSONObject) {
+			JSONObject jsonObj = (JSONObject) value;
+			boolean empty = true;
+			for (String name : jsonObj.keySet()) {
+				if (root && REMOVABLE_FIELDS.contains(name)) {
+					continue;
+				}
+				empty = false;
+
+				if (!isPlainKey(name)) {
+					return false;
+				} else if (needsBrackets(name)) {
+					key.append("[\\\"").append(name.indexOf('[') >= 0 ? LIST_NUMBER.matcher(name).replaceAll("") : name).append("\\\"]");
+				} else {
+					if (!root) {
+						key.append('.');
+					}
+					key.append(name);
+				}
+
+				if (!collectPairs(jsonObj.opt(name), key, false, pairs)) {
+					return false;
+				}
+				key.setLength(keyLength);
+			}
+			if (empty && !root) {
+				pairs.add(new KeyValuePair(key.toString(), "{}"));
+			}
+			return true;
+		}
+
+		if (value instanceof JSONArray) {
+			JSONArray jsonArray = (JSONArray) value;
+			if (jsonArray.length() == 0) {
+				pairs.add(new KeyValuePair(key.toString(), "[]"));
+			}
+			for (int i = 0; i < jsonArray.length(); i++) {
+				// list numbers are not part of the key
+				if (!collectPairs(jsonArray.opt(i), key, false, pairs)) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		String valueString = valueToString(value);
+		if (valueString == null) {
+			return false;
+		}
+		pairs.add(new KeyValuePair(key.toString(), valueString));
+		return true;
+	}
+
+	/**
+	 * @return the value as flattened by {@link JsonFlattener}; null, if unknown
+	 */
+	private static String valueToString(Object value) {
+		if (value == null || JSONObject.NULL.equals(value)) {
+			return "null";
+		}
+		if (value instanceof String) {
+			return (String) value;
+		}
+		if (value instanceof Boolean || value instanceof Integer || value instanceof Long) {
+			return value.toString();
+		}
+		if (value instanceof Number) {
+			// serialized by org.json and parsed as BigDecimal by JsonFlattener
+			return new BigDecimal(JSONObject.numberToString((Number) value)).toString();
+		}
+		return null;
+	}
+
+	/**
+	 * @return true, if JsonFlattener does not escape the key, i.e. it consists of printable ASCII characters other than quote and backslash.
+	 * 		Empty keys are not plain either, because JsonFlattener may map them to the same flattened key as another key.
+	 */
+	private static boolean isPlainKey(String name) {
+		if (name.isEmpty()) {
+			return false;
+		}
+		for (int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			if (c < 0x20 || c > 0x7e || c == '"' || c == '\\') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return true, if JsonFlattener puts the key in brackets, e.g. a["b.c"]
+	 */
+	private static boolean needsBrackets(String name) {
+		return name.indexOf('.') >= 0 || name.indexOf('[') >= 0 || name.indexOf(']') >= 0;
+	}
+
+	/**
+	 * Flattened key value pair, ordered as the string "key=value"
+	 */
+	private static final class KeyValuePair implements Comparable<KeyValuePair> {
+		private final String key;
+		private final String value;
+
+		KeyValuePair(String key, String value) {
+			this.key = key;
+			this.value = value;
+		}
+
+		private int length() {
+			return key.length() + 1 + value.length();
+		}
+
+		private char charAt(int index) {
+			if (index < key.length()) {
+				return key.charAt(index);
+			}
+			return index == key.length() ? '=' : value.charAt(index - key.length() - 1);
+		}
+
+		@Override
+		public int compareTo(KeyValuePair other) {
+			int length = this.length();
+			int otherLength = other.length();
+			int commonLength = Math.min(length, otherLength);
+			for (int i = 0; i < commonLength; i++) {
+				char c = this.charAt(i);
+				char otherC = other.charAt(i);
+				if (c != otherC) {
+					return c - otherC;
+				}
+			}
+			return length - otherLength;
+		}
+	}
+}
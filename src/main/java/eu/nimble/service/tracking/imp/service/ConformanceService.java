@@ -0,0 +1,129 @@
+package eu.nimble.service.tracking.imp.service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Service;
+
+import eu.nimble.service.tracking.imp.service.ProcessProgressIndex.ClassSummary;
+import eu.nimble.service.tracking.imp.service.ProductionProcessModel.Conformance;
+import eu.nimble.service.tracking.imp.service.RequestTiming.Phase;
+
+/**
+ * Conformance of the tracked events of an item to the production process template of its product class.
+ *
+ * Each version of a template is compiled once into a {@link ProductionProcessModel}, which is cached by the fingerprint of the template.
+ * The progress of all items of a product class is served from the {@link ProcessProgressIndex}.
+ */
+@Service
+public class ConformanceService implements PublicMetrics {
+
+	@Value("${tracking.conformance.model-cache.max-size:1000}")
+	private int maxSize;
+
+	@Autowired
+	private EpcisService epcisService;
+
+	@Autowired
+	private ProductionProcessTemplateCache productionProcessTemplateCache;
+
+	@Autowired
+	private ProcessProgressIndex processProgressIndex;
+
+	// template fingerprint -> compiled template, in access order. Guarded by itself.
+	private Map<String, ProductionProcessModel> models;
+
+	private final AtomicLong compilations = new AtomicLong();
+
+	@PostConstruct
+	public void init() {
+		models = new LinkedHashMap<String, ProductionProcessModel>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, ProductionProcessModel> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	/**
+	 * Compare the events of an item with the production process template of its product class.
+	 * The template and the events are requested in parallel.
+	 * @param epc EPC of the item
+	 * @param productClass product class ID in the NIMBLE catalogue
+	 * @param bearerToken The Bearer token provided by the identity service
+	 * @return conformance of the item to the template; stale, if the template could not be revalidated
+	 */
+	public CompletableFuture<CachedResult<Conformance>> getConformance(String epc, String productClass, String bearerToken) {
+		Map<String, String> queryParams = new LinkedHashMap<>();
+		queryParams.put("MATCH_epc", epc);
+		queryParams.put("orderBy", "eventTime");
+		queryParams.put("orderDirection", "ASC");
+
+		RequestTiming timing = RequestTiming.current();
+		return productionProcessTemplateCache.get(productClass, bearerToken)
+				.thenCombine(epcisService.pollEventsAsync(queryParams, bearerToken), (template, events) -> {
+					Conformance conformance = timing.time(Phase.TRAVERSAL, () -> this.getModel(template).replay(events));
+					return template.isStale() ? CachedResult.stale(conformance) : CachedResult.fresh(conformance);
+				});
+	}
+
+	/**
+	 * Summarize the progress of all items of a product class
+	 * @param productClass product class ID in the NIMBLE catalogue
+	 * @param stalledAfterMs time without an event of a step, after which an item before the last step is stalled
+	 * @param stalledLimit maximal number of returned stalled items
+	 * @param bearerToken The Bearer token provided by the identity service
+	 * @return number of items per step and the stalled items; stale, if the template could not be revalidated or the index could not be refreshed
+	 */
+	public CompletableFuture<CachedResult<ClassSummary>> getClassSummary(String productClass, long stalledAfterMs, int stalledLimit, String bearerToken) {
+		RequestTiming timing = RequestTiming.current();
+		return productionProcessTemplateCache.get(productClass, bearerToken)
+				.thenCombine(processProgressIndex.whenLoaded(bearerToken), (template, loaded) -> {
+					ClassSummary summary = timing.time(Phase.TRAVERSAL, () -> processProgressIndex.getSummary(productClass,
+							template.getFingerprint(), this.getModel(template), System.currentTimeMillis() - stalledAfterMs, stalledLimit));
+					return template.isStale() || processProgressIndex.isStale() ? CachedResult.stale(summary) : CachedResult.fresh(summary);
+				});
+	}
+
+	/**
+	 * @return the compiled template, compiled on first use of the template version
+	 */
+	ProductionProcessModel getModel(ProductionProcessTemplateCache.Template template) {
+		synchronized (models) {
+			ProductionProcessModel model = models.get(template.getFingerprint());
+			if (model != null) {
+				return model;
+			}
+		}
+
+		ProductionProcessModel model = ProductionProcessModel.compile(template.getContent());
+		compilations.incrementAndGet();
+		synchronized (models) {
+			models.put(template.getFingerprint(), model);
+		}
+		return model;
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+		List<Metric<?>> metrics = new ArrayList<>();
+		metrics.add(new Metric<Long>("conformance.models.compilations", compilations.get()));
+		synchronized (models) {
+			metrics.add(new Metric<Integer>("conformance.models.size", models.size()));
+		}
+		return metrics;
+	}
+}
@@ -0,0 +1,163 @@
+package eu.nimble.service.tracking.imp.service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+/**
+ * Breadth first traversal over a graph of EPCs, which visits each EPC once.
+ *
+ * The successors are requested level by level, so that a successor function can answer a whole level at once,
+ * e.g. from an in-memory index or with a single query to the EPCIS repository.
+ * With {@link #breadthFirstAsync(String, Function, int, int)} the successors of a level may be queried without blocking.
+ */
+public final class EpcGraphTraversal {
+
+	private EpcGraphTraversal() {
+	}
+
+	/**
+	 * Traverse the graph starting from the given EPC.
+	 * @param startEpc EPC to start from
+	 * @param successors returns for the EPCs of a level the successors of each EPC; EPCs without successors may be omitted
+	 * @param maxDepth maximal number of levels to expand
+	 * @param maxNodes maximal number of EPCs to visit, including the start EPC
+	 * @return visited EPCs, which have successors, in breadth first order
+	 */
+	public static Result breadthFirst(String startEpc, Function<Collection<String>, Map<String, ? extends Collection<String>>> successors,
+			int maxDepth, int maxNodes) {
+		Traversal traversal = new Traversal(startEpc, maxDepth, maxNodes);
+		while (traversal.hasNextLevel()) {
+			traversal.expand(successors.apply(traversal.frontier));
+		}
+		return traversal.getResult();
+	}
+
+	/**
+	 * Traverse the graph starting from the given EPC, requesting the successors of a level without waiting for them.
+	 * @param successors returns for the EPCs of a level a future of the successors of each EPC
+	 * @see #breadthFirst(String, Function, int, int)
+	 */
+	public static CompletableFuture<Result> breadthFirstAsync(String startEpc,
+			Function<Collection<String>, CompletableFuture<? extends Map<String, ? extends Collection<String>>>> successors, int maxDepth, int maxNodes) {
+		return expandAsync(new Traversal(startEpc, maxDepth, maxNodes), successors);
+	}
+
+	private static CompletableFuture<Result> expandAsync(Traversal traversal,
+			Function<Collection<String>, CompletableFuture<? extends Map<String, ? extends Collection<String>>>> successors) {
+		if (!traversal.hasNextLevel()) {
+			return CompletableFuture.completedFuture(traversal.getResult());
+		}
+		return successors.apply(traversal.frontier).thenCompose(levelSuccessors -> {
+			traversal.expand(levelSuccessors);
+			return expandAsync(traversal, successors);
+		});
+	}
+
+	/**
+	 * State of a traversal, which is expanded level by level
+	 */
+	private static final class Traversal {
+		private final int maxDepth;
+		private final int maxNodes;
+		private final List<Node> nodes = new ArrayList<>();
+		private final Set<String> visited = new HashSet<>();
+		private List<String> frontier;
+		private int depth = 0;
+		private boolean truncated = false;
+
+		Traversal(String startEpc, int maxDepth, int maxNodes) {
+			this.maxDepth = maxDepth;
+			this.maxNodes = maxNodes;
+			visited.add(startEpc);
+			frontier = Collections.singletonList(startEpc);
+		}
+
+		boolean hasNextLevel() {
+			if (frontier.isEmpty()) {
+				return false;
+			}
+			if (depth >= maxDepth) {
+				truncated = true;
+				return false;
+			}
+			return true;
+		}
+
+		void expand(Map<String, ? extends Collection<String>> levelSuccessors) {
+			List<String> nextFrontier = new ArrayList<>();
+			for (String epc : frontier) {
+				Collection<String> epcSuccessors = levelSuccessors.get(epc);
+				if (epcSuccessors == null || epcSuccessors.isEmpty()) {
+					continue;
+				}
+				nodes.add(new Node(epc, new ArrayList<>(epcSuccessors)));
+				for (String successor : epcSuccessors) {
+					if (visited.contains(successor)) {
+						continue;
+					}
+					if (visited.size() >= maxNodes) {
+						truncated = true;
+						continue;
+					}
+					visited.add(successor);
+					nextFrontier.add(successor);
+				}
+			}
+			frontier = nextFrontier;
+			depth++;
+		}
+
+		Result getResult() {
+			return new Result(nodes, truncated);
+		}
+	}
+
+	/**
+	 * A visited EPC with its successors. Successors may also be visited through another EPC.
+	 */
+	public static final class Node {
+		private final String epc;
+		private final List<String> successors;
+
+		public Node(String epc, List<String> successors) {
+			this.epc = epc;
+			this.successors = successors;
+		}
+
+		public String getEpc() {
+			return epc;
+		}
+
+		public List<String> getSuccessors() {
+			return successors;
+		}
+	}
+
+	public static final class Result {
+		private final List<Node> nodes;
+		private final boolean truncated;
+
+		public Result(List<Node> nodes, boolean truncated) {
+			this.nodes = nodes;
+			this.truncated = truncated;
+		}
+
+		public List<Node> getNodes() {
+			return nodes;
+		}
+
+		/**
+		 * @return true, when maxDepth or maxNodes was reached before all EPCs were visited
+		 */
+		public boolean isTruncated() {
+			return truncated;
+		}
+	}
+}
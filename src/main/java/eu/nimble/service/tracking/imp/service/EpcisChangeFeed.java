@@ -0,0 +1,347 @@
+package eu.nimble.service.tracking.imp.service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.stereotype.Service;
+
+import eu.nimble.service.tracking.model.EpcisEvent;
+
+/**
+ * Single incremental stream of EPCIS events, which is shared by the in-process {@link EpcisEventConsumer}s.
+ *
+ * The change feed polls the events recorded since its watermark (GE_recordTime) in pages sorted by recordTime,
+ * and hands them to the consumers of their event type. Events recorded at exactly the watermark are returned again
+ * by the next query; they are recognized by their id and not delivered twice.
+ * Failed polls are retried with exponential backoff. If the feed cannot catch up after max-load-failures polls,
+ * the consumers are told, so that they do not wait for it.
+ *
+ * When the {@link EpcisEventStore} is enabled, new events are appended to it before they are delivered.
+ * On startup the stored events are replayed to the consumers, and polling continues from the last stored event.
+ */
+@Service
+public class EpcisChangeFeed implements PublicMetrics, ApplicationListener<ContextRefreshedEvent> {
+	private static Logger log = LoggerFactory.getLogger(EpcisChangeFeed.class);
+
+	@Value("${tracking.change-feed.enabled:false}")
+	private boolean enabled;
+
+	/**
+	 * Interval between two polls, when the feed has caught up, and the initial backoff after a failed poll
+	 */
+	@Value("${tracking.change-feed.poll-interval-ms:10000}")
+	private long pollIntervalMs;
+
+	@Value("${tracking.change-feed.max-backoff-ms:300000}")
+	private long maxBackoffMs;
+
+	@Value("${tracking.change-feed.page-size:1000}")
+	private int pageSize;
+
+	/**
+	 * Number of consecutive failed polls before the feed has caught up, after which the consumers are told that loading failed
+	 */
+	@Value("${tracking.change-feed.max-load-failures:3}")
+	private int maxLoadFailures;
+
+	/**
+	 * Authorization header of the polls, a token of the tracking service itself; required, if the feed is enabled
+	 */
+	@Value("${tracking.change-feed.token:}")
+	private String token;
+
+	@Autowired
+	private EpcisService epcisService;
+
+	@Autowired
+	private EpcisEventStore eventStore;
+
+	private final List<EpcisEventConsumer> consumers = new CopyOnWriteArrayList<>();
+
+	// Highest recordTime delivered so far and the ids of events recorded at exactly that time.
+	// Guarded by the poll thread.
+	private volatile long watermark = -1;
+	private final Set<String> watermarkEventIds = new HashSet<>();
+	private volatile int failures = 0;
+	private boolean caughtUp = false;
+
+	private final AtomicLong deliveredEvents = new AtomicLong();
+	private final AtomicLong polledPages = new AtomicLong();
+	private final AtomicLong failedPolls = new AtomicLong();
+	private volatile long lastCaughtUpTime = -1;
+	private volatile double eventsPerSecond = 0;
+
+	private ScheduledExecutorService pollExecutor;
+
+	@PostConstruct
+	public void init() {
+		// the feed must not poll with the credentials of a client, the events are shared by all clients
+		if (enabled && token.isEmpty()) {
+			throw new IllegalStateException("tracking.change-feed.token is required, if the change feed is enabled");
+		}
+	}
+
+	@Override
+	public synchronized void onApplicationEvent(ContextRefreshedEvent event) {
+		if (!enabled || pollExecutor != null) {
+			return;
+		}
+
+		for (EpcisEventConsumer consumer : event.getApplicationContext().getBeansOfType(EpcisEventConsumer.class).values()) {
+			this.register(consumer);
+		}
+		if (consumers.isEmpty()) {
+			return;
+		}
+
+		pollExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "epcis-change-feed");
+			thread.setDaemon(true);
+			return thread;
+		});
+		pollExecutor.execute(() -> {
+			this.restore();
+			this.poll();
+		});
+	}
+
+	@PreDestroy
+	public synchronized void shutdown() {
+		if (pollExecutor != null) {
+			pollExecutor.shutdownNow();
+		}
+	}
+
+	/**
+	 * @return true, if the consumers are fed by the change feed instead of querying EPCIS themselves
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * @return true, if the last poll failed, so that the consumers may miss the latest events
+	 */
+	public boolean isFailing() {
+		return failures > 0;
+	}
+
+	void register(EpcisEventConsumer consumer) {
+		consumers.add(consumer);
+	}
+
+	/**
+	 * Restore the watermark by replaying the stored events, if the event store is enabled. Otherwise the consumers start empty,
+	 * and the feed polls all events again.
+	 */
+	void restore() {
+		if (!this.isStoreEnabled()) {
+			return;
+		}
+
+		try {
+			long replayed = eventStore.replay(events -> this.deliver(events, false));
+			if (replayed > 0) {
+				log.info("EPCIS change feed resumes at recordTime " + EpcisService.formatTime(watermark) + " after replaying " + replayed + " stored events");
+				// the consumers answer from the stored events, while the feed catches up
+				this.notifyCaughtUp();
+			}
+		} catch (RuntimeException e) {
+			// the consumers may have received a part of the stored events, so they cannot be completed from EPCIS
+			log.error("Replay of the event store failed, the change feed is stopped: " + e.getMessage());
+			this.notifyLoadFailed(e);
+			throw e;
+		}
+	}
+
+	/**
+	 * Poll until caught up and schedule the next poll
+	 */
+	private void poll() {
+		long delay = pollIntervalMs;
+		try {
+			this.pollUntilCaughtUp(token);
+			failures = 0;
+		} catch (Exception e) {
+			failures++;
+			failedPolls.incrementAndGet();
+			delay = getBackoffMs(failures);
+			log.error("EPCIS change feed poll failed, retrying in " + delay + " ms: " + e.getMessage());
+			if (!caughtUp && failures == maxLoadFailures) {
+				this.notifyLoadFailed(e);
+			}
+		}
+		pollExecutor.schedule(this::poll, delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @return delay after the given number of consecutive failures: the poll interval, doubled with each failure up to the maximal backoff
+	 */
+	long getBackoffMs(int consecutiveFailures) {
+		long backoff = pollIntervalMs << Math.min(consecutiveFailures - 1, 20);
+		return Math.min(backoff, maxBackoffMs);
+	}
+
+	/**
+	 * Poll pages of events recorded since the watermark and deliver them, until a page is not full.
+	 * @param bearerToken The Bearer token provided by the identity service
+	 */
+	void pollUntilCaughtUp(String bearerToken) {
+		long startTime = System.currentTimeMillis();
+		long delivered = 0;
+		int limit = pageSize;
+		boolean full;
+		do {
+			long previousWatermark = watermark;
+			List<EpcisEvent> events = epcisService.pollEvents(this.getQueryParams(limit), bearerToken);
+			polledPages.incrementAndGet();
+			delivered += this.deliver(events, true);
+
+			full = events.size() >= limit;
+			// a full page of events recorded at the watermark does not advance it; the next page has to be larger
+			limit = full && watermark == previousWatermark ? limit * 2 : pageSize;
+		} while (full);
+
+		long duration = System.currentTimeMillis() - startTime;
+		eventsPerSecond = delivered * 1000.0 / Math.max(duration, 1);
+		lastCaughtUpTime = startTime;
+		if (delivered > 0) {
+			log.info("EPCIS change feed: " + delivered + " new events delivered in " + duration + " ms");
+		}
+
+		this.notifyCaughtUp();
+	}
+
+	private void notifyCaughtUp() {
+		if (!caughtUp) {
+			caughtUp = true;
+			for (EpcisEventConsumer consumer : consumers) {
+				consumer.caughtUp();
+			}
+		}
+	}
+
+	private void notifyLoadFailed(Exception e) {
+		for (EpcisEventConsumer consumer : consumers) {
+			consumer.loadFailed(e);
+		}
+	}
+
+	private boolean isStoreEnabled() {
+		return eventStore != null && eventStore.isEnabled();
+	}
+
+	private Map<String, String> getQueryParams(int limit) {
+		Set<String> eventTypes = new TreeSet<>();
+		for (EpcisEventConsumer consumer : consumers) {
+			eventTypes.addAll(consumer.getEventTypes());
+		}
+
+		Map<String, String> queryParams = new LinkedHashMap<>();
+		queryParams.put("eventType", String.join(",", eventTypes));
+		if (watermark >= 0) {
+			queryParams.put("GE_recordTime", EpcisService.formatTime(watermark));
+		}
+		queryParams.put("orderBy", "recordTime");
+		queryParams.put("orderDirection", "ASC");
+		queryParams.put("eventCountLimit", Integer.toString(limit));
+		return queryParams;
+	}
+
+	/**
+	 * Deliver the events, which were not delivered before, to the consumers of their type and advance the watermark.
+	 * @param events events in recordTime order
+	 * @param store true, to append the new events to the event store first; the watermark is not advanced, if that fails
+	 * @return number of new events
+	 */
+	private int deliver(List<EpcisEvent> events, boolean store) {
+		List<EpcisEvent> newEvents = new ArrayList<>(events.size());
+		long newWatermark = watermark;
+		Set<String> newWatermarkEventIds = new HashSet<>(watermarkEventIds);
+		for (EpcisEvent event : events) {
+			long recordTime = event.getRecordTime();
+			String eventId = event.getId();
+			if (recordTime == watermark && eventId != null && watermarkEventIds.contains(eventId)) {
+				// already delivered with the previous page
+				continue;
+			}
+			newEvents.add(event);
+
+			if (recordTime > newWatermark) {
+				newWatermark = recordTime;
+				newWatermarkEventIds.clear();
+			}
+			if (recordTime == newWatermark && eventId != null) {
+				newWatermarkEventIds.add(eventId);
+			}
+		}
+
+		if (store && this.isStoreEnabled()) {
+			eventStore.append(newEvents);
+		}
+		watermark = newWatermark;
+		watermarkEventIds.clear();
+		watermarkEventIds.addAll(newWatermarkEventIds);
+
+		for (EpcisEventConsumer consumer : consumers) {
+			Set<String> eventTypes = consumer.getEventTypes();
+			List<EpcisEvent> consumerEvents = new ArrayList<>();
+			for (EpcisEvent event : newEvents) {
+				if (eventTypes.contains(event.getEventType())) {
+					consumerEvents.add(event);
+				}
+			}
+			if (consumerEvents.isEmpty()) {
+				continue;
+			}
+			try {
+				consumer.accept(consumerEvents);
+			} catch (RuntimeException e) {
+				log.error("EPCIS change feed consumer " + consumer.getClass().getSimpleName() + " failed: " + e.getMessage());
+			}
+		}
+		deliveredEvents.addAndGet(newEvents.size());
+		return newEvents.size();
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+		List<Metric<?>> metrics = new ArrayList<>();
+		if (!enabled) {
+			return metrics;
+		}
+		metrics.add(new Metric<Long>("epcis.changefeed.watermark", watermark));
+		long caughtUpTime = lastCaughtUpTime;
+		if (caughtUpTime >= 0) {
+			// events recorded after the start of the last complete poll may not be delivered yet
+			metrics.add(new Metric<Long>("epcis.changefeed.lag-ms", System.currentTimeMillis() - caughtUpTime));
+		}
+		metrics.add(new Metric<Long>("epcis.changefeed.events", deliveredEvents.get()));
+		metrics.add(new Metric<Double>("epcis.changefeed.events-per-second", eventsPerSecond));
+		metrics.add(new Metric<Long>("epcis.changefeed.pages", polledPages.get()));
+		metrics.add(new Metric<Long>("epcis.changefeed.failures", failedPolls.get()));
+		return metrics;
+	}
+}
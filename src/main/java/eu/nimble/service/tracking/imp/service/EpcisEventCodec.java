@@ -0,0 +1,326 @@
+package eu.nimble.service.tracking.imp.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import eu.nimble.service.tracking.model.AggregationEvent;
+import eu.nimble.service.tracking.model.EpcisEvent;
+import eu.nimble.service.tracking.model.ObjectEvent;
+import eu.nimble.service.tracking.model.TransformationEvent;
+
+/**
+ * Reads EPCIS events in the JSON format of the EPCIS repository into the typed event model with the streaming parser of Jackson.
+ *
+ * Only the fields of the model are read; all other fields, e.g. extensions and ILMD, are skipped without building a tree.
+ * The values repeated across the events of a response, e.g. bizStep and locations, are shared by the events.
+ */
+public final class EpcisEventCodec {
+
+	private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+	private EpcisEventCodec() {
+	}
+
+	/**
+	 * Read a JSON array of EPCIS events
+	 * @param json response of SimpleEventQuery
+	 * @return events in the order of the array
+	 * @throws UncheckedIOException if the JSON is not a valid array
+	 */
+	public static List<EpcisEvent> read(String json) {
+		try (JsonParser parser = JSON_FACTORY.createParser(json)) {
+			return readEvents(parser);
+		} catch (IOException e) {
+			throw new UncheckedIOException("Invalid EPCIS events: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Read a JSON array of EPCIS events from a stream, without reading the stream into memory first
+	 * @param in response body of SimpleEventQuery; it is not closed
+	 * @return events in the order of the array
+	 * @throws IOException if the stream cannot be read or is not a valid array
+	 */
+	public static List<EpcisEvent> read(InputStream in) throws IOException {
+		try (JsonParser parser = JSON_FACTORY.createParser(in)) {
+			parser.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+			return readEvents(parser);
+		}
+	}
+
+	/**
+	 * Read a single EPCIS event
+	 * @param json UTF-8 encoded JSON object, e.g. written by {@link #write(EpcisEvent)}
+	 * @throws UncheckedIOException if the JSON is not a valid object
+	 */
+	public static EpcisEvent readEvent(byte[] json) {
+		try (JsonParser parser = JSON_FACTORY.createParser(json)) {
+			if (parser.nextToken() != JsonToken.START_OBJECT) {
+				throw new JsonParseException(parser, "Expected a JSON object");
+			}
+			return readEvent(parser, new HashMap<>());
+		} catch (IOException e) {
+			throw new UncheckedIOException("Invalid EPCIS event: " + e.getMessage(), e);
+		}
+	}
+
+	private static List<EpcisEvent> readEvents(JsonParser parser) throws IOException {
+		if (parser.nextToken() != JsonToken.START_ARRAY) {
+			throw new JsonParseException(parser, "Expected a JSON array of EPCIS events");
+		}
+
+		List<EpcisEvent> events = new ArrayList<>();
+		Map<String, String> values = new HashMap<>();
+		for (JsonToken token = parser.nextToken(); token != JsonToken.END_ARRAY; token = parser.nextToken()) {
+			if (token == null) {
+				throw new JsonParseException(parser, "Unexpected end of EPCIS events");
+			}
+			if (token == JsonToken.START_OBJECT) {
+				events.add(readEvent(parser, values));
+			} else {
+				parser.skipChildren();
+			}
+		}
+		return events;
+	}
+
+	/**
+	 * Read the fields of an event, starting after its START_OBJECT
+	 * @param values values shared by the events
+	 */
+	private static EpcisEvent readEvent(JsonParser parser, Map<String, String> values) throws IOException {
+		String eventType = null;
+		String id = null;
+		long eventTime = -1;
+		long recordTime = -1;
+		String action = null;
+		String bizStep = null;
+		String readPoint = null;
+		String bizLocation = null;
+		String parentID = null;
+		List<String> epcList = null;
+		List<String> childEPCs = null;
+		List<String> inputEPCList = null;
+		List<String> outputEPCList = null;
+
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String field = parser.getCurrentName();
+			JsonToken value = parser.nextToken();
+			switch (field) {
+			case "eventType":
+				eventType = share(readString(parser, value), values);
+				break;
+			case "_id":
+				id = readField(parser, value, "$oid");
+				break;
+			case "eventTime":
+				eventTime = readTime(parser, value);
+				break;
+			case "recordTime":
+				recordTime = readTime(parser, value);
+				break;
+			case "action":
+				action = share(readString(parser, value), values);
+				break;
+			case "bizStep":
+				bizStep = share(readString(parser, value), values);
+				break;
+			case "readPoint":
+				readPoint = share(readField(parser, value, "id"), values);
+				break;
+			case "bizLocation":
+				bizLocation = share(readField(parser, value, "id"), values);
+				break;
+			case "parentID":
+				parentID = readString(parser, value);
+				break;
+			case "epcList":
+				epcList = readEpcList(parser, value);
+				break;
+			case "childEPCs":
+				childEPCs = readEpcList(parser, value);
+				break;
+			case "inputEPCList":
+				inputEPCList = readEpcList(parser, value);
+				break;
+			case "outputEPCList":
+				outputEPCList = readEpcList(parser, value);
+				break;
+			default:
+				parser.skipChildren();
+			}
+		}
+
+		if (ObjectEvent.TYPE.equals(eventType)) {
+			return new ObjectEvent(id, eventTime, recordTime, action, bizStep, readPoint, bizLocation, epcList);
+		}
+		if (AggregationEvent.TYPE.equals(eventType)) {
+			return new AggregationEvent(id, eventTime, recordTime, action, bizStep, readPoint, bizLocation, parentID, childEPCs);
+		}
+		if (TransformationEvent.TYPE.equals(eventType)) {
+			return new TransformationEvent(id, eventTime, recordTime, bizStep, readPoint, bizLocation, inputEPCList, outputEPCList);
+		}
+		return new EpcisEvent(eventType, id, eventTime, recordTime, action, bizStep, readPoint, bizLocation);
+	}
+
+	/**
+	 * @return value of a scalar; null, if the value is null or structured
+	 */
+	private static String readString(JsonParser parser, JsonToken value) throws IOException {
+		if (value.isStructStart()) {
+			parser.skipChildren();
+			return null;
+		}
+		return parser.getValueAsString(null);
+	}
+
+	/**
+	 * @return scalar value of a field of an object, e.g. "readPoint": {"id": "..."}; null, if not given
+	 */
+	private static String readField(JsonParser parser, JsonToken value, String name) throws IOException {
+		if (value != JsonToken.START_OBJECT) {
+			parser.skipChildren();
+			return null;
+		}
+		String fieldValue = null;
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String field = parser.getCurrentName();
+			JsonToken token = parser.nextToken();
+			if (name.equals(field)) {
+				fieldValue = readString(parser, token);
+			} else {
+				parser.skipChildren();
+			}
+		}
+		return fieldValue;
+	}
+
+	/**
+	 * @return time of a time field, e.g. "eventTime": {"$date": 1523414011116}; -1, if not given
+	 */
+	private static long readTime(JsonParser parser, JsonToken value) throws IOException {
+		if (value != JsonToken.START_OBJECT) {
+			parser.skipChildren();
+			return -1;
+		}
+		long time = -1;
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String field = parser.getCurrentName();
+			JsonToken token = parser.nextToken();
+			if ("$date".equals(field) && token.isScalarValue()) {
+				time = parser.getValueAsLong(-1);
+			} else {
+				parser.skipChildren();
+			}
+		}
+		return time;
+	}
+
+	/**
+	 * @return EPCs of an EPC list, e.g. "epcList": [{"epc": "..."}]; elements without EPC are skipped
+	 */
+	private static List<String> readEpcList(JsonParser parser, JsonToken value) throws IOException {
+		if (value != JsonToken.START_ARRAY) {
+			parser.skipChildren();
+			return null;
+		}
+		List<String> epcs = new ArrayList<>();
+		for (JsonToken token = parser.nextToken(); token != JsonToken.END_ARRAY; token = parser.nextToken()) {
+			String epc = readField(parser, token, "epc");
+			if (epc != null) {
+				epcs.add(epc);
+			}
+		}
+		return epcs;
+	}
+
+	private static String share(String value, Map<String, String> values) {
+		if (value == null) {
+			return null;
+		}
+		String shared = values.putIfAbsent(value, value);
+		return shared == null ? value : shared;
+	}
+
+	/**
+	 * Write the fields of the model of an event in the JSON format of the EPCIS repository
+	 * @return UTF-8 encoded JSON object, which is read by {@link #readEvent(byte[])}
+	 */
+	public static byte[] write(EpcisEvent event) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+		try (JsonGenerator generator = JSON_FACTORY.createGenerator(out)) {
+			generator.writeStartObject();
+			writeField(generator, "eventType", event.getEventType());
+			if (event.getId() != null) {
+				generator.writeObjectFieldStart("_id");
+				generator.writeStringField("$oid", event.getId());
+				generator.writeEndObject();
+			}
+			writeTime(generator, "eventTime", event.getEventTime());
+			writeTime(generator, "recordTime", event.getRecordTime());
+			writeField(generator, "action", event.getAction());
+			writeField(generator, "bizStep", event.getBizStep());
+			writeId(generator, "readPoint", event.getReadPoint());
+			writeId(generator, "bizLocation", event.getBizLocation());
+			if (event instanceof ObjectEvent) {
+				writeEpcList(generator, "epcList", ((ObjectEvent) event).getEpcList());
+			} else if (event instanceof AggregationEvent) {
+				AggregationEvent aggregation = (AggregationEvent) event;
+				writeField(generator, "parentID", aggregation.getParentID());
+				writeEpcList(generator, "childEPCs", aggregation.getChildEPCs());
+			} else if (event instanceof TransformationEvent) {
+				TransformationEvent transformation = (TransformationEvent) event;
+				writeEpcList(generator, "inputEPCList", transformation.getInputEPCList());
+				writeEpcList(generator, "outputEPCList", transformation.getOutputEPCList());
+			}
+			generator.writeEndObject();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return out.toByteArray();
+	}
+
+	private static void writeField(JsonGenerator generator, String field, String value) throws IOException {
+		if (value != null && !value.isEmpty()) {
+			generator.writeStringField(field, value);
+		}
+	}
+
+	private static void writeId(JsonGenerator generator, String field, String id) throws IOException {
+		if (!id.isEmpty()) {
+			generator.writeObjectFieldStart(field);
+			generator.writeStringField("id", id);
+			generator.writeEndObject();
+		}
+	}
+
+	private static void writeTime(JsonGenerator generator, String field, long time) throws IOException {
+		if (time >= 0) {
+			generator.writeObjectFieldStart(field);
+			generator.writeNumberField("$date", time);
+			generator.writeEndObject();
+		}
+	}
+
+	private static void writeEpcList(JsonGenerator generator, String field, List<String> epcs) throws IOException {
+		generator.writeArrayFieldStart(field);
+		for (String epc : epcs) {
+			generator.writeStartObject();
+			generator.writeStringField("epc", epc);
+			generator.writeEndObject();
+		}
+		generator.writeEndArray();
+	}
+}
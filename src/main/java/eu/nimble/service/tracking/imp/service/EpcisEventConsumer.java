@@ -0,0 +1,41 @@
+package eu.nimble.service.tracking.imp.service;
+
+import java.util.List;
+import java.util.Set;
+
+import eu.nimble.service.tracking.model.EpcisEvent;
+
+/**
+ * In-process consumer of the EPCIS events delivered by the {@link EpcisChangeFeed}.
+ *
+ * Consumers are Spring beans, which are registered with the change feed when the application context is started.
+ * They are called from the single thread of the change feed, one page of events at a time.
+ */
+public interface EpcisEventConsumer {
+
+	/**
+	 * @return EPCIS event types of interest, e.g. AggregationEvent
+	 */
+	Set<String> getEventTypes();
+
+	/**
+	 * Consume new events. Events are delivered in recordTime order; an event without id may be delivered twice,
+	 * when it was recorded at the watermark of the previous page.
+	 * @param events new events of the consumed types
+	 */
+	void accept(List<EpcisEvent> events);
+
+	/**
+	 * Called once, when the change feed has read all events recorded up to its first complete poll.
+	 */
+	default void caughtUp() {
+	}
+
+	/**
+	 * Called, when the change feed cannot load the events before it has caught up: the replay of the event store failed,
+	 * or the first polls failed repeatedly. {@link #caughtUp()} may still follow, when a later poll succeeds.
+	 * @param e cause of the failure
+	 */
+	default void loadFailed(Exception e) {
+	}
+}
@@ -0,0 +1,279 @@
+package eu.nimble.service.tracking.imp.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+
+import eu.nimble.service.tracking.imp.service.UpstreamCommands.Upstream;
+import eu.nimble.service.tracking.model.EpcisEvent;
+
+/**
+ * Base class of the in-memory indexes over EPCIS events of a single event type.
+ *
+ * An index is loaded once with all events of its type and afterwards refreshed incrementally
+ * with the events recorded since the last refresh (recordTime watermark).
+ * Refreshes run in background, so that a lookup does not wait for the EPCIS repository once the index is loaded.
+ * When the {@link EpcisChangeFeed} is enabled, the index does not query EPCIS itself, but consumes the events of the change feed.
+ * While the refreshes fail, lookups are answered from the events indexed so far, and the index is stale.
+ * The index is shared by all clients, so it is loaded and refreshed with a token of the tracking service itself,
+ * never with the token of the client, whose lookup triggered the refresh.
+ */
+public abstract class EpcisEventIndex implements EpcisEventConsumer {
+	private static Logger log = LoggerFactory.getLogger(EpcisEventIndex.class);
+
+	@Autowired
+	private EpcisService epcisService;
+
+	@Autowired(required = false)
+	private EpcisChangeFeed changeFeed;
+
+	@Autowired
+	private TokenValidator tokenValidator;
+
+	/**
+	 * Authorization header of the loads and refreshes, a token of the tracking service itself; required, if the change feed is disabled
+	 */
+	@Value("${tracking.index.token:${tracking.change-feed.token:}}")
+	private String token;
+
+	/**
+	 * Guards the index data of the subclass. {@link #addEvent(EpcisEvent)} is called with the write lock held.
+	 */
+	protected final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	// Highest recordTime seen so far and the ids of events recorded at exactly that time,
+	// which are returned again by the next GE_recordTime query. Guarded by refresh().
+	private long watermark = -1;
+	private final Set<String> watermarkEventIds = new HashSet<>();
+
+	// first load, which is in progress or completed; null, if not started or failed
+	private final AtomicReference<CompletableFuture<Void>> load = new AtomicReference<>();
+	// completed, when the change feed has caught up; failed, while the change feed cannot load the events
+	private volatile CompletableFuture<Void> changeFeedLoad = new CompletableFuture<>();
+	private volatile long lastRefreshTime = 0;
+	private volatile boolean refreshFailed = false;
+	private final AtomicLong skippedEvents = new AtomicLong();
+	private final AtomicBoolean refreshScheduled = new AtomicBoolean(false);
+	private final ExecutorService refreshExecutor = Executors.newSingleThreadExecutor(runnable -> {
+		Thread thread = new Thread(runnable, this.getEventType() + "-index-refresh");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	/**
+	 * @return EPCIS event type of the indexed events, e.g. AggregationEvent
+	 */
+	protected abstract String getEventType();
+
+	/**
+	 * @return minimal interval in milliseconds between two incremental refreshes
+	 */
+	protected abstract long getRefreshIntervalMs();
+
+	/**
+	 * Add a single event to the index. Events of a refresh are added in eventTime order.
+	 * The same event may be added twice, when it was recorded at the watermark but has no id.
+	 * An event, which cannot be added, has to fail before the index is changed; it is skipped.
+	 * @param event EPCIS event of the indexed type
+	 */
+	protected abstract void addEvent(EpcisEvent event);
+
+	@PostConstruct
+	public void init() {
+		// the events are shared by all clients, a client token would restrict the index to the events visible to that client
+		if ((changeFeed == null || !changeFeed.isEnabled()) && (token == null || token.isEmpty())) {
+			throw new IllegalStateException("tracking.index.token is required for the " + this.getEventType() + " index, if the change feed is disabled");
+		}
+	}
+
+	/**
+	 * Load the index on first use; trigger a background refresh, when the last refresh is older than the refresh interval.
+	 * The first load runs in background as well, so that the caller does not need to wait for it in a request thread.
+	 * The index is shared by all clients, so the token of the caller is validated before the index is answered;
+	 * the index itself is loaded with the token of the tracking service.
+	 * @param bearerToken The Bearer token provided by the identity service
+	 * @return completed, when the index is loaded; completed exceptionally, when the token is rejected or the first load failed
+	 */
+	public CompletableFuture<Void> whenLoaded(String bearerToken) {
+		return tokenValidator.validate(bearerToken).thenCompose(valid -> this.load());
+	}
+
+	private CompletableFuture<Void> load() {
+		if (changeFeed != null && changeFeed.isEnabled()) {
+			return changeFeedLoad;
+		}
+
+		CompletableFuture<Void> loading = load.get();
+		if (loading == null) {
+			CompletableFuture<Void> newLoading = new CompletableFuture<>();
+			if (!load.compareAndSet(null, newLoading)) {
+				return this.load();
+			}
+			refreshExecutor.execute(() -> {
+				try {
+					this.refresh();
+					newLoading.complete(null);
+				} catch (Exception e) {
+					// the next lookup tries again
+					load.compareAndSet(newLoading, null);
+					newLoading.completeExceptionally(e);
+				}
+			});
+			return newLoading;
+		}
+
+		if (loading.isDone() && !loading.isCompletedExceptionally()
+				&& System.currentTimeMillis() - lastRefreshTime > this.getRefreshIntervalMs() && refreshScheduled.compareAndSet(false, true)) {
+			refreshExecutor.execute(() -> {
+				try {
+					this.refresh();
+				} catch (Exception e) {
+					refreshFailed = true;
+					log.error("Incremental refresh of " + this.getEventType() + " index failed: " + e.getMessage());
+				} finally {
+					refreshScheduled.set(false);
+				}
+			});
+		}
+		return loading;
+	}
+
+	/**
+	 * @return true, if the latest refresh failed, so that events recorded since the refresh before may be missing
+	 */
+	public boolean isStale() {
+		if (changeFeed != null && changeFeed.isEnabled()) {
+			return changeFeed.isFailing();
+		}
+		return refreshFailed;
+	}
+
+	/**
+	 * Fetch the events recorded since the watermark and add them to the index.
+	 */
+	private synchronized void refresh() {
+		Map<String, String> queryParams = new LinkedHashMap<>();
+		queryParams.put("eventType", this.getEventType());
+		if (watermark >= 0) {
+			queryParams.put("GE_recordTime", EpcisService.formatTime(watermark));
+		}
+
+		long startTime = System.currentTimeMillis();
+		List<EpcisEvent> eventList = epcisService.pollEvents(queryParams, token);
+
+		List<EpcisEvent> newEvents = new ArrayList<>(eventList.size());
+		long newWatermark = watermark;
+		Set<String> newWatermarkEventIds = new HashSet<>(watermarkEventIds);
+		for (EpcisEvent event : eventList) {
+			long recordTime = event.getRecordTime();
+			String eventId = event.getId();
+			if (recordTime == watermark && eventId != null && watermarkEventIds.contains(eventId)) {
+				// already indexed by the previous refresh
+				continue;
+			}
+			newEvents.add(event);
+
+			if (recordTime > newWatermark) {
+				newWatermark = recordTime;
+				newWatermarkEventIds.clear();
+			}
+			if (recordTime == newWatermark && eventId != null) {
+				newWatermarkEventIds.add(eventId);
+			}
+		}
+		this.addEvents(newEvents);
+
+		watermark = newWatermark;
+		watermarkEventIds.clear();
+		watermarkEventIds.addAll(newWatermarkEventIds);
+		lastRefreshTime = System.currentTimeMillis();
+		refreshFailed = false;
+
+		log.info(this.getEventType() + " index: " + newEvents.size() + " new events indexed in " + (lastRefreshTime - startTime) + " ms");
+	}
+
+	@Override
+	public Set<String> getEventTypes() {
+		return Collections.singleton(this.getEventType());
+	}
+
+	@Override
+	public void accept(List<EpcisEvent> events) {
+		this.addEvents(new ArrayList<>(events));
+		lastRefreshTime = System.currentTimeMillis();
+	}
+
+	@Override
+	public void caughtUp() {
+		log.info(this.getEventType() + " index loaded from the change feed");
+		if (!changeFeedLoad.complete(null)) {
+			changeFeedLoad = CompletableFuture.completedFuture(null);
+		}
+	}
+
+	@Override
+	public void loadFailed(Exception e) {
+		UpstreamUnavailableException unavailable = new UpstreamUnavailableException(Upstream.EPCIS_EVENTS, HttpStatus.SERVICE_UNAVAILABLE,
+				this.getEventType() + " index could not be loaded: " + e.getMessage());
+		CompletableFuture<Void> failed = new CompletableFuture<>();
+		failed.completeExceptionally(unavailable);
+		CompletableFuture<Void> loading = changeFeedLoad;
+		changeFeedLoad = failed;
+		loading.completeExceptionally(unavailable);
+	}
+
+	/**
+	 * @return number of events, which could not be added to the index
+	 */
+	public long getSkippedEvents() {
+		return skippedEvents.get();
+	}
+
+	/**
+	 * Add new events in eventTime order. An event, which cannot be added, is skipped, so that the batch is always applied
+	 * completely and covered by the new watermark; otherwise the next refresh would add the events before it again.
+	 */
+	private void addEvents(List<EpcisEvent> newEvents) {
+		newEvents.sort(Comparator.comparingLong(EpcisEvent::getEventTime));
+
+		lock.writeLock().lock();
+		try {
+			for (EpcisEvent event : newEvents) {
+				try {
+					this.addEvent(event);
+				} catch (RuntimeException e) {
+					skippedEvents.incrementAndGet();
+					log.error(this.getEventType() + " index: event " + event.getId() + " skipped: " + e);
+				}
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		refreshExecutor.shutdownNow();
+	}
+}
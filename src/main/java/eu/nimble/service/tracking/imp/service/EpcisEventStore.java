@@ -0,0 +1,261 @@
+package eu.nimble.service.tracking.imp.service;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Service;
+
+import eu.nimble.service.tracking.model.EpcisEvent;
+
+/**
+ * Append-only local log of the events delivered by the {@link EpcisChangeFeed}, so that a restarted service
+ * rebuilds its in-memory indexes from local disk and only polls the events recorded since the last stored event.
+ *
+ * Each record consists of the length and the CRC32 of the event, followed by the event in JSON (UTF-8).
+ * Only the fields of the {@link EpcisEvent} model are stored, see {@link EpcisEventCodec#write(EpcisEvent)}.
+ * The log is read through memory-mapped regions. A record, which was not written completely before a crash,
+ * fails the check on open and is truncated.
+ *
+ * The log is not compacted: the indexes are rebuilt from every event of their types, so it holds one record per event
+ * ever delivered and grows with the EPCIS repository, like the heap of the indexes. Its size is reported as
+ * epcis.eventstore.size-bytes; a warning is logged, when it exceeds warn-size-bytes.
+ */
+@Service
+public class EpcisEventStore implements PublicMetrics {
+	private static Logger log = LoggerFactory.getLogger(EpcisEventStore.class);
+
+	private static final String LOG_FILE = "events.log";
+	private static final int HEADER_SIZE = 8;
+	// maximal size of a memory-mapped region of the log
+	private static final long REGION_SIZE = 1 << 30;
+
+	/**
+	 * Directory of the event log; no events are stored, if empty
+	 */
+	@Value("${tracking.event-store.directory:}")
+	private String directory;
+
+	/**
+	 * Number of events handed to the consumers at once during replay
+	 */
+	@Value("${tracking.event-store.replay-batch-size:1000}")
+	private int replayBatchSize;
+
+	/**
+	 * Size of the log in bytes, above which a warning is logged; no warning, if 0
+	 */
+	@Value("${tracking.event-store.warn-size-bytes:10737418240}")
+	private long warnSizeBytes;
+
+	// Written with this held.
+	private volatile FileChannel channel;
+	private volatile long storedEvents = 0;
+	private volatile long replayTimeMs = -1;
+	private boolean sizeWarned = false;
+
+	@PostConstruct
+	public synchronized void open() {
+		if (directory.isEmpty()) {
+			return;
+		}
+
+		Path path = Paths.get(directory, LOG_FILE);
+		try {
+			Files.createDirectories(path.toAbsolutePath().getParent());
+			channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			long validSize = this.scan(null);
+			if (validSize < channel.size()) {
+				log.warn("Truncating incomplete record at the end of " + path + " from " + channel.size() + " to " + validSize + " bytes");
+				channel.truncate(validSize);
+			}
+			channel.position(validSize);
+			log.info("Opened event store " + path + " with " + storedEvents + " events");
+			this.checkSize(validSize);
+		} catch (IOException e) {
+			throw new UncheckedIOException("Could not open event store " + path, e);
+		}
+	}
+
+	@PreDestroy
+	public synchronized void close() throws IOException {
+		if (channel != null) {
+			channel.close();
+			channel = null;
+		}
+	}
+
+	/**
+	 * @return true, if events are stored
+	 */
+	public boolean isEnabled() {
+		return !directory.isEmpty();
+	}
+
+	/**
+	 * Append events to the log and force them to disk
+	 * @param events EPCIS events in recordTime order
+	 * @throws UncheckedIOException if the events cannot be written; the records written in part are removed again
+	 */
+	public synchronized void append(List<EpcisEvent> events) {
+		if (events.isEmpty()) {
+			return;
+		}
+
+		List<ByteBuffer> records = new ArrayList<>(events.size());
+		CRC32 crc = new CRC32();
+		for (EpcisEvent event : events) {
+			byte[] bytes = EpcisEventCodec.write(event);
+			crc.reset();
+			crc.update(bytes);
+			ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + bytes.length);
+			record.putInt(bytes.length).putInt((int) crc.getValue()).put(bytes);
+			record.flip();
+			records.add(record);
+		}
+
+		long position = 0;
+		try {
+			position = channel.position();
+			ByteBuffer[] buffers = records.toArray(new ByteBuffer[records.size()]);
+			while (buffers[buffers.length - 1].hasRemaining()) {
+				channel.write(buffers);
+			}
+			channel.force(false);
+			storedEvents += events.size();
+			this.checkSize(channel.position());
+		} catch (IOException e) {
+			try {
+				channel.truncate(position);
+				channel.position(position);
+			} catch (IOException truncateException) {
+				e.addSuppressed(truncateException);
+			}
+			throw new UncheckedIOException("Could not append " + events.size() + " events to event store", e);
+		}
+	}
+
+	/**
+	 * Log a warning once, when the log has grown beyond warnSizeBytes
+	 */
+	private void checkSize(long size) {
+		if (warnSizeBytes > 0 && size > warnSizeBytes && !sizeWarned) {
+			sizeWarned = true;
+			log.warn("Event store has grown to " + size + " bytes with " + storedEvents + " events, above " + warnSizeBytes
+					+ " bytes; provide more disk space or raise tracking.event-store.warn-size-bytes");
+		}
+	}
+
+	/**
+	 * Read all stored events in the order they were appended
+	 * @param batchConsumer receives the events in batches
+	 * @return number of events read
+	 */
+	public synchronized long replay(Consumer<List<EpcisEvent>> batchConsumer) {
+		long startTime = System.currentTimeMillis();
+		List<EpcisEvent> batch = new ArrayList<>(replayBatchSize);
+		try {
+			this.scan(bytes -> {
+				batch.add(EpcisEventCodec.readEvent(bytes));
+				if (batch.size() >= replayBatchSize) {
+					batchConsumer.accept(new ArrayList<>(batch));
+					batch.clear();
+				}
+			});
+		} catch (IOException e) {
+			throw new UncheckedIOException("Could not read event store", e);
+		}
+		if (!batch.isEmpty()) {
+			batchConsumer.accept(batch);
+		}
+
+		replayTimeMs = System.currentTimeMillis() - startTime;
+		log.info("Replayed " + storedEvents + " events from event store in " + replayTimeMs + " ms");
+		return storedEvents;
+	}
+
+	/**
+	 * Read the records of the log through memory-mapped regions and count them.
+	 * @param recordConsumer receives the event of each valid record; null, to only check the records
+	 * @return size of the valid part of the log, up to the first incomplete or corrupt record
+	 */
+	private long scan(Consumer<byte[]> recordConsumer) throws IOException {
+		long size = channel.size();
+		long regionStart = 0;
+		long events = 0;
+		CRC32 crc = new CRC32();
+		while (regionStart < size) {
+			MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, regionStart, Math.min(size - regionStart, REGION_SIZE));
+			int recordStart = 0;
+			while (region.remaining() >= HEADER_SIZE) {
+				int length = region.getInt();
+				int checksum = region.getInt();
+				if (length < 0 || length > region.remaining()) {
+					break;
+				}
+				byte[] bytes = new byte[length];
+				region.get(bytes);
+				crc.reset();
+				crc.update(bytes);
+				if ((int) crc.getValue() != checksum) {
+					storedEvents = events;
+					return regionStart + recordStart;
+				}
+				if (recordConsumer != null) {
+					recordConsumer.accept(bytes);
+				}
+				events++;
+				recordStart = region.position();
+			}
+
+			if (recordStart == 0) {
+				// no complete record in the region
+				break;
+			}
+			regionStart += recordStart;
+		}
+		storedEvents = events;
+		return regionStart;
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+		List<Metric<?>> metrics = new ArrayList<>();
+		FileChannel channel = this.channel;
+		if (channel == null) {
+			return metrics;
+		}
+		metrics.add(new Metric<Long>("epcis.eventstore.events", storedEvents));
+		try {
+			metrics.add(new Metric<Long>("epcis.eventstore.size-bytes", channel.size()));
+			if (warnSizeBytes > 0) {
+				metrics.add(new Metric<Long>("epcis.eventstore.warn-size-bytes", warnSizeBytes));
+			}
+		} catch (IOException e) {
+			log.error("Could not read event store size: " + e.getMessage());
+		}
+		if (replayTimeMs >= 0) {
+			metrics.add(new Metric<Long>("epcis.eventstore.replay-ms", replayTimeMs));
+		}
+		return metrics;
+	}
+}
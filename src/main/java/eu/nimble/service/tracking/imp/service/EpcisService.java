@@ -0,0 +1,430 @@
+package eu.nimble.service.tracking.imp.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Service;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.web.client.AsyncRestTemplate;
+import org.springframework.web.client.HttpStatusCodeException;
+import org.springframework.web.client.RestTemplate;
+
+import eu.nimble.service.tracking.imp.service.RequestTiming.Phase;
+import eu.nimble.service.tracking.imp.service.UpstreamCommands.Upstream;
+import eu.nimble.service.tracking.model.EpcisEvent;
+
+/**
+ * Access to the EPCIS repository, which is shared by the services that query EPCIS events
+ * outside of a single controller request, e.g. the in-memory event indexes.
+ *
+ * The methods with the suffix Async do not block: they use the non-blocking HTTP client and return a future,
+ * which fails with {@link HttpStatusCodeException} on an error status of the EPCIS repository.
+ * They are isolated by {@link UpstreamCommands}, event queries separately from master data and templates,
+ * and fail with {@link UpstreamUnavailableException}, if the EPCIS repository does not answer in time.
+ * The blocking event queries, whose responses are streamed, are isolated in a bulkhead of their own.
+ * Their futures are completed on the upstream worker threads, never on the I/O threads of the HTTP client.
+ */
+@Service
+public class EpcisService {
+	private static Logger log = LoggerFactory.getLogger(EpcisService.class);
+
+	/**
+	 * Time format accepted by the EPCIS query parameters, e.g. GE_recordTime
+	 */
+	private static final DateTimeFormatter EPCIS_TIME_FORMAT = DateTimeFormatter
+			.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSXXX").withZone(ZoneOffset.UTC);
+
+	@Value("${spring.epcis.url}")
+	private String epcisURL;
+
+	/**
+	 * Size of the chunks, in which a proxied EPCIS response is copied to the client
+	 */
+	@Value("${tracking.proxy.buffer-size:8192}")
+	private int proxyBufferSize;
+
+	@Autowired
+	private RestTemplate restTemplate;
+
+	@Autowired
+	private AsyncRestTemplate asyncRestTemplate;
+
+	/**
+	 * Completes the futures of the non-blocking calls, so that their dependent stages, e.g. parsing, do not run on an I/O thread
+	 */
+	@Autowired
+	@Qualifier("upstreamWorkerExecutor")
+	private Executor workerExecutor;
+
+	@Autowired
+	private UpstreamCommands upstreamCommands;
+
+	@Autowired
+	private RequestMetrics requestMetrics;
+
+	public String getBaseUrl() {
+		String url = epcisURL.trim();
+		if(!url.endsWith("/"))
+		{
+			url = url + "/";
+		}
+		return url;
+	}
+
+	/**
+	 * Poll EPCIS events with SimpleEventQuery. The response is parsed while it is received, so that it is never held
+	 * in memory as a whole; the parse time is part of the upstream time.
+	 * The query runs in the bulkhead of the streamed event queries.
+	 * @param queryParams query parameters, e.g. eventType=AggregationEvent. The parameters are added to the URL in iteration order.
+	 * @param bearerToken The Bearer token provided by the identity service
+	 * @return the matching EPCIS events
+	 * @throws UpstreamUnavailableException if the EPCIS repository does not answer in time
+	 */
+	public List<EpcisEvent> pollEvents(Map<String, String> queryParams, String bearerToken) {
+		String url = this.getEventQueryUrl(queryParams);
+		log.info("URL:" + url);
+
+		long startTime = System.nanoTime();
+		long[] length = {-1};
+		List<EpcisEvent> events;
+		try {
+			events = RequestTiming.current().time(Phase.UPSTREAM, () -> upstreamCommands.execute(Upstream.EPCIS_EVENT_STREAM,
+					() -> restTemplate.execute(url, HttpMethod.GET,
+							request -> request.getHeaders().set("Authorization", bearerToken),
+							response -> {
+								length[0] = response.getHeaders().getContentLength();
+								return EpcisEventCodec.read(response.getBody());
+							})));
+		} catch (RuntimeException e) {
+			requestMetrics.recordUpstreamCall(Upstream.EPCIS_EVENT_STREAM, RequestMetrics.getEventQuery(queryParams), startTime, e, -1);
+			throw e;
+		}
+		requestMetrics.recordUpstreamCall(Upstream.EPCIS_EVENT_STREAM, RequestMetrics.getEventQuery(queryParams), startTime, null,
+				length[0]);
+		return events;
+	}
+
+	/**
+	 * Poll EPCIS events with SimpleEventQuery, without blocking
+	 * @see #pollEvents(Map, String)
+	 */
+	public CompletableFuture<List<EpcisEvent>> pollEventsAsync(Map<String, String> queryParams, String bearerToken) {
+		RequestTiming timing = RequestTiming.current();
+		return this.getAsync(Upstream.EPCIS_EVENTS, RequestMetrics.getEventQuery(queryParams), this.getEventQueryUrl(queryParams),
+				new HttpHeaders(), bearerToken)
+				.thenApply(response -> timing.time(Phase.PARSE, () -> EpcisEventCodec.read(response.getBody())));
+	}
+
+	/**
+	 * Poll EPCIS events with SimpleEventQuery as complete JSON, e.g. to return them to the client, without blocking
+	 * @see #pollEvents(Map, String)
+	 */
+	public CompletableFuture<JSONArray> pollEventsJsonAsync(Map<String, String> queryParams, String bearerToken) {
+		RequestTiming timing = RequestTiming.current();
+		return this.getAsync(Upstream.EPCIS_EVENTS, RequestMetrics.getEventQuery(queryParams), this.getEventQueryUrl(queryParams),
+				new HttpHeaders(), bearerToken)
+				.thenApply(response -> timing.time(Phase.PARSE, () -> new JSONArray(response.getBody())));
+	}
+
+	private String getEventQueryUrl(Map<String, String> queryParams) {
+		StringBuilder url = new StringBuilder(this.getBaseUrl()).append("Poll/SimpleEventQuery?format=JSON");
+		for (Map.Entry<String, String> queryParam : queryParams.entrySet()) {
+			url.append('&').append(queryParam.getKey()).append('=').append(queryParam.getValue());
+		}
+		return url.toString();
+	}
+
+	/**
+	 * Check, whether the EPCIS repository accepts a token, with the smallest authenticated query: a SimpleEventQuery for one event
+	 * @param bearerToken The Bearer token provided by the identity service
+	 * @return completed, if the token is accepted; fails with the error status of the EPCIS repository otherwise
+	 */
+	public CompletableFuture<Void> checkTokenAsync(String bearerToken) {
+		String url = this.getBaseUrl() + "Poll/SimpleEventQuery?format=JSON&eventCountLimit=1";
+		return this.getAsync(Upstream.EPCIS_EVENTS, "TokenValidation", url, new HttpHeaders(), bearerToken).thenApply(response -> null);
+	}
+
+	/**
+	 * Query master data with SimpleMasterDataQuery
+	 * @param type EPCIS Master Data Vocabulary Type, e.g. urn:epcglobal:epcis:vtype:BusinessLocation; null, to match any type
+	 * @param id EPCIS Master Data Vocabulary Element ID, e.g. urn:epc:id:sgln:bizLocation.lindbacks.1
+	 * @param bearerToken The Bearer token provided by the identity service
+	 * @return JSON array of the matching master data vocabulary elements
+	 */
+	public CompletableFuture<String> queryMasterDataAsync(String type, String id, String bearerToken) {
+		String url = this.getBaseUrl() + "Poll/SimpleMasterDataQuery?includeAttributes=true&includeChildren=true&EQ_name=" + id;
+		if (type != null) {
+			url = url + "&vocabularyName=" + type;
+		}
+		url = url + "&format=JSON";
+
+		return this.getAsync(Upstream.EPCIS_MASTER_DATA, "SimpleMasterDataQuery", url, new HttpHeaders(), bearerToken)
+				.thenApply(ResponseEntity::getBody);
+	}
+
+	/**
+	 * Get the production process template of a product class, with a conditional request if a cached version is given
+	 * @param productClass product class ID in the NIMBLE catalogue
+	 * @param eTag ETag of the cached version; null, if unknown
+	 * @param lastModified Last-Modified time of the cached version in milliseconds since epoch; -1, if unknown
+	 * @param bearerToken The Bearer token provided by the identity service
+	 * @return the response of the EPCIS repository; status 304 without body, if the cached version is current
+	 */
+	public CompletableFuture<ResponseEntity<String>> getProductionProcessTemplateAsync(String productClass, String eTag,
+			long lastModified, String bearerToken) {
+		String url = this.getBaseUrl() + "/GetProductionProcessTemplate/" + productClass;
+
+		HttpHeaders headers = new HttpHeaders();
+		if (eTag != null) {
+			headers.setIfNoneMatch(eTag);
+		}
+		if (lastModified >= 0) {
+			headers.setIfModifiedSince(lastModified);
+		}
+
+		return this.getAsync(Upstream.PROCESS_TEMPLATE, "GetProductionProcessTemplate", url, headers, bearerToken);
+	}
+
+	/**
+	 * Poll a page of EPCIS events sorted by eventTime in descending order. The time window and the page size are
+	 * pushed down to the EPCIS repository, so that it returns only the events of the page.
+	 * @param queryParams query parameters selecting the events, e.g. MATCH_epc and GE_eventTime
+	 * @param to end of the time window in milliseconds since epoch, exclusive; null, if open
+	 * @param cursor position of the page; null, for the first page
+	 * @param limit maximal number of events in the page
+	 * @param bearerToken The Bearer token provided by the identity service
+	 * @return events of the page; the next cursor is set, if the page is full
+	 */
+	public CompletableFuture<EventPage> pollEventPageAsync(Map<String, String> queryParams, Long to, EventPage.Cursor cursor,
+			int limit, String bearerToken) {
+		int skip = 0;
+		Long before = to;
+		if (cursor != null) {
+			skip = cursor.getSkip();
+			// the events at the cursor time are included and the ones already returned are skipped
+			before = to == null ? cursor.getEventTime() + 1 : Math.min(to, cursor.getEventTime() + 1);
+		}
+
+		Map<String, String> pageParams = new LinkedHashMap<>(queryParams);
+		pageParams.put("orderBy", "eventTime");
+		pageParams.put("orderDirection", "DESC");
+		if (before != null) {
+			pageParams.put("LT_eventTime", formatTime(before));
+		}
+		pageParams.put("eventCountLimit", Integer.toString(limit + skip));
+		return this.pollEventsJsonAsync(pageParams, bearerToken).thenApply(events -> toPage(events, cursor, limit));
+	}
+
+	/**
+	 * Skip the events at the cursor, which were already returned, and determine the next cursor
+	 */
+	private static EventPage toPage(JSONArray events, EventPage.Cursor cursor, int limit) {
+		int skip = cursor == null ? 0 : cursor.getSkip();
+		JSONArray page = new JSONArray();
+		int skipped = 0;
+		for (int i = 0; i < events.length() && page.length() < limit; i++) {
+			JSONObject event = events.getJSONObject(i);
+			if (skipped < skip && page.length() == 0 && getTime(event, "eventTime") == cursor.getEventTime()) {
+				skipped++;
+				continue;
+			}
+			page.put(event);
+		}
+
+		if (events.length() < limit + skip || page.length() == 0) {
+			return new EventPage(page, null);
+		}
+
+		long lastTime = getTime(page.getJSONObject(page.length() - 1), "eventTime");
+		int lastTimeCount = 0;
+		for (int i = page.length() - 1; i >= 0 && getTime(page.getJSONObject(i), "eventTime") == lastTime; i--) {
+			lastTimeCount++;
+		}
+		if (lastTimeCount == page.length() && cursor != null && lastTime == cursor.getEventTime()) {
+			lastTimeCount += skipped;
+		}
+		return new EventPage(page, new EventPage.Cursor(lastTime, lastTimeCount));
+	}
+
+	/**
+	 * GET request isolated by the bulkhead of the upstream. The latency is recorded per upstream and query type,
+	 * including the time waiting for the bulkhead. The future is completed on a worker thread with the {@link RequestTiming}
+	 * of the calling request bound, so that the dependent stages are timed for the request.
+	 * If all workers are busy and their queue is full, the call fails with {@link UpstreamUnavailableException}.
+	 */
+	private CompletableFuture<ResponseEntity<String>> getAsync(Upstream upstream, String query, String url, HttpHeaders headers,
+			String bearerToken) {
+		log.info("URL:" + url);
+
+		headers.set("Authorization", bearerToken);
+		RequestTiming timing = RequestTiming.current();
+		RequestTiming.Stopwatch upstreamTime = timing.start(Phase.UPSTREAM);
+		long startTime = System.nanoTime();
+		return upstreamCommands.executeAsync(upstream, () -> {
+			CompletableFuture<ResponseEntity<String>> future = new CompletableFuture<>();
+			ListenableFuture<ResponseEntity<String>> exchange = asyncRestTemplate.exchange(url, HttpMethod.GET,
+					new HttpEntity<Object>(headers), String.class);
+			exchange.addCallback(response -> this.completeOnWorker(upstream, future, () -> timing.runBound(() -> future.complete(response))),
+					e -> this.completeOnWorker(upstream, future, () -> timing.runBound(() -> future.completeExceptionally(e))));
+			// a timed out request is aborted, so that it does not hold a pooled connection
+			future.whenComplete((response, e) -> {
+				if (future.isCancelled()) {
+					exchange.cancel(true);
+				}
+			});
+			return future;
+		}).whenComplete((response, e) -> {
+			upstreamTime.stop();
+			requestMetrics.recordUpstreamCall(upstream, query, startTime, e, getLength(response));
+		});
+	}
+
+	private void completeOnWorker(Upstream upstream, CompletableFuture<?> future, Runnable completion) {
+		try {
+			workerExecutor.execute(completion);
+		} catch (RejectedExecutionException e) {
+			future.completeExceptionally(new UpstreamUnavailableException(upstream, HttpStatus.SERVICE_UNAVAILABLE,
+					"too many responses waiting to be processed"));
+		}
+	}
+
+	/**
+	 * @return size of the response body, as given by Content-Length or else by the length of the body; -1, if there is no response
+	 */
+	private static long getLength(ResponseEntity<String> response) {
+		if (response == null) {
+			return -1;
+		}
+		long contentLength = response.getHeaders().getContentLength();
+		if (contentLength >= 0) {
+			return contentLength;
+		}
+		return response.hasBody() ? response.getBody().length() : 0;
+	}
+
+	/**
+	 * Pass the response of an EPCIS request through to the client. The body is copied in chunks,
+	 * so that it is never held in memory as a whole. Status and content type of the EPCIS response are kept.
+	 * The request runs in the bulkhead of the streamed event queries. If it is rejected, short-circuited or times out
+	 * before the response is committed, the client gets 503 or 504; a timed out copy is stopped after the current chunk.
+	 * @param url URL of the EPCIS request
+	 * @param bearerToken The Bearer token provided by the identity service
+	 * @param servletResponse response to the client
+	 * @throws IOException if the response cannot be read from EPCIS or written to the client
+	 */
+	public void proxy(String url, String bearerToken, HttpServletResponse servletResponse) throws IOException {
+		log.info("URL:" + url);
+
+		long startTime = System.nanoTime();
+		try {
+			long length = RequestTiming.current().time(Phase.UPSTREAM, () -> upstreamCommands.execute(Upstream.EPCIS_EVENT_STREAM,
+					() -> restTemplate.execute(url, HttpMethod.GET,
+							request -> request.getHeaders().set("Authorization", bearerToken),
+							response -> this.copyResponse(response.getRawStatusCode(), response.getHeaders(), response.getBody(),
+									servletResponse))));
+			requestMetrics.recordUpstreamCall(Upstream.EPCIS_EVENT_STREAM, "SimpleEventQuery", startTime, null, length);
+		} catch (HttpStatusCodeException e) {
+			requestMetrics.recordUpstreamCall(Upstream.EPCIS_EVENT_STREAM, "SimpleEventQuery", startTime, e,
+					e.getResponseBodyAsByteArray().length);
+			if (servletResponse.isCommitted()) {
+				// timed out while copying, the response cannot be replaced anymore
+				throw e;
+			}
+			// error responses are small and have already been read by the error handler
+			this.copyResponse(e.getRawStatusCode(), e.getResponseHeaders(),
+					new ByteArrayInputStream(e.getResponseBodyAsByteArray()), servletResponse);
+		} catch (RuntimeException e) {
+			requestMetrics.recordUpstreamCall(Upstream.EPCIS_EVENT_STREAM, "SimpleEventQuery", startTime, e, -1);
+			throw e;
+		}
+	}
+
+	/**
+	 * @return number of copied bytes
+	 */
+	private long copyResponse(int status, HttpHeaders headers, InputStream body, HttpServletResponse servletResponse)
+			throws IOException {
+		MediaType contentType = headers == null ? null : headers.getContentType();
+		servletResponse.setStatus(status);
+		servletResponse.setContentType(contentType == null ? "application/json; charset=utf-8" : contentType.toString());
+
+		long length = 0;
+		byte[] buffer = new byte[proxyBufferSize];
+		OutputStream out = servletResponse.getOutputStream();
+		if (body != null) {
+			for (int read = body.read(buffer); read >= 0; read = body.read(buffer)) {
+				if (Thread.interrupted()) {
+					// the request timed out
+					throw new InterruptedIOException("Copy of the EPCIS response interrupted after " + length + " bytes");
+				}
+				out.write(buffer, 0, read);
+				length += read;
+			}
+		}
+		out.flush();
+
+		log.debug("RESPONSE " + status + ", " + length + " bytes");
+		return length;
+	}
+
+	/**
+	 * Format a point in time for EPCIS time query parameters, e.g. GE_recordTime, LT_eventTime
+	 * @param epochMillis milliseconds since epoch
+	 * @return time in ISO 8601 format, e.g. 2018-04-12T02:33:31.116Z
+	 */
+	public static String formatTime(long epochMillis) {
+		return EPCIS_TIME_FORMAT.format(Instant.ofEpochMilli(epochMillis));
+	}
+
+	/**
+	 * Parse a point in time given by a client
+	 * @param time time in ISO 8601 format with offset, e.g. 2018-04-11T02:33:31.116Z
+	 * @return milliseconds since epoch; null, if no time is given
+	 * @throws java.time.format.DateTimeParseException if the time is not valid
+	 */
+	public static Long parseTime(String time) {
+		if (time == null || time.isEmpty()) {
+			return null;
+		}
+		return OffsetDateTime.parse(time).toInstant().toEpochMilli();
+	}
+
+	/**
+	 * Read a time field of an EPCIS event, e.g. "eventTime": {"$date": 1523414011116}
+	 * @param event EPCIS event
+	 * @param field name of the time field, e.g. eventTime, recordTime
+	 * @return milliseconds since epoch; -1, if the event has no such field
+	 */
+	public static long getTime(JSONObject event, String field) {
+		JSONObject time = event.optJSONObject(field);
+		return time == null ? -1 : time.optLong("$date", -1);
+	}
+}
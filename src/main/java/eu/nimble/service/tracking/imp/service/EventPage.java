@@ -0,0 +1,79 @@
+package eu.nimble.service.tracking.imp.service;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import org.json.JSONArray;
+
+/**
+ * A page of EPCIS events, sorted by eventTime in descending order, with the cursor to the next page.
+ */
+public final class EventPage {
+	private final JSONArray events;
+	private final Cursor nextCursor;
+
+	public EventPage(JSONArray events, Cursor nextCursor) {
+		this.events = events;
+		this.nextCursor = nextCursor;
+	}
+
+	public JSONArray getEvents() {
+		return events;
+	}
+
+	/**
+	 * @return cursor to the next page; null, if this is the last page
+	 */
+	public Cursor getNextCursor() {
+		return nextCursor;
+	}
+
+	/**
+	 * Position in an event history sorted by eventTime in descending order: the next page starts with the events
+	 * at eventTime, after skipping the given number of events at eventTime, which were already returned.
+	 *
+	 * The cursor is passed to the client as an opaque string.
+	 */
+	public static final class Cursor {
+		private final long eventTime;
+		private final int skip;
+
+		public Cursor(long eventTime, int skip) {
+			this.eventTime = eventTime;
+			this.skip = skip;
+		}
+
+		public long getEventTime() {
+			return eventTime;
+		}
+
+		public int getSkip() {
+			return skip;
+		}
+
+		public String encode() {
+			return Base64.getUrlEncoder().withoutPadding()
+					.encodeToString((eventTime + ":" + skip).getBytes(StandardCharsets.UTF_8));
+		}
+
+		/**
+		 * @param cursor cursor as returned by {@link #encode()}
+		 * @return decoded cursor
+		 * @throws IllegalArgumentException if the cursor is invalid
+		 */
+		public static Cursor decode(String cursor) {
+			try {
+				String value = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+				int separator = value.indexOf(':');
+				long eventTime = Long.parseLong(value.substring(0, separator));
+				int skip = Integer.parseInt(value.substring(separator + 1));
+				if (eventTime < 0 || skip < 0) {
+					throw new IllegalArgumentException("negative value");
+				}
+				return new Cursor(eventTime, skip);
+			} catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+				throw new IllegalArgumentException("Invalid cursor: " + cursor, e);
+			}
+		}
+	}
+}
@@ -0,0 +1,265 @@
+package eu.nimble.service.tracking.imp.service;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import eu.nimble.service.tracking.imp.service.AggregationContainmentIndex.Containment;
+import eu.nimble.service.tracking.imp.service.RequestTiming.Phase;
+import eu.nimble.service.tracking.imp.service.TransformationGraphIndex.Transformation;
+
+/**
+ * Genealogy of an item over aggregation and transformation events, from the in-memory indexes.
+ *
+ * Edges point in the direction of the physical flow: an aggregation edge from the child to its container,
+ * a transformation edge from the input to the output. Upstream follows the edges backwards (containers and inputs),
+ * downstream forwards (contents and outputs).
+ */
+@Service
+public class GenealogyService {
+
+	public enum Direction {
+		/** containers and inputs */
+		UP,
+		/** contents and outputs */
+		DOWN,
+		/** all related items, e.g. other items in the same container */
+		BOTH
+	}
+
+	@Autowired
+	private AggregationContainmentIndex aggregationContainmentIndex;
+
+	@Autowired
+	private TransformationGraphIndex transformationGraphIndex;
+
+	/**
+	 * Traverse the genealogy breadth first, starting from the given EPC.
+	 * @param epc EPC of the item
+	 * @param direction edges to follow
+	 * @param maxDepth maximal number of edges between the item and a visited EPC
+	 * @param maxNodes maximal number of EPCs to visit, including the item
+	 * @param from only edges at or after this time in milliseconds since epoch; null, if open
+	 * @param to only edges before this time in milliseconds since epoch; null, if open
+	 * @param bearerToken The Bearer token provided by the identity service, used to load or refresh the indexes
+	 * @return visited EPCs and the edges between them, each once; stale, if an index could not be refreshed
+	 */
+	public CompletableFuture<CachedResult<Genealogy>> getGenealogy(String epc, Direction direction, int maxDepth, int maxNodes, Long from, Long to,
+			String bearerToken) {
+		RequestTiming timing = RequestTiming.current();
+		return CompletableFuture.allOf(aggregationContainmentIndex.whenLoaded(bearerToken), transformationGraphIndex.whenLoaded(bearerToken))
+				.thenApply(loaded -> {
+					Genealogy genealogy = timing.time(Phase.TRAVERSAL, () -> this.traverse(epc, direction, maxDepth, maxNodes, from, to));
+					return aggregationContainmentIndex.isStale() || transformationGraphIndex.isStale() ? CachedResult.stale(genealogy)
+							: CachedResult.fresh(genealogy);
+				});
+	}
+
+	private Genealogy traverse(String epc, Direction direction, int maxDepth, int maxNodes, Long from, Long to) {
+		Map<String, Integer> depths = new HashMap<>();
+		depths.put(epc, 0);
+		Set<Edge> edges = new LinkedHashSet<>();
+		List<String> frontier = new ArrayList<>();
+		frontier.add(epc);
+		boolean truncated = false;
+
+		for (int depth = 0; !frontier.isEmpty(); depth++) {
+			List<Edge> levelEdges = new ArrayList<>();
+			for (String current : frontier) {
+				levelEdges.addAll(this.getEdges(current, direction, from, to));
+			}
+			List<String> nextFrontier = new ArrayList<>();
+			for (Edge edge : levelEdges) {
+				String next = depths.containsKey(edge.from) ? edge.to : edge.from;
+				if (!depths.containsKey(next)) {
+					if (depth >= maxDepth || depths.size() >= maxNodes) {
+						truncated = true;
+						continue;
+					}
+					depths.put(next, depth + 1);
+					nextFrontier.add(next);
+				}
+				edges.add(edge);
+			}
+			frontier = nextFrontier;
+		}
+
+		List<Node> nodes = new ArrayList<>(depths.size());
+		for (Map.Entry<String, Integer> node : depths.entrySet()) {
+			nodes.add(new Node(node.getKey(), node.getValue()));
+		}
+		nodes.sort((node, other) -> node.depth != other.depth ? Integer.compare(node.depth, other.depth) : node.epc.compareTo(other.epc));
+		return new Genealogy(nodes, new ArrayList<>(edges), truncated);
+	}
+
+	/**
+	 * @return the edges of an EPC in the given direction within the time window
+	 */
+	private List<Edge> getEdges(String epc, Direction direction, Long from, Long to) {
+		List<Edge> edges = new ArrayList<>();
+		if (direction != Direction.DOWN) {
+			for (Containment containment : aggregationContainmentIndex.getContainments(epc, true)) {
+				edges.add(Edge.of(containment));
+			}
+			for (Transformation transformation : transformationGraphIndex.getTransformations(epc, false)) {
+				edges.add(Edge.of(transformation));
+			}
+		}
+		if (direction != Direction.UP) {
+			for (Containment containment : aggregationContainmentIndex.getContainments(epc, false)) {
+				edges.add(Edge.of(containment));
+			}
+			for (Transformation transformation : transformationGraphIndex.getTransformations(epc, true)) {
+				edges.add(Edge.of(transformation));
+			}
+		}
+		edges.removeIf(edge -> !edge.isWithin(from, to));
+		return edges;
+	}
+
+	public static final class Genealogy {
+		private final List<Node> nodes;
+		private final List<Edge> edges;
+		private final boolean truncated;
+
+		public Genealogy(List<Node> nodes, List<Edge> edges, boolean truncated) {
+			this.nodes = nodes;
+			this.edges = edges;
+			this.truncated = truncated;
+		}
+
+		/**
+		 * @return visited EPCs, sorted by depth
+		 */
+		public List<Node> getNodes() {
+			return nodes;
+		}
+
+		public List<Edge> getEdges() {
+			return edges;
+		}
+
+		/**
+		 * @return true, when maxDepth or maxNodes was reached before all related EPCs were visited
+		 */
+		public boolean isTruncated() {
+			return truncated;
+		}
+	}
+
+	/**
+	 * A visited EPC with the number of edges to the item
+	 */
+	public static final class Node {
+		private final String epc;
+		private final int depth;
+
+		public Node(String epc, int depth) {
+			this.epc = epc;
+			this.depth = depth;
+		}
+
+		public String getEpc() {
+			return epc;
+		}
+
+		public int getDepth() {
+			return depth;
+		}
+	}
+
+	/**
+	 * An aggregation or transformation between two EPCs
+	 */
+	public static final class Edge {
+		public static final String AGGREGATION = "aggregation";
+		public static final String TRANSFORMATION = "transformation";
+
+		private final String type;
+		private final String from;
+		private final String to;
+		private final long startTime;
+		private final long endTime;
+
+		public Edge(String type, String from, String to, long startTime, long endTime) {
+			this.type = type;
+			this.from = from;
+			this.to = to;
+			this.startTime = startTime;
+			this.endTime = endTime;
+		}
+
+		static Edge of(Containment containment) {
+			return new Edge(AGGREGATION, containment.getChild(), containment.getParent(), containment.getStartTime(),
+					containment.getEndTime());
+		}
+
+		static Edge of(Transformation transformation) {
+			return new Edge(TRANSFORMATION, transformation.getInput(), transformation.getOutput(), transformation.getEventTime(),
+					transformation.getEventTime());
+		}
+
+		/**
+		 * @return true, if the edge overlaps the time window
+		 */
+		boolean isWithin(Long windowFrom, Long windowTo) {
+			return (windowTo == null || startTime < windowTo) && (windowFrom == null || endTime < 0 || endTime >= windowFrom);
+		}
+
+		/**
+		 * @return {@link #AGGREGATION} or {@link #TRANSFORMATION}
+		 */
+		public String getType() {
+			return type;
+		}
+
+		/**
+		 * @return child EPC of an aggregation; input EPC of a transformation
+		 */
+		public String getFrom() {
+			return from;
+		}
+
+		/**
+		 * @return parent EPC of an aggregation; output EPC of a transformation
+		 */
+		public String getTo() {
+			return to;
+		}
+
+		/**
+		 * @return time of the ADD event of an aggregation; time of a transformation
+		 */
+		public long getStartTime() {
+			return startTime;
+		}
+
+		/**
+		 * @return time of the DELETE event of an aggregation, -1 if the child is still in the parent; time of a transformation
+		 */
+		public long getEndTime() {
+			return endTime;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Edge)) {
+				return false;
+			}
+			Edge other = (Edge) obj;
+			return type.equals(other.type) && from.equals(other.from) && to.equals(other.to) && startTime == other.startTime;
+		}
+
+		@Override
+		public int hashCode() {
+			return ((type.hashCode() * 31 + from.hashCode()) * 31 + to.hashCode()) * 31 + Long.hashCode(startTime);
+		}
+	}
+}
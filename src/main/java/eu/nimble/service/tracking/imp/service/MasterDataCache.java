@@ -0,0 +1,410 @@
+package eu.nimble.service.tracking.imp.service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Service;
+
+import eu.nimble.service.tracking.imp.service.RequestTiming.Phase;
+import eu.nimble.service.tracking.model.MasterDataReference;
+
+/**
+ * Cache of EPCIS master data vocabulary elements, keyed by vocabulary type and element ID.
+ *
+ * Entries expire after a fixed time and are evicted by size (least recently used first).
+ * Concurrent misses for the same key share a single query to the EPCIS repository, whether they are single or list lookups.
+ * Failed queries are not cached. Expired entries are kept until they are evicted, and are served as stale master data,
+ * while the EPCIS repository is unavailable.
+ *
+ * Lists of elements are resolved with one query per vocabulary type and chunk of IDs, which run in parallel.
+ * All queries are sent with the non-blocking HTTP client, no thread waits for the EPCIS repository.
+ * Cached entries are shared by all clients, so the token of the caller is validated before it is answered from the cache.
+ */
+@Service
+public class MasterDataCache implements PublicMetrics {
+
+	@Value("${tracking.master-data.cache.max-size:10000}")
+	private int maxSize;
+
+	@Value("${tracking.master-data.cache.ttl-ms:600000}")
+	private long ttlMs;
+
+	/**
+	 * Maximal number of element IDs in one SimpleMasterDataQuery of a list lookup
+	 */
+	@Value("${tracking.master-data.batch.chunk-size:50}")
+	private int batchChunkSize;
+
+	/**
+	 * Maximal number of parallel queries of one list lookup
+	 */
+	@Value("${tracking.master-data.batch.concurrency:4}")
+	private int batchConcurrency;
+
+	@Autowired
+	private EpcisService epcisService;
+
+	@Autowired
+	private TokenValidator tokenValidator;
+
+	// key -> master data with expiry, in access order. Guarded by itself.
+	private Map<Key, Entry> entries;
+
+	// key -> query to the EPCIS repository, which is in progress
+	private final Map<Key, CompletableFuture<CachedResult<String>>> inFlight = new ConcurrentHashMap<>();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+	private final AtomicLong staleHits = new AtomicLong();
+
+	@PostConstruct
+	public void init() {
+		entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	/**
+	 * Get master data for the given vocabulary element from the cache, or query it from the EPCIS repository.
+	 * @param type EPCIS Master Data Vocabulary Type; null, to match any type
+	 * @param id EPCIS Master Data Vocabulary Element ID
+	 * @param bearerToken The Bearer token provided by the identity service, used on a cache miss
+	 * @return JSON array of the matching master data vocabulary elements, as returned by the EPCIS repository;
+	 * 		stale, if the EPCIS repository is unavailable and the element has been cached before
+	 */
+	public CompletableFuture<CachedResult<String>> get(String type, String id, String bearerToken) {
+		return tokenValidator.validate(bearerToken).thenCompose(valid -> this.lookup(type, id, bearerToken));
+	}
+
+	private CompletableFuture<CachedResult<String>> lookup(String type, String id, String bearerToken) {
+		Key key = new Key(type, id);
+		synchronized (entries) {
+			Entry entry = entries.get(key);
+			if (entry != null && entry.expiry > System.currentTimeMillis()) {
+				hits.incrementAndGet();
+				return CompletableFuture.completedFuture(CachedResult.fresh(entry.masterData));
+			}
+		}
+
+		CompletableFuture<CachedResult<String>> query = new CompletableFuture<>();
+		CompletableFuture<CachedResult<String>> runningQuery = inFlight.putIfAbsent(key, query);
+		if (runningQuery != null) {
+			coalesced.incrementAndGet();
+			// the shared query may have failed for the token of another client, so query with the own token
+			return runningQuery.handle((masterData, e) -> e == null ? CompletableFuture.completedFuture(masterData)
+					: this.query(key, bearerToken))
+					.thenCompose(masterData -> masterData);
+		}
+
+		misses.incrementAndGet();
+		this.query(key, bearerToken).whenComplete((masterData, e) -> {
+			inFlight.remove(key, query);
+			if (e == null) {
+				query.complete(masterData);
+			} else {
+				query.completeExceptionally(e);
+			}
+		});
+		return query;
+	}
+
+	/**
+	 * Query a single element and cache it; fall back to the expired entry, if the EPCIS repository is unavailable
+	 */
+	private CompletableFuture<CachedResult<String>> query(Key key, String bearerToken) {
+		return epcisService.queryMasterDataAsync(key.type, key.id, bearerToken).handle((masterData, e) -> {
+			synchronized (entries) {
+				if (e == null) {
+					entries.put(key, new Entry(masterData, System.currentTimeMillis() + ttlMs));
+					return CachedResult.fresh(masterData);
+				}
+				Entry expired = UpstreamCommands.isUnavailable(e) ? entries.get(key) : null;
+				if (expired == null) {
+					throw toCompletionException(e);
+				}
+				staleHits.incrementAndGet();
+				return CachedResult.stale(expired.masterData);
+			}
+		});
+	}
+
+	/**
+	 * Get master data for a list of vocabulary elements. Duplicates are resolved once, cached elements are taken from the cache,
+	 * elements, which are already queried, are taken from the running query, and the others are queried with one
+	 * SimpleMasterDataQuery per vocabulary type and chunk of IDs.
+	 * @param references vocabulary elements; the type is optional
+	 * @param bearerToken The Bearer token provided by the identity service, used for the queries
+	 * @return element ID -> master data vocabulary elements with this ID; an empty array, if not found.
+	 * 		Stale, if the EPCIS repository is unavailable and the elements of a failed query have all been cached before.
+	 */
+	public CompletableFuture<CachedResult<Map<String, JSONArray>>> getAll(Collection<MasterDataReference> references, String bearerToken) {
+		RequestTiming timing = RequestTiming.current();
+		return tokenValidator.validate(bearerToken).thenCompose(valid -> this.lookupAll(references, bearerToken, timing));
+	}
+
+	/**
+	 * @param timing timing of the calling request, which the parse time of the queries is added to
+	 */
+	private CompletableFuture<CachedResult<Map<String, JSONArray>>> lookupAll(Collection<MasterDataReference> references,
+			String bearerToken, RequestTiming timing) {
+		Set<Key> keys = new LinkedHashSet<>();
+		for (MasterDataReference reference : references) {
+			if (reference.getId() != null && !reference.getId().isEmpty()) {
+				String type = reference.getType() == null || reference.getType().isEmpty() ? null : reference.getType();
+				keys.add(new Key(type, reference.getId()));
+			}
+		}
+
+		Map<String, JSONArray> result = new LinkedHashMap<>();
+		List<Key> missingKeys = new ArrayList<>();
+		long now = System.currentTimeMillis();
+		synchronized (entries) {
+			for (Key key : keys) {
+				result.putIfAbsent(key.id, new JSONArray());
+				Entry entry = entries.get(key);
+				if (entry != null && entry.expiry > now) {
+					hits.incrementAndGet();
+					addElements(result.get(key.id), new JSONArray(entry.masterData));
+				} else {
+					missingKeys.add(key);
+				}
+			}
+		}
+
+		// each missing element is registered as in flight before it is queried, so that concurrent lookups wait for its chunk
+		List<CompletableFuture<Void>> pending = new ArrayList<>();
+		AtomicBoolean stale = new AtomicBoolean(false);
+		Map<Key, CompletableFuture<CachedResult<String>>> queries = new HashMap<>();
+		Map<String, List<String>> missingIdsByType = new HashMap<>();
+		for (Key key : missingKeys) {
+			CompletableFuture<CachedResult<String>> query = new CompletableFuture<>();
+			CompletableFuture<CachedResult<String>> runningQuery = inFlight.putIfAbsent(key, query);
+			if (runningQuery == null) {
+				misses.incrementAndGet();
+				queries.put(key, query);
+				missingIdsByType.computeIfAbsent(key.type, type -> new ArrayList<>()).add(key.id);
+				continue;
+			}
+
+			coalesced.incrementAndGet();
+			// the shared query may have failed for the token of another client, so query with the own token
+			pending.add(runningQuery.handle((masterData, e) -> e == null ? CompletableFuture.completedFuture(masterData)
+					: this.query(key, bearerToken))
+					.thenCompose(masterData -> masterData)
+					.thenAccept(masterData -> {
+						if (masterData.isStale()) {
+							stale.set(true);
+						}
+						synchronized (result) {
+							addElements(result.get(key.id), new JSONArray(masterData.getValue()));
+						}
+					}));
+		}
+
+		// the chunks are distributed over at most batchConcurrency lanes, which query one chunk after the other
+		List<CompletableFuture<Void>> lanes = new ArrayList<>();
+		int chunkCount = 0;
+		for (Map.Entry<String, List<String>> missingIds : missingIdsByType.entrySet()) {
+			List<String> ids = missingIds.getValue();
+			for (int i = 0; i < ids.size(); i += batchChunkSize) {
+				List<String> chunk = ids.subList(i, Math.min(i + batchChunkSize, ids.size()));
+				int lane = chunkCount++ % batchConcurrency;
+				if (lane == lanes.size()) {
+					lanes.add(CompletableFuture.completedFuture(null));
+				}
+				CompletableFuture<Map<String, JSONArray>> chunkQuery = lanes.get(lane)
+						.thenCompose(previous -> this.queryChunk(missingIds.getKey(), chunk, bearerToken, timing));
+				// completed, even if a previous chunk of the lane failed and this one is not queried
+				chunkQuery.whenComplete((elementsById, e) -> this.completeQueries(missingIds.getKey(), chunk, queries, elementsById, e));
+				lanes.set(lane, chunkQuery
+						.handle((elementsById, e) -> e == null ? elementsById : this.getExpired(missingIds.getKey(), chunk, e, stale))
+						.thenAccept(elementsById -> {
+							synchronized (result) {
+								for (Map.Entry<String, JSONArray> elements : elementsById.entrySet()) {
+									addElements(result.get(elements.getKey()), elements.getValue());
+								}
+							}
+						}));
+			}
+		}
+		pending.addAll(lanes);
+		return CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[pending.size()]))
+				.thenApply(done -> stale.get() ? CachedResult.stale(result) : CachedResult.fresh(result));
+	}
+
+	/**
+	 * Complete the in-flight queries of the elements of a chunk, which concurrent lookups may wait for
+	 */
+	private void completeQueries(String type, List<String> ids, Map<Key, CompletableFuture<CachedResult<String>>> queries,
+			Map<String, JSONArray> elementsById, Throwable e) {
+		for (String id : ids) {
+			Key key = new Key(type, id);
+			CompletableFuture<CachedResult<String>> query = queries.get(key);
+			inFlight.remove(key, query);
+			if (e == null) {
+				query.complete(CachedResult.fresh(elementsById.get(id).toString()));
+			} else {
+				query.completeExceptionally(e);
+			}
+		}
+	}
+
+	/**
+	 * Master data of the elements of a failed chunk from the expired entries, if the EPCIS repository is unavailable
+	 * and all elements have been cached before; otherwise the failure is propagated
+	 */
+	private Map<String, JSONArray> getExpired(String type, List<String> ids, Throwable e, AtomicBoolean stale) {
+		if (!UpstreamCommands.isUnavailable(e)) {
+			throw toCompletionException(e);
+		}
+		Map<String, JSONArray> elementsById = new HashMap<>();
+		synchronized (entries) {
+			for (String id : ids) {
+				Entry expired = entries.get(new Key(type, id));
+				if (expired == null) {
+					throw toCompletionException(e);
+				}
+				elementsById.put(id, new JSONArray(expired.masterData));
+			}
+		}
+		staleHits.addAndGet(ids.size());
+		stale.set(true);
+		return elementsById;
+	}
+
+	private static CompletionException toCompletionException(Throwable e) {
+		return e instanceof CompletionException ? (CompletionException) e : new CompletionException(e);
+	}
+
+	private CompletableFuture<Map<String, JSONArray>> queryChunk(String type, List<String> ids, String bearerToken,
+			RequestTiming timing) {
+		return epcisService.queryMasterDataAsync(type, String.join(",", ids), bearerToken).thenApply(masterData -> {
+			JSONArray elements = timing.time(Phase.PARSE, () -> new JSONArray(masterData));
+			Map<String, JSONArray> elementsById = new HashMap<>();
+			for (String id : ids) {
+				elementsById.put(id, new JSONArray());
+			}
+			for (int i = 0; i < elements.length(); i++) {
+				JSONObject element = elements.getJSONObject(i);
+				JSONArray idElements = elementsById.get(element.optString("id"));
+				if (idElements != null) {
+					idElements.put(element);
+				}
+			}
+
+			long expiry = System.currentTimeMillis() + ttlMs;
+			synchronized (entries) {
+				for (Map.Entry<String, JSONArray> idElements : elementsById.entrySet()) {
+					entries.put(new Key(type, idElements.getKey()), new Entry(idElements.getValue().toString(), expiry));
+				}
+			}
+			return elementsById;
+		});
+	}
+
+	/**
+	 * Add elements, which are not yet in the list. The same element may be requested with and without type.
+	 */
+	private static void addElements(JSONArray list, JSONArray elements) {
+		for (int i = 0; i < elements.length(); i++) {
+			JSONObject element = elements.getJSONObject(i);
+			boolean found = false;
+			for (int j = 0; j < list.length() && !found; j++) {
+				found = list.getJSONObject(j).optString("type").equals(element.optString("type"));
+			}
+			if (!found) {
+				list.put(element);
+			}
+		}
+	}
+
+	/**
+	 * Remove cached master data
+	 * @param type EPCIS Master Data Vocabulary Type; null, to remove the element for all types
+	 * @param id EPCIS Master Data Vocabulary Element ID; null, to remove all elements
+	 */
+	public void invalidate(String type, String id) {
+		synchronized (entries) {
+			if (id == null) {
+				entries.clear();
+			} else if (type == null) {
+				entries.keySet().removeIf(key -> key.id.equals(id));
+			} else {
+				entries.remove(new Key(type, id));
+			}
+		}
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+		List<Metric<?>> metrics = new ArrayList<>();
+		metrics.add(new Metric<Long>("masterdata.cache.hits", hits.get()));
+		metrics.add(new Metric<Long>("masterdata.cache.misses", misses.get()));
+		metrics.add(new Metric<Long>("masterdata.cache.coalesced", coalesced.get()));
+		metrics.add(new Metric<Long>("masterdata.cache.stale", staleHits.get()));
+		synchronized (entries) {
+			metrics.add(new Metric<Integer>("masterdata.cache.size", entries.size()));
+		}
+		return metrics;
+	}
+
+	private static final class Entry {
+		private final String masterData;
+		private final long expiry;
+
+		Entry(String masterData, long expiry) {
+			this.masterData = masterData;
+			this.expiry = expiry;
+		}
+	}
+
+	private static final class Key {
+		private final String type;
+		private final String id;
+
+		Key(String type, String id) {
+			this.type = type;
+			this.id = id;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return Objects.equals(type, other.type) && id.equals(other.id);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hashCode(type) * 31 + id.hashCode();
+		}
+	}
+}
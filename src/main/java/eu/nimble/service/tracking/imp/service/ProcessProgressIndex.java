@@ -0,0 +1,427 @@
+package eu.nimble.service.tracking.imp.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import eu.nimble.service.tracking.imp.service.ProductionProcessModel.Replay;
+import eu.nimble.service.tracking.imp.service.ProductionProcessModel.StepStatus;
+import eu.nimble.service.tracking.model.EpcisEvent;
+import eu.nimble.service.tracking.model.ObjectEvent;
+import eu.nimble.service.tracking.model.ProductionProcessStep;
+
+/**
+ * In-memory progress of items through the production process templates of their product classes, from EPCIS object events.
+ *
+ * The index keeps the (readPoint, bizLocation, bizStep) and eventTime of the object events of each item.
+ * A product class is tracked from the first request for it: the items of the class are replayed once through the compiled
+ * template, from a copy of their histories outside of the lock. Afterwards a new event only replays the history of its own items,
+ * and the step counts of the class are kept up to date, so that a class-wide summary does not replay any item.
+ *
+ * The events do not name the product class of their items. An item is taken to belong to a product class, once it has an
+ * event of the first step of the template, as the later steps may be shared with the templates of other product classes.
+ * So items, which skipped the first step, are not counted.
+ */
+@Service
+public class ProcessProgressIndex extends EpcisEventIndex {
+
+	/**
+	 * Minimal interval between two incremental refreshes from the EPCIS repository
+	 */
+	@Value("${tracking.conformance.refresh-interval-ms:30000}")
+	private long refreshIntervalMs;
+
+	// interned (readPoint, bizLocation, bizStep) of the events. Guarded by lock.
+	private final Map<Location, Location> locations = new HashMap<>();
+
+	// EPC -> events of the item in eventTime order. Guarded by lock.
+	private final Map<String, ItemHistory> histories = new HashMap<>();
+
+	// product class -> progress of its items. Guarded by lock.
+	private final Map<String, ClassProgress> classes = new HashMap<>();
+
+	// EPCs with new events, for each product class, which is built outside of the lock. Written with the write lock held.
+	private final List<Set<String>> builds = new CopyOnWriteArrayList<>();
+
+	@Override
+	protected String getEventType() {
+		return "ObjectEvent";
+	}
+
+	@Override
+	protected long getRefreshIntervalMs() {
+		return refreshIntervalMs;
+	}
+
+	/**
+	 * Summarize the progress of the items of a product class. The index has to be loaded, see {@link #whenLoaded(String)}.
+	 * An item belongs to the product class, if one of its events belongs to the first step of the template.
+	 * @param productClass product class ID in the NIMBLE catalogue
+	 * @param fingerprint version of the template; the items are replayed again, when it changes
+	 * @param model compiled template
+	 * @param stalledBefore items, which are not at the last step and have no event of a step since this time, are stalled
+	 * @param stalledLimit maximal number of returned stalled items
+	 * @return number of items per step and the stalled items, which have waited longest
+	 */
+	public ClassSummary getSummary(String productClass, String fingerprint, ProductionProcessModel model, long stalledBefore, int stalledLimit) {
+		Map<String, ItemHistory> members = new HashMap<>();
+		Set<String> changed = ConcurrentHashMap.newKeySet();
+		lock.readLock().lock();
+		try {
+			ClassProgress progress = classes.get(productClass);
+			if (progress != null && progress.fingerprint.equals(fingerprint)) {
+				return progress.summarize(stalledBefore, stalledLimit);
+			}
+			for (Map.Entry<String, ItemHistory> history : histories.entrySet()) {
+				if (history.getValue().belongsTo(model)) {
+					members.put(history.getKey(), history.getValue().copy());
+				}
+			}
+			// events are added with the write lock held, so none is missed between the copy and the registration
+			builds.add(changed);
+		} finally {
+			lock.readLock().unlock();
+		}
+
+		ClassProgress progress = new ClassProgress(fingerprint, model);
+		try {
+			for (Map.Entry<String, ItemHistory> member : members.entrySet()) {
+				progress.update(member.getKey(), member.getValue());
+			}
+		} catch (RuntimeException e) {
+			builds.remove(changed);
+			throw e;
+		}
+
+		lock.writeLock().lock();
+		try {
+			builds.remove(changed);
+			// replay the items again, which had events during the build
+			for (String epc : changed) {
+				ItemHistory history = histories.get(epc);
+				if (history.belongsTo(model)) {
+					progress.update(epc, history);
+				}
+			}
+			classes.put(productClass, progress);
+			return progress.summarize(stalledBefore, stalledLimit);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	protected void addEvent(EpcisEvent event) {
+		if (!(event instanceof ObjectEvent) || ((ObjectEvent) event).getEpcList().isEmpty()) {
+			return;
+		}
+
+		Location location = this.intern(new Location(event.getReadPoint(), event.getBizLocation(), event.getBizStep()));
+		long eventTime = event.getEventTime();
+		for (String epc : ((ObjectEvent) event).getEpcList()) {
+			ItemHistory history = histories.computeIfAbsent(epc, key -> new ItemHistory());
+			history.add(location, eventTime);
+
+			for (ClassProgress progress : classes.values()) {
+				if (progress.items.containsKey(epc) ? progress.model.hasStep(location.readPoint, location.bizLocation, location.bizStep)
+						: progress.model.isFirstStep(location.readPoint, location.bizLocation, location.bizStep)) {
+					progress.update(epc, history);
+				}
+			}
+			for (Set<String> changed : builds) {
+				changed.add(epc);
+			}
+		}
+	}
+
+	private Location intern(Location location) {
+		Location interned = locations.putIfAbsent(location, location);
+		return interned == null ? location : interned;
+	}
+
+	/**
+	 * readPoint, bizLocation and bizStep of an event
+	 */
+	private static final class Location {
+		private final String readPoint;
+		private final String bizLocation;
+		private final String bizStep;
+
+		Location(String readPoint, String bizLocation, String bizStep) {
+			this.readPoint = readPoint == null ? "" : readPoint;
+			this.bizLocation = bizLocation == null ? "" : bizLocation;
+			this.bizStep = bizStep == null ? "" : bizStep;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Location)) {
+				return false;
+			}
+			Location other = (Location) obj;
+			return readPoint.equals(other.readPoint) && bizLocation.equals(other.bizLocation) && bizStep.equals(other.bizStep);
+		}
+
+		@Override
+		public int hashCode() {
+			return (readPoint.hashCode() * 31 + bizLocation.hashCode()) * 31 + bizStep.hashCode();
+		}
+	}
+
+	/**
+	 * Events of an item in eventTime order
+	 */
+	private static final class ItemHistory {
+		private Location[] locations = new Location[2];
+		private long[] eventTimes = new long[2];
+		private int size = 0;
+
+		void add(Location location, long eventTime) {
+			if (size == locations.length) {
+				locations = Arrays.copyOf(locations, size * 2);
+				eventTimes = Arrays.copyOf(eventTimes, size * 2);
+			}
+			// events arrive mostly in eventTime order, so the position is found from the end
+			int index = size;
+			while (index > 0 && eventTimes[index - 1] > eventTime) {
+				locations[index] = locations[index - 1];
+				eventTimes[index] = eventTimes[index - 1];
+				index--;
+			}
+			locations[index] = location;
+			eventTimes[index] = eventTime;
+			size++;
+		}
+
+		ItemHistory copy() {
+			ItemHistory copy = new ItemHistory();
+			copy.locations = Arrays.copyOf(locations, size);
+			copy.eventTimes = Arrays.copyOf(eventTimes, size);
+			copy.size = size;
+			return copy;
+		}
+
+		/**
+		 * @return true, if the item has an event of the first step
+		 */
+		boolean belongsTo(ProductionProcessModel model) {
+			for (int i = 0; i < size; i++) {
+				if (model.isFirstStep(locations[i].readPoint, locations[i].bizLocation, locations[i].bizStep)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		Replay replay(ProductionProcessModel model) {
+			Replay replay = model.newReplay();
+			for (int i = 0; i < size; i++) {
+				replay.accept(locations[i].readPoint, locations[i].bizLocation, locations[i].bizStep, eventTimes[i]);
+			}
+			return replay;
+		}
+	}
+
+	/**
+	 * Progress of the items of a product class, with the number of items per step and status
+	 */
+	private static final class ClassProgress {
+		private final String fingerprint;
+		private final ProductionProcessModel model;
+		private final Map<String, ItemProgress> items = new HashMap<>();
+		private final int[] currentCounts;
+		private final int[] skippedCounts;
+		private final int[] outOfOrderCounts;
+
+		ClassProgress(String fingerprint, ProductionProcessModel model) {
+			this.fingerprint = fingerprint;
+			this.model = model;
+			int stepCount = model.getSteps().size();
+			currentCounts = new int[stepCount];
+			skippedCounts = new int[stepCount];
+			outOfOrderCounts = new int[stepCount];
+		}
+
+		/**
+		 * Replay the history of an item and replace its contribution to the step counts
+		 */
+		void update(String epc, ItemHistory history) {
+			ItemProgress previous = items.get(epc);
+			if (previous != null) {
+				this.count(previous, -1);
+			}
+
+			Replay replay = history.replay(model);
+			StepStatus[] statuses = new StepStatus[model.getSteps().size()];
+			for (int i = 0; i < statuses.length; i++) {
+				statuses[i] = replay.getStatus(i);
+			}
+			ItemProgress progress = new ItemProgress(epc, replay.getCurrentStepIndex(), statuses, replay.getLastMatchedEventTime());
+			items.put(epc, progress);
+			this.count(progress, 1);
+		}
+
+		private void count(ItemProgress progress, int delta) {
+			if (progress.currentStep >= 0) {
+				currentCounts[progress.currentStep] += delta;
+			}
+			for (int i = 0; i < progress.statuses.length; i++) {
+				if (progress.statuses[i] == StepStatus.SKIPPED) {
+					skippedCounts[i] += delta;
+				} else if (progress.statuses[i] == StepStatus.OUT_OF_ORDER) {
+					outOfOrderCounts[i] += delta;
+				}
+			}
+		}
+
+		ClassSummary summarize(long stalledBefore, int stalledLimit) {
+			List<ProductionProcessStep> steps = model.getSteps();
+			List<StepCount> stepCounts = new ArrayList<>(steps.size());
+			for (int i = 0; i < steps.size(); i++) {
+				stepCounts.add(new StepCount(steps.get(i), currentCounts[i], skippedCounts[i], outOfOrderCounts[i]));
+			}
+
+			List<ItemProgress> stalled = new ArrayList<>();
+			for (ItemProgress item : items.values()) {
+				if (item.currentStep < steps.size() - 1 && item.lastEventTime < stalledBefore) {
+					stalled.add(item);
+				}
+			}
+			stalled.sort(Comparator.comparingLong((ItemProgress item) -> item.lastEventTime).thenComparing(item -> item.epc));
+
+			List<StalledItem> stalledItems = new ArrayList<>(Math.min(stalled.size(), stalledLimit));
+			for (ItemProgress item : stalled.subList(0, Math.min(stalled.size(), stalledLimit))) {
+				stalledItems.add(new StalledItem(item.epc, item.currentStep < 0 ? null : steps.get(item.currentStep), item.lastEventTime));
+			}
+			return new ClassSummary(items.size(), stepCounts, stalled.size(), stalledItems);
+		}
+	}
+
+	private static final class ItemProgress {
+		private final String epc;
+		private final int currentStep;
+		private final StepStatus[] statuses;
+		private final long lastEventTime;
+
+		ItemProgress(String epc, int currentStep, StepStatus[] statuses, long lastEventTime) {
+			this.epc = epc;
+			this.currentStep = currentStep;
+			this.statuses = statuses;
+			this.lastEventTime = lastEventTime;
+		}
+	}
+
+	/**
+	 * Progress of the items of a product class
+	 */
+	public static final class ClassSummary {
+		private final int itemCount;
+		private final List<StepCount> steps;
+		private final int stalledCount;
+		private final List<StalledItem> stalledItems;
+
+		public ClassSummary(int itemCount, List<StepCount> steps, int stalledCount, List<StalledItem> stalledItems) {
+			this.itemCount = itemCount;
+			this.steps = steps;
+			this.stalledCount = stalledCount;
+			this.stalledItems = stalledItems;
+		}
+
+		public int getItemCount() {
+			return itemCount;
+		}
+
+		/**
+		 * @return item counts of each step in process order
+		 */
+		public List<StepCount> getSteps() {
+			return steps;
+		}
+
+		/**
+		 * @return number of stalled items, including the ones beyond the limit
+		 */
+		public int getStalledCount() {
+			return stalledCount;
+		}
+
+		/**
+		 * @return stalled items, which have waited longest first
+		 */
+		public List<StalledItem> getStalledItems() {
+			return stalledItems;
+		}
+	}
+
+	/**
+	 * Number of items, which are at a step, have skipped it, or have completed it out of order
+	 */
+	public static final class StepCount {
+		private final ProductionProcessStep step;
+		private final int current;
+		private final int skipped;
+		private final int outOfOrder;
+
+		public StepCount(ProductionProcessStep step, int current, int skipped, int outOfOrder) {
+			this.step = step;
+			this.current = current;
+			this.skipped = skipped;
+			this.outOfOrder = outOfOrder;
+		}
+
+		public ProductionProcessStep getStep() {
+			return step;
+		}
+
+		public int getCurrent() {
+			return current;
+		}
+
+		public int getSkipped() {
+			return skipped;
+		}
+
+		public int getOutOfOrder() {
+			return outOfOrder;
+		}
+	}
+
+	/**
+	 * An item, which has not reached the last step and has had no event of a step for a while
+	 */
+	public static final class StalledItem {
+		private final String epc;
+		private final ProductionProcessStep currentStep;
+		private final long lastEventTime;
+
+		public StalledItem(String epc, ProductionProcessStep currentStep, long lastEventTime) {
+			this.epc = epc;
+			this.currentStep = currentStep;
+			this.lastEventTime = lastEventTime;
+		}
+
+		public String getEpc() {
+			return epc;
+		}
+
+		public ProductionProcessStep getCurrentStep() {
+			return currentStep;
+		}
+
+		/**
+		 * @return eventTime of the last event of the item, which belongs to a step
+		 */
+		public long getLastEventTime() {
+			return lastEventTime;
+		}
+	}
+}
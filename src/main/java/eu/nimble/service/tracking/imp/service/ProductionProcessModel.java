@@ -0,0 +1,360 @@
+package eu.nimble.service.tracking.imp.service;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import eu.nimble.service.tracking.model.EpcisEvent;
+import eu.nimble.service.tracking.model.ProductionProcessStep;
+
+/**
+ * Production process template compiled into a state machine over the events of an item.
+ *
+ * The steps are ordered by following hasNext from the first step. An event belongs to the step with the same
+ * readPoint, bizLocation and bizStep. Replaying the events of an item in eventTime order moves the item through the steps:
+ * a step reached directly after the current step is completed in order, steps passed over are skipped,
+ * and a step completed after a later step is out of order.
+ */
+public final class ProductionProcessModel {
+
+	private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+	public enum StepStatus {
+		/** not reached yet */
+		PENDING,
+		/** has events, and no later step had events before */
+		COMPLETED,
+		/** no events, but a later step has */
+		SKIPPED,
+		/** has events, but only after a later step */
+		OUT_OF_ORDER
+	}
+
+	// steps in process order
+	private final List<ProductionProcessStep> steps;
+
+	// (readPoint, bizLocation, bizStep) -> indexes of the steps in process order
+	private final Map<StepKey, List<Integer>> stepIndexes = new HashMap<>();
+
+	private ProductionProcessModel(List<ProductionProcessStep> steps) {
+		this.steps = steps;
+		for (int i = 0; i < steps.size(); i++) {
+			ProductionProcessStep step = steps.get(i);
+			stepIndexes.computeIfAbsent(new StepKey(step.getReadPoint(), step.getBizLocation(), step.getBizStep()), key -> new ArrayList<>(1)).add(i);
+		}
+	}
+
+	/**
+	 * Compile a template as returned by the EPCIS repository
+	 * @param content JSON array of production process steps; an empty string for an unknown template
+	 * @return compiled template
+	 */
+	public static ProductionProcessModel compile(String content) {
+		if (content == null || content.trim().isEmpty()) {
+			return compile(Collections.emptyList());
+		}
+		try {
+			return compile(OBJECT_MAPPER.<List<ProductionProcessStep>>readValue(content, new TypeReference<List<ProductionProcessStep>>() {
+			}));
+		} catch (IOException e) {
+			throw new UncheckedIOException("Invalid production process template", e);
+		}
+	}
+
+	/**
+	 * Compile the given steps, ordering them along hasPrev and hasNext. Steps, which are not reached from the first step,
+	 * follow in the order of the template.
+	 * @param templateSteps steps of a production process template
+	 * @return compiled template
+	 */
+	public static ProductionProcessModel compile(List<ProductionProcessStep> templateSteps) {
+		Map<String, ProductionProcessStep> stepsById = new HashMap<>();
+		for (ProductionProcessStep step : templateSteps) {
+			stepsById.putIfAbsent(step.getId(), step);
+		}
+
+		List<ProductionProcessStep> orderedSteps = new ArrayList<>(templateSteps.size());
+		Set<ProductionProcessStep> ordered = new HashSet<>();
+		for (ProductionProcessStep first : templateSteps) {
+			if (ordered.contains(first) || stepsById.containsKey(first.getHasPrev())) {
+				continue;
+			}
+			for (ProductionProcessStep step = first; step != null && ordered.add(step); step = stepsById.get(step.getHasNext())) {
+				orderedSteps.add(step);
+			}
+		}
+		for (ProductionProcessStep step : templateSteps) {
+			if (ordered.add(step)) {
+				// in a cycle of hasNext
+				orderedSteps.add(step);
+			}
+		}
+		return new ProductionProcessModel(orderedSteps);
+	}
+
+	/**
+	 * @return steps in process order
+	 */
+	public List<ProductionProcessStep> getSteps() {
+		return steps;
+	}
+
+	/**
+	 * Replay the events of an item in a single pass
+	 * @param events EPCIS events of the item, in any order
+	 * @return state of each step and the current step of the item
+	 */
+	public Conformance replay(List<? extends EpcisEvent> events) {
+		List<EpcisEvent> sortedEvents = new ArrayList<>(events);
+		sortedEvents.sort(Comparator.comparingLong(EpcisEvent::getEventTime));
+
+		Replay replay = this.newReplay();
+		for (EpcisEvent event : sortedEvents) {
+			replay.accept(event.getReadPoint(), event.getBizLocation(), event.getBizStep(), event.getEventTime());
+		}
+		return replay.getConformance();
+	}
+
+	/**
+	 * @return a replay starting before the first step, which is fed with the events of an item one by one
+	 */
+	public Replay newReplay() {
+		return new Replay();
+	}
+
+	/**
+	 * @return true, if an event with the given readPoint, bizLocation and bizStep belongs to a step
+	 */
+	public boolean hasStep(String readPoint, String bizLocation, String bizStep) {
+		return stepIndexes.containsKey(new StepKey(readPoint, bizLocation, bizStep));
+	}
+
+	/**
+	 * @return true, if an event with the given readPoint, bizLocation and bizStep belongs to the first step
+	 */
+	public boolean isFirstStep(String readPoint, String bizLocation, String bizStep) {
+		List<Integer> indexes = stepIndexes.get(new StepKey(readPoint, bizLocation, bizStep));
+		return indexes != null && indexes.get(0) == 0;
+	}
+
+	/**
+	 * Replay of the events of a single item through the steps
+	 */
+	public final class Replay {
+		private final StepState[] states = new StepState[steps.size()];
+		private int current = -1;
+		private int unmatchedEvents = 0;
+		private long lastMatchedEventTime = -1;
+
+		private Replay() {
+			for (int i = 0; i < states.length; i++) {
+				states[i] = new StepState();
+			}
+		}
+
+		/**
+		 * Move the item with the next event
+		 * @param readPoint readPoint ID of the event
+		 * @param bizLocation bizLocation ID of the event
+		 * @param bizStep bizStep of the event
+		 * @param eventTime eventTime of the event, not before the eventTime of the previous event
+		 */
+		public void accept(String readPoint, String bizLocation, String bizStep, long eventTime) {
+			List<Integer> indexes = stepIndexes.get(new StepKey(readPoint, bizLocation, bizStep));
+			if (indexes == null) {
+				unmatchedEvents++;
+				return;
+			}
+
+			int index = selectStep(indexes, current);
+			StepState state = states[index];
+			if (state.eventCount == 0) {
+				state.firstEventTime = eventTime;
+				if (index > current) {
+					for (int skipped = current + 1; skipped < index; skipped++) {
+						if (states[skipped].eventCount == 0) {
+							states[skipped].status = StepStatus.SKIPPED;
+						}
+					}
+					state.status = StepStatus.COMPLETED;
+					current = index;
+				} else {
+					state.status = StepStatus.OUT_OF_ORDER;
+				}
+			}
+			state.lastEventTime = eventTime;
+			state.eventCount++;
+			lastMatchedEventTime = eventTime;
+		}
+
+		/**
+		 * @return index of the current step in process order; -1, if no step has events
+		 */
+		public int getCurrentStepIndex() {
+			return current;
+		}
+
+		/**
+		 * @param index index of a step in process order
+		 * @return state of the step after the events so far
+		 */
+		public StepStatus getStatus(int index) {
+			return states[index].status;
+		}
+
+		/**
+		 * @return eventTime of the last event, which belongs to a step; -1, if none
+		 */
+		public long getLastMatchedEventTime() {
+			return lastMatchedEventTime;
+		}
+
+		/**
+		 * @return state of each step after the events so far
+		 */
+		public Conformance getConformance() {
+			List<StepResult> results = new ArrayList<>(steps.size());
+			for (int i = 0; i < steps.size(); i++) {
+				StepState state = states[i];
+				results.add(new StepResult(steps.get(i), state.status, state.firstEventTime, state.lastEventTime, state.eventCount));
+			}
+			return new Conformance(current < 0 ? null : results.get(current), results, unmatchedEvents);
+		}
+	}
+
+	/**
+	 * @return the first step after the current step, if any; otherwise the last step before it
+	 */
+	private static int selectStep(List<Integer> indexes, int current) {
+		for (int index : indexes) {
+			if (index > current) {
+				return index;
+			}
+		}
+		return indexes.get(indexes.size() - 1);
+	}
+
+	private static final class StepState {
+		private StepStatus status = StepStatus.PENDING;
+		private long firstEventTime = -1;
+		private long lastEventTime = -1;
+		private int eventCount = 0;
+	}
+
+	private static final class StepKey {
+		private final String readPoint;
+		private final String bizLocation;
+		private final String bizStep;
+
+		StepKey(String readPoint, String bizLocation, String bizStep) {
+			this.readPoint = readPoint == null ? "" : readPoint;
+			this.bizLocation = bizLocation == null ? "" : bizLocation;
+			this.bizStep = bizStep == null ? "" : bizStep;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof StepKey)) {
+				return false;
+			}
+			StepKey other = (StepKey) obj;
+			return readPoint.equals(other.readPoint) && bizLocation.equals(other.bizLocation) && bizStep.equals(other.bizStep);
+		}
+
+		@Override
+		public int hashCode() {
+			return (readPoint.hashCode() * 31 + bizLocation.hashCode()) * 31 + bizStep.hashCode();
+		}
+	}
+
+	/**
+	 * Conformance of the events of an item to the template
+	 */
+	public static final class Conformance {
+		private final StepResult currentStep;
+		private final List<StepResult> steps;
+		private final int unmatchedEvents;
+
+		public Conformance(StepResult currentStep, List<StepResult> steps, int unmatchedEvents) {
+			this.currentStep = currentStep;
+			this.steps = steps;
+			this.unmatchedEvents = unmatchedEvents;
+		}
+
+		/**
+		 * @return the furthest step completed in order; null, if no step has events
+		 */
+		public StepResult getCurrentStep() {
+			return currentStep;
+		}
+
+		/**
+		 * @return all steps in process order
+		 */
+		public List<StepResult> getSteps() {
+			return steps;
+		}
+
+		/**
+		 * @return number of events, which do not belong to any step
+		 */
+		public int getUnmatchedEvents() {
+			return unmatchedEvents;
+		}
+	}
+
+	/**
+	 * State of a step after the replay
+	 */
+	public static final class StepResult {
+		private final ProductionProcessStep step;
+		private final StepStatus status;
+		private final long firstEventTime;
+		private final long lastEventTime;
+		private final int eventCount;
+
+		public StepResult(ProductionProcessStep step, StepStatus status, long firstEventTime, long lastEventTime, int eventCount) {
+			this.step = step;
+			this.status = status;
+			this.firstEventTime = firstEventTime;
+			this.lastEventTime = lastEventTime;
+			this.eventCount = eventCount;
+		}
+
+		public ProductionProcessStep getStep() {
+			return step;
+		}
+
+		public StepStatus getStatus() {
+			return status;
+		}
+
+		/**
+		 * @return eventTime of the first event of the step; -1, if none
+		 */
+		public long getFirstEventTime() {
+			return firstEventTime;
+		}
+
+		/**
+		 * @return eventTime of the last event of the step; -1, if none
+		 */
+		public long getLastEventTime() {
+			return lastEventTime;
+		}
+
+		public int getEventCount() {
+			return eventCount;
+		}
+	}
+}
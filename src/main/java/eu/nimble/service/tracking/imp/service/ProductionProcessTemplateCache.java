@@ -0,0 +1,194 @@
+package eu.nimble.service.tracking.imp.service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Service;
+
+/**
+ * Cache of production process templates per product class.
+ *
+ * A cached template is used without asking the EPCIS repository for a short time. After that it is revalidated
+ * with a conditional request, using the ETag and Last-Modified headers of the EPCIS response. If the EPCIS repository
+ * does not send them, the template is requested again and compared by its fingerprint.
+ *
+ * If the revalidation fails, because the EPCIS repository is unavailable, the cached template is served as stale.
+ *
+ * Each template has a version, the SHA-256 fingerprint of its content, which is used as ETag towards our clients.
+ * Cached templates are shared by all clients, so the token of the caller is validated before a template is served.
+ */
+@Service
+public class ProductionProcessTemplateCache implements PublicMetrics {
+
+	@Value("${tracking.template.cache.max-size:1000}")
+	private int maxSize;
+
+	/**
+	 * Time to use a cached template without revalidating it
+	 */
+	@Value("${tracking.template.cache.revalidate-after-ms:60000}")
+	private long revalidateAfterMs;
+
+	@Autowired
+	private EpcisService epcisService;
+
+	@Autowired
+	private TokenValidator tokenValidator;
+
+	// product class -> template, in access order. Guarded by itself.
+	private Map<String, Template> templates;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong revalidations = new AtomicLong();
+	private final AtomicLong notModified = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong staleHits = new AtomicLong();
+
+	@PostConstruct
+	public void init() {
+		templates = new LinkedHashMap<String, Template>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Template> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	/**
+	 * Get the production process template for the given product class
+	 * @param productClass product class ID in the NIMBLE catalogue
+	 * @param bearerToken The Bearer token provided by the identity service, used to load or revalidate the template
+	 * @return the current template; the cached template marked as stale, if it cannot be revalidated, because the EPCIS repository is unavailable
+	 */
+	public CompletableFuture<Template> get(String productClass, String bearerToken) {
+		return tokenValidator.validate(bearerToken).thenCompose(valid -> this.lookup(productClass, bearerToken));
+	}
+
+	private CompletableFuture<Template> lookup(String productClass, String bearerToken) {
+		Template cached;
+		synchronized (templates) {
+			cached = templates.get(productClass);
+		}
+		if (cached != null && cached.validatedAt + revalidateAfterMs > System.currentTimeMillis()) {
+			hits.incrementAndGet();
+			return CompletableFuture.completedFuture(cached);
+		}
+
+		CompletableFuture<ResponseEntity<String>> response;
+		if (cached == null) {
+			misses.incrementAndGet();
+			response = epcisService.getProductionProcessTemplateAsync(productClass, null, -1, bearerToken);
+		} else {
+			revalidations.incrementAndGet();
+			response = epcisService.getProductionProcessTemplateAsync(productClass, cached.upstreamETag,
+					cached.upstreamLastModified, bearerToken);
+		}
+		return response.handle((templateResponse, e) -> {
+			if (e == null) {
+				return this.update(productClass, cached, templateResponse);
+			}
+			if (cached == null || !UpstreamCommands.isUnavailable(e)) {
+				throw e instanceof CompletionException ? (CompletionException) e : new CompletionException(e);
+			}
+			// not stored, so that the next request revalidates again
+			staleHits.incrementAndGet();
+			return new Template(cached.content, cached.fingerprint, cached.upstreamETag, cached.upstreamLastModified, cached.validatedAt, true);
+		});
+	}
+
+	private Template update(String productClass, Template cached, ResponseEntity<String> response) {
+		long now = System.currentTimeMillis();
+		Template template;
+		if (cached != null && response.getStatusCode() == HttpStatus.NOT_MODIFIED) {
+			notModified.incrementAndGet();
+			template = new Template(cached.content, cached.fingerprint, cached.upstreamETag, cached.upstreamLastModified, now, false);
+		} else {
+			String content = response.getBody() == null ? "" : response.getBody();
+			String fingerprint = DigestUtils.sha256Hex(content);
+			if (cached != null && cached.fingerprint.equals(fingerprint)) {
+				// unchanged, keep the cached content
+				content = cached.content;
+			}
+			template = new Template(content, fingerprint, response.getHeaders().getETag(),
+					response.getHeaders().getLastModified(), now, false);
+		}
+
+		synchronized (templates) {
+			templates.put(productClass, template);
+		}
+		return template;
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+		List<Metric<?>> metrics = new ArrayList<>();
+		metrics.add(new Metric<Long>("template.cache.hits", hits.get()));
+		metrics.add(new Metric<Long>("template.cache.revalidations", revalidations.get()));
+		metrics.add(new Metric<Long>("template.cache.not-modified", notModified.get()));
+		metrics.add(new Metric<Long>("template.cache.misses", misses.get()));
+		metrics.add(new Metric<Long>("template.cache.stale", staleHits.get()));
+		synchronized (templates) {
+			metrics.add(new Metric<Integer>("template.cache.size", templates.size()));
+		}
+		return metrics;
+	}
+
+	/**
+	 * A production process template as returned by the EPCIS repository
+	 */
+	public static final class Template {
+		private final String content;
+		private final String fingerprint;
+		private final String upstreamETag;
+		private final long upstreamLastModified;
+		private final long validatedAt;
+		private final boolean stale;
+
+		Template(String content, String fingerprint, String upstreamETag, long upstreamLastModified, long validatedAt, boolean stale) {
+			this.content = content;
+			this.fingerprint = fingerprint;
+			this.upstreamETag = upstreamETag;
+			this.upstreamLastModified = upstreamLastModified;
+			this.validatedAt = validatedAt;
+			this.stale = stale;
+		}
+
+		/**
+		 * @return JSON array of the production process steps
+		 */
+		public String getContent() {
+			return content;
+		}
+
+		/**
+		 * @return SHA-256 fingerprint of the content in hex, which changes with every change of the template
+		 */
+		public String getFingerprint() {
+			return fingerprint;
+		}
+
+		/**
+		 * @return true, if the template could not be revalidated, because the EPCIS repository is unavailable
+		 */
+		public boolean isStale() {
+			return stale;
+		}
+	}
+}
@@ -0,0 +1,209 @@
+package eu.nimble.service.tracking.imp.service;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.springframework.stereotype.Service;
+
+import eu.nimble.service.tracking.imp.service.UpstreamCommands.Upstream;
+
+/**
+ * Latency histograms, error and byte counts of the requests to the endpoints and of the calls to the upstreams.
+ *
+ * Requests are recorded per endpoint pattern and method, calls per upstream and query, e.g. SimpleEventQuery:ObjectEvent.
+ * The histograms have fixed buckets, so that they are aggregated across instances and their quantiles (p50, p95, p99)
+ * are computed with histogram_quantile. They are written in the Prometheus text format.
+ */
+@Service
+public class RequestMetrics {
+
+	public static final String SERVER = "tracking_http_server";
+	public static final String UPSTREAM = "tracking_upstream";
+
+	/**
+	 * Upper bounds of the latency buckets in seconds
+	 */
+	private static final double[] BUCKETS = { 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60 };
+
+	private static final long[] BUCKET_NANOS = new long[BUCKETS.length];
+	static {
+		for (int i = 0; i < BUCKETS.length; i++) {
+			BUCKET_NANOS[i] = (long) (BUCKETS[i] * TimeUnit.SECONDS.toNanos(1));
+		}
+	}
+
+	/**
+	 * The reported maximum is the one of the current window
+	 */
+	private static final long MAX_WINDOW_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+	// rendered labels -> timer
+	private final ConcurrentMap<String, Timer> serverTimers = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, Timer> upstreamTimers = new ConcurrentHashMap<>();
+
+	/**
+	 * Record a request to an endpoint
+	 * @param method HTTP method
+	 * @param endpoint request mapping pattern of the endpoint, e.g. /simpleTracking/{itemID:.+}
+	 * @param status status of the response; requests with status 5xx are errors
+	 * @param startNanos {@link System#nanoTime()} at the start of the request
+	 * @param requestBytes size of the request body; -1, if unknown
+	 * @param responseBytes size of the response body
+	 */
+	public void recordServerRequest(String method, String endpoint, int status, long startNanos, long requestBytes, long responseBytes) {
+		String labels = "endpoint=\"" + escape(endpoint) + "\",method=\"" + escape(method) + "\"";
+		Timer timer = serverTimers.computeIfAbsent(labels, key -> new Timer());
+		timer.record(System.nanoTime() - startNanos, status >= 500, requestBytes, responseBytes);
+	}
+
+	/**
+	 * Record a call to an upstream
+	 * @param upstream called upstream
+	 * @param query query type, e.g. SimpleMasterDataQuery
+	 * @param startNanos {@link System#nanoTime()} at the start of the call
+	 * @param e error of the call; null, if answered. Client errors (4xx) are answers.
+	 * @param responseBytes size of the response body; -1, if unknown
+	 */
+	public void recordUpstreamCall(Upstream upstream, String query, long startNanos, Throwable e, long responseBytes) {
+		String labels = "upstream=\"" + upstream.getName() + "\",query=\"" + escape(query) + "\"";
+		Timer timer = upstreamTimers.computeIfAbsent(labels, key -> new Timer());
+		timer.record(System.nanoTime() - startNanos, e != null && UpstreamCommands.isUnavailable(e), -1, responseBytes);
+	}
+
+	/**
+	 * @return query type of an EPCIS event query with the given parameters, including the event type, e.g. SimpleEventQuery:ObjectEvent
+	 */
+	public static String getEventQuery(Map<String, String> queryParams) {
+		String eventType = queryParams.get("eventType");
+		return eventType == null ? "SimpleEventQuery" : "SimpleEventQuery:" + eventType;
+	}
+
+	/**
+	 * Write the histograms and counters in the Prometheus text format, version 0.0.4
+	 */
+	public void writePrometheus(Writer writer) throws IOException {
+		writeTimers(writer, SERVER, "requests to the endpoints", serverTimers, true);
+		writeTimers(writer, UPSTREAM, "calls to the upstreams", upstreamTimers, false);
+	}
+
+	private static void writeTimers(Writer writer, String prefix, String help, Map<String, Timer> timers, boolean requestBytes)
+			throws IOException {
+		String seconds = prefix + "_requests_seconds";
+		writeHeader(writer, seconds, "histogram", "Latency of the " + help);
+		for (Map.Entry<String, Timer> timer : timers.entrySet()) {
+			long[] buckets = timer.getValue().getBuckets();
+			long cumulative = 0;
+			for (int i = 0; i < BUCKETS.length; i++) {
+				cumulative += buckets[i];
+				writeSample(writer, seconds + "_bucket", timer.getKey() + ",le=\"" + BUCKETS[i] + "\"", cumulative);
+			}
+			cumulative += buckets[BUCKETS.length];
+			writeSample(writer, seconds + "_bucket", timer.getKey() + ",le=\"+Inf\"", cumulative);
+			writeSample(writer, seconds + "_count", timer.getKey(), cumulative);
+			writeSample(writer, seconds + "_sum", timer.getKey(), toSeconds(timer.getValue().sumNanos.sum()));
+		}
+
+		writeHeader(writer, seconds + "_max", "gauge", "Maximal latency of the " + help + " in the current minute");
+		for (Map.Entry<String, Timer> timer : timers.entrySet()) {
+			writeSample(writer, seconds + "_max", timer.getKey(), toSeconds(timer.getValue().getMax()));
+		}
+
+		writeHeader(writer, prefix + "_errors_total", "counter", "Failed " + help);
+		for (Map.Entry<String, Timer> timer : timers.entrySet()) {
+			writeSample(writer, prefix + "_errors_total", timer.getKey(), timer.getValue().errors.sum());
+		}
+
+		if (requestBytes) {
+			writeHeader(writer, prefix + "_request_bytes_total", "counter", "Size of the request bodies of the " + help);
+			for (Map.Entry<String, Timer> timer : timers.entrySet()) {
+				writeSample(writer, prefix + "_request_bytes_total", timer.getKey(), timer.getValue().requestBytes.sum());
+			}
+		}
+
+		writeHeader(writer, prefix + "_response_bytes_total", "counter", "Size of the response bodies of the " + help);
+		for (Map.Entry<String, Timer> timer : timers.entrySet()) {
+			writeSample(writer, prefix + "_response_bytes_total", timer.getKey(), timer.getValue().responseBytes.sum());
+		}
+	}
+
+	private static void writeHeader(Writer writer, String name, String type, String help) throws IOException {
+		writer.write("# HELP " + name + " " + help + "\n");
+		writer.write("# TYPE " + name + " " + type + "\n");
+	}
+
+	private static void writeSample(Writer writer, String name, String labels, Object value) throws IOException {
+		writer.write(name + "{" + labels + "} " + value + "\n");
+	}
+
+	private static double toSeconds(long nanos) {
+		return nanos / (double) TimeUnit.SECONDS.toNanos(1);
+	}
+
+	/**
+	 * Escape a label value of the Prometheus text format
+	 */
+	static String escape(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+	private static final class Timer {
+		// counts per bucket, not cumulative; the last one is +Inf
+		private final LongAdder[] buckets = new LongAdder[BUCKETS.length + 1];
+		private final LongAdder sumNanos = new LongAdder();
+		private final LongAdder errors = new LongAdder();
+		private final LongAdder requestBytes = new LongAdder();
+		private final LongAdder responseBytes = new LongAdder();
+		private final AtomicLong max = new AtomicLong();
+		private volatile long maxWindowStart = System.nanoTime();
+
+		private Timer() {
+			for (int i = 0; i < buckets.length; i++) {
+				buckets[i] = new LongAdder();
+			}
+		}
+
+		private void record(long nanos, boolean error, long requestBodyBytes, long responseBodyBytes) {
+			int bucket = 0;
+			while (bucket < BUCKET_NANOS.length && nanos > BUCKET_NANOS[bucket]) {
+				bucket++;
+			}
+			buckets[bucket].increment();
+			sumNanos.add(nanos);
+			if (error) {
+				errors.increment();
+			}
+			if (requestBodyBytes > 0) {
+				requestBytes.add(requestBodyBytes);
+			}
+			if (responseBodyBytes > 0) {
+				responseBytes.add(responseBodyBytes);
+			}
+
+			long now = System.nanoTime();
+			if (now - maxWindowStart > MAX_WINDOW_NANOS) {
+				// a concurrent maximum may be lost at the start of a window
+				maxWindowStart = now;
+				max.set(0);
+			}
+			max.accumulateAndGet(nanos, Math::max);
+		}
+
+		private long[] getBuckets() {
+			long[] counts = new long[buckets.length];
+			for (int i = 0; i < buckets.length; i++) {
+				counts[i] = buckets[i].sum();
+			}
+			return counts;
+		}
+
+		private long getMax() {
+			return System.nanoTime() - maxWindowStart > MAX_WINDOW_NANOS ? 0 : max.get();
+		}
+	}
+}
@@ -0,0 +1,205 @@
+package eu.nimble.service.tracking.imp.service;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import org.springframework.cloud.sleuth.Span;
+import org.springframework.cloud.sleuth.Tracer;
+
+/**
+ * Time spent by a request in its phases: upstream fetch, JSON parse, graph traversal, hashing and serialization.
+ * It is returned to the client in the Server-Timing header, and each timed phase is a child span of the request span.
+ *
+ * The timing is bound to the request thread while the handler runs, and to the threads, which complete the upstream calls
+ * of the request, so that the services get it with {@link #current()}. Outside of a request, the phases are not recorded.
+ * Phases running in parallel, e.g. concurrent upstream calls, are summed up, so their sum may exceed the total.
+ */
+public final class RequestTiming {
+
+	public enum Phase {
+		UPSTREAM("upstream", "Upstream fetch"),
+		PARSE("parse", "JSON parse"),
+		TRAVERSAL("traversal", "Graph traversal"),
+		HASHING("hash", "Event hashing"),
+		SERIALIZATION("serialize", "JSON serialization");
+
+		private final String name;
+		private final String description;
+
+		Phase(String name, String description) {
+			this.name = name;
+			this.description = description;
+		}
+
+		public String getName() {
+			return name;
+		}
+	}
+
+	/**
+	 * Request attribute, which holds the timing across the dispatches of an asynchronous request
+	 */
+	public static final String ATTRIBUTE = RequestTiming.class.getName();
+
+	public static final String SERVER_TIMING = "Server-Timing";
+
+	private static final ThreadLocal<RequestTiming> CURRENT = new ThreadLocal<>();
+
+	private static final RequestTiming NONE = new RequestTiming(null, null);
+
+	private final Tracer tracer;
+	private final Span requestSpan;
+	private final long startTime = System.nanoTime();
+	private final LongAdder[] nanos = new LongAdder[Phase.values().length];
+	private final LongAdder[] counts = new LongAdder[Phase.values().length];
+
+	/**
+	 * @param tracer tracer, which creates the spans of the phases; null, if not traced
+	 * @param requestSpan span of the request; null, if not traced
+	 */
+	public RequestTiming(Tracer tracer, Span requestSpan) {
+		this.tracer = tracer;
+		this.requestSpan = requestSpan;
+		for (int i = 0; i < nanos.length; i++) {
+			nanos[i] = new LongAdder();
+			counts[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * @return timing of the request processed by the current thread; a timing, which records nothing, outside of a request
+	 */
+	public static RequestTiming current() {
+		RequestTiming timing = CURRENT.get();
+		return timing == null ? NONE : timing;
+	}
+
+	/**
+	 * Bind a timing to the current thread
+	 * @param timing timing of the request; null, to unbind
+	 * @return the timing bound before, to be bound again
+	 */
+	public static RequestTiming bind(RequestTiming timing) {
+		RequestTiming previous = CURRENT.get();
+		if (timing == null || timing == NONE) {
+			CURRENT.remove();
+		} else {
+			CURRENT.set(timing);
+		}
+		return previous;
+	}
+
+	/**
+	 * Run a task with this timing bound to the current thread, e.g. the completion of an upstream call,
+	 * so that the dependent stages running on this thread are recorded for the request
+	 */
+	public void runBound(Runnable task) {
+		RequestTiming previous = bind(this);
+		try {
+			task.run();
+		} finally {
+			bind(previous);
+		}
+	}
+
+	/**
+	 * Start a phase, which ends on another thread, e.g. an asynchronous upstream call
+	 * @return the watch to stop at the end of the phase
+	 */
+	public Stopwatch start(Phase phase) {
+		if (this == NONE) {
+			return Stopwatch.NONE;
+		}
+		Span span = this.createSpan(phase);
+		if (span != null) {
+			// the span is continued and closed by the thread, which ends the phase
+			tracer.detach(span);
+		}
+		return new Stopwatch(this, phase, span);
+	}
+
+	/**
+	 * Time a phase, which runs on the current thread. Its span is the current span of the task, so that e.g. blocking
+	 * HTTP calls of the task are children of the phase.
+	 */
+	public <T> T time(Phase phase, Supplier<T> task) {
+		if (this == NONE) {
+			return task.get();
+		}
+		long phaseStart = System.nanoTime();
+		Span span = this.createSpan(phase);
+		try {
+			return task.get();
+		} finally {
+			if (span != null) {
+				tracer.close(span);
+			}
+			this.add(phase, System.nanoTime() - phaseStart);
+		}
+	}
+
+	private Span createSpan(Phase phase) {
+		if (tracer == null || requestSpan == null) {
+			return null;
+		}
+		return tracer.createSpan(phase.getName(), requestSpan);
+	}
+
+	private void add(Phase phase, long phaseNanos) {
+		nanos[phase.ordinal()].add(phaseNanos);
+		counts[phase.ordinal()].increment();
+	}
+
+	/**
+	 * @return value of the Server-Timing header with the timed phases and the total time so far in milliseconds, e.g.
+	 *         upstream;dur=120.5;desc="Upstream fetch (2)", serialize;dur=3.1;desc="JSON serialization (1)", total;dur=125.0
+	 */
+	public String getServerTiming() {
+		StringBuilder serverTiming = new StringBuilder();
+		for (Phase phase : Phase.values()) {
+			long count = counts[phase.ordinal()].sum();
+			if (count > 0) {
+				serverTiming.append(phase.getName()).append(";dur=").append(toMillis(nanos[phase.ordinal()].sum()))
+						.append(";desc=\"").append(phase.description).append(" (").append(count).append(")\", ");
+			}
+		}
+		return serverTiming.append("total;dur=").append(toMillis(System.nanoTime() - startTime)).toString();
+	}
+
+	private static String toMillis(long nanos) {
+		return String.format(Locale.ROOT, "%.1f", nanos / (double) TimeUnit.MILLISECONDS.toNanos(1));
+	}
+
+	/**
+	 * Running phase of a request
+	 */
+	public static final class Stopwatch {
+		private static final Stopwatch NONE = new Stopwatch(null, null, null);
+
+		private final RequestTiming timing;
+		private final Phase phase;
+		private final Span span;
+		private final long phaseStart = System.nanoTime();
+
+		private Stopwatch(RequestTiming timing, Phase phase, Span span) {
+			this.timing = timing;
+			this.phase = phase;
+			this.span = span;
+		}
+
+		/**
+		 * End the phase; may be called on another thread than the start
+		 */
+		public void stop() {
+			if (timing == null) {
+				return;
+			}
+			timing.add(phase, System.nanoTime() - phaseStart);
+			if (span != null) {
+				timing.tracer.close(timing.tracer.continueSpan(span));
+			}
+		}
+	}
+}
@@ -0,0 +1,127 @@
+package eu.nimble.service.tracking.imp.service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Service;
+
+/**
+ * Validation of the Bearer token of a request, before it is answered from state shared by all clients:
+ * the in-memory event indexes, the master data cache and the template cache. The shared state is loaded with the token
+ * of another client or of the change feed, whereas the EPCIS repository checks the token of every request it answers.
+ *
+ * A token is valid, if the EPCIS repository answers an authenticated query with it. A valid token is not checked again
+ * for ttl-ms. While the EPCIS repository is unavailable, a token validated within grace-ms is still accepted,
+ * so that its client is answered from the shared state marked as stale; any other token is rejected with the unavailability.
+ * Concurrent validations of the same token share a single query.
+ */
+@Service
+public class TokenValidator implements PublicMetrics {
+
+	@Value("${tracking.token-validation.ttl-ms:60000}")
+	private long ttlMs;
+
+	@Value("${tracking.token-validation.grace-ms:3600000}")
+	private long graceMs;
+
+	@Value("${tracking.token-validation.max-size:10000}")
+	private int maxSize;
+
+	@Autowired
+	private EpcisService epcisService;
+
+	// token -> time of the last successful validation, in access order. Guarded by itself.
+	private Map<String, Long> validatedTimes;
+
+	// token -> validation, which is in progress
+	private final Map<String, CompletableFuture<Void>> inFlight = new ConcurrentHashMap<>();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong validations = new AtomicLong();
+	private final AtomicLong rejections = new AtomicLong();
+	private final AtomicLong graceHits = new AtomicLong();
+
+	@PostConstruct
+	public void init() {
+		validatedTimes = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	/**
+	 * Validate the token of a request
+	 * @param bearerToken The Bearer token provided by the identity service
+	 * @return completed, if the token is valid; fails with the error status of the EPCIS repository, e.g. 401, otherwise
+	 */
+	public CompletableFuture<Void> validate(String bearerToken) {
+		long now = System.currentTimeMillis();
+		Long validatedTime;
+		synchronized (validatedTimes) {
+			validatedTime = validatedTimes.get(bearerToken);
+		}
+		if (validatedTime != null && validatedTime + ttlMs > now) {
+			hits.incrementAndGet();
+			return CompletableFuture.completedFuture(null);
+		}
+
+		CompletableFuture<Void> validation = new CompletableFuture<>();
+		CompletableFuture<Void> runningValidation = inFlight.putIfAbsent(bearerToken, validation);
+		if (runningValidation != null) {
+			return runningValidation;
+		}
+
+		validations.incrementAndGet();
+		epcisService.checkTokenAsync(bearerToken).whenComplete((checked, e) -> {
+			Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+			synchronized (validatedTimes) {
+				if (cause == null) {
+					validatedTimes.put(bearerToken, System.currentTimeMillis());
+				} else if (!UpstreamCommands.isUnavailable(cause)) {
+					validatedTimes.remove(bearerToken);
+				}
+			}
+			inFlight.remove(bearerToken, validation);
+
+			if (cause == null) {
+				validation.complete(null);
+			} else if (UpstreamCommands.isUnavailable(cause) && validatedTime != null && validatedTime + graceMs > now) {
+				graceHits.incrementAndGet();
+				validation.complete(null);
+			} else {
+				if (!UpstreamCommands.isUnavailable(cause)) {
+					rejections.incrementAndGet();
+				}
+				validation.completeExceptionally(cause);
+			}
+		});
+		return validation;
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+		List<Metric<?>> metrics = new ArrayList<>();
+		metrics.add(new Metric<Long>("token-validation.hits", hits.get()));
+		metrics.add(new Metric<Long>("token-validation.validations", validations.get()));
+		metrics.add(new Metric<Long>("token-validation.rejections", rejections.get()));
+		metrics.add(new Metric<Long>("token-validation.grace", graceHits.get()));
+		return metrics;
+	}
+}
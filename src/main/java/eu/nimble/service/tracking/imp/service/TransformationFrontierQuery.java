@@ -0,0 +1,102 @@
+package eu.nimble.service.tracking.imp.service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import eu.nimble.service.tracking.model.EpcisEvent;
+import eu.nimble.service.tracking.model.TransformationEvent;
+
+/**
+ * Transformation outputs of an EPC, queried from the EPCIS repository level by level instead of the in-memory index.
+ *
+ * Each level of the breadth first traversal asks only for the transformation events consuming the EPCs of the frontier
+ * (MATCH_inputEPC with a comma separated list). Large frontiers are split into chunks, which are queried in parallel,
+ * at most concurrency chunks at a time.
+ */
+@Service
+public class TransformationFrontierQuery {
+
+	/**
+	 * Maximal number of input EPCs in one SimpleEventQuery
+	 */
+	@Value("${tracking.transformation.query.chunk-size:50}")
+	private int chunkSize;
+
+	/**
+	 * Maximal number of parallel queries of one level
+	 */
+	@Value("${tracking.transformation.query.concurrency:4}")
+	private int concurrency;
+
+	@Autowired
+	private EpcisService epcisService;
+
+	/**
+	 * Traverse the transformation outputs starting from the given EPC.
+	 * @param epc EPC of the input item
+	 * @param maxDepth maximal number of transformation levels to follow
+	 * @param maxNodes maximal number of EPCs to visit
+	 * @param bearerToken The Bearer token provided by the identity service
+	 * @return the same result as {@link TransformationGraphIndex#getOutputTree(String, int, int)}
+	 */
+	public CompletableFuture<EpcGraphTraversal.Result> getOutputTree(String epc, int maxDepth, int maxNodes, String bearerToken) {
+		return EpcGraphTraversal.breadthFirstAsync(epc, inputs -> this.getOutputs(inputs, bearerToken), maxDepth, maxNodes);
+	}
+
+	private CompletableFuture<Map<String, Set<String>>> getOutputs(Collection<String> inputs, String bearerToken) {
+		List<String> inputList = new ArrayList<>(inputs);
+		Map<String, Set<String>> outputsByInput = new HashMap<>();
+
+		// the chunks are distributed over at most concurrency lanes, which query one chunk after the other
+		List<CompletableFuture<Void>> lanes = new ArrayList<>();
+		for (int i = 0, chunkCount = 0; i < inputList.size(); i += chunkSize, chunkCount++) {
+			Map<String, String> queryParams = new LinkedHashMap<>();
+			queryParams.put("eventType", "TransformationEvent");
+			queryParams.put("MATCH_inputEPC", String.join(",", inputList.subList(i, Math.min(i + chunkSize, inputList.size()))));
+			int lane = chunkCount % concurrency;
+			if (lane == lanes.size()) {
+				lanes.add(CompletableFuture.completedFuture(null));
+			}
+			lanes.set(lane, lanes.get(lane).thenCompose(previous -> epcisService.pollEventsAsync(queryParams, bearerToken))
+					.thenAccept(events -> {
+						synchronized (outputsByInput) {
+							for (EpcisEvent event : events) {
+								if (event instanceof TransformationEvent) {
+									addOutputs(outputsByInput, (TransformationEvent) event);
+								}
+							}
+						}
+					}));
+		}
+
+		return CompletableFuture.allOf(lanes.toArray(new CompletableFuture<?>[lanes.size()])).thenApply(done -> {
+			synchronized (outputsByInput) {
+				return outputsByInput;
+			}
+		});
+	}
+
+	/**
+	 * Add the output EPCs of a transformation event to each of its input EPCs
+	 */
+	private static void addOutputs(Map<String, Set<String>> outputsByInput, TransformationEvent event) {
+		if (event.getOutputEPCList().isEmpty()) {
+			return;
+		}
+
+		for (String input : event.getInputEPCList()) {
+			outputsByInput.computeIfAbsent(input, key -> new LinkedHashSet<>()).addAll(event.getOutputEPCList());
+		}
+	}
+}
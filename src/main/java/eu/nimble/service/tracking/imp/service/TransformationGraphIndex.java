@@ -0,0 +1,150 @@
+package eu.nimble.service.tracking.imp.service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import eu.nimble.service.tracking.model.EpcisEvent;
+import eu.nimble.service.tracking.model.TransformationEvent;
+
+/**
+ * In-memory adjacency index of EPCIS transformation events, from input EPCs to output EPCs and back.
+ */
+@Service
+public class TransformationGraphIndex extends EpcisEventIndex {
+
+	/**
+	 * Minimal interval between two incremental refreshes from the EPCIS repository
+	 */
+	@Value("${tracking.transformation.refresh-interval-ms:30000}")
+	private long refreshIntervalMs;
+
+	// input EPC -> transformations consuming the input. Guarded by lock.
+	private final Map<String, Set<Transformation>> transformationsByInput = new HashMap<>();
+
+	// output EPC -> transformations producing the output. Guarded by lock.
+	private final Map<String, Set<Transformation>> transformationsByOutput = new HashMap<>();
+
+	@Override
+	protected String getEventType() {
+		return "TransformationEvent";
+	}
+
+	@Override
+	protected long getRefreshIntervalMs() {
+		return refreshIntervalMs;
+	}
+
+	/**
+	 * Traverse the transformation outputs starting from the given EPC. The index has to be loaded, see {@link #whenLoaded(String)}.
+	 * @param epc EPC of the input item
+	 * @param maxDepth maximal number of transformation levels to follow
+	 * @param maxNodes maximal number of EPCs to visit
+	 * @return EPCs, which were transformed into outputs, in breadth first order
+	 */
+	public EpcGraphTraversal.Result getOutputTree(String epc, int maxDepth, int maxNodes) {
+		lock.readLock().lock();
+		try {
+			return EpcGraphTraversal.breadthFirst(epc, this::getOutputs, maxDepth, maxNodes);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Get all transformations of an EPC, as input or as output. The index has to be loaded, see {@link #whenLoaded(String)}.
+	 * @param epc EPC of the item
+	 * @param asInput true, the transformations consuming the EPC; false, the transformations producing it
+	 * @return transformations in the order of their events; an empty list, if there are none
+	 */
+	public List<Transformation> getTransformations(String epc, boolean asInput) {
+		lock.readLock().lock();
+		try {
+			Set<Transformation> transformations = (asInput ? transformationsByInput : transformationsByOutput).get(epc);
+			return transformations == null ? Collections.emptyList() : new ArrayList<>(transformations);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	private Map<String, Set<String>> getOutputs(Collection<String> inputs) {
+		Map<String, Set<String>> outputs = new HashMap<>();
+		for (String input : inputs) {
+			Set<Transformation> transformations = transformationsByInput.get(input);
+			if (transformations != null) {
+				Set<String> inputOutputs = new LinkedHashSet<>();
+				for (Transformation transformation : transformations) {
+					inputOutputs.add(transformation.getOutput());
+				}
+				outputs.put(input, inputOutputs);
+			}
+		}
+		return outputs;
+	}
+
+	@Override
+	protected void addEvent(EpcisEvent event) {
+		if (!(event instanceof TransformationEvent)) {
+			return;
+		}
+
+		TransformationEvent transformationEvent = (TransformationEvent) event;
+		long eventTime = event.getEventTime();
+		for (String input : transformationEvent.getInputEPCList()) {
+			for (String output : transformationEvent.getOutputEPCList()) {
+				Transformation transformation = new Transformation(input, output, eventTime);
+				transformationsByInput.computeIfAbsent(input, key -> new LinkedHashSet<>()).add(transformation);
+				transformationsByOutput.computeIfAbsent(output, key -> new LinkedHashSet<>()).add(transformation);
+			}
+		}
+	}
+
+	/**
+	 * An input EPC, which was transformed into an output EPC.
+	 */
+	public static final class Transformation {
+		private final String input;
+		private final String output;
+		private final long eventTime;
+
+		public Transformation(String input, String output, long eventTime) {
+			this.input = input;
+			this.output = output;
+			this.eventTime = eventTime;
+		}
+
+		public String getInput() {
+			return input;
+		}
+
+		public String getOutput() {
+			return output;
+		}
+
+		public long getEventTime() {
+			return eventTime;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Transformation)) {
+				return false;
+			}
+			Transformation other = (Transformation) obj;
+			return input.equals(other.input) && output.equals(other.output) && eventTime == other.eventTime;
+		}
+
+		@Override
+		public int hashCode() {
+			return (input.hashCode() * 31 + output.hashCode()) * 31 + Long.hashCode(eventTime);
+		}
+	}
+}
@@ -0,0 +1,340 @@
+package eu.nimble.service.tracking.imp.service;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Supplier;
+
+import javax.annotation.PostConstruct;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.HttpServerErrorException;
+import org.springframework.web.client.ResourceAccessException;
+
+import com.netflix.hystrix.HystrixCircuitBreaker;
+import com.netflix.hystrix.HystrixCommand;
+import com.netflix.hystrix.HystrixCommandGroupKey;
+import com.netflix.hystrix.HystrixCommandKey;
+import com.netflix.hystrix.HystrixCommandMetrics;
+import com.netflix.hystrix.HystrixCommandProperties;
+import com.netflix.hystrix.HystrixObservableCommand;
+import com.netflix.hystrix.HystrixThreadPoolKey;
+import com.netflix.hystrix.HystrixThreadPoolProperties;
+import com.netflix.hystrix.exception.HystrixBadRequestException;
+import com.netflix.hystrix.exception.HystrixRuntimeException;
+
+import rx.Observable;
+import rx.Subscription;
+import rx.subscriptions.Subscriptions;
+
+/**
+ * Isolation of the calls to the upstream services: EPCIS event queries, streamed EPCIS event responses, EPCIS master data,
+ * production process templates and the Blockchain hash check.
+ *
+ * Each upstream is a Hystrix command of its own, with its own bulkhead, timeout and circuit breaker, so that a slow upstream
+ * cannot hold the requests to the others. Non-blocking calls are limited by a semaphore, as they do not hold a thread while
+ * waiting; blocking calls run in a thread pool of the upstream, so that a timeout releases the caller. An upstream is called
+ * either blocking or non-blocking, not both.
+ *
+ * Calls, which are rejected by the bulkhead, short-circuited or timed out, fail with {@link UpstreamUnavailableException}.
+ * Client errors (4xx) of an upstream are passed through unchanged and do not open the circuit.
+ */
+@Service
+public class UpstreamCommands implements PublicMetrics {
+
+	public enum Upstream {
+		EPCIS_EVENTS("epcis-events"),
+		/**
+		 * Blocking EPCIS event queries, whose response is streamed: the loads of the indexes, the change feed and the proxied responses
+		 */
+		EPCIS_EVENT_STREAM("epcis-event-stream"),
+		EPCIS_MASTER_DATA("epcis-master-data"),
+		PROCESS_TEMPLATE("process-template"),
+		BLOCKCHAIN("blockchain");
+
+		private final String name;
+
+		Upstream(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * @return name of the upstream, used as Hystrix command key and in the metrics
+		 */
+		public String getName() {
+			return name;
+		}
+	}
+
+	/**
+	 * Response header of a response, which is served from a local cache or index, because the upstream is unavailable
+	 */
+	public static final String STALE_WARNING = "110 - \"Response is Stale\"";
+
+	@Value("${tracking.upstream.epcis-events.timeout-ms:10000}")
+	private int epcisEventsTimeoutMs;
+
+	@Value("${tracking.upstream.epcis-events.max-concurrent:100}")
+	private int epcisEventsMaxConcurrent;
+
+	@Value("${tracking.upstream.epcis-event-stream.timeout-ms:60000}")
+	private int epcisEventStreamTimeoutMs;
+
+	/**
+	 * Size of the thread pool of the streamed event queries
+	 */
+	@Value("${tracking.upstream.epcis-event-stream.max-concurrent:32}")
+	private int epcisEventStreamMaxConcurrent;
+
+	@Value("${tracking.upstream.epcis-master-data.timeout-ms:5000}")
+	private int masterDataTimeoutMs;
+
+	@Value("${tracking.upstream.epcis-master-data.max-concurrent:50}")
+	private int masterDataMaxConcurrent;
+
+	@Value("${tracking.upstream.process-template.timeout-ms:5000}")
+	private int templateTimeoutMs;
+
+	@Value("${tracking.upstream.process-template.max-concurrent:20}")
+	private int templateMaxConcurrent;
+
+	@Value("${tracking.upstream.blockchain.timeout-ms:5000}")
+	private int blockchainTimeoutMs;
+
+	/**
+	 * Size of the thread pool of the blocking hash lookups
+	 */
+	@Value("${tracking.upstream.blockchain.max-concurrent:16}")
+	private int blockchainMaxConcurrent;
+
+	/**
+	 * Number of hash lookups, which wait for a thread of the pool. The lookups of a list of events are submitted at once.
+	 */
+	@Value("${tracking.upstream.blockchain.max-queued:1000}")
+	private int blockchainMaxQueued;
+
+	/**
+	 * Percentage of failed calls in the rolling window, at which the circuit opens
+	 */
+	@Value("${tracking.upstream.circuit.error-threshold-percentage:50}")
+	private int errorThresholdPercentage;
+
+	/**
+	 * Minimal number of calls in the rolling window, before the circuit may open
+	 */
+	@Value("${tracking.upstream.circuit.request-volume-threshold:20}")
+	private int requestVolumeThreshold;
+
+	/**
+	 * Time, after which an open circuit lets a single call through to test the upstream
+	 */
+	@Value("${tracking.upstream.circuit.sleep-window-ms:5000}")
+	private int sleepWindowMs;
+
+	private final Map<Upstream, HystrixObservableCommand.Setter> observableSetters = new EnumMap<>(Upstream.class);
+	private final Map<Upstream, HystrixCommand.Setter> commandSetters = new EnumMap<>(Upstream.class);
+
+	@PostConstruct
+	public void init() {
+		this.addSetters(Upstream.EPCIS_EVENTS, epcisEventsTimeoutMs, epcisEventsMaxConcurrent);
+		this.addSetters(Upstream.EPCIS_EVENT_STREAM, epcisEventStreamTimeoutMs, epcisEventStreamMaxConcurrent);
+		this.addSetters(Upstream.EPCIS_MASTER_DATA, masterDataTimeoutMs, masterDataMaxConcurrent);
+		this.addSetters(Upstream.PROCESS_TEMPLATE, templateTimeoutMs, templateMaxConcurrent);
+		this.addSetters(Upstream.BLOCKCHAIN, blockchainTimeoutMs, blockchainMaxConcurrent, blockchainMaxQueued);
+	}
+
+	private void addSetters(Upstream upstream, int timeoutMs, int maxConcurrent) {
+		this.addSetters(upstream, timeoutMs, maxConcurrent, -1);
+	}
+
+	/**
+	 * @param maxQueued number of blocking calls, which wait for a thread of the pool; -1, calls are rejected if all threads are busy
+	 */
+	private void addSetters(Upstream upstream, int timeoutMs, int maxConcurrent, int maxQueued) {
+		HystrixCommandGroupKey groupKey = HystrixCommandGroupKey.Factory.asKey("upstream");
+		HystrixCommandKey commandKey = HystrixCommandKey.Factory.asKey(upstream.getName());
+		observableSetters.put(upstream, HystrixObservableCommand.Setter.withGroupKey(groupKey).andCommandKey(commandKey)
+				.andCommandPropertiesDefaults(this.getCommandProperties(timeoutMs)
+						.withExecutionIsolationStrategy(HystrixCommandProperties.ExecutionIsolationStrategy.SEMAPHORE)
+						.withExecutionIsolationSemaphoreMaxConcurrentRequests(maxConcurrent)));
+		commandSetters.put(upstream, HystrixCommand.Setter.withGroupKey(groupKey).andCommandKey(commandKey)
+				.andThreadPoolKey(HystrixThreadPoolKey.Factory.asKey(upstream.getName()))
+				.andCommandPropertiesDefaults(this.getCommandProperties(timeoutMs)
+						.withExecutionIsolationStrategy(HystrixCommandProperties.ExecutionIsolationStrategy.THREAD))
+				.andThreadPoolPropertiesDefaults(HystrixThreadPoolProperties.Setter()
+						.withCoreSize(maxConcurrent)
+						.withMaxQueueSize(maxQueued)
+						.withQueueSizeRejectionThreshold(Math.max(maxQueued, 0))));
+	}
+
+	private HystrixCommandProperties.Setter getCommandProperties(int timeoutMs) {
+		return HystrixCommandProperties.Setter()
+				.withExecutionTimeoutInMilliseconds(timeoutMs)
+				.withCircuitBreakerErrorThresholdPercentage(errorThresholdPercentage)
+				.withCircuitBreakerRequestVolumeThreshold(requestVolumeThreshold)
+				.withCircuitBreakerSleepWindowInMilliseconds(sleepWindowMs)
+				.withFallbackEnabled(false);
+	}
+
+	/**
+	 * Run a non-blocking call to an upstream. The call is cancelled, when it times out.
+	 * @param upstream the called upstream
+	 * @param call starts the call and returns its result
+	 * @return the result of the call; fails with {@link UpstreamUnavailableException}, if the call is not answered
+	 */
+	public <T> CompletableFuture<T> executeAsync(Upstream upstream, Supplier<CompletableFuture<T>> call) {
+		CompletableFuture<T> result = new CompletableFuture<>();
+		new HystrixObservableCommand<T>(observableSetters.get(upstream)) {
+			@Override
+			protected Observable<T> construct() {
+				return Observable.create(subscriber -> {
+					CompletableFuture<T> future;
+					try {
+						future = call.get();
+					} catch (RuntimeException e) {
+						subscriber.onError(toCommandError(e));
+						return;
+					}
+					subscriber.add(Subscriptions.create(() -> future.cancel(true)));
+					future.whenComplete((value, e) -> {
+						if (e == null) {
+							subscriber.onNext(value);
+							subscriber.onCompleted();
+						} else {
+							subscriber.onError(toCommandError(e instanceof CompletionException && e.getCause() != null ? e.getCause() : e));
+						}
+					});
+				});
+			}
+		}.toObservable().subscribe(result::complete, e -> result.completeExceptionally(toCallerError(upstream, e)));
+		return result;
+	}
+
+	/**
+	 * Run a blocking call to an upstream in the thread pool of the upstream
+	 * @param upstream the called upstream
+	 * @param call the call
+	 * @return the result of the call
+	 * @throws UpstreamUnavailableException if the call is not answered
+	 */
+	public <T> T execute(Upstream upstream, Supplier<T> call) {
+		try {
+			return this.newCommand(upstream, call).execute();
+		} catch (HystrixRuntimeException | HystrixBadRequestException e) {
+			throw toCallerError(upstream, e);
+		}
+	}
+
+	/**
+	 * Submit a blocking call to an upstream to the thread pool of the upstream, without waiting for it. The timeout includes
+	 * the time, which the call waits for a thread. Cancelling the result cancels a call, which has not started yet.
+	 * @param upstream the called upstream
+	 * @param call the call
+	 * @return the result of the call; fails with {@link UpstreamUnavailableException}, if the call is not answered
+	 */
+	public <T> CompletableFuture<T> submit(Upstream upstream, Supplier<T> call) {
+		CompletableFuture<T> result = new CompletableFuture<>();
+		Subscription subscription = this.newCommand(upstream, call).toObservable()
+				.subscribe(result::complete, e -> result.completeExceptionally(toCallerError(upstream, e)));
+		result.whenComplete((value, e) -> {
+			if (result.isCancelled()) {
+				subscription.unsubscribe();
+			}
+		});
+		return result;
+	}
+
+	private <T> HystrixCommand<T> newCommand(Upstream upstream, Supplier<T> call) {
+		return new HystrixCommand<T>(commandSetters.get(upstream)) {
+			@Override
+			protected T run() {
+				try {
+					return call.get();
+				} catch (RuntimeException e) {
+					throw toCommandError(e);
+				}
+			}
+		};
+	}
+
+	/**
+	 * @return true, if the circuit of the upstream is open, so that calls fail without being sent
+	 */
+	public boolean isCircuitOpen(Upstream upstream) {
+		HystrixCircuitBreaker circuitBreaker = HystrixCircuitBreaker.Factory.getInstance(HystrixCommandKey.Factory.asKey(upstream.getName()));
+		return circuitBreaker != null && circuitBreaker.isOpen();
+	}
+
+	/**
+	 * Whether a failed call may be answered from a local cache or index instead. Client errors, e.g. a missing authorization,
+	 * are not, as the cached data might not be visible for the client.
+	 * @param e failure of an upstream call, possibly wrapped in a {@link CompletionException}
+	 * @return true, if the upstream did not answer or failed with a server error
+	 */
+	public static boolean isUnavailable(Throwable e) {
+		Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+		return cause instanceof HttpServerErrorException || cause instanceof ResourceAccessException || cause instanceof IOException;
+	}
+
+	/**
+	 * Client errors are bad requests for Hystrix, which do not count as failures of the upstream
+	 */
+	private static RuntimeException toCommandError(Throwable e) {
+		if (e instanceof HttpClientErrorException) {
+			return new HystrixBadRequestException(e.getMessage(), e);
+		}
+		return e instanceof RuntimeException ? (RuntimeException) e : new CompletionException(e);
+	}
+
+	/**
+	 * Unwrap the error of the call, or translate the rejection by Hystrix into {@link UpstreamUnavailableException}
+	 */
+	private static RuntimeException toCallerError(Upstream upstream, Throwable e) {
+		if (e instanceof HystrixBadRequestException && e.getCause() instanceof RuntimeException) {
+			return (RuntimeException) e.getCause();
+		}
+		if (!(e instanceof HystrixRuntimeException)) {
+			return e instanceof RuntimeException ? (RuntimeException) e : new CompletionException(e);
+		}
+
+		HystrixRuntimeException hystrixError = (HystrixRuntimeException) e;
+		switch (hystrixError.getFailureType()) {
+		case TIMEOUT:
+			return new UpstreamUnavailableException(upstream, HttpStatus.GATEWAY_TIMEOUT, "timed out");
+		case SHORTCIRCUIT:
+			return new UpstreamUnavailableException(upstream, HttpStatus.SERVICE_UNAVAILABLE, "circuit open");
+		case REJECTED_SEMAPHORE_EXECUTION:
+		case REJECTED_THREAD_EXECUTION:
+			return new UpstreamUnavailableException(upstream, HttpStatus.SERVICE_UNAVAILABLE, "too many concurrent calls");
+		default:
+			Throwable cause = hystrixError.getCause();
+			return cause instanceof RuntimeException ? (RuntimeException) cause : hystrixError;
+		}
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+		List<Metric<?>> metrics = new ArrayList<>();
+		for (Upstream upstream : Upstream.values()) {
+			HystrixCommandMetrics commandMetrics = HystrixCommandMetrics.getInstance(HystrixCommandKey.Factory.asKey(upstream.getName()));
+			if (commandMetrics == null) {
+				// not called yet
+				continue;
+			}
+			metrics.add(new Metric<Integer>("upstream." + upstream.getName() + ".circuit-open", this.isCircuitOpen(upstream) ? 1 : 0));
+			metrics.add(new Metric<Integer>("upstream." + upstream.getName() + ".error-percentage", commandMetrics.getHealthCounts().getErrorPercentage()));
+			metrics.add(new Metric<Integer>("upstream." + upstream.getName() + ".concurrent", commandMetrics.getCurrentConcurrentExecutionCount()));
+		}
+		return metrics;
+	}
+}
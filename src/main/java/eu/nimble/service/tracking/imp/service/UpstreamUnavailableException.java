@@ -0,0 +1,33 @@
+package eu.nimble.service.tracking.imp.service;
+
+import java.nio.charset.StandardCharsets;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.client.HttpServerErrorException;
+
+/**
+ * A call to an upstream service was not answered, because its bulkhead was full, its circuit was open or it timed out.
+ *
+ * The exception is an error status of the upstream, 503 or 504, so that it is passed through to the client like any other upstream error.
+ */
+public class UpstreamUnavailableException extends HttpServerErrorException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final UpstreamCommands.Upstream upstream;
+
+	public UpstreamUnavailableException(UpstreamCommands.Upstream upstream, HttpStatus statusCode, String reason) {
+		super(statusCode, statusCode.getReasonPhrase(), (upstream.getName() + " unavailable: " + reason).getBytes(StandardCharsets.UTF_8),
+				StandardCharsets.UTF_8);
+		this.upstream = upstream;
+	}
+
+	public UpstreamCommands.Upstream getUpstream() {
+		return upstream;
+	}
+
+	@Override
+	public String getMessage() {
+		return this.getResponseBodyAsString();
+	}
+}
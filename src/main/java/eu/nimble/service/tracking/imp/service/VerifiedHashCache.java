@@ -0,0 +1,205 @@
+package eu.nimble.service.tracking.imp.service;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Service;
+
+/**
+ * Cache of hash codes looked up in Blockchain.
+ *
+ * A hash code found in Blockchain stays there, so positive results are kept until they are evicted by size (least recently used first).
+ * Negative results are kept only for a short time, because the event may be written to Blockchain later.
+ * The positive results are written to a snapshot file periodically and on shutdown, and read again on startup.
+ */
+@Service
+public class VerifiedHashCache implements PublicMetrics {
+	private static Logger log = LoggerFactory.getLogger(VerifiedHashCache.class);
+
+	@Value("${spring.blockchain-service.cache.max-size:100000}")
+	private int maxSize;
+
+	@Value("${spring.blockchain-service.cache.negative-ttl-ms:60000}")
+	private long negativeTtlMs;
+
+	/**
+	 * Snapshot file of the positive results; no snapshot is written, if empty
+	 */
+	@Value("${spring.blockchain-service.cache.snapshot-file:}")
+	private String snapshotFile;
+
+	@Value("${spring.blockchain-service.cache.snapshot-interval-ms:300000}")
+	private long snapshotIntervalMs;
+
+	// hash code -> true, in access order. Guarded by itself.
+	private Map<String, Boolean> verifiedHashes;
+
+	// hash code -> expiry time of the negative result
+	private final Map<String, Long> unverifiedHashes = new ConcurrentHashMap<>();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong negativeHits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	private ScheduledExecutorService snapshotExecutor;
+
+	@PostConstruct
+	public void init() {
+		verifiedHashes = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+				return size() > maxSize;
+			}
+		};
+
+		if (snapshotFile.isEmpty()) {
+			return;
+		}
+
+		this.loadSnapshot();
+		snapshotExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "verified-hash-snapshot");
+			thread.setDaemon(true);
+			return thread;
+		});
+		snapshotExecutor.scheduleWithFixedDelay(this::writeSnapshot, snapshotIntervalMs, snapshotIntervalMs, TimeUnit.MILLISECONDS);
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		if (snapshotExecutor != null) {
+			snapshotExecutor.shutdownNow();
+			this.writeSnapshot();
+		}
+	}
+
+	/**
+	 * Look up a cached result
+	 * @param hashCode hash code of an event
+	 * @return true, found in Blockchain; false, recently not found in Blockchain; null, not cached
+	 */
+	public Boolean get(String hashCode) {
+		synchronized (verifiedHashes) {
+			if (verifiedHashes.get(hashCode) != null) {
+				hits.incrementAndGet();
+				return Boolean.TRUE;
+			}
+		}
+
+		Long expiry = unverifiedHashes.get(hashCode);
+		if (expiry != null) {
+			if (expiry > System.currentTimeMillis()) {
+				negativeHits.incrementAndGet();
+				return Boolean.FALSE;
+			}
+			unverifiedHashes.remove(hashCode, expiry);
+		}
+
+		misses.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Cache the result of a Blockchain lookup
+	 * @param hashCode hash code of an event
+	 * @param found true, found in Blockchain; false, otherwise
+	 */
+	public void put(String hashCode, boolean found) {
+		if (found) {
+			unverifiedHashes.remove(hashCode);
+			synchronized (verifiedHashes) {
+				verifiedHashes.put(hashCode, Boolean.TRUE);
+			}
+			return;
+		}
+
+		if (unverifiedHashes.size() >= maxSize) {
+			long now = System.currentTimeMillis();
+			unverifiedHashes.values().removeIf(expiry -> expiry <= now);
+			if (unverifiedHashes.size() >= maxSize) {
+				return;
+			}
+		}
+		unverifiedHashes.put(hashCode, System.currentTimeMillis() + negativeTtlMs);
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+		List<Metric<?>> metrics = new ArrayList<>();
+		metrics.add(new Metric<Long>("blockchain.hashcache.hits", hits.get()));
+		metrics.add(new Metric<Long>("blockchain.hashcache.negative-hits", negativeHits.get()));
+		metrics.add(new Metric<Long>("blockchain.hashcache.misses", misses.get()));
+		synchronized (verifiedHashes) {
+			metrics.add(new Metric<Integer>("blockchain.hashcache.size", verifiedHashes.size()));
+		}
+		return metrics;
+	}
+
+	private void loadSnapshot() {
+		Path path = Paths.get(snapshotFile);
+		if (!Files.exists(path)) {
+			return;
+		}
+
+		try {
+			List<String> hashCodes = Files.readAllLines(path, StandardCharsets.UTF_8);
+			synchronized (verifiedHashes) {
+				for (String hashCode : hashCodes) {
+					if (!hashCode.isEmpty()) {
+						verifiedHashes.put(hashCode, Boolean.TRUE);
+					}
+				}
+			}
+			log.info("Loaded " + hashCodes.size() + " verified hash codes from " + path);
+		} catch (IOException e) {
+			log.error("Could not read verified hash code snapshot " + path + ": " + e.getMessage());
+		}
+	}
+
+	private void writeSnapshot() {
+		List<String> hashCodes;
+		synchronized (verifiedHashes) {
+			hashCodes = new ArrayList<>(verifiedHashes.keySet());
+		}
+
+		Path path = Paths.get(snapshotFile).toAbsolutePath();
+		try {
+			Files.createDirectories(path.getParent());
+			Path tempFile = Files.createTempFile(path.getParent(), path.getFileName().toString(), ".tmp");
+			try (BufferedWriter writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+				for (String hashCode : hashCodes) {
+					writer.write(hashCode);
+					writer.newLine();
+				}
+			}
+			Files.move(tempFile, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			log.error("Could not write verified hash code snapshot " + path + ": " + e.getMessage());
+		}
+	}
+}
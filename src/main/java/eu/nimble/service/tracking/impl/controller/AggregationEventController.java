@@ -1,5 +1,11 @@
 package eu.nimble.service.tracking.impl.controller;
 
+import eu.nimble.service.tracking.imp.service.AggregationChainQuery;
+import eu.nimble.service.tracking.imp.service.AggregationContainmentIndex;
+import eu.nimble.service.tracking.imp.service.AggregationContainmentIndex.Containment;
+import eu.nimble.service.tracking.imp.service.RequestTiming;
+import eu.nimble.service.tracking.imp.service.RequestTiming.Phase;
+import eu.nimble.service.tracking.imp.service.UpstreamCommands;
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiOperation;
 import io.swagger.annotations.ApiResponse;
@@ -13,26 +19,26 @@ import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
-import org.springframework.web.client.RestTemplate;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 @Api(tags = {"Aggregation Event Operation" })
 @RestController
 public class AggregationEventController {
 
-    @Value("${spring.epcis.url}")
-    private String epcisURL;
+    /**
+     * Traversal of the parent chain: "index", in-memory index of all aggregation events;
+     * "query", one EPCIS query per hop for the events containing the current EPC
+     */
+    @Value("${tracking.aggregation.traversal:index}")
+    private String traversal;
 
-    private String getBaseUrl() {
-        String url = epcisURL.trim();
-        if(!url.endsWith("/"))
-        {
-            url = url + "/";
-        }
-        return url;
-    }
+    @Autowired
+    private AggregationContainmentIndex aggregationContainmentIndex;
 
     @Autowired
-    private RestTemplate restTemplate;
+    private AggregationChainQuery aggregationChainQuery;
 
     @ApiOperation(value = "Get aggregation event for the given EPC itemID", notes = "" +
             "Here we are looking for input item and then get the parent item, this output item again takes as input item and then looking for parent item. \n" +
@@ -71,13 +77,32 @@ public class AggregationEventController {
             @ApiResponse(code = 400, message = "epc is not valid?"),
             @ApiResponse(code = 401, message = "Unauthorized. Are the headers correct?"), })
     @PostMapping("/getEpcAggregationOutput")
-    public ResponseEntity<?> getEpcAggregationOutput(@RequestParam("itemID") String itemID,
+    public CompletableFuture<ResponseEntity<?>> getEpcAggregationOutput(@RequestParam("itemID") String itemID,
          @RequestHeader(value = "Authorization", required = true)  String bearerToken) {
+        RequestTiming timing = RequestTiming.current();
+        if ("query".equals(traversal)) {
+            return aggregationChainQuery.getParentChain(itemID, bearerToken)
+                    .<ResponseEntity<?>>thenApply(parentChain -> timing.time(Phase.SERIALIZATION, () -> getTraceTree(itemID, parentChain, false)))
+                    .exceptionally(ErrorResponses::toErrorResponse);
+        }
 
+        // the index is loaded without blocking the request thread on first use
+        return aggregationContainmentIndex.whenLoaded(bearerToken)
+                .<ResponseEntity<?>>thenApply(loaded -> {
+                    List<Containment> parentChain = timing.time(Phase.TRAVERSAL,
+                            () -> aggregationContainmentIndex.getParentChain(itemID));
+                    return timing.time(Phase.SERIALIZATION,
+                            () -> getTraceTree(itemID, parentChain, aggregationContainmentIndex.isStale()));
+                })
+                .exceptionally(ErrorResponses::toErrorResponse);
+    }
+
+    private ResponseEntity<?> getTraceTree(String itemID, List<Containment> parentChain, boolean stale) {
         JSONArray globalArray = new JSONArray();
-        JSONArray aggregationEventList = getJsonEPCList(bearerToken);
         JSONObject traceTreeObject = new JSONObject();
-        getEntityObject(itemID, aggregationEventList, globalArray);
+        for (Containment containment : parentChain) {
+            globalArray.put(getEntityObject(containment));
+        }
 
         if(globalArray.length() == 0) {
             JSONObject jsonObject = new JSONObject();
@@ -87,58 +112,24 @@ public class AggregationEventController {
             globalArray.put(object1);
         }
         traceTreeObject.put("traceTree", globalArray);
-        return new ResponseEntity<>( traceTreeObject.toString(), HttpStatus.OK);
+        HttpHeaders responseHeaders = new HttpHeaders();
+        if (stale) {
+            responseHeaders.set(HttpHeaders.WARNING, UpstreamCommands.STALE_WARNING);
+        }
+        return new ResponseEntity<>( traceTreeObject.toString(), responseHeaders, HttpStatus.OK);
     }
 
-    private void getEntityObject(String itemID, JSONArray aggregationEventList, JSONArray globalArray) {
-
+    private JSONObject getEntityObject(Containment containment) {
         JSONObject entityObject = new JSONObject();
-        JSONObject jsonObject = new JSONObject();
-        JSONArray jsonArray = new JSONArray();
-        boolean findEpc = false;
-        for (int i = 0; i < aggregationEventList.length(); i++) {
-            JSONArray childEPCs = aggregationEventList.getJSONObject(i).getJSONArray("childEPCs");
-            for (int j = 0; j < childEPCs.length(); j++) {
-                String childEPC = childEPCs.getJSONObject(j).getString("epc");
-                if (itemID.equals(childEPC) && aggregationEventList.getJSONObject(i).getString("action").equals("ADD")) {
-                    findEpc = true;
-                    entityObject.put("epc", childEPC);
-                    entityObject.put("hasParent", aggregationEventList.getJSONObject(i).getString("parentID"));
-                    entityObject.put("startTime", aggregationEventList.getJSONObject(i).getJSONObject("eventTime").getLong("$date"));
-                }
-            }
-
-            if (aggregationEventList.getJSONObject(i).getString("action").equals("DELETE") && findEpc) {
-                entityObject.put("endTime", aggregationEventList.getJSONObject(i).getJSONObject("eventTime").getLong("$date"));
-            }
-        }
-
-        if(findEpc) {
-            jsonObject.put("Entity", entityObject);
-            globalArray.put(jsonObject);
-            jsonArray.put(jsonObject);
-        }
-
-        for (int i = 0; i<jsonArray.length(); i++) {
-            if(jsonArray.getJSONObject(i).getJSONObject("Entity").has("hasParent")) {
-                getEntityObject(jsonArray.getJSONObject(i).getJSONObject("Entity").getString("hasParent"), aggregationEventList, globalArray);
-            }
+        entityObject.put("epc", containment.getChild());
+        entityObject.put("hasParent", containment.getParent());
+        entityObject.put("startTime", containment.getStartTime());
+        if (containment.hasEndTime()) {
+            entityObject.put("endTime", containment.getEndTime());
         }
-    }
-
-    private JSONArray getJsonEPCList(String bearerToken) {
-        // define url
-        String url = this.getBaseUrl();
-        String eventType = "AggregationEvent";
-        url = url + "/Poll/SimpleEventQuery?format=JSON&eventType=" + eventType;
 
-        // get the event data list from the epcis application
-        HttpHeaders headers = new HttpHeaders();
-        headers.set("Authorization", bearerToken);
-
-        HttpEntity<String> response = restTemplate.exchange(url, HttpMethod.GET, new HttpEntity<Object>(headers),
-                String.class);
-        JSONArray aggregationEventList = new JSONArray(response.getBody());
-        return aggregationEventList;
+        JSONObject jsonObject = new JSONObject();
+        jsonObject.put("Entity", entityObject);
+        return jsonObject;
     }
 }
@@ -0,0 +1,237 @@
+package eu.nimble.service.tracking.impl.controller;
+
+import eu.nimble.service.tracking.imp.service.ConformanceService;
+import eu.nimble.service.tracking.imp.service.ProcessProgressIndex.ClassSummary;
+import eu.nimble.service.tracking.imp.service.ProcessProgressIndex.StalledItem;
+import eu.nimble.service.tracking.imp.service.ProcessProgressIndex.StepCount;
+import eu.nimble.service.tracking.imp.service.ProductionProcessModel.Conformance;
+import eu.nimble.service.tracking.imp.service.ProductionProcessModel.StepResult;
+import eu.nimble.service.tracking.imp.service.ProductionProcessModel.StepStatus;
+import eu.nimble.service.tracking.imp.service.RequestTiming;
+import eu.nimble.service.tracking.imp.service.RequestTiming.Phase;
+import eu.nimble.service.tracking.imp.service.UpstreamCommands;
+import eu.nimble.service.tracking.model.ProductionProcessStep;
+import io.swagger.annotations.*;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.*;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.concurrent.CompletableFuture;
+
+@Api(tags = {"Production Process Template" })
+@RestController
+public class ConformanceController {
+    private static Logger log = LoggerFactory.getLogger(ConformanceController.class);
+
+    /**
+     * Time without an event of a step, after which an item is stalled, if the request does not give it
+     */
+    @Value("${tracking.conformance.stalled-after-ms:86400000}")
+    private long defaultStalledAfterMs;
+
+    @Value("${tracking.conformance.stalled.default-limit:100}")
+    private int defaultStalledLimit;
+
+    @Value("${tracking.conformance.stalled.max-limit:1000}")
+    private int maxStalledLimit;
+
+    @Autowired
+    private ConformanceService conformanceService;
+
+    @ApiOperation(value = "Summarize the progress of all items of a product class", notes = "" +
+            "Return for each step of the production process template the number of items currently at the step, " +
+            "the number of items, which skipped it, and the number of items, which completed it out of order. " +
+            "An item belongs to the product class, when one of its object events belongs to a step of the template. " +
+            "Items before the last step without an event of a step for stalledAfter milliseconds are stalled; " +
+            "they are listed longest stalled first." +
+            "\n" +
+            "<br><textarea disabled style=\"width:98%\" class=\"body-textarea\">" +
+            "Example output: " +
+            "\n" +
+            " {\n" +
+            "  \"productClass\": \"lindbacks_test\",\n" +
+            "  \"items\": 2,\n" +
+            "  \"steps\": [\n" +
+            "    { \"id\": \"1\", \"bizStep\": \"urn:epcglobal:cbv:bizstep:other\", \"current\": 1, \"skipped\": 0, \"outOfOrder\": 0 },\n" +
+            "    { \"id\": \"2\", \"bizStep\": \"urn:epcglobal:cbv:bizstep:installing\", \"current\": 1, \"skipped\": 0, \"outOfOrder\": 0 }\n" +
+            "  ],\n" +
+            "  \"stalledItems\": 1,\n" +
+            "  \"stalled\": [\n" +
+            "    { \"epc\": \"urn:epc:id:sgtin:0614141.lindback.testproduct\", \"currentStep\": \"1\", \"lastEventTime\": 1523414011116 }\n" +
+            "  ]\n" +
+            " }" +
+            "\n"
+            + " </textarea>", response = String.class)
+    @ApiResponses(value = { @ApiResponse(code = 200, message = "success"),
+            @ApiResponse(code = 400, message = "Invalid stalledAfter or limit"),
+            @ApiResponse(code = 401, message = "Unauthorized. Are the headers correct?"),
+            @ApiResponse(code = 502, message = "The production process template is invalid"),
+            @ApiResponse(code = 503, message = "The EPCIS repository is unavailable"), })
+    @GetMapping("/conformance/{productClass:.+}")
+    public CompletableFuture<ResponseEntity<?>> getClassConformance(@ApiParam(value = "NIMBLE Product catergory ID", required = true)
+            @PathVariable String productClass,
+            @ApiParam(value = "Time in milliseconds without an event of a step, after which an item is stalled", required = false)
+            @RequestParam(required = false) Long stalledAfter,
+            @ApiParam(value = "Maximal number of returned stalled items", required = false)
+            @RequestParam(required = false) Integer limit,
+            @ApiParam(value = "The Bearer token provided by the identity service", required = true)
+            @RequestHeader(value = "Authorization", required = true)  String bearerToken) {
+        log.info("productClass:" + productClass);
+
+        if ((stalledAfter != null && stalledAfter < 0) || (limit != null && limit < 0)) {
+            return CompletableFuture.completedFuture(new ResponseEntity<>("stalledAfter and limit must not be negative", HttpStatus.BAD_REQUEST));
+        }
+
+        HttpHeaders responseHeaders = new HttpHeaders();
+        responseHeaders.add("Content-Type", "application/json; charset=utf-8");
+
+        long stalledAfterMs = stalledAfter == null ? defaultStalledAfterMs : stalledAfter;
+        int stalledLimit = Math.min(limit == null ? defaultStalledLimit : limit, maxStalledLimit);
+        RequestTiming timing = RequestTiming.current();
+        return conformanceService.getClassSummary(productClass, stalledAfterMs, stalledLimit, bearerToken)
+                .<ResponseEntity<?>>thenApply(summary -> {
+                    if (summary.isStale()) {
+                        responseHeaders.set(HttpHeaders.WARNING, UpstreamCommands.STALE_WARNING);
+                    }
+                    String body = timing.time(Phase.SERIALIZATION, () -> toJson(productClass, summary.getValue()).toString());
+                    return new ResponseEntity<>(body, responseHeaders, HttpStatus.OK);
+                })
+                .exceptionally(ErrorResponses::toErrorResponse);
+    }
+
+    @ApiOperation(value = "Compare the events of an item with the production process template of its product class", notes = "" +
+            "Replay the events of the item through the steps of the template, which are matched by readPoint, bizLocation and bizStep. " +
+            "A step is completed, when it has events and no later step had events before; it is out of order, when it has events " +
+            "only after a later step; it is skipped, when it has no events but a later step has. " +
+            "The current step is the furthest step completed in order." +
+            "\n" +
+            "<br><textarea disabled style=\"width:98%\" class=\"body-textarea\">" +
+            "Example output: " +
+            "\n" +
+            " {\n" +
+            "  \"epc\": \"urn:epc:id:sgtin:0614141.lindback.testproduct\",\n" +
+            "  \"productClass\": \"lindbacks_test\",\n" +
+            "  \"currentStep\": \"3\",\n" +
+            "  \"completedSteps\": [\"1\", \"3\"],\n" +
+            "  \"skippedSteps\": [\"2\"],\n" +
+            "  \"outOfOrderSteps\": [],\n" +
+            "  \"steps\": [\n" +
+            "    { \"id\": \"1\", \"readPoint\": \"urn:epc:id:sgln:readPoint.lindbacks.1\", \"bizLocation\": \"urn:epc:id:sgln:bizLocation.lindbacks.2\",\n" +
+            "      \"bizStep\": \"urn:epcglobal:cbv:bizstep:other\", \"status\": \"completed\", \"eventCount\": 1,\n" +
+            "      \"firstEventTime\": 1523414011116, \"lastEventTime\": 1523414011116 },\n" +
+            "    ...\n" +
+            "  ],\n" +
+            "  \"unmatchedEvents\": 0\n" +
+            " }" +
+            "\n"
+            + " </textarea>", response = String.class)
+    @ApiResponses(value = { @ApiResponse(code = 200, message = "success"),
+            @ApiResponse(code = 401, message = "Unauthorized. Are the headers correct?"),
+            @ApiResponse(code = 502, message = "The production process template is invalid"),
+            @ApiResponse(code = 503, message = "The EPCIS repository is unavailable"), })
+    @GetMapping("/conformance/{productClass}/{itemID:.+}")
+    public CompletableFuture<ResponseEntity<?>> getConformance(@ApiParam(value = "NIMBLE Product catergory ID of the item", required = true)
+            @PathVariable String productClass,
+            @ApiParam(value = "Product EPC code", required = true)
+            @PathVariable String itemID,
+            @ApiParam(value = "The Bearer token provided by the identity service", required = true)
+            @RequestHeader(value = "Authorization", required = true)  String bearerToken) {
+        log.info("productClass:" + productClass + ", epc:" + itemID);
+
+        HttpHeaders responseHeaders = new HttpHeaders();
+        responseHeaders.add("Content-Type", "application/json; charset=utf-8");
+
+        RequestTiming timing = RequestTiming.current();
+        return conformanceService.getConformance(itemID, productClass, bearerToken)
+                .<ResponseEntity<?>>thenApply(conformance -> {
+                    if (conformance.isStale()) {
+                        responseHeaders.set(HttpHeaders.WARNING, UpstreamCommands.STALE_WARNING);
+                    }
+                    String body = timing.time(Phase.SERIALIZATION, () -> toJson(itemID, productClass, conformance.getValue()).toString());
+                    return new ResponseEntity<>(body, responseHeaders, HttpStatus.OK);
+                })
+                .exceptionally(ErrorResponses::toErrorResponse);
+    }
+
+    private static JSONObject toJson(String productClass, ClassSummary summary) {
+        JSONArray steps = new JSONArray();
+        for (StepCount stepCount : summary.getSteps()) {
+            JSONObject stepObject = new JSONObject();
+            stepObject.put("id", stepCount.getStep().getId());
+            stepObject.put("bizStep", stepCount.getStep().getBizStep());
+            stepObject.put("current", stepCount.getCurrent());
+            stepObject.put("skipped", stepCount.getSkipped());
+            stepObject.put("outOfOrder", stepCount.getOutOfOrder());
+            steps.put(stepObject);
+        }
+
+        JSONArray stalled = new JSONArray();
+        for (StalledItem item : summary.getStalledItems()) {
+            JSONObject itemObject = new JSONObject();
+            itemObject.put("epc", item.getEpc());
+            itemObject.put("currentStep", item.getCurrentStep() == null ? JSONObject.NULL : item.getCurrentStep().getId());
+            itemObject.put("lastEventTime", item.getLastEventTime());
+            stalled.put(itemObject);
+        }
+
+        JSONObject summaryObject = new JSONObject();
+        summaryObject.put("productClass", productClass);
+        summaryObject.put("items", summary.getItemCount());
+        summaryObject.put("steps", steps);
+        summaryObject.put("stalledItems", summary.getStalledCount());
+        summaryObject.put("stalled", stalled);
+        return summaryObject;
+    }
+
+    private static JSONObject toJson(String epc, String productClass, Conformance conformance) {
+        JSONArray steps = new JSONArray();
+        JSONArray completedSteps = new JSONArray();
+        JSONArray skippedSteps = new JSONArray();
+        JSONArray outOfOrderSteps = new JSONArray();
+        for (StepResult result : conformance.getSteps()) {
+            ProductionProcessStep step = result.getStep();
+            JSONObject stepObject = new JSONObject();
+            stepObject.put("id", step.getId());
+            stepObject.put("readPoint", step.getReadPoint());
+            stepObject.put("bizLocation", step.getBizLocation());
+            stepObject.put("bizStep", step.getBizStep());
+            stepObject.put("status", result.getStatus().name().toLowerCase().replace('_', '-'));
+            stepObject.put("eventCount", result.getEventCount());
+            if (result.getEventCount() > 0) {
+                stepObject.put("firstEventTime", result.getFirstEventTime());
+                stepObject.put("lastEventTime", result.getLastEventTime());
+            }
+            steps.put(stepObject);
+
+            if (result.getStatus() == StepStatus.COMPLETED || result.getStatus() == StepStatus.OUT_OF_ORDER) {
+                completedSteps.put(step.getId());
+            }
+            if (result.getStatus() == StepStatus.SKIPPED) {
+                skippedSteps.put(step.getId());
+            }
+            if (result.getStatus() == StepStatus.OUT_OF_ORDER) {
+                outOfOrderSteps.put(step.getId());
+            }
+        }
+
+        JSONObject conformanceObject = new JSONObject();
+        conformanceObject.put("epc", epc);
+        conformanceObject.put("productClass", productClass);
+        conformanceObject.put("currentStep", conformance.getCurrentStep() == null ? JSONObject.NULL : conformance.getCurrentStep().getStep().getId());
+        conformanceObject.put("completedSteps", completedSteps);
+        conformanceObject.put("skippedSteps", skippedSteps);
+        conformanceObject.put("outOfOrderSteps", outOfOrderSteps);
+        conformanceObject.put("steps", steps);
+        conformanceObject.put("unmatchedEvents", conformance.getUnmatchedEvents());
+        return conformanceObject;
+    }
+}
@@ -0,0 +1,42 @@
+package eu.nimble.service.tracking.impl.controller;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.client.HttpStatusCodeException;
+
+import java.io.UncheckedIOException;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Maps the failures of asynchronous EPCIS requests to the responses of the controllers
+ */
+final class ErrorResponses {
+
+    private ErrorResponses() {
+    }
+
+    static ResponseEntity<?> toErrorResponse(Throwable e) {
+        return toErrorResponse(e, new HttpHeaders());
+    }
+
+    /**
+     * Pass an error status of the EPCIS repository through to the client and answer an unreadable EPCIS response with
+     * 502 Bad Gateway; other errors are propagated
+     * @param e failure of an asynchronous EPCIS request, possibly wrapped in a {@link CompletionException}
+     */
+    static ResponseEntity<?> toErrorResponse(Throwable e, HttpHeaders responseHeaders) {
+        Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+        if (cause instanceof HttpStatusCodeException) {
+            HttpStatusCodeException statusError = (HttpStatusCodeException) cause;
+            return new ResponseEntity<>(statusError.getResponseBodyAsString(), responseHeaders, statusError.getStatusCode());
+        }
+        if (cause instanceof UncheckedIOException) {
+            return new ResponseEntity<>(cause.getMessage(), responseHeaders, HttpStatus.BAD_GATEWAY);
+        }
+        if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        }
+        throw new CompletionException(cause);
+    }
+}
@@ -0,0 +1,146 @@
+package eu.nimble.service.tracking.impl.controller;
+
+import eu.nimble.service.tracking.imp.service.EpcisService;
+import eu.nimble.service.tracking.imp.service.GenealogyService;
+import eu.nimble.service.tracking.imp.service.GenealogyService.Direction;
+import eu.nimble.service.tracking.imp.service.GenealogyService.Edge;
+import eu.nimble.service.tracking.imp.service.GenealogyService.Genealogy;
+import eu.nimble.service.tracking.imp.service.GenealogyService.Node;
+import eu.nimble.service.tracking.imp.service.RequestTiming;
+import eu.nimble.service.tracking.imp.service.RequestTiming.Phase;
+import eu.nimble.service.tracking.imp.service.UpstreamCommands;
+import io.swagger.annotations.*;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.*;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.CompletableFuture;
+
+@Api(tags = {"Genealogy" })
+@RestController
+public class GenealogyController {
+
+    /**
+     * Maximal number of edges between the item and a returned EPC; larger requested depths are reduced to it
+     */
+    @Value("${tracking.genealogy.max-depth:100}")
+    private int maxDepth;
+
+    /**
+     * Maximal number of returned EPCs; larger requested numbers are reduced to it
+     */
+    @Value("${tracking.genealogy.max-nodes:10000}")
+    private int maxNodes;
+
+    @Autowired
+    private GenealogyService genealogyService;
+
+    @ApiOperation(value = "Get the genealogy of the given EPC", notes = "" +
+            "Return the items related to the given EPC by aggregation and transformation events, and the relations between them, each once. " +
+            "Edges point from the child to its container and from the input to the output of a transformation. " +
+            "Direction up follows containers and inputs, down follows contents and outputs, both follows all relations, " +
+            "e.g. the other items in the same container." +
+            "\n" +
+            "<br><textarea disabled style=\"width:98%\" class=\"body-textarea\">" +
+            "Example output: " +
+            "\n" +
+            " {\n" +
+            "  \"epc\": \"TEST-1\",\n" +
+            "  \"nodes\": [\n" +
+            "    { \"epc\": \"TEST-1\", \"depth\": 0 },\n" +
+            "    { \"epc\": \"TEST-2\", \"depth\": 1 },\n" +
+            "    { \"epc\": \"TEST-P\", \"depth\": 1 }\n" +
+            "  ],\n" +
+            "  \"edges\": [\n" +
+            "    { \"type\": \"aggregation\", \"from\": \"TEST-1\", \"to\": \"TEST-P\", \"startTime\": 1523500411116, \"endTime\": 1523500511116 },\n" +
+            "    { \"type\": \"transformation\", \"from\": \"TEST-1\", \"to\": \"TEST-2\", \"startTime\": 1523600411116, \"endTime\": 1523600411116 }\n" +
+            "  ],\n" +
+            "  \"truncated\": false\n" +
+            " }" +
+            "\n"
+            + " </textarea>", response = String.class)
+    @ApiResponses(value = { @ApiResponse(code = 200, message = "success"),
+            @ApiResponse(code = 400, message = "Invalid direction, limit or time window"),
+            @ApiResponse(code = 401, message = "Unauthorized. Are the headers correct?"), })
+    @GetMapping("/genealogy/{epc:.+}")
+    public CompletableFuture<ResponseEntity<?>> getGenealogy(@ApiParam(value = "Product EPC code", required = true)
+            @PathVariable String epc,
+            @ApiParam(value = "Relations to follow: up, down or both", required = false)
+            @RequestParam(defaultValue = "both") String direction,
+            @ApiParam(value = "Maximal number of relations between the item and a returned EPC", required = false)
+            @RequestParam(required = false) Integer depth,
+            @ApiParam(value = "Maximal number of returned EPCs", required = false)
+            @RequestParam(required = false) Integer limit,
+            @ApiParam(value = "Only relations at or after this time, in ISO 8601 format, e.g. 2018-04-11T02:33:31.116Z", required = false)
+            @RequestParam(required = false) String from,
+            @ApiParam(value = "Only relations before this time, in ISO 8601 format", required = false)
+            @RequestParam(required = false) String to,
+            @ApiParam(value = "The Bearer token provided by the identity service", required = true)
+            @RequestHeader(value = "Authorization", required = true)  String bearerToken) {
+        Direction traversalDirection;
+        Long fromTime;
+        Long toTime;
+        try {
+            traversalDirection = Direction.valueOf(direction.toUpperCase());
+            fromTime = EpcisService.parseTime(from);
+            toTime = EpcisService.parseTime(to);
+            if ((depth != null && depth < 0) || (limit != null && limit <= 0)) {
+                throw new IllegalArgumentException("depth and limit must be positive");
+            }
+        } catch (IllegalArgumentException | DateTimeParseException e) {
+            return CompletableFuture.completedFuture(new ResponseEntity<>(e.getMessage(), HttpStatus.BAD_REQUEST));
+        }
+
+        int traversalDepth = Math.min(depth == null ? maxDepth : depth, maxDepth);
+        int traversalNodes = Math.min(limit == null ? maxNodes : limit, maxNodes);
+        RequestTiming timing = RequestTiming.current();
+        return genealogyService.getGenealogy(epc, traversalDirection, traversalDepth, traversalNodes, fromTime, toTime, bearerToken)
+                .<ResponseEntity<?>>thenApply(genealogy -> {
+                    HttpHeaders responseHeaders = new HttpHeaders();
+                    if (genealogy.isStale()) {
+                        responseHeaders.set(HttpHeaders.WARNING, UpstreamCommands.STALE_WARNING);
+                    }
+                    String body = timing.time(Phase.SERIALIZATION, () -> toJson(epc, genealogy.getValue()).toString());
+                    return new ResponseEntity<>(body, responseHeaders, HttpStatus.OK);
+                })
+                .exceptionally(ErrorResponses::toErrorResponse);
+    }
+
+    private static JSONObject toJson(String epc, Genealogy genealogy) {
+        JSONArray nodes = new JSONArray();
+        for (Node node : genealogy.getNodes()) {
+            JSONObject nodeObject = new JSONObject();
+            nodeObject.put("epc", node.getEpc());
+            nodeObject.put("depth", node.getDepth());
+            nodes.put(nodeObject);
+        }
+
+        JSONArray edges = new JSONArray();
+        for (Edge edge : genealogy.getEdges()) {
+            JSONObject edgeObject = new JSONObject();
+            edgeObject.put("type", edge.getType());
+            edgeObject.put("from", edge.getFrom());
+            edgeObject.put("to", edge.getTo());
+            edgeObject.put("startTime", edge.getStartTime());
+            if (edge.getEndTime() >= 0) {
+                edgeObject.put("endTime", edge.getEndTime());
+            }
+            edges.put(edgeObject);
+        }
+
+        JSONObject genealogyObject = new JSONObject();
+        genealogyObject.put("epc", epc);
+        genealogyObject.put("nodes", nodes);
+        genealogyObject.put("edges", edges);
+        genealogyObject.put("truncated", genealogy.isTruncated());
+        return genealogyObject;
+    }
+}
@@ -1,9 +1,17 @@
 package eu.nimble.service.tracking.impl.controller;
 
-import java.io.IOException;
 import java.math.BigInteger;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 import org.apache.http.client.utils.URIBuilder;
 import org.json.JSONArray;
@@ -12,13 +20,13 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.http.HttpEntity;
+import org.springframework.http.CacheControl;
 import org.springframework.http.HttpHeaders;
-import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.CrossOrigin;
+import org.springframework.web.bind.annotation.DeleteMapping;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
@@ -28,9 +36,19 @@ import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
-import org.springframework.web.client.RestTemplate;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import eu.nimble.service.tracking.imp.service.BlockchainService;
+import eu.nimble.service.tracking.imp.service.CachedResult;
+import eu.nimble.service.tracking.imp.service.EpcisService;
+import eu.nimble.service.tracking.imp.service.EventPage;
+import eu.nimble.service.tracking.imp.service.MasterDataCache;
+import eu.nimble.service.tracking.imp.service.ProductionProcessTemplateCache;
+import eu.nimble.service.tracking.imp.service.RequestTiming;
+import eu.nimble.service.tracking.imp.service.RequestTiming.Phase;
+import eu.nimble.service.tracking.imp.service.TokenValidator;
+import eu.nimble.service.tracking.imp.service.UpstreamCommands;
+import eu.nimble.service.tracking.model.MasterDataReference;
 import io.swagger.annotations.ApiImplicitParam;
 import io.swagger.annotations.ApiOperation;
 import io.swagger.annotations.ApiParam;
@@ -38,6 +56,7 @@ import io.swagger.annotations.ApiResponse;
 import io.swagger.annotations.ApiResponses;
 
 import javax.json.JsonObject;
+import javax.servlet.http.HttpServletResponse;
 
 /**
  * This controller should be implemented internally by company, who want to
@@ -54,10 +73,20 @@ import javax.json.JsonObject;
  * @author dqu
  *
  */
-@CrossOrigin()
+@CrossOrigin(exposedHeaders = TrackingController.NEXT_CURSOR_HEADER)
 @RestController
 public class TrackingController {
 
+	/**
+	 * Response header with the cursor to the next page of the event history
+	 */
+	public static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+
+	/**
+	 * Event fields, which refer to master data vocabulary elements
+	 */
+	private static final List<String> MASTER_DATA_FIELDS = Arrays.asList("readPoint", "bizLocation", "bizStep");
+
 	private static Logger log = LoggerFactory.getLogger(TrackingController.class);
 
 	/**
@@ -71,7 +100,28 @@ public class TrackingController {
 	private BlockchainService blockchainService;
 
 	@Autowired
-	private RestTemplate restTemplate;
+	private EpcisService epcisService;
+
+	@Autowired
+	private MasterDataCache masterDataCache;
+
+	@Autowired
+	private ProductionProcessTemplateCache productionProcessTemplateCache;
+
+	@Autowired
+	private TokenValidator tokenValidator;
+
+	/**
+	 * Page size of the event history, if a cursor is given without limit
+	 */
+	@Value("${tracking.simple-tracking.default-limit:20}")
+	private int defaultPageSize;
+
+	/**
+	 * Maximal page size of the event history; larger limits are reduced to it
+	 */
+	@Value("${tracking.simple-tracking.max-limit:1000}")
+	private int maxPageSize;
 
 //    /**
 //     * Simple tracking for a product item with EPC code. (using params in URL)
@@ -193,48 +243,51 @@ public class TrackingController {
 	 *         "hasPrev": "1", "readPoint": "urn:epc:id:sgln:readPoint.lindbacks.2",
 	 *         "bizLocation": "urn:epc:id:sgln:bizLocation.lindbacks.3", "bizStep":
 	 *         "urn:epcglobal:cbv:bizstep:installing", "hasNext": "3" } ]
-	 * @throws IOException
+	 *         The response has an ETag, so that an unchanged template is answered with 304 Not Modified.
+	 *         A cached template, which cannot be revalidated, because the EPCIS repository is unavailable, has a Warning header.
 	 */
 	@ApiOperation(value = "Get production process template for the given product class", 
-			notes = "Return production process template, which consists of a list of production process steps",
+			notes = "Return production process template, which consists of a list of production process steps. "
+					+ "Supports conditional requests with If-None-Match",
 			tags = {"Production Process Template"}, produces = "application/json",
 			response = eu.nimble.service.tracking.model.ProductionProcessStep.class, responseContainer="List")
 	@ApiResponses(value = { @ApiResponse(code = 200, message = "On success, return a list of production process steps. Return a empty list '[]'',in case Production Process Template is not found"),
+	@ApiResponse(code = 304, message = "The template has not changed since the version given in If-None-Match"),
 	@ApiResponse(code = 401, message = "Unauthorized. Are the headers correct?")})
 	@GetMapping("/productionProcessTemplate/{productClass}")
-	public ResponseEntity<?> getProductionProcessTemplate(@ApiParam(value = "NIMBLE Product catergory ID from which process template will retrieve", required = true) @PathVariable(value = "productClass") String productClass, 
-			@ApiParam(value = "The Bearer token provided by the identity service", required = true) @RequestHeader(value = "Authorization", required = true) String bearerToken) throws IOException {
-		String url = epcisURL.trim();
-		if(!url.endsWith("/"))
-		{
-			url = url + "/";
-		}
-		url = url + "/GetProductionProcessTemplate/" + productClass;
-
-
+	public CompletableFuture<ResponseEntity<?>> getProductionProcessTemplate(@ApiParam(value = "NIMBLE Product catergory ID from which process template will retrieve", required = true) @PathVariable(value = "productClass") String productClass, 
+			@ApiParam(value = "The Bearer token provided by the identity service", required = true) @RequestHeader(value = "Authorization", required = true) String bearerToken) {
 		log.info("productClass:" + productClass);
-		log.info("URL:" + url);
-		
-		HttpHeaders headers = new HttpHeaders();
-		headers.set("Authorization", bearerToken);
-
-		HttpEntity<String> response = restTemplate.exchange(url, HttpMethod.GET, new HttpEntity<Object>(headers),
-				String.class);
-		String result = response.getBody();
-
-		log.debug("RESPONSE " + result);
 
 		HttpHeaders responseHeaders = new HttpHeaders();
 		responseHeaders.add("Content-Type", "application/json; charset=utf-8");
-		return new ResponseEntity<>(result, responseHeaders, HttpStatus.OK);
+
+		// the response is answered with status 304, if the ETag matches If-None-Match of the request
+		return productionProcessTemplateCache.get(productClass, bearerToken)
+				.<ResponseEntity<?>>thenApply(template -> {
+					if (template.isStale()) {
+						responseHeaders.set(HttpHeaders.WARNING, UpstreamCommands.STALE_WARNING);
+					}
+					return ResponseEntity.ok().headers(responseHeaders)
+							.eTag(template.getFingerprint()).cacheControl(CacheControl.noCache()).body(template.getContent());
+				})
+				.exceptionally(e -> ErrorResponses.toErrorResponse(e, responseHeaders));
 	}
 
 	/**
 	 * Simple tracking for a product item. (using Path Variable ) Return a list of
 	 * object events related to the product, sorted by eventTime in descending order
 	 * 
+	 * Without limit and cursor, the events are streamed from the EPCIS repository.
+	 * With limit or cursor, a single page is returned and the cursor to the next page
+	 * is set in the response header X-Next-Cursor, as long as there are more events.
+	 * 
 	 * @param epc product item ID, e.g.
 	 *            urn:epc:id:sgtin:0614141.lindback.testproduct
+	 * @param from start of the event time window, inclusive, e.g. 2018-04-11T02:33:31.116Z
+	 * @param to end of the event time window, exclusive
+	 * @param limit maximal number of events in a page
+	 * @param cursor position of the page, as returned in X-Next-Cursor
 	 * @return On success: JSON structure, which is a list of EPCIS object events.
 	 *         e.g. [ { "eventTimeZoneOffset": "-06:00", "bizStep":
 	 *         "urn:epcglobal:cbv:bizstep:entering_exiting", "recordTime": {"$date":
@@ -249,37 +302,215 @@ public class TrackingController {
 	 *         not found.
 	 */
 	@ApiOperation(value = "Track by Product ID", 
-			notes = "Return a list of Object events related to the product, sorted by eventTime in descending order",
+			notes = "Return a list of Object events related to the product, sorted by eventTime in descending order. "
+					+ "With limit or cursor, a page of events is returned, and the cursor to the next page is returned in the header " + NEXT_CURSOR_HEADER,
 			tags = {"Event Data"}, produces = "application/json",
 			responseContainer="List")
 	@ApiResponses(value = { @ApiResponse(code = 200, message = "On success, return an array of EPCIS object events. Return a empty list '[]'',in case product with given EPC code is not found."),
+	@ApiResponse(code = 400, message = "Invalid time window, limit or cursor"),
 	@ApiResponse(code = 401, message = "Unauthorized. Are the headers correct?")})
 	@GetMapping("/simpleTracking/{itemID:.+}")
-	public ResponseEntity<?> simpleTrackingWithID(@ApiParam(value = " Product EPC code from which tracking information will retrieve", required = true) @PathVariable String itemID,
-			@ApiParam(value = "The Bearer token provided by the identity service", required = true) @RequestHeader(value = "Authorization", required = true)  String bearerToken) {
-		String url = epcisURL.trim();
-		if(!url.endsWith("/"))
-		{
-			url = url + "/";
+	public CompletableFuture<?> simpleTrackingWithID(@ApiParam(value = " Product EPC code from which tracking information will retrieve", required = true) @PathVariable String itemID,
+			@ApiParam(value = "Start of the event time window, inclusive, in ISO 8601 format, e.g. 2018-04-11T02:33:31.116Z", required = false) @RequestParam(required = false) String from,
+			@ApiParam(value = "End of the event time window, exclusive, in ISO 8601 format", required = false) @RequestParam(required = false) String to,
+			@ApiParam(value = "Maximal number of events in a page", required = false) @RequestParam(required = false) Integer limit,
+			@ApiParam(value = "Position of the page, as returned in the header " + NEXT_CURSOR_HEADER, required = false) @RequestParam(required = false) String cursor,
+			@ApiParam(value = "The Bearer token provided by the identity service", required = true) @RequestHeader(value = "Authorization", required = true)  String bearerToken,
+			HttpServletResponse response) {
+		log.info("epc:" + itemID);
+
+		HttpHeaders responseHeaders = new HttpHeaders();
+		responseHeaders.add("Content-Type", "application/json; charset=utf-8");
+
+		Long fromTime;
+		Long toTime;
+		EventPage.Cursor pageCursor;
+		try {
+			fromTime = EpcisService.parseTime(from);
+			toTime = EpcisService.parseTime(to);
+			pageCursor = cursor == null ? null : EventPage.Cursor.decode(cursor);
+			if (limit != null && limit <= 0) {
+				throw new IllegalArgumentException("limit must be positive");
+			}
+		} catch (IllegalArgumentException | DateTimeParseException e) {
+			return CompletableFuture.completedFuture(new ResponseEntity<>(e.getMessage(), HttpStatus.BAD_REQUEST));
 		}
-		url = url + "Poll/SimpleEventQuery?MATCH_epc=" + itemID
-				+ "&orderBy=eventTime&orderDirection=DESC&format=JSON";
 
-		log.info("epc:" + itemID);
-		log.info("URL:" + url);
+		if (limit == null && pageCursor == null) {
+			String url = epcisURL.trim();
+			if(!url.endsWith("/"))
+			{
+				url = url + "/";
+			}
+			url = url + "Poll/SimpleEventQuery?MATCH_epc=" + itemID
+					+ "&orderBy=eventTime&orderDirection=DESC&format=JSON";
+			if (fromTime != null) {
+				url = url + "&GE_eventTime=" + EpcisService.formatTime(fromTime);
+			}
+			if (toTime != null) {
+				url = url + "&LT_eventTime=" + EpcisService.formatTime(toTime);
+			}
+
+			// streamed by the asynchronous request executor, see AsyncConfig; the stream is isolated by its own bulkhead,
+			// and answered with 503 or 504, if it is not started in time
+			String proxyUrl = url;
+			StreamingResponseBody body = outputStream -> epcisService.proxy(proxyUrl, bearerToken, response);
+			return CompletableFuture.completedFuture(body);
+		}
 
-		HttpHeaders headers = new HttpHeaders();
-		headers.set("Authorization", bearerToken);
+		Map<String, String> queryParams = new LinkedHashMap<>();
+		queryParams.put("MATCH_epc", itemID);
+		if (fromTime != null) {
+			queryParams.put("GE_eventTime", EpcisService.formatTime(fromTime));
+		}
+		int pageSize = Math.min(limit == null ? defaultPageSize : limit, maxPageSize);
+		RequestTiming timing = RequestTiming.current();
+		return epcisService.pollEventPageAsync(queryParams, toTime, pageCursor, pageSize, bearerToken)
+				.<ResponseEntity<?>>thenApply(page -> {
+					if (page.getNextCursor() != null) {
+						responseHeaders.set(NEXT_CURSOR_HEADER, page.getNextCursor().encode());
+					}
+					String body = timing.time(Phase.SERIALIZATION, () -> page.getEvents().toString());
+					return new ResponseEntity<>(body, responseHeaders, HttpStatus.OK);
+				})
+				.exceptionally(e -> ErrorResponses.toErrorResponse(e, responseHeaders));
+	}
 
-		HttpEntity<String> response = restTemplate.exchange(url, HttpMethod.GET, new HttpEntity<Object>(headers),
-				String.class);
-		String result = response.getBody();
-	
-		log.debug("RESPONSE " + result);
+	/**
+	 * Tracking for a product item with master data. Return the same list of events as /simpleTracking,
+	 * where each event has the master data of its readPoint, bizLocation and bizStep, e.g.
+	 * "masterData": { "bizLocation": { "id": "urn:epc:id:sgln:bizLocation.lindbacks.4", "type":
+	 * "urn:epcglobal:epcis:vtype:BusinessLocation", "attributes": { ... } } }
+	 * 
+	 * Master data shared by several events is resolved once, and cached master data is reused.
+	 * 
+	 * @param itemID product item ID, e.g. urn:epc:id:sgtin:0614141.lindback.testproduct
+	 * @param from start of the event time window, inclusive
+	 * @param to end of the event time window, exclusive
+	 * @param limit maximal number of events in a page
+	 * @param cursor position of the page, as returned in X-Next-Cursor
+	 * @return On success: a list of EPCIS events with master data, sorted by eventTime in descending order
+	 */
+	@ApiOperation(value = "Track by Product ID with Master Data", 
+			notes = "Return a list of events related to the product, sorted by eventTime in descending order. Each event contains the master data of its readPoint, bizLocation and bizStep "
+					+ "in the field masterData. With limit or cursor, a page of events is returned, and the cursor to the next page is returned in the header " + NEXT_CURSOR_HEADER,
+			tags = {"Event Data"}, produces = "application/json",
+			responseContainer="List")
+	@ApiResponses(value = { @ApiResponse(code = 200, message = "On success, return an array of EPCIS events with master data. Return a empty list '[]'',in case product with given EPC code is not found."),
+	@ApiResponse(code = 400, message = "Invalid time window, limit or cursor"),
+	@ApiResponse(code = 401, message = "Unauthorized. Are the headers correct?")})
+	@GetMapping("/enrichedTracking/{itemID:.+}")
+	public CompletableFuture<ResponseEntity<?>> enrichedTrackingWithID(@ApiParam(value = " Product EPC code from which tracking information will retrieve", required = true) @PathVariable String itemID,
+			@ApiParam(value = "Start of the event time window, inclusive, in ISO 8601 format, e.g. 2018-04-11T02:33:31.116Z", required = false) @RequestParam(required = false) String from,
+			@ApiParam(value = "End of the event time window, exclusive, in ISO 8601 format", required = false) @RequestParam(required = false) String to,
+			@ApiParam(value = "Maximal number of events in a page", required = false) @RequestParam(required = false) Integer limit,
+			@ApiParam(value = "Position of the page, as returned in the header " + NEXT_CURSOR_HEADER, required = false) @RequestParam(required = false) String cursor,
+			@ApiParam(value = "The Bearer token provided by the identity service", required = true) @RequestHeader(value = "Authorization", required = true)  String bearerToken) {
+		log.info("epc:" + itemID);
 
 		HttpHeaders responseHeaders = new HttpHeaders();
 		responseHeaders.add("Content-Type", "application/json; charset=utf-8");
-		return new ResponseEntity<>(result, responseHeaders, HttpStatus.OK);
+
+		Long fromTime;
+		Long toTime;
+		EventPage.Cursor pageCursor;
+		try {
+			fromTime = EpcisService.parseTime(from);
+			toTime = EpcisService.parseTime(to);
+			pageCursor = cursor == null ? null : EventPage.Cursor.decode(cursor);
+			if (limit != null && limit <= 0) {
+				throw new IllegalArgumentException("limit must be positive");
+			}
+		} catch (IllegalArgumentException | DateTimeParseException e) {
+			return CompletableFuture.completedFuture(new ResponseEntity<>(e.getMessage(), HttpStatus.BAD_REQUEST));
+		}
+
+		Map<String, String> queryParams = new LinkedHashMap<>();
+		queryParams.put("MATCH_epc", itemID);
+		if (fromTime != null) {
+			queryParams.put("GE_eventTime", EpcisService.formatTime(fromTime));
+		}
+
+		CompletableFuture<EventPage> page;
+		if (limit == null && pageCursor == null) {
+			queryParams.put("orderBy", "eventTime");
+			queryParams.put("orderDirection", "DESC");
+			if (toTime != null) {
+				queryParams.put("LT_eventTime", EpcisService.formatTime(toTime));
+			}
+			page = epcisService.pollEventsJsonAsync(queryParams, bearerToken).thenApply(events -> new EventPage(events, null));
+		} else {
+			int pageSize = Math.min(limit == null ? defaultPageSize : limit, maxPageSize);
+			page = epcisService.pollEventPageAsync(queryParams, toTime, pageCursor, pageSize, bearerToken);
+		}
+
+		RequestTiming timing = RequestTiming.current();
+		return page.thenCompose(eventPage -> {
+					if (eventPage.getNextCursor() != null) {
+						responseHeaders.set(NEXT_CURSOR_HEADER, eventPage.getNextCursor().encode());
+					}
+					return this.addMasterData(eventPage.getEvents(), bearerToken);
+				})
+				.<ResponseEntity<?>>thenApply(events -> {
+					if (events.isStale()) {
+						responseHeaders.set(HttpHeaders.WARNING, UpstreamCommands.STALE_WARNING);
+					}
+					String body = timing.time(Phase.SERIALIZATION, () -> events.getValue().toString());
+					return new ResponseEntity<>(body, responseHeaders, HttpStatus.OK);
+				})
+				.exceptionally(e -> ErrorResponses.toErrorResponse(e, responseHeaders));
+	}
+
+	/**
+	 * Add the master data of readPoint, bizLocation and bizStep to each event, resolving each vocabulary element once
+	 * @return the events with master data; stale, if master data was served from expired cache entries
+	 */
+	private CompletableFuture<CachedResult<JSONArray>> addMasterData(JSONArray events, String bearerToken) {
+		Set<String> ids = new LinkedHashSet<>();
+		for (int i = 0; i < events.length(); i++) {
+			JSONObject event = events.getJSONObject(i);
+			for (String field : MASTER_DATA_FIELDS) {
+				String id = getMasterDataId(event, field);
+				if (id != null) {
+					ids.add(id);
+				}
+			}
+		}
+		if (ids.isEmpty()) {
+			return CompletableFuture.completedFuture(CachedResult.fresh(events));
+		}
+
+		List<MasterDataReference> references = new ArrayList<>(ids.size());
+		for (String id : ids) {
+			references.add(new MasterDataReference(null, id));
+		}
+		return masterDataCache.getAll(references, bearerToken).thenApply(masterData -> {
+			for (int i = 0; i < events.length(); i++) {
+				JSONObject event = events.getJSONObject(i);
+				JSONObject eventMasterData = new JSONObject();
+				for (String field : MASTER_DATA_FIELDS) {
+					String id = getMasterDataId(event, field);
+					JSONArray elements = id == null ? null : masterData.getValue().get(id);
+					if (elements != null && elements.length() > 0) {
+						eventMasterData.put(field, elements.get(0));
+					}
+				}
+				event.put("masterData", eventMasterData);
+			}
+			return masterData.isStale() ? CachedResult.stale(events) : CachedResult.fresh(events);
+		});
+	}
+
+	/**
+	 * @return master data vocabulary element ID of an event field, e.g. "readPoint": {"id": "urn:epc:id:sgln:readPoint.lindbacks.3"}
+	 * 		or "bizStep": "urn:epcglobal:cbv:bizstep:entering_exiting"; null, if the event has no such field
+	 */
+	private static String getMasterDataId(JSONObject event, String field) {
+		Object value = event.opt(field);
+		if (value instanceof JSONObject) {
+			return ((JSONObject) value).optString("id", null);
+		}
+		return value instanceof String ? (String) value : null;
 	}
 
 	/**
@@ -308,31 +539,10 @@ public class TrackingController {
 	@ApiResponses(value = { @ApiResponse(code = 200, message = "On success, return an array of EPCIS object events. Return a empty list '[]'',in case product with given EPC code is not found."),
 	@ApiResponse(code = 401, message = "Unauthorized. Are the headers correct?")})
 	@GetMapping("/masterData/id/{vocabularyElementID:.+}")
-	public ResponseEntity<?> getMasterDataByID(@ApiParam(value = "EPCIS Master Data Vocabulary Element ID from which master data information will retrieve", required = true) @PathVariable String vocabularyElementID,
+	public CompletableFuture<ResponseEntity<?>> getMasterDataByID(@ApiParam(value = "EPCIS Master Data Vocabulary Element ID from which master data information will retrieve", required = true) @PathVariable String vocabularyElementID,
 			@ApiParam(value = "The Bearer token provided by the identity service", required = true) @RequestHeader(value = "Authorization", required = true)   String bearerToken) {
-		String url = epcisURL.trim();
-		if(!url.endsWith("/"))
-		{
-			url = url + "/";
-		}
-		url = url + "Poll/SimpleMasterDataQuery?includeAttributes=true&includeChildren=true&EQ_name="
-				+ vocabularyElementID + "&format=JSON";
-
 		log.info("vocabularyElementID:" + vocabularyElementID);
-		log.info("URL:" + url);
-
-		HttpHeaders headers = new HttpHeaders();
-		headers.set("Authorization", bearerToken);
-
-		HttpEntity<String> response = restTemplate.exchange(url, HttpMethod.GET, new HttpEntity<Object>(headers),
-				String.class);
-		String result = response.getBody();
-
-		log.debug("RESPONSE " + result);
-
-		HttpHeaders responseHeaders = new HttpHeaders();
-		responseHeaders.add("Content-Type", "application/json; charset=utf-8");
-		return new ResponseEntity<>(result, responseHeaders, HttpStatus.OK);
+		return this.getCachedMasterData(null, vocabularyElementID, bearerToken);
 	}
 
 	/**
@@ -363,33 +573,81 @@ public class TrackingController {
 	@ApiResponses(value = { @ApiResponse(code = 200, message = "On success, return an list of master data vocabulary element. Return a empty list '[]'', in case Master Data Vocabulary Element is not found"),
 	@ApiResponse(code = 401, message = "Unauthorized. Are the headers correct?")})
 	@GetMapping("/masterData/type/{vocabularyElementType}/id/{vocabularyElementID:.+}")
-	public ResponseEntity<?> getMasterDataByTypeAndID(@ApiParam(value = "EPCIS Master Data Vocabulary Type, for example, urn:epcglobal:epcis:vtype:BusinessLocation", required = true) @PathVariable String vocabularyElementType,
+	public CompletableFuture<ResponseEntity<?>> getMasterDataByTypeAndID(@ApiParam(value = "EPCIS Master Data Vocabulary Type, for example, urn:epcglobal:epcis:vtype:BusinessLocation", required = true) @PathVariable String vocabularyElementType,
 			@ApiParam(value = "EPCIS Master Data Vocabulary Element ID, for example, urn:epc:id:sgln:bizLocation.lindbacks.1", required = true) @PathVariable String vocabularyElementID,
 			@ApiParam(value = "The Bearer token provided by the identity service", required = true) @RequestHeader(value="Authorization", required=true) String bearerToken) {
-		String url = epcisURL.trim();
-		if(!url.endsWith("/"))
-		{
-			url = url + "/";
-		}
-		url = url + "Poll/SimpleMasterDataQuery?includeAttributes=true&includeChildren=true&EQ_name="
-				+ vocabularyElementID + "&vocabularyName=" + vocabularyElementType + "&format=JSON";
-
 		log.info("vocabularyElementID:" + vocabularyElementID);
 		log.info("vocabularyElementType:" + vocabularyElementType);
-		log.info("URL:" + url);
+		return this.getCachedMasterData(vocabularyElementType, vocabularyElementID, bearerToken);
+	}
 
-		HttpHeaders headers = new HttpHeaders();
-		headers.set("Authorization", bearerToken);
+	/**
+	 * Remove master data from the cache, e.g. after the master data has been changed in the EPCIS repository.
+	 * Only clients, whose token is accepted by the EPCIS repository, may remove master data.
+	 * 
+	 * @param vocabularyElementType EPCIS Master Data Vocabulary Type; if not given, the element is removed for all types
+	 * @param vocabularyElementID   EPCIS Master Data Vocabulary Element ID; if not given, all elements are removed
+	 */
+	@ApiOperation(value = "Invalidate cached EPCIS Master Data", 
+			notes = "Remove a cached master data vocabulary element, or the whole cache if no ID is given",
+			tags = {"Master Data"})
+	@ApiResponses(value = { @ApiResponse(code = 200, message = "Master data removed from the cache"),
+	@ApiResponse(code = 401, message = "Unauthorized. Are the headers correct?")})
+	@DeleteMapping("/masterData/cache")
+	public CompletableFuture<ResponseEntity<?>> invalidateMasterData(@ApiParam(value = "EPCIS Master Data Vocabulary Type", required = false) @RequestParam(value = "type", required = false) String vocabularyElementType,
+			@ApiParam(value = "EPCIS Master Data Vocabulary Element ID", required = false) @RequestParam(value = "id", required = false) String vocabularyElementID,
+			@ApiParam(value = "The Bearer token provided by the identity service", required = true) @RequestHeader(value="Authorization", required=true) String bearerToken) {
+		return tokenValidator.validate(bearerToken)
+				.<ResponseEntity<?>>thenApply(valid -> {
+					log.info("Invalidate master data, vocabularyElementType:" + vocabularyElementType + ", vocabularyElementID:" + vocabularyElementID);
+					masterDataCache.invalidate(vocabularyElementType, vocabularyElementID);
+					return new ResponseEntity<>(HttpStatus.OK);
+				})
+				.exceptionally(ErrorResponses::toErrorResponse);
+	}
 
-		HttpEntity<String> response = restTemplate.exchange(url, HttpMethod.GET, new HttpEntity<Object>(headers),
-				String.class);
-		String result = response.getBody();
+	/**
+	 * Get master data for a list of vocabulary elements at once.
+	 * 
+	 * @param references list of vocabulary elements, e.g. [{"type": "urn:epcglobal:epcis:vtype:BusinessLocation", "id": "urn:epc:id:sgln:bizLocation.lindbacks.1"}, {"id": "urn:epcglobal:cbv:bizstep:accepting"}]
+	 * @return On Success: a JSON object, which maps each element ID to the list of master data vocabulary elements with this ID.
+	 *         The list is empty, if the element is not found.
+	 */
+	@ApiOperation(value = "Find a list of EPCIS Master Data vocabulary elements", 
+			notes = "Return a JSON object, which maps each requested vocabulary element ID to a list of master data vocabulary elements. Duplicate elements are resolved once.",
+			tags = {"Master Data"}, produces = "application/json")
+	@ApiResponses(value = { @ApiResponse(code = 200, message = "On success, return master data by element ID. The list of an element is empty '[]', in case it is not found"),
+	@ApiResponse(code = 401, message = "Unauthorized. Are the headers correct?")})
+	@PostMapping("/masterData/batch")
+	public CompletableFuture<ResponseEntity<?>> getMasterDataBatch(@ApiParam(value = "List of EPCIS Master Data vocabulary elements; the type is optional", required = true) @RequestBody List<MasterDataReference> references,
+			@ApiParam(value = "The Bearer token provided by the identity service", required = true) @RequestHeader(value="Authorization", required=true) String bearerToken) {
+		log.info("Master data batch of " + references.size() + " vocabulary elements");
 
-		log.debug("RESPONSE " + result);
+		HttpHeaders responseHeaders = new HttpHeaders();
+		responseHeaders.add("Content-Type", "application/json; charset=utf-8");
+		RequestTiming timing = RequestTiming.current();
+		return masterDataCache.getAll(references, bearerToken)
+				.<ResponseEntity<?>>thenApply(masterData -> {
+					if (masterData.isStale()) {
+						responseHeaders.set(HttpHeaders.WARNING, UpstreamCommands.STALE_WARNING);
+					}
+					String body = timing.time(Phase.SERIALIZATION, () -> new JSONObject(masterData.getValue()).toString());
+					return new ResponseEntity<>(body, responseHeaders, HttpStatus.OK);
+				})
+				.exceptionally(e -> ErrorResponses.toErrorResponse(e, responseHeaders));
+	}
 
+	private CompletableFuture<ResponseEntity<?>> getCachedMasterData(String vocabularyElementType, String vocabularyElementID, String bearerToken) {
 		HttpHeaders responseHeaders = new HttpHeaders();
 		responseHeaders.add("Content-Type", "application/json; charset=utf-8");
-		return new ResponseEntity<>(result, responseHeaders, HttpStatus.OK);
+		return masterDataCache.get(vocabularyElementType, vocabularyElementID, bearerToken)
+				.<ResponseEntity<?>>thenApply(result -> {
+					if (result.isStale()) {
+						responseHeaders.set(HttpHeaders.WARNING, UpstreamCommands.STALE_WARNING);
+					}
+					return new ResponseEntity<>(result.getValue(), responseHeaders, HttpStatus.OK);
+				})
+				.exceptionally(e -> ErrorResponses.toErrorResponse(e, responseHeaders));
 	}
 	
 	/**
@@ -429,15 +687,17 @@ public class TrackingController {
 			"]"
 			+ "</textarea> ", tags = {"Blockchain Verification"}, response = String.class)
 	@ApiResponses(value = { @ApiResponse(code = 200, message = "On success, return true. False, otherwise"),
-			@ApiResponse(code = 401, message = "Unauthorized. Are the headers correct?")})
+			@ApiResponse(code = 401, message = "Unauthorized. Are the headers correct?"),
+			@ApiResponse(code = 503, message = "The Blockchain service is unavailable"),
+			@ApiResponse(code = 504, message = "The Blockchain service did not answer in time")})
 	@ApiImplicitParam(name = "jsonEventArray", value = "A JSON Array representing a list EPCIS Events, which require Blockchain verification.", dataType = "String", paramType = "body", required = true)
 	@PostMapping(value = "/verifyEventsInBlockChain") 
-	public ResponseEntity<Boolean> verifyTrackingEventsInBlockchain(@RequestBody String jsonEventArray, 
+	public CompletableFuture<ResponseEntity<?>> verifyTrackingEventsInBlockchain(@RequestBody String jsonEventArray, 
 			@ApiParam(value = "The Bearer token provided by the identity service", required = true) @RequestHeader(value="Authorization", required=true) String bearerToken)
 	{
-		boolean found = blockchainService.verifyTrackingEvents(jsonEventArray);
-		
-		return new ResponseEntity<Boolean>(found, HttpStatus.OK); 
+		return blockchainService.verifyTrackingEventsAsync(jsonEventArray)
+				.<ResponseEntity<?>>thenApply(found -> new ResponseEntity<Boolean>(found, HttpStatus.OK))
+				.exceptionally(ErrorResponses::toErrorResponse);
 	}
 
 }
@@ -1,5 +1,11 @@
 package eu.nimble.service.tracking.impl.controller;
 
+import eu.nimble.service.tracking.imp.service.EpcGraphTraversal;
+import eu.nimble.service.tracking.imp.service.TransformationFrontierQuery;
+import eu.nimble.service.tracking.imp.service.TransformationGraphIndex;
+import eu.nimble.service.tracking.imp.service.RequestTiming;
+import eu.nimble.service.tracking.imp.service.RequestTiming.Phase;
+import eu.nimble.service.tracking.imp.service.UpstreamCommands;
 import io.swagger.annotations.*;
 import org.json.JSONArray;
 import org.json.JSONObject;
@@ -10,25 +16,37 @@ import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
-import org.springframework.web.client.RestTemplate;
+
+import java.util.concurrent.CompletableFuture;
 
 @Api(tags = {"Transformation Event Operation" })
 @RestController
 public class TransformationEventController {
-    @Value("${spring.epcis.url}")
-    private String epcisURL;
 
-    private String getBaseUrl() {
-        String url = epcisURL.trim();
-        if(!url.endsWith("/"))
-        {
-            url = url + "/";
-        }
-        return url;
-    }
+    /**
+     * Maximal number of transformation levels followed from the given EPC
+     */
+    @Value("${tracking.transformation.max-depth:100}")
+    private int maxDepth;
+
+    /**
+     * Maximal number of EPCs visited from the given EPC
+     */
+    @Value("${tracking.transformation.max-nodes:10000}")
+    private int maxNodes;
+
+    /**
+     * Traversal of the output tree: "index", in-memory index of all transformation events;
+     * "query", one EPCIS query per level for the events consuming the EPCs of the level
+     */
+    @Value("${tracking.transformation.traversal:index}")
+    private String traversal;
 
     @Autowired
-    private RestTemplate restTemplate;
+    private TransformationGraphIndex transformationGraphIndex;
+
+    @Autowired
+    private TransformationFrontierQuery transformationFrontierQuery;
 
     @ApiOperation(value = "Get transformation event for the given EPC itemID", notes = "" +
             "Here we are looking for input item and then get the output item, this output item again takes as input item and then looking for output item. \n" +
@@ -77,87 +95,64 @@ public class TransformationEventController {
             @ApiResponse(code = 400, message = "epc is not valid?"),
             @ApiResponse(code = 401, message = "Unauthorized. Are the headers correct?"), })
     @PostMapping("/getEpcTransformationOutput")
-    public ResponseEntity<?> getEpcTransformationOutput(@ApiParam(value = "Product EPC code from which tracking information will retrieve", required = true)
+    public CompletableFuture<ResponseEntity<?>> getEpcTransformationOutput(@ApiParam(value = "Product EPC code from which tracking information will retrieve", required = true)
             @RequestParam("itemID") String epc,
             @ApiParam(value = "The Bearer token provided by the identity service", required = true)
             @RequestHeader(value = "Authorization", required = true)  String bearerToken) {
+        RequestTiming timing = RequestTiming.current();
+        if ("query".equals(traversal)) {
+            return transformationFrontierQuery.getOutputTree(epc, maxDepth, maxNodes, bearerToken)
+                    .<ResponseEntity<?>>thenApply(outputTree -> timing.time(Phase.SERIALIZATION, () -> getTraceTree(epc, outputTree, false)))
+                    .exceptionally(ErrorResponses::toErrorResponse);
+        }
 
+        // the index is loaded without blocking the request thread on first use
+        return transformationGraphIndex.whenLoaded(bearerToken)
+                .<ResponseEntity<?>>thenApply(loaded -> {
+                    EpcGraphTraversal.Result outputTree = timing.time(Phase.TRAVERSAL,
+                            () -> transformationGraphIndex.getOutputTree(epc, maxDepth, maxNodes));
+                    return timing.time(Phase.SERIALIZATION, () -> getTraceTree(epc, outputTree, transformationGraphIndex.isStale()));
+                })
+                .exceptionally(ErrorResponses::toErrorResponse);
+    }
+
+    private ResponseEntity<?> getTraceTree(String epc, EpcGraphTraversal.Result outputTree, boolean stale) {
         JSONArray globalArray = new JSONArray();
-        JSONArray transformationEventList = getJsonEPCList(bearerToken);
         JSONObject traceTreeObject = new JSONObject();
-        JSONObject jsonObject = new JSONObject();
-        jsonObject.put("epc", epc);
-        JSONArray jsonArray = new JSONArray();
-        jsonArray.put(jsonObject);
-        putEntityObjectGlobalArray(jsonArray, transformationEventList, globalArray);
+        for (EpcGraphTraversal.Node node : outputTree.getNodes()) {
+            globalArray.put(getEntityObject(node));
+        }
         if(globalArray.length() == 0) {
+            JSONObject jsonObject = new JSONObject();
+            jsonObject.put("epc", epc);
             JSONObject object1 = new JSONObject();
             object1.put("Entity", jsonObject);
             globalArray.put(object1);
         }
         traceTreeObject.put("traceTree", globalArray);
-        return new ResponseEntity<>( traceTreeObject.toString(), HttpStatus.OK);
-    }
-
-    private void putEntityObjectGlobalArray(JSONArray epcList, JSONArray transformationEventList, JSONArray globalArray) {
-
-        JSONArray jsonArray = new JSONArray();
-        for(int l = 0; l<epcList.length(); l++) {
-            String epc = epcList.getJSONObject(l).getString("epc");
-            JSONObject entityObject = getEntityObject(epc, transformationEventList);
-            if(entityObject.length() != 0) {
-              globalArray.put(entityObject);
-              jsonArray.put(entityObject);
-            }
+        if (outputTree.isTruncated()) {
+            traceTreeObject.put("truncated", true);
         }
-
-        for (int i = 0; i<jsonArray.length(); i++) {
-            if(jsonArray.getJSONObject(i).getJSONObject("Entity").has("hasOutput")) {
-                putEntityObjectGlobalArray(jsonArray.getJSONObject(i).getJSONObject("Entity").getJSONArray("hasOutput"), transformationEventList, globalArray);
-            }
+        HttpHeaders responseHeaders = new HttpHeaders();
+        if (stale) {
+            responseHeaders.set(HttpHeaders.WARNING, UpstreamCommands.STALE_WARNING);
         }
+        return new ResponseEntity<>( traceTreeObject.toString(), responseHeaders, HttpStatus.OK);
     }
 
-    private JSONObject getEntityObject(String epc, JSONArray transformationEventList) {
+    private JSONObject getEntityObject(EpcGraphTraversal.Node node) {
+        JSONObject entityObject = new JSONObject();
+        entityObject.put("epc", node.getEpc());
+        JSONArray hasOutputArray = new JSONArray();
+        for (String output : node.getSuccessors()) {
+            JSONObject hasOutputObject = new JSONObject();
+            hasOutputObject.put("epc", output);
+            hasOutputArray.put(hasOutputObject);
+        }
+        entityObject.put("hasOutput", hasOutputArray);
 
         JSONObject obj = new JSONObject();
-        for (int i = 0; i < transformationEventList.length(); i++) {
-            JSONArray inputEPCList = transformationEventList.getJSONObject(i).getJSONArray("inputEPCList");
-            String inputEPC ;
-            for (int j = 0; j < inputEPCList.length(); j++) {
-                inputEPC = inputEPCList.getJSONObject(j).getString("epc");
-
-                JSONObject entityObject = new JSONObject();
-                if (epc.equals(inputEPC)) {
-                    JSONArray outputEPCList = transformationEventList.getJSONObject(i).getJSONArray("outputEPCList");
-                    entityObject.put("epc", epc);
-                        JSONArray hasOutputArray = new JSONArray();
-                    for (int k = 0; k < outputEPCList.length(); k++) {
-                        JSONObject hasOutputObject = new JSONObject();
-                        hasOutputObject.put("epc", outputEPCList.getJSONObject(k).getString("epc"));
-                        hasOutputArray.put(hasOutputObject);
-                        entityObject.put("hasOutput", hasOutputArray);
-                    }
-                    obj.put("Entity", entityObject);
-                }
-            }
-        }
+        obj.put("Entity", entityObject);
         return obj;
     }
-
-    private JSONArray getJsonEPCList( String bearerToken) {
-        // define url
-        String url = this.getBaseUrl();
-        String eventType = "TransformationEvent";
-        url = url + "/Poll/SimpleEventQuery?format=JSON&eventType=" + eventType;
-
-        // get the event data list from the epcis application
-        HttpHeaders headers = new HttpHeaders();
-        headers.set("Authorization", bearerToken);
-
-        HttpEntity<String> response = restTemplate.exchange(url, HttpMethod.GET, new HttpEntity<Object>(headers),
-                String.class);
-        JSONArray transformationEventList = new JSONArray(response.getBody());
-        return transformationEventList;
-    }
 }
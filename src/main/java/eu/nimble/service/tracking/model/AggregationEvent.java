@@ -0,0 +1,36 @@
+package eu.nimble.service.tracking.model;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * EPCIS AggregationEvent: child objects are packed into (ADD) or unpacked from (DELETE) a parent
+ */
+public class AggregationEvent extends EpcisEvent {
+
+	public static final String TYPE = "AggregationEvent";
+
+	private final String parentID;
+	private final List<String> childEPCs;
+
+	public AggregationEvent(String id, long eventTime, long recordTime, String action, String bizStep, String readPoint,
+			String bizLocation, String parentID, List<String> childEPCs) {
+		super(TYPE, id, eventTime, recordTime, action, bizStep, readPoint, bizLocation);
+		this.parentID = parentID;
+		this.childEPCs = childEPCs == null ? Collections.emptyList() : Collections.unmodifiableList(childEPCs);
+	}
+
+	/**
+	 * @return EPC of the parent; null, if not given
+	 */
+	public String getParentID() {
+		return parentID;
+	}
+
+	/**
+	 * @return EPCs of the children
+	 */
+	public List<String> getChildEPCs() {
+		return childEPCs;
+	}
+}
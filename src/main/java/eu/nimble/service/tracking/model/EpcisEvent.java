@@ -0,0 +1,87 @@
+package eu.nimble.service.tracking.model;
+
+/**
+ * EPCIS event as returned by SimpleEventQuery, reduced to the fields used by the tracking service.
+ * Events of a type without its own class, e.g. QuantityEvent, are read as this class.
+ *
+ * Events are immutable. A missing time is -1; missing bizStep, readPoint and bizLocation are empty.
+ */
+public class EpcisEvent {
+
+	private final String eventType;
+	private final String id;
+	private final long eventTime;
+	private final long recordTime;
+	private final String action;
+	private final String bizStep;
+	private final String readPoint;
+	private final String bizLocation;
+
+	public EpcisEvent(String eventType, String id, long eventTime, long recordTime, String action, String bizStep,
+			String readPoint, String bizLocation) {
+		this.eventType = eventType;
+		this.id = id;
+		this.eventTime = eventTime;
+		this.recordTime = recordTime;
+		this.action = action;
+		this.bizStep = bizStep == null ? "" : bizStep;
+		this.readPoint = readPoint == null ? "" : readPoint;
+		this.bizLocation = bizLocation == null ? "" : bizLocation;
+	}
+
+	/**
+	 * @return EPCIS event type, e.g. ObjectEvent
+	 */
+	public String getEventType() {
+		return eventType;
+	}
+
+	/**
+	 * @return id assigned by the repository, e.g. "_id": {"$oid": "5ad8c6aabe0777000174179d"}; null, if the event has no id
+	 */
+	public String getId() {
+		return id;
+	}
+
+	/**
+	 * @return eventTime in milliseconds since epoch; -1, if not given
+	 */
+	public long getEventTime() {
+		return eventTime;
+	}
+
+	/**
+	 * @return recordTime in milliseconds since epoch; -1, if not given
+	 */
+	public long getRecordTime() {
+		return recordTime;
+	}
+
+	/**
+	 * @return action, e.g. ADD, OBSERVE, DELETE; null, if not given
+	 */
+	public String getAction() {
+		return action;
+	}
+
+	/**
+	 * @return business step, e.g. urn:epcglobal:cbv:bizstep:assembling; empty, if not given
+	 */
+	public String getBizStep() {
+		return bizStep;
+	}
+
+	/**
+	 * @return id of the read point; empty, if not given
+	 */
+	public String getReadPoint() {
+		return readPoint;
+	}
+
+	/**
+	 * @return id of the business location; empty, if not given
+	 */
+	public String getBizLocation() {
+		return bizLocation;
+	}
+}
@@ -0,0 +1,48 @@
+package eu.nimble.service.tracking.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import io.swagger.annotations.ApiModel;
+import io.swagger.annotations.ApiModelProperty;
+
+@ApiModel(description = "Reference to an EPCIS Master Data vocabulary element. ")
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class MasterDataReference {
+
+	@ApiModelProperty(notes = "EPCIS Master Data Vocabulary Type; any type, if not given", example = "urn:epcglobal:epcis:vtype:BusinessLocation")
+	@JsonProperty("type")
+	private String type;
+
+	@ApiModelProperty(notes = "EPCIS Master Data Vocabulary Element ID", example = "urn:epc:id:sgln:bizLocation.lindbacks.1", required = true)
+	@JsonProperty("id")
+	private String id;
+
+	public MasterDataReference() {
+	}
+
+	public MasterDataReference(String type, String id) {
+		this.type = type;
+		this.id = id;
+	}
+
+	@JsonProperty("type")
+	public String getType() {
+		return type;
+	}
+
+	@JsonProperty("type")
+	public void setType(String type) {
+		this.type = type;
+	}
+
+	@JsonProperty("id")
+	public String getId() {
+		return id;
+	}
+
+	@JsonProperty("id")
+	public void setId(String id) {
+		this.id = id;
+	}
+}
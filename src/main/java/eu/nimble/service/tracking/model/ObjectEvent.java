@@ -0,0 +1,27 @@
+package eu.nimble.service.tracking.model;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * EPCIS ObjectEvent: an observation of objects
+ */
+public class ObjectEvent extends EpcisEvent {
+
+	public static final String TYPE = "ObjectEvent";
+
+	private final List<String> epcList;
+
+	public ObjectEvent(String id, long eventTime, long recordTime, String action, String bizStep, String readPoint,
+			String bizLocation, List<String> epcList) {
+		super(TYPE, id, eventTime, recordTime, action, bizStep, readPoint, bizLocation);
+		this.epcList = epcList == null ? Collections.emptyList() : Collections.unmodifiableList(epcList);
+	}
+
+	/**
+	 * @return EPCs of the observed objects
+	 */
+	public List<String> getEpcList() {
+		return epcList;
+	}
+}
@@ -0,0 +1,36 @@
+package eu.nimble.service.tracking.model;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * EPCIS TransformationEvent: input objects are consumed to produce output objects
+ */
+public class TransformationEvent extends EpcisEvent {
+
+	public static final String TYPE = "TransformationEvent";
+
+	private final List<String> inputEPCList;
+	private final List<String> outputEPCList;
+
+	public TransformationEvent(String id, long eventTime, long recordTime, String bizStep, String readPoint,
+			String bizLocation, List<String> inputEPCList, List<String> outputEPCList) {
+		super(TYPE, id, eventTime, recordTime, null, bizStep, readPoint, bizLocation);
+		this.inputEPCList = inputEPCList == null ? Collections.emptyList() : Collections.unmodifiableList(inputEPCList);
+		this.outputEPCList = outputEPCList == null ? Collections.emptyList() : Collections.unmodifiableList(outputEPCList);
+	}
+
+	/**
+	 * @return EPCs of the consumed objects
+	 */
+	public List<String> getInputEPCList() {
+		return inputEPCList;
+	}
+
+	/**
+	 * @return EPCs of the produced objects
+	 */
+	public List<String> getOutputEPCList() {
+		return outputEPCList;
+	}
+}
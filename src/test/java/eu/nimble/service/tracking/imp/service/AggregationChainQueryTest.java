@@ -0,0 +1,81 @@
+package eu.nimble.service.tracking.imp.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import static eu.nimble.service.tracking.imp.service.TestEvents.aggregationEvent;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import eu.nimble.service.tracking.imp.service.AggregationContainmentIndex.Containment;
+import eu.nimble.service.tracking.model.EpcisEvent;
+
+public class AggregationChainQueryTest {
+
+	private EpcisService epcisService;
+
+	private AggregationChainQuery query;
+
+	// MATCH_epc -> events returned by the EPCIS repository
+	private final Map<String, List<EpcisEvent>> eventsByEpc = new HashMap<>();
+
+	@Before
+	public void setUp() {
+		epcisService = Mockito.mock(EpcisService.class);
+		query = new AggregationChainQuery();
+		ReflectionTestUtils.setField(query, "epcisService", epcisService);
+		ReflectionTestUtils.setField(query, "maxDepth", 100);
+		Mockito.when(epcisService.pollEventsAsync(Matchers.<Map<String, String>>any(), Matchers.anyString())).thenAnswer(invocation -> {
+			Map<?, ?> queryParams = (Map<?, ?>) invocation.getArguments()[0];
+			return CompletableFuture.completedFuture(eventsByEpc.getOrDefault(queryParams.get("MATCH_epc"), Collections.emptyList()));
+		});
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testOneQueryPerHop() {
+		// returned unsorted, as the events of a hop may come in any order
+		mockEvents("TEST-1-C", aggregationEvent("DELETE", "TEST-P", 3000, "TEST-1-C"), aggregationEvent("ADD", "TEST-P", 1000, "TEST-1-C"));
+		mockEvents("TEST-P", aggregationEvent("ADD", "TEST-C-P", 2000, "TEST-P"));
+
+		List<Containment> chain = query.getParentChain("TEST-1-C", "token").join();
+
+		assertEquals(2, chain.size());
+		assertEquals("TEST-P", chain.get(0).getParent());
+		assertEquals(1000, chain.get(0).getStartTime());
+		assertEquals(3000, chain.get(0).getEndTime());
+		assertEquals("TEST-C-P", chain.get(1).getParent());
+		assertFalse(chain.get(1).hasEndTime());
+
+		ArgumentCaptor<Map<String, String>> queryParams = ArgumentCaptor.forClass((Class) Map.class);
+		Mockito.verify(epcisService, Mockito.times(3)).pollEventsAsync(queryParams.capture(), Matchers.eq("token"));
+		for (Map<String, String> params : queryParams.getAllValues()) {
+			assertEquals("AggregationEvent", params.get("eventType"));
+		}
+	}
+
+	@Test
+	public void testCycleTerminates() {
+		mockEvents("A", aggregationEvent("ADD", "B", 1000, "A"));
+		mockEvents("B", aggregationEvent("ADD", "A", 2000, "B"));
+
+		assertEquals(2, query.getParentChain("A", "token").join().size());
+	}
+
+	private void mockEvents(String epc, EpcisEvent... events) {
+		eventsByEpc.put(epc, Arrays.asList(events));
+	}
+
+}
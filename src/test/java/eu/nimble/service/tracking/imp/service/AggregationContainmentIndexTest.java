@@ -0,0 +1,93 @@
+package eu.nimble.service.tracking.imp.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static eu.nimble.service.tracking.imp.service.TestEvents.aggregationEvent;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import eu.nimble.service.tracking.imp.service.AggregationContainmentIndex.Containment;
+
+public class AggregationContainmentIndexTest {
+
+	private EpcisService epcisService;
+
+	private AggregationContainmentIndex index;
+
+	@Before
+	public void setUp() {
+		epcisService = Mockito.mock(EpcisService.class);
+		TokenValidator tokenValidator = Mockito.mock(TokenValidator.class);
+		Mockito.when(tokenValidator.validate(Matchers.anyString())).thenReturn(CompletableFuture.completedFuture(null));
+		index = new AggregationContainmentIndex();
+		ReflectionTestUtils.setField(index, "epcisService", epcisService);
+		ReflectionTestUtils.setField(index, "tokenValidator", tokenValidator);
+		ReflectionTestUtils.setField(index, "refreshIntervalMs", Long.MAX_VALUE);
+	}
+
+	@Test
+	public void testParentChain() {
+		Mockito.when(epcisService.pollEvents(Matchers.<Map<String, String>>any(), Matchers.anyString())).thenReturn(Arrays.asList(
+				aggregationEvent("ADD", "TEST-P", 1000, "TEST-1-C"),
+				aggregationEvent("ADD", "TEST-C-P", 2000, "TEST-P"),
+				aggregationEvent("DELETE", "TEST-P", 3000, "TEST-1-C")));
+
+		index.whenLoaded("token").join();
+		List<Containment> chain = index.getParentChain("TEST-1-C");
+
+		assertEquals(2, chain.size());
+		assertEquals("TEST-P", chain.get(0).getParent());
+		assertEquals(1000, chain.get(0).getStartTime());
+		assertEquals(3000, chain.get(0).getEndTime());
+		assertEquals("TEST-C-P", chain.get(1).getParent());
+		assertFalse(chain.get(1).hasEndTime());
+	}
+
+	@Test
+	public void testDeleteEndsContainmentOfParent() {
+		Mockito.when(epcisService.pollEvents(Matchers.<Map<String, String>>any(), Matchers.anyString())).thenReturn(Arrays.asList(
+				aggregationEvent("ADD", "TEST-P", 1000, "TEST-1-C"),
+				aggregationEvent("ADD", "TEST-P", 2000, "TEST-2-C"),
+				aggregationEvent("DELETE", "TEST-P", 3000, "TEST-1-C")));
+
+		index.whenLoaded("token").join();
+		List<Containment> children = index.getContainments("TEST-P", false);
+
+		// in the order of the ADD events
+		assertEquals(2, children.size());
+		assertEquals("TEST-1-C", children.get(0).getChild());
+		assertEquals(3000, children.get(0).getEndTime());
+		assertEquals("TEST-2-C", children.get(1).getChild());
+		assertFalse(children.get(1).hasEndTime());
+	}
+
+	@Test
+	public void testCycleTerminates() {
+		Mockito.when(epcisService.pollEvents(Matchers.<Map<String, String>>any(), Matchers.anyString())).thenReturn(Arrays.asList(
+				aggregationEvent("ADD", "B", 1000, "A"),
+				aggregationEvent("ADD", "A", 2000, "B")));
+
+		index.whenLoaded("token").join();
+		assertEquals(2, index.getParentChain("A").size());
+	}
+
+	@Test
+	public void testUnknownEpc() {
+		Mockito.when(epcisService.pollEvents(Matchers.<Map<String, String>>any(), Matchers.anyString())).thenReturn(Collections.emptyList());
+
+		index.whenLoaded("token").join();
+		assertTrue(index.getParentChain("TEST-1-C").isEmpty());
+	}
+
+}
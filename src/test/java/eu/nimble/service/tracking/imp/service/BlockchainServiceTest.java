@@ -0,0 +1,96 @@
+package eu.nimble.service.tracking.imp.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Supplier;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import eu.nimble.service.tracking.imp.service.UpstreamCommands.Upstream;
+
+public class BlockchainServiceTest {
+
+	private BlockchainService blockchainService;
+
+	private UpstreamCommands upstreamCommands;
+
+	private final List<CompletableFuture<Object>> lookups = new ArrayList<>();
+
+	@Before
+	public void setUp() {
+		upstreamCommands = Mockito.mock(UpstreamCommands.class);
+		// the Blockchain service does not answer
+		Mockito.when(upstreamCommands.submit(Matchers.eq(Upstream.BLOCKCHAIN), Matchers.<Supplier<Object>>any())).thenAnswer(invocation -> {
+			CompletableFuture<Object> lookup = new CompletableFuture<>();
+			lookups.add(lookup);
+			return lookup;
+		});
+		VerifiedHashCache verifiedHashCache = Mockito.mock(VerifiedHashCache.class);
+		Mockito.when(verifiedHashCache.get(Matchers.anyString())).thenReturn(null);
+		blockchainService = new BlockchainService();
+		ReflectionTestUtils.setField(blockchainService, "upstreamCommands", upstreamCommands);
+		ReflectionTestUtils.setField(blockchainService, "verifiedHashCache", verifiedHashCache);
+		ReflectionTestUtils.setField(blockchainService, "requestMetrics", Mockito.mock(RequestMetrics.class));
+		ReflectionTestUtils.setField(blockchainService, "blockchainURL", "http://localhost:5000/hash");
+		ReflectionTestUtils.setField(blockchainService, "batchTimeoutMs", 100L);
+		blockchainService.init();
+	}
+
+	@After
+	public void tearDown() {
+		blockchainService.shutdown();
+	}
+
+	@Test
+	public void testBatchTimeoutIsGatewayTimeout() {
+		try {
+			blockchainService.verifyTrackingEventsAsync(events(2)).join();
+			fail();
+		} catch (CompletionException e) {
+			assertEquals(HttpStatus.GATEWAY_TIMEOUT, ((UpstreamUnavailableException) e.getCause()).getStatusCode());
+		}
+		// the lookups, which are still waiting, are cancelled
+		assertEquals(2, lookups.size());
+		for (CompletableFuture<Object> lookup : lookups) {
+			assertTrue(lookup.isCancelled());
+		}
+	}
+
+	@Test
+	public void testFullQueueIsServiceUnavailable() {
+		CompletableFuture<Object> rejected = new CompletableFuture<>();
+		rejected.completeExceptionally(new UpstreamUnavailableException(Upstream.BLOCKCHAIN, HttpStatus.SERVICE_UNAVAILABLE,
+				"too many concurrent calls"));
+		Mockito.when(upstreamCommands.submit(Matchers.eq(Upstream.BLOCKCHAIN), Matchers.<Supplier<Object>>any())).thenReturn(rejected);
+		try {
+			blockchainService.verifyTrackingEventsAsync(events(2)).join();
+			fail();
+		} catch (CompletionException e) {
+			assertEquals(HttpStatus.SERVICE_UNAVAILABLE, ((UpstreamUnavailableException) e.getCause()).getStatusCode());
+		}
+		// no further lookups are submitted, once the verification failed
+		Mockito.verify(upstreamCommands, Mockito.times(1)).submit(Matchers.eq(Upstream.BLOCKCHAIN), Matchers.<Supplier<Object>>any());
+	}
+
+	private static String events(int count) {
+		JSONArray events = new JSONArray();
+		for (int i = 0; i < count; i++) {
+			events.put(new JSONObject().put("eventType", "ObjectEvent").put("eventTime", new JSONObject().put("$date", i)));
+		}
+		return events.toString();
+	}
+}
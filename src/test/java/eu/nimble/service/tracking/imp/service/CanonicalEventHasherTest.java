@@ -0,0 +1,91 @@
+package eu.nimble.service.tracking.imp.service;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.io.IOUtils;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+public class CanonicalEventHasherTest {
+
+	private static final String[] KEYS = { "epc", "eventTime", "$date", "", "a.b", "c[1]", "d]", "e f", "g\"h", "i\\j",
+			"k\nl", "m/n", "o</p", "qé", "r ", "s=t", "u,v", "urn:epcglobal:cbv:bizstep" };
+
+	private static final Object[] VALUES = { "value", "", "multi\nline", "quote\"d", "a=b,c", "ümläut", 0, -1,
+			1523414011116L, 2.5, -0.0, 1.0E-5, 1.5E20, true, false, JSONObject.NULL };
+
+	/**
+	 * The hash codes of the golden events were generated with the original JsonFlattener based implementation.
+	 */
+	@Test
+	public void testGoldenEvents() throws IOException {
+		this.assertGoldenHashes("testFile/golden-events.json", "testFile/golden-event-hashes.txt");
+	}
+
+	/**
+	 * Events of a production run as returned by SimpleEventQuery, with quantity lists, ILMD and extensions in the stored format
+	 * of the EPCIS repository. The hash codes were generated with the original JsonFlattener based implementation.
+	 */
+	@Test
+	public void testExportedEvents() throws IOException {
+		this.assertGoldenHashes("testFile/epcis-export.json", "testFile/epcis-export-hashes.txt");
+	}
+
+	private void assertGoldenHashes(String eventsFile, String hashesFile) throws IOException {
+		JSONArray events = new JSONArray(readResource(eventsFile));
+		List<String> hashes = IOUtils.readLines(getClass().getClassLoader().getResourceAsStream(hashesFile), StandardCharsets.UTF_8);
+
+		assertEquals(hashes.size(), events.length());
+		for (int i = 0; i < events.length(); i++) {
+			assertEquals("event " + i, hashes.get(i), CanonicalEventHasher.hash(events.getJSONObject(i)));
+			assertEquals("event " + i, hashes.get(i), CanonicalEventHasher.legacyHash(events.getJSONObject(i)));
+		}
+	}
+
+	@Test
+	public void testRandomEventsMatchLegacyHash() {
+		Random random = new Random(42);
+		for (int i = 0; i < 2000; i++) {
+			JSONObject event = randomObject(random, 0);
+			event.put("_id", new JSONObject().put("$oid", "id" + i));
+			event.put("recordTime", new JSONObject().put("$date", i));
+
+			assertEquals(event.toString(), CanonicalEventHasher.legacyHash(event), CanonicalEventHasher.hash(event));
+		}
+	}
+
+	private static JSONObject randomObject(Random random, int depth) {
+		JSONObject jsonObj = new JSONObject();
+		int size = random.nextInt(depth == 0 ? 6 : 4) + (depth == 0 ? 1 : 0);
+		for (int i = 0; i < size; i++) {
+			jsonObj.put(KEYS[random.nextInt(KEYS.length)], randomValue(random, depth + 1));
+		}
+		return jsonObj;
+	}
+
+	private static Object randomValue(Random random, int depth) {
+		int kind = random.nextInt(depth < 4 ? 10 : 8);
+		if (kind < 8) {
+			return VALUES[random.nextInt(VALUES.length)];
+		}
+		if (kind == 8) {
+			return randomObject(random, depth);
+		}
+		JSONArray jsonArray = new JSONArray();
+		int size = random.nextInt(4);
+		for (int i = 0; i < size; i++) {
+			jsonArray.put(randomValue(random, depth + 1));
+		}
+		return jsonArray;
+	}
+
+	private String readResource(String fileName) throws IOException {
+		return IOUtils.toString(getClass().getClassLoader().getResourceAsStream(fileName), StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,55 @@
+package eu.nimble.service.tracking.imp.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import eu.nimble.service.tracking.imp.service.ProductionProcessModel.Conformance;
+
+public class ConformanceServiceTest {
+
+	private static final String TEMPLATE = "[{\"id\":\"1\",\"hasPrev\":\"\",\"readPoint\":\"urn:epc:id:sgln:readPoint.test.1\","
+			+ "\"bizLocation\":\"urn:epc:id:sgln:bizLocation.test.1\",\"bizStep\":\"urn:epcglobal:cbv:bizstep:other\",\"hasNext\":\"\"}]";
+
+	private EpcisService epcisService;
+
+	private ProductionProcessTemplateCache templateCache;
+
+	private ConformanceService conformanceService;
+
+	@Before
+	public void setUp() {
+		epcisService = Mockito.mock(EpcisService.class);
+		templateCache = Mockito.mock(ProductionProcessTemplateCache.class);
+		conformanceService = new ConformanceService();
+		ReflectionTestUtils.setField(conformanceService, "epcisService", epcisService);
+		ReflectionTestUtils.setField(conformanceService, "productionProcessTemplateCache", templateCache);
+		ReflectionTestUtils.setField(conformanceService, "maxSize", 10);
+		conformanceService.init();
+	}
+
+	@Test
+	public void testTemplateVersionIsCompiledOnce() {
+		ProductionProcessTemplateCache.Template template = new ProductionProcessTemplateCache.Template(TEMPLATE, "v1", null, -1, 0, false);
+		Mockito.when(templateCache.get("TEST", "token")).thenReturn(CompletableFuture.completedFuture(template));
+		Mockito.when(epcisService.pollEventsAsync(Matchers.<Map<String, String>>any(), Matchers.eq("token")))
+				.thenReturn(CompletableFuture.completedFuture(EpcisEventCodec.read("[{\"readPoint\":{\"id\":\"urn:epc:id:sgln:readPoint.test.1\"},"
+						+ "\"bizLocation\":{\"id\":\"urn:epc:id:sgln:bizLocation.test.1\"},\"bizStep\":\"urn:epcglobal:cbv:bizstep:other\","
+						+ "\"eventTime\":{\"$date\":1000}}]")));
+
+		Conformance conformance = conformanceService.getConformance("TEST-1", "TEST", "token").join().getValue();
+
+		assertEquals("1", conformance.getCurrentStep().getStep().getId());
+		assertSame(conformanceService.getModel(template), conformanceService.getModel(template));
+		assertEquals(1, ((AtomicLong) ReflectionTestUtils.getField(conformanceService, "compilations")).get());
+	}
+}
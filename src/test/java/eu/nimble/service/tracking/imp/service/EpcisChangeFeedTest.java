@@ -0,0 +1,216 @@
+package eu.nimble.service.tracking.imp.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import eu.nimble.service.tracking.model.EpcisEvent;
+
+public class EpcisChangeFeedTest {
+
+	private EpcisService epcisService;
+
+	private EpcisChangeFeed changeFeed;
+
+	private RecordingConsumer aggregationConsumer;
+
+	private List<Map<String, String>> queries;
+
+	@Before
+	public void setUp() throws Exception {
+		epcisService = Mockito.mock(EpcisService.class);
+		changeFeed = new EpcisChangeFeed();
+		ReflectionTestUtils.setField(changeFeed, "epcisService", epcisService);
+		ReflectionTestUtils.setField(changeFeed, "enabled", true);
+		ReflectionTestUtils.setField(changeFeed, "pollIntervalMs", 1000L);
+		ReflectionTestUtils.setField(changeFeed, "maxBackoffMs", 10000L);
+		ReflectionTestUtils.setField(changeFeed, "pageSize", 2);
+		ReflectionTestUtils.setField(changeFeed, "token", "token");
+
+		aggregationConsumer = new RecordingConsumer("AggregationEvent");
+		changeFeed.register(aggregationConsumer);
+		changeFeed.register(new RecordingConsumer("TransformationEvent"));
+
+		queries = new ArrayList<>();
+	}
+
+	@Test
+	public void testPagesWithoutDuplicatesAtWatermark() {
+		// events a and b share the recordTime 2000, so that b is returned again with the second page
+		List<String> events = Arrays.asList(
+				event("AggregationEvent", 1000, "a"),
+				event("AggregationEvent", 2000, "b"),
+				event("TransformationEvent", 2000, "c"),
+				event("AggregationEvent", 3000, "d"));
+		this.answerPolls(events);
+
+		changeFeed.pollUntilCaughtUp("token");
+
+		assertEquals(Arrays.asList("a", "b", "d"), aggregationConsumer.eventIds);
+		assertTrue(aggregationConsumer.caughtUp);
+		assertEquals("AggregationEvent,TransformationEvent", queries.get(0).get("eventType"));
+		assertEquals(null, queries.get(0).get("GE_recordTime"));
+		assertEquals(EpcisService.formatTime(2000), queries.get(1).get("GE_recordTime"));
+		assertEquals("recordTime", queries.get(1).get("orderBy"));
+		assertEquals("ASC", queries.get(1).get("orderDirection"));
+
+		// the next poll starts at the watermark and delivers nothing new
+		queries.clear();
+		changeFeed.pollUntilCaughtUp("token");
+		assertEquals(1, queries.size());
+		assertEquals(EpcisService.formatTime(3000), queries.get(0).get("GE_recordTime"));
+		assertEquals(3, aggregationConsumer.eventIds.size());
+	}
+
+	@Test
+	public void testFullPageAtWatermarkDoublesLimit() {
+		List<String> events = Arrays.asList(
+				event("AggregationEvent", 1000, "a"),
+				event("AggregationEvent", 1000, "b"),
+				event("AggregationEvent", 1000, "c"),
+				event("AggregationEvent", 2000, "d"));
+		this.answerPolls(events);
+
+		changeFeed.pollUntilCaughtUp("token");
+
+		assertEquals(Arrays.asList("a", "b", "c", "d"), aggregationConsumer.eventIds);
+		assertEquals("2", queries.get(0).get("eventCountLimit"));
+		assertEquals("2", queries.get(1).get("eventCountLimit"));
+		assertEquals("4", queries.get(2).get("eventCountLimit"));
+	}
+
+	@Test
+	public void testRestartReplaysEventStore() throws Exception {
+		EpcisEventStore eventStore = new EpcisEventStore();
+		ReflectionTestUtils.setField(eventStore, "directory", Files.createTempDirectory("event-store").toString());
+		ReflectionTestUtils.setField(eventStore, "replayBatchSize", 1000);
+		eventStore.open();
+		ReflectionTestUtils.setField(changeFeed, "eventStore", eventStore);
+		this.answerPolls(Arrays.asList(event("AggregationEvent", 1000, "a"), event("TransformationEvent", 2000, "b")));
+		changeFeed.pollUntilCaughtUp("token");
+
+		// a restarted feed delivers the stored events without polling and continues at the last stored event
+		queries.clear();
+		EpcisChangeFeed restarted = new EpcisChangeFeed();
+		ReflectionTestUtils.setField(restarted, "epcisService", epcisService);
+		ReflectionTestUtils.setField(restarted, "eventStore", eventStore);
+		ReflectionTestUtils.setField(restarted, "pageSize", 2);
+		RecordingConsumer consumer = new RecordingConsumer("AggregationEvent");
+		restarted.register(consumer);
+		restarted.restore();
+
+		assertEquals(Arrays.asList("a"), consumer.eventIds);
+		assertTrue(consumer.caughtUp);
+		assertTrue(queries.isEmpty());
+
+		restarted.pollUntilCaughtUp("token");
+		assertEquals(EpcisService.formatTime(2000), queries.get(0).get("GE_recordTime"));
+		assertEquals(Arrays.asList("a"), consumer.eventIds);
+		eventStore.close();
+	}
+
+	@Test
+	public void testRepeatedPollFailuresBeforeCatchUpFailLoad() {
+		ReflectionTestUtils.setField(changeFeed, "maxLoadFailures", 2);
+		ReflectionTestUtils.setField(changeFeed, "pollExecutor", Mockito.mock(ScheduledExecutorService.class));
+		Mockito.when(epcisService.pollEvents(Matchers.<Map<String, String>>any(), Matchers.anyString()))
+				.thenThrow(new UpstreamUnavailableException(UpstreamCommands.Upstream.EPCIS_EVENTS, HttpStatus.SERVICE_UNAVAILABLE, "timed out"));
+
+		ReflectionTestUtils.invokeMethod(changeFeed, "poll");
+		assertEquals(0, aggregationConsumer.loadFailures);
+		ReflectionTestUtils.invokeMethod(changeFeed, "poll");
+		ReflectionTestUtils.invokeMethod(changeFeed, "poll");
+		assertEquals(1, aggregationConsumer.loadFailures);
+		assertTrue(changeFeed.isFailing());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testTokenRequired() {
+		changeFeed.init();
+		ReflectionTestUtils.setField(changeFeed, "token", "");
+		changeFeed.init();
+	}
+
+	@Test
+	public void testBackoff() {
+		assertEquals(1000, changeFeed.getBackoffMs(1));
+		assertEquals(4000, changeFeed.getBackoffMs(3));
+		assertEquals(10000, changeFeed.getBackoffMs(5));
+		assertEquals(10000, changeFeed.getBackoffMs(100));
+	}
+
+	/**
+	 * Answer polls like the EPCIS repository: events at or after GE_recordTime in recordTime order, up to eventCountLimit
+	 */
+	private void answerPolls(List<String> events) {
+		Mockito.when(epcisService.pollEvents(Matchers.<Map<String, String>>any(), Matchers.anyString())).thenAnswer(invocation -> {
+			@SuppressWarnings("unchecked")
+			Map<String, String> queryParams = (Map<String, String>) invocation.getArguments()[0];
+			queries.add(queryParams);
+
+			int limit = Integer.parseInt(queryParams.get("eventCountLimit"));
+			String from = queryParams.get("GE_recordTime");
+			List<EpcisEvent> result = new ArrayList<>();
+			for (EpcisEvent event : EpcisEventCodec.read("[" + String.join(",", events) + "]")) {
+				if (result.size() < limit && (from == null || event.getRecordTime() >= EpcisService.parseTime(from))) {
+					result.add(event);
+				}
+			}
+			return result;
+		});
+	}
+
+	private static String event(String eventType, long recordTime, String id) {
+		return "{\"eventType\":\"" + eventType + "\",\"eventTime\":{\"$date\":" + recordTime + "},"
+				+ "\"recordTime\":{\"$date\":" + recordTime + "},\"_id\":{\"$oid\":\"" + id + "\"}}";
+	}
+
+	private static class RecordingConsumer implements EpcisEventConsumer {
+		private final Set<String> eventTypes;
+		private final List<String> eventIds = new ArrayList<>();
+		private boolean caughtUp = false;
+		private int loadFailures = 0;
+
+		RecordingConsumer(String eventType) {
+			this.eventTypes = new HashSet<>(Collections.singleton(eventType));
+		}
+
+		@Override
+		public Set<String> getEventTypes() {
+			return eventTypes;
+		}
+
+		@Override
+		public void accept(List<EpcisEvent> events) {
+			for (EpcisEvent event : events) {
+				eventIds.add(event.getId());
+			}
+		}
+
+		@Override
+		public void caughtUp() {
+			caughtUp = true;
+		}
+
+		@Override
+		public void loadFailed(Exception e) {
+			loadFailures++;
+		}
+	}
+}
@@ -0,0 +1,92 @@
+package eu.nimble.service.tracking.imp.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import eu.nimble.service.tracking.model.AggregationEvent;
+import eu.nimble.service.tracking.model.EpcisEvent;
+import eu.nimble.service.tracking.model.ObjectEvent;
+import eu.nimble.service.tracking.model.TransformationEvent;
+
+public class EpcisEventCodecTest {
+
+	private static final String EVENTS = "[{\"eventType\":\"ObjectEvent\",\"action\":\"OBSERVE\",\"epcList\":[{\"epc\":\"TEST-1\"},{\"epc\":\"TEST-2\"}],"
+			+ "\"readPoint\":{\"id\":\"urn:epc:id:sgln:readPoint.test.1\"},\"bizLocation\":{\"id\":\"urn:epc:id:sgln:bizLocation.test.1\"},"
+			+ "\"bizStep\":\"urn:epcglobal:cbv:bizstep:other\",\"eventTime\":{\"$date\":1000},\"recordTime\":{\"$date\":2000},"
+			+ "\"_id\":{\"$oid\":\"a\"},\"extension\":{\"quantityList\":[{\"epcClass\":\"x\",\"quantity\":1}]},\"eventTimeZoneOffset\":\"+01:00\"},"
+			+ "{\"eventType\":\"AggregationEvent\",\"action\":\"ADD\",\"parentID\":\"TEST-P\",\"childEPCs\":[{\"epc\":\"TEST-1\"}],"
+			+ "\"bizStep\":\"urn:epcglobal:cbv:bizstep:other\",\"eventTime\":{\"$date\":3000}},"
+			+ "{\"eventType\":\"TransformationEvent\",\"inputEPCList\":[{\"epc\":\"TEST-1\"}],"
+			+ "\"outputEPCList\":[{\"epc\":\"TEST-3\"},{\"epc\":\"TEST-4\"}],\"transformationID\":\"t\",\"eventTime\":{\"$date\":4000}},"
+			+ "{\"eventType\":\"QuantityEvent\",\"epcClass\":\"x\",\"quantity\":5}]";
+
+	@Test
+	public void testTypedEvents() {
+		List<EpcisEvent> events = EpcisEventCodec.read(EVENTS);
+
+		assertEquals(4, events.size());
+		ObjectEvent objectEvent = (ObjectEvent) events.get(0);
+		assertEquals(Arrays.asList("TEST-1", "TEST-2"), objectEvent.getEpcList());
+		assertEquals("OBSERVE", objectEvent.getAction());
+		assertEquals("urn:epc:id:sgln:readPoint.test.1", objectEvent.getReadPoint());
+		assertEquals("urn:epc:id:sgln:bizLocation.test.1", objectEvent.getBizLocation());
+		assertEquals(1000, objectEvent.getEventTime());
+		assertEquals(2000, objectEvent.getRecordTime());
+		assertEquals("a", objectEvent.getId());
+
+		AggregationEvent aggregationEvent = (AggregationEvent) events.get(1);
+		assertEquals("TEST-P", aggregationEvent.getParentID());
+		assertEquals(Arrays.asList("TEST-1"), aggregationEvent.getChildEPCs());
+		assertEquals("", aggregationEvent.getReadPoint());
+		assertEquals(-1, aggregationEvent.getRecordTime());
+		assertNull(aggregationEvent.getId());
+		// repeated values are shared by the events of a response
+		assertSame(objectEvent.getBizStep(), aggregationEvent.getBizStep());
+
+		TransformationEvent transformationEvent = (TransformationEvent) events.get(2);
+		assertEquals(Arrays.asList("TEST-1"), transformationEvent.getInputEPCList());
+		assertEquals(Arrays.asList("TEST-3", "TEST-4"), transformationEvent.getOutputEPCList());
+
+		assertEquals("QuantityEvent", events.get(3).getEventType());
+		assertEquals(-1, events.get(3).getEventTime());
+	}
+
+	@Test
+	public void testStreamAndWriteRoundTrip() throws IOException {
+		List<EpcisEvent> events = EpcisEventCodec.read(new ByteArrayInputStream(EVENTS.getBytes(StandardCharsets.UTF_8)));
+
+		for (EpcisEvent event : events) {
+			byte[] json = EpcisEventCodec.write(event);
+			EpcisEvent read = EpcisEventCodec.readEvent(json);
+			assertEquals(event.getClass(), read.getClass());
+			assertEquals(event.getId(), read.getId());
+			assertEquals(event.getEventTime(), read.getEventTime());
+			assertEquals(event.getBizStep(), read.getBizStep());
+			assertEquals(new String(json, StandardCharsets.UTF_8), new String(EpcisEventCodec.write(read), StandardCharsets.UTF_8));
+		}
+		assertEquals(((ObjectEvent) events.get(0)).getEpcList(),
+				((ObjectEvent) EpcisEventCodec.readEvent(EpcisEventCodec.write(events.get(0)))).getEpcList());
+	}
+
+	@Test
+	public void testInvalidJson() {
+		try {
+			EpcisEventCodec.read("[{\"eventType\":\"ObjectEvent\",");
+			fail();
+		} catch (UncheckedIOException e) {
+			assertTrue(e.getMessage().startsWith("Invalid EPCIS events"));
+		}
+	}
+}
@@ -0,0 +1,149 @@
+package eu.nimble.service.tracking.imp.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import eu.nimble.service.tracking.model.EpcisEvent;
+
+public class EpcisEventIndexTest {
+
+	private EpcisService epcisService;
+
+	private RecordingIndex index;
+
+	@Before
+	public void setUp() {
+		epcisService = Mockito.mock(EpcisService.class);
+		TokenValidator tokenValidator = Mockito.mock(TokenValidator.class);
+		Mockito.when(tokenValidator.validate(Matchers.anyString())).thenReturn(CompletableFuture.completedFuture(null));
+		index = new RecordingIndex();
+		ReflectionTestUtils.setField(index, "epcisService", epcisService);
+		ReflectionTestUtils.setField(index, "tokenValidator", tokenValidator);
+		ReflectionTestUtils.setField(index, "token", "service-token");
+	}
+
+	@Test
+	public void testLoadedWithServiceToken() {
+		Mockito.when(epcisService.pollEvents(Matchers.<Map<String, String>>any(), Matchers.anyString()))
+				.thenReturn(Arrays.asList(event("a", 1000)));
+
+		index.whenLoaded("client-token").join();
+
+		// the shared index must not be restricted to the events visible to the client, which triggered the load
+		Mockito.verify(epcisService).pollEvents(Matchers.<Map<String, String>>any(), Matchers.eq("service-token"));
+		Mockito.verify(epcisService, Mockito.never()).pollEvents(Matchers.<Map<String, String>>any(), Matchers.eq("client-token"));
+	}
+
+	@Test
+	public void testServiceTokenRequired() {
+		ReflectionTestUtils.setField(index, "token", "");
+		try {
+			index.init();
+			fail();
+		} catch (IllegalStateException e) {
+			assertTrue(e.getMessage().startsWith("tracking.index.token is required"));
+		}
+
+		// not needed, when the index is fed by the change feed
+		EpcisChangeFeed changeFeed = new EpcisChangeFeed();
+		ReflectionTestUtils.setField(changeFeed, "enabled", true);
+		ReflectionTestUtils.setField(index, "changeFeed", changeFeed);
+		index.init();
+	}
+
+	@Test
+	public void testFailingEventIsSkippedOnce() throws InterruptedException {
+		Mockito.when(epcisService.pollEvents(Matchers.<Map<String, String>>any(), Matchers.anyString()))
+				.thenReturn(Arrays.asList(event("a", 1000), event("bad", 2000), event("c", 3000)))
+				.thenReturn(Arrays.asList(event("c", 3000), event("d", 4000)));
+
+		index.whenLoaded("token").join();
+		assertEquals(Arrays.asList("a", "c"), index.eventIds);
+		assertEquals(1, index.getSkippedEvents());
+
+		// the batch with the skipped event is covered by the watermark and not added again
+		ReflectionTestUtils.setField(index, "lastRefreshTime", 0L);
+		index.whenLoaded("token");
+		ExecutorService refreshExecutor = (ExecutorService) ReflectionTestUtils.getField(index, "refreshExecutor");
+		refreshExecutor.shutdown();
+		refreshExecutor.awaitTermination(5, TimeUnit.SECONDS);
+		assertEquals(Arrays.asList("a", "c", "d"), index.eventIds);
+		assertEquals(1, index.getSkippedEvents());
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testFailedChangeFeedReplayCompletesLoad() {
+		EpcisEventStore eventStore = Mockito.mock(EpcisEventStore.class);
+		Mockito.when(eventStore.isEnabled()).thenReturn(true);
+		Mockito.when(eventStore.replay(Matchers.any(Consumer.class))).thenThrow(new UncheckedIOException(new IOException("corrupt log")));
+		EpcisChangeFeed changeFeed = new EpcisChangeFeed();
+		ReflectionTestUtils.setField(changeFeed, "enabled", true);
+		ReflectionTestUtils.setField(changeFeed, "eventStore", eventStore);
+		changeFeed.register(index);
+		ReflectionTestUtils.setField(index, "changeFeed", changeFeed);
+
+		CompletableFuture<Void> waiting = index.whenLoaded("token");
+		try {
+			changeFeed.restore();
+			fail();
+		} catch (UncheckedIOException e) {
+			// the change feed is stopped
+		}
+
+		assertTrue(waiting.isCompletedExceptionally());
+		try {
+			index.whenLoaded("token").join();
+			fail();
+		} catch (CompletionException e) {
+			assertEquals(HttpStatus.SERVICE_UNAVAILABLE, ((UpstreamUnavailableException) e.getCause()).getStatusCode());
+		}
+		Mockito.verify(epcisService, Mockito.never()).pollEvents(Matchers.<Map<String, String>>any(), Matchers.anyString());
+	}
+
+	private static EpcisEvent event(String id, long time) {
+		return new EpcisEvent("ObjectEvent", id, time, time, null, null, null, null);
+	}
+
+	private static class RecordingIndex extends EpcisEventIndex {
+		private final List<String> eventIds = new ArrayList<>();
+
+		@Override
+		protected String getEventType() {
+			return "ObjectEvent";
+		}
+
+		@Override
+		protected long getRefreshIntervalMs() {
+			return 0;
+		}
+
+		@Override
+		protected void addEvent(EpcisEvent event) {
+			if ("bad".equals(event.getId())) {
+				throw new IllegalArgumentException("invalid event");
+			}
+			eventIds.add(event.getId());
+		}
+	}
+}
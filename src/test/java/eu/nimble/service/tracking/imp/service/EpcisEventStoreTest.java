@@ -0,0 +1,117 @@
+package eu.nimble.service.tracking.imp.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import eu.nimble.service.tracking.model.EpcisEvent;
+
+public class EpcisEventStoreTest {
+
+	private Path directory;
+
+	private EpcisEventStore store;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = Files.createTempDirectory("event-store");
+		store = this.openStore();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		store.close();
+		Path logFile = directory.resolve("events.log");
+		Files.deleteIfExists(logFile);
+		Files.deleteIfExists(directory);
+	}
+
+	@Test
+	public void testReplayAfterReopen() throws IOException {
+		store.append(Arrays.asList(event("a"), event("b"), event("c")));
+		store.append(Arrays.asList(event("d")));
+		store.close();
+
+		store = this.openStore();
+		List<List<String>> batches = this.replay();
+
+		assertEquals(Arrays.asList(Arrays.asList("a", "b"), Arrays.asList("c", "d")), batches);
+	}
+
+	@Test
+	public void testIncompleteRecordIsTruncated() throws IOException {
+		store.append(Arrays.asList(event("a"), event("b")));
+		store.close();
+		long validSize = Files.size(directory.resolve("events.log"));
+		// length and part of an event, as left by a crash during append
+		Files.write(directory.resolve("events.log"), new byte[] { 0, 0, 0, 100, 1, 2, 3, 4, '{' }, StandardOpenOption.APPEND);
+
+		store = this.openStore();
+		assertEquals(validSize, Files.size(directory.resolve("events.log")));
+
+		store.append(Arrays.asList(event("c")));
+		assertEquals(Arrays.asList(Arrays.asList("a", "b"), Arrays.asList("c")), this.replay());
+	}
+
+	@Test
+	public void testSizeMetricsAndWarning() throws IOException {
+		store.append(Arrays.asList(event("a")));
+		long warnSize = Files.size(directory.resolve("events.log")) * 2;
+		ReflectionTestUtils.setField(store, "warnSizeBytes", warnSize);
+		store.append(Arrays.asList(event("b")));
+		assertFalse((Boolean) ReflectionTestUtils.getField(store, "sizeWarned"));
+
+		store.append(Arrays.asList(event("c")));
+		assertTrue((Boolean) ReflectionTestUtils.getField(store, "sizeWarned"));
+
+		Map<String, Number> metrics = new HashMap<>();
+		for (Metric<?> metric : store.metrics()) {
+			metrics.put(metric.getName(), metric.getValue());
+		}
+		assertEquals(3L, metrics.get("epcis.eventstore.events"));
+		assertTrue(metrics.get("epcis.eventstore.size-bytes").longValue() > warnSize);
+		assertEquals(warnSize, metrics.get("epcis.eventstore.warn-size-bytes"));
+	}
+
+	private EpcisEventStore openStore() {
+		EpcisEventStore eventStore = new EpcisEventStore();
+		ReflectionTestUtils.setField(eventStore, "directory", directory.toString());
+		ReflectionTestUtils.setField(eventStore, "replayBatchSize", 2);
+		eventStore.open();
+		return eventStore;
+	}
+
+	private List<List<String>> replay() {
+		List<List<String>> batches = new ArrayList<>();
+		store.replay(events -> {
+			List<String> eventIds = new ArrayList<>();
+			for (EpcisEvent event : events) {
+				eventIds.add(event.getId());
+			}
+			batches.add(eventIds);
+		});
+		return batches;
+	}
+
+	private static EpcisEvent event(String id) {
+		return EpcisEventCodec.readEvent(("{\"eventType\":\"AggregationEvent\",\"recordTime\":{\"$date\":1000},\"_id\":{\"$oid\":\"" + id + "\"}}")
+				.getBytes(StandardCharsets.UTF_8));
+	}
+}
@@ -0,0 +1,194 @@
+package eu.nimble.service.tracking.imp.service;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.header;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.requestTo;
+import static org.springframework.test.web.client.response.MockRestResponseCreators.withStatus;
+import static org.springframework.test.web.client.response.MockRestResponseCreators.withSuccess;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.test.web.client.MockRestServiceServer;
+import org.springframework.util.concurrent.SettableListenableFuture;
+import org.springframework.web.client.AsyncRestTemplate;
+import org.springframework.web.client.RestTemplate;
+
+import eu.nimble.service.tracking.imp.service.UpstreamCommands.Upstream;
+import eu.nimble.service.tracking.model.EpcisEvent;
+
+public class EpcisServiceTest {
+
+	private static final String URL = "http://epcis.test/Poll/SimpleEventQuery?MATCH_epc=TEST-1&format=JSON";
+
+	private MockRestServiceServer server;
+
+	private MockRestServiceServer asyncServer;
+
+	private EpcisService epcisService;
+
+	private ThreadPoolTaskExecutor workerExecutor;
+
+	@Before
+	public void setUp() {
+		RestTemplate restTemplate = new RestTemplate();
+		server = MockRestServiceServer.bindTo(restTemplate).build();
+		AsyncRestTemplate asyncRestTemplate = new AsyncRestTemplate();
+		asyncServer = MockRestServiceServer.bindTo(asyncRestTemplate).build();
+		epcisService = new EpcisService();
+		ReflectionTestUtils.setField(epcisService, "restTemplate", restTemplate);
+		ReflectionTestUtils.setField(epcisService, "asyncRestTemplate", asyncRestTemplate);
+		// the calls are not isolated in the test
+		UpstreamCommands upstreamCommands = Mockito.mock(UpstreamCommands.class);
+		Mockito.when(upstreamCommands.executeAsync(Matchers.any(), Matchers.any()))
+				.thenAnswer(invocation -> ((Supplier<?>) invocation.getArguments()[1]).get());
+		Mockito.when(upstreamCommands.execute(Matchers.any(), Matchers.any()))
+				.thenAnswer(invocation -> ((Supplier<?>) invocation.getArguments()[1]).get());
+		ReflectionTestUtils.setField(epcisService, "upstreamCommands", upstreamCommands);
+		workerExecutor = new ThreadPoolTaskExecutor();
+		workerExecutor.setThreadNamePrefix("upstream-worker-");
+		workerExecutor.initialize();
+		ReflectionTestUtils.setField(epcisService, "workerExecutor", workerExecutor);
+		ReflectionTestUtils.setField(epcisService, "requestMetrics", new RequestMetrics());
+		ReflectionTestUtils.setField(epcisService, "epcisURL", "http://epcis.test");
+		// smaller than the body, so that it is copied in several chunks
+		ReflectionTestUtils.setField(epcisService, "proxyBufferSize", 4);
+	}
+
+	@After
+	public void tearDown() {
+		workerExecutor.shutdown();
+	}
+
+	@Test
+	public void testProxyCopiesBody() throws IOException {
+		String body = "[{\"eventType\": \"ObjectEvent\", \"epcList\": [{\"epc\": \"TEST-1\"}]}]";
+		server.expect(requestTo(URL)).andExpect(header("Authorization", "token"))
+				.andRespond(withSuccess(body, MediaType.APPLICATION_JSON_UTF8));
+
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		epcisService.proxy(URL, "token", response);
+
+		server.verify();
+		assertEquals(200, response.getStatus());
+		assertEquals(MediaType.APPLICATION_JSON_UTF8_VALUE, response.getContentType());
+		assertEquals(body, response.getContentAsString());
+	}
+
+	@Test
+	public void testProxyPassesErrorStatus() throws IOException {
+		server.expect(requestTo(URL))
+				.andRespond(withStatus(HttpStatus.UNAUTHORIZED).body("{\"error\": \"invalid token\"}").contentType(MediaType.APPLICATION_JSON));
+
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		epcisService.proxy(URL, "token", response);
+
+		assertEquals(401, response.getStatus());
+		assertEquals("{\"error\": \"invalid token\"}", response.getContentAsString());
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testProxyRejectedByBulkhead() throws IOException {
+		UpstreamCommands upstreamCommands = Mockito.mock(UpstreamCommands.class);
+		Mockito.when(upstreamCommands.execute(Matchers.eq(Upstream.EPCIS_EVENT_STREAM), Matchers.any(Supplier.class)))
+				.thenThrow(new UpstreamUnavailableException(Upstream.EPCIS_EVENT_STREAM, HttpStatus.SERVICE_UNAVAILABLE, "too many concurrent calls"));
+		ReflectionTestUtils.setField(epcisService, "upstreamCommands", upstreamCommands);
+
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		epcisService.proxy(URL, "token", response);
+
+		assertEquals(503, response.getStatus());
+		assertEquals("epcis-event-stream unavailable: too many concurrent calls", response.getContentAsString());
+	}
+
+	@Test
+	public void testEventPagesWithSameEventTime() {
+		Map<String, String> queryParams = Collections.singletonMap("MATCH_epc", "TEST-1");
+
+		asyncServer.expect(requestTo(containsString("eventCountLimit=2")))
+				.andRespond(withSuccess(events(500, 400).toString(), MediaType.APPLICATION_JSON));
+		asyncServer.expect(requestTo(containsString("eventCountLimit=3")))
+				.andExpect(requestTo(containsString("LT_eventTime=" + EpcisService.formatTime(401))))
+				.andRespond(withSuccess(events(400, 400, 400).toString(), MediaType.APPLICATION_JSON));
+		asyncServer.expect(requestTo(containsString("eventCountLimit=5")))
+				.andRespond(withSuccess(events(400, 400, 400, 300).toString(), MediaType.APPLICATION_JSON));
+
+		EventPage page = epcisService.pollEventPageAsync(queryParams, null, null, 2, "token").join();
+		assertEquals(2, page.getEvents().length());
+		assertEquals(400, page.getNextCursor().getEventTime());
+		assertEquals(1, page.getNextCursor().getSkip());
+
+		EventPage.Cursor cursor = EventPage.Cursor.decode(page.getNextCursor().encode());
+		page = epcisService.pollEventPageAsync(queryParams, null, cursor, 2, "token").join();
+		assertEquals(2, page.getEvents().length());
+		assertEquals(400, page.getNextCursor().getEventTime());
+		assertEquals(3, page.getNextCursor().getSkip());
+
+		page = epcisService.pollEventPageAsync(queryParams, null, page.getNextCursor(), 2, "token").join();
+		assertEquals(1, page.getEvents().length());
+		assertEquals(300, EpcisService.getTime(page.getEvents().getJSONObject(0), "eventTime"));
+		assertNull(page.getNextCursor());
+
+		asyncServer.verify();
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testResponseNotParsedOnIoThread() throws InterruptedException {
+		AsyncRestTemplate asyncRestTemplate = Mockito.mock(AsyncRestTemplate.class);
+		SettableListenableFuture<ResponseEntity<String>> exchange = new SettableListenableFuture<>();
+		Mockito.when(asyncRestTemplate.exchange(Matchers.anyString(), Matchers.eq(HttpMethod.GET), Matchers.any(HttpEntity.class),
+				Matchers.eq(String.class))).thenReturn(exchange);
+		ReflectionTestUtils.setField(epcisService, "asyncRestTemplate", asyncRestTemplate);
+
+		CompletableFuture<List<EpcisEvent>> events = epcisService.pollEventsAsync(Collections.singletonMap("MATCH_epc", "TEST-1"), "token");
+		// runs on the thread, which parsed the response
+		CompletableFuture<String> parseThread = events.thenApply(parsed -> Thread.currentThread().getName());
+
+		// the HTTP client completes the exchange on one of its few I/O threads
+		Thread ioThread = new Thread(() -> exchange.set(new ResponseEntity<>(events(400).toString(), new HttpHeaders(), HttpStatus.OK)),
+				"I/O dispatcher 1");
+		ioThread.start();
+		ioThread.join();
+
+		assertEquals(1, events.join().size());
+		assertTrue(parseThread.join().startsWith("upstream-worker-"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidCursor() {
+		EventPage.Cursor.decode("not a cursor");
+	}
+
+	private static JSONArray events(long... eventTimes) {
+		JSONArray events = new JSONArray();
+		for (long eventTime : eventTimes) {
+			events.put(new JSONObject().put("eventType", "ObjectEvent").put("eventTime", new JSONObject().put("$date", eventTime)));
+		}
+		return events;
+	}
+}
@@ -0,0 +1,96 @@
+package eu.nimble.service.tracking.imp.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static eu.nimble.service.tracking.imp.service.TestEvents.aggregationEvent;
+import static eu.nimble.service.tracking.imp.service.TestEvents.transformationEvent;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import eu.nimble.service.tracking.imp.service.GenealogyService.Direction;
+import eu.nimble.service.tracking.imp.service.GenealogyService.Genealogy;
+import eu.nimble.service.tracking.imp.service.GenealogyService.Node;
+
+public class GenealogyServiceTest {
+
+	private GenealogyService genealogyService;
+
+	@Before
+	public void setUp() {
+		EpcisService epcisService = Mockito.mock(EpcisService.class);
+		TokenValidator tokenValidator = Mockito.mock(TokenValidator.class);
+		Mockito.when(tokenValidator.validate(Matchers.anyString())).thenReturn(CompletableFuture.completedFuture(null));
+		Mockito.when(epcisService.pollEvents(Matchers.<Map<String, String>>any(), Matchers.anyString())).thenAnswer(invocation -> {
+			Map<?, ?> queryParams = (Map<?, ?>) invocation.getArguments()[0];
+			if ("AggregationEvent".equals(queryParams.get("eventType"))) {
+				// TEST-1 and TEST-2 travelled in TEST-P, TEST-1 left it at 3000
+				return Arrays.asList(aggregationEvent("ADD", "TEST-P", 1000, "TEST-1", "TEST-2"),
+						aggregationEvent("DELETE", "TEST-P", 3000, "TEST-1"));
+			}
+			// TEST-0 was made into TEST-1, which was made into TEST-3
+			return Arrays.asList(transformationEvent(500, "TEST-0", "TEST-1"), transformationEvent(4000, "TEST-1", "TEST-3"));
+		});
+
+		AggregationContainmentIndex aggregationIndex = new AggregationContainmentIndex();
+		ReflectionTestUtils.setField(aggregationIndex, "epcisService", epcisService);
+		ReflectionTestUtils.setField(aggregationIndex, "tokenValidator", tokenValidator);
+		ReflectionTestUtils.setField(aggregationIndex, "refreshIntervalMs", Long.MAX_VALUE);
+		TransformationGraphIndex transformationIndex = new TransformationGraphIndex();
+		ReflectionTestUtils.setField(transformationIndex, "epcisService", epcisService);
+		ReflectionTestUtils.setField(transformationIndex, "tokenValidator", tokenValidator);
+		ReflectionTestUtils.setField(transformationIndex, "refreshIntervalMs", Long.MAX_VALUE);
+
+		genealogyService = new GenealogyService();
+		ReflectionTestUtils.setField(genealogyService, "aggregationContainmentIndex", aggregationIndex);
+		ReflectionTestUtils.setField(genealogyService, "transformationGraphIndex", transformationIndex);
+	}
+
+	@Test
+	public void testBothDirections() {
+		Genealogy genealogy = genealogyService.getGenealogy("TEST-1", Direction.BOTH, 10, 100, null, null, "token").join().getValue();
+
+		assertEquals(Arrays.asList("TEST-1", "TEST-0", "TEST-3", "TEST-P", "TEST-2"), epcs(genealogy));
+		assertEquals(2, genealogy.getNodes().get(4).getDepth());
+		assertEquals(4, genealogy.getEdges().size());
+		assertFalse(genealogy.isTruncated());
+	}
+
+	@Test
+	public void testUpstream() {
+		Genealogy genealogy = genealogyService.getGenealogy("TEST-1", Direction.UP, 10, 100, null, null, "token").join().getValue();
+
+		assertEquals(Arrays.asList("TEST-1", "TEST-0", "TEST-P"), epcs(genealogy));
+	}
+
+	@Test
+	public void testTimeWindowAndLimits() {
+		// the containment in TEST-P ended before the time window
+		Genealogy genealogy = genealogyService.getGenealogy("TEST-1", Direction.BOTH, 10, 100, 3500L, null, "token").join().getValue();
+		assertEquals(Arrays.asList("TEST-1", "TEST-3"), epcs(genealogy));
+
+		genealogy = genealogyService.getGenealogy("TEST-1", Direction.BOTH, 1, 100, null, null, "token").join().getValue();
+		assertEquals(4, genealogy.getNodes().size());
+		assertTrue(genealogy.isTruncated());
+	}
+
+	private static List<String> epcs(Genealogy genealogy) {
+		List<String> epcs = new ArrayList<>();
+		for (Node node : genealogy.getNodes()) {
+			epcs.add(node.getEpc());
+		}
+		return epcs;
+	}
+
+
+}
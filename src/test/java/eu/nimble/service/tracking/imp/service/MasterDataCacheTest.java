@@ -0,0 +1,197 @@
+package eu.nimble.service.tracking.imp.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import org.json.JSONArray;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.client.HttpClientErrorException;
+
+import eu.nimble.service.tracking.model.MasterDataReference;
+
+public class MasterDataCacheTest {
+
+	private static final String TYPE = "urn:epcglobal:epcis:vtype:BusinessLocation";
+	private static final String ID = "urn:epc:id:sgln:bizLocation.lindbacks.1";
+
+	private EpcisService epcisService;
+
+	private MasterDataCache cache;
+
+	@Before
+	public void setUp() {
+		epcisService = Mockito.mock(EpcisService.class);
+		TokenValidator tokenValidator = Mockito.mock(TokenValidator.class);
+		Mockito.when(tokenValidator.validate(Mockito.anyString())).thenReturn(CompletableFuture.completedFuture(null));
+		cache = new MasterDataCache();
+		ReflectionTestUtils.setField(cache, "epcisService", epcisService);
+		ReflectionTestUtils.setField(cache, "tokenValidator", tokenValidator);
+		ReflectionTestUtils.setField(cache, "maxSize", 100);
+		ReflectionTestUtils.setField(cache, "ttlMs", 60000L);
+		ReflectionTestUtils.setField(cache, "batchChunkSize", 2);
+		ReflectionTestUtils.setField(cache, "batchConcurrency", 2);
+		cache.init();
+	}
+
+	@Test
+	public void testConcurrentMissesShareOneQuery() {
+		CompletableFuture<String> query = new CompletableFuture<>();
+		Mockito.when(epcisService.queryMasterDataAsync(TYPE, ID, "token")).thenReturn(query);
+
+		List<CompletableFuture<CachedResult<String>>> results = new ArrayList<>();
+		for (int i = 0; i < 200; i++) {
+			results.add(cache.get(TYPE, ID, "token"));
+		}
+		query.complete("[{\"id\": \"" + ID + "\"}]");
+
+		for (CompletableFuture<CachedResult<String>> result : results) {
+			assertEquals("[{\"id\": \"" + ID + "\"}]", result.join().getValue());
+		}
+		Mockito.verify(epcisService, Mockito.times(1)).queryMasterDataAsync(TYPE, ID, "token");
+	}
+
+	@Test
+	public void testExpiryAndInvalidation() {
+		Mockito.when(epcisService.queryMasterDataAsync(Mockito.anyString(), Mockito.anyString(), Mockito.anyString()))
+				.thenAnswer(invocation -> CompletableFuture.completedFuture("[]"));
+
+		cache.get(TYPE, ID, "token");
+		cache.get(TYPE, ID, "token");
+		Mockito.verify(epcisService, Mockito.times(1)).queryMasterDataAsync(TYPE, ID, "token");
+
+		cache.invalidate(null, ID);
+		cache.get(TYPE, ID, "token");
+		Mockito.verify(epcisService, Mockito.times(2)).queryMasterDataAsync(TYPE, ID, "token");
+
+		ReflectionTestUtils.setField(cache, "ttlMs", -1L);
+		cache.invalidate(null, null);
+		cache.get(TYPE, ID, "token");
+		cache.get(TYPE, ID, "token");
+		Mockito.verify(epcisService, Mockito.times(4)).queryMasterDataAsync(TYPE, ID, "token");
+	}
+
+	@Test
+	public void testBatchQueriesMissingElementsByTypeAndChunk() {
+		String bizStep = "urn:epcglobal:cbv:bizstep:accepting";
+		Mockito.when(epcisService.queryMasterDataAsync(TYPE, ID, "token"))
+				.thenReturn(CompletableFuture.completedFuture("[" + element(TYPE, ID) + "]"));
+		Mockito.when(epcisService.queryMasterDataAsync(null, "A,B", "token"))
+				.thenReturn(CompletableFuture.completedFuture("[" + element(null, "A") + "]"));
+		Mockito.when(epcisService.queryMasterDataAsync(null, bizStep, "token"))
+				.thenReturn(CompletableFuture.completedFuture("[" + element(null, bizStep) + "]"));
+
+		// cached by the single lookup
+		cache.get(TYPE, ID, "token").join();
+		Map<String, JSONArray> masterData = cache.getAll(Arrays.asList(new MasterDataReference(TYPE, ID),
+				new MasterDataReference(null, "A"), new MasterDataReference(null, "B"), new MasterDataReference(null, "A"),
+				new MasterDataReference("", bizStep)), "token").join().getValue();
+
+		assertEquals(Arrays.asList(ID, "A", "B", bizStep), new ArrayList<>(masterData.keySet()));
+		assertEquals(1, masterData.get(ID).length());
+		assertEquals(1, masterData.get("A").length());
+		assertEquals(0, masterData.get("B").length());
+		assertEquals(1, masterData.get(bizStep).length());
+		Mockito.verify(epcisService, Mockito.times(1)).queryMasterDataAsync(TYPE, ID, "token");
+		Mockito.verify(epcisService, Mockito.times(1)).queryMasterDataAsync(null, "A,B", "token");
+
+		// the batch results are cached as well
+		cache.get(null, "B", "token");
+		Mockito.verify(epcisService, Mockito.never()).queryMasterDataAsync(null, "B", "token");
+	}
+
+	@Test
+	public void testConcurrentLookupsJoinBatchQuery() {
+		CompletableFuture<String> chunk = new CompletableFuture<>();
+		Mockito.when(epcisService.queryMasterDataAsync(null, "A,B", "token")).thenReturn(chunk);
+
+		CompletableFuture<CachedResult<Map<String, JSONArray>>> batch = cache.getAll(Arrays.asList(new MasterDataReference(null, "A"),
+				new MasterDataReference(null, "B")), "token");
+		CompletableFuture<CachedResult<String>> single = cache.get(null, "A", "token");
+		CompletableFuture<CachedResult<Map<String, JSONArray>>> otherBatch = cache.getAll(Arrays.asList(
+				new MasterDataReference(null, "B")), "token");
+		assertFalse(single.isDone());
+		assertFalse(otherBatch.isDone());
+
+		chunk.complete("[" + element(null, "A") + "]");
+		assertEquals(1, batch.join().getValue().get("A").length());
+		assertEquals("A", new JSONArray(single.join().getValue()).getJSONObject(0).getString("id"));
+		assertEquals(0, otherBatch.join().getValue().get("B").length());
+		Mockito.verify(epcisService, Mockito.times(1)).queryMasterDataAsync(null, "A,B", "token");
+		Mockito.verify(epcisService, Mockito.never()).queryMasterDataAsync(null, "A", "token");
+		Mockito.verify(epcisService, Mockito.never()).queryMasterDataAsync(null, "B", "token");
+	}
+
+	@Test
+	public void testChunkParsedForCallingRequest() throws Exception {
+		CompletableFuture<String> chunk = new CompletableFuture<>();
+		Mockito.when(epcisService.queryMasterDataAsync(null, "A", "token")).thenReturn(chunk);
+
+		RequestTiming caller = new RequestTiming(null, null);
+		RequestTiming.bind(caller);
+		CompletableFuture<CachedResult<Map<String, JSONArray>>> batch;
+		try {
+			batch = cache.getAll(Arrays.asList(new MasterDataReference(null, "A")), "token");
+		} finally {
+			RequestTiming.bind(null);
+		}
+
+		// completed by a thread, which serves another request
+		RequestTiming other = new RequestTiming(null, null);
+		Thread completion = new Thread(() -> other.runBound(() -> chunk.complete("[" + element(null, "A") + "]")));
+		completion.start();
+		completion.join();
+
+		assertEquals(1, batch.join().getValue().get("A").length());
+		assertTrue(caller.getServerTiming().startsWith("parse;dur="));
+		assertFalse(other.getServerTiming().contains("parse"));
+	}
+
+	@Test
+	public void testExpiredEntryServedWhileUnavailable() {
+		CompletableFuture<String> unavailable = new CompletableFuture<>();
+		unavailable.completeExceptionally(new UpstreamUnavailableException(UpstreamCommands.Upstream.EPCIS_MASTER_DATA,
+				HttpStatus.SERVICE_UNAVAILABLE, "circuit open"));
+		CompletableFuture<String> unauthorized = new CompletableFuture<>();
+		unauthorized.completeExceptionally(new HttpClientErrorException(HttpStatus.UNAUTHORIZED));
+		Mockito.when(epcisService.queryMasterDataAsync(TYPE, ID, "token"))
+				.thenReturn(CompletableFuture.completedFuture("[" + element(TYPE, ID) + "]"))
+				.thenReturn(unavailable);
+		Mockito.when(epcisService.queryMasterDataAsync(TYPE, ID, "other")).thenReturn(unauthorized);
+
+		// expires at once, but is kept
+		ReflectionTestUtils.setField(cache, "ttlMs", -1L);
+		assertFalse(cache.get(TYPE, ID, "token").join().isStale());
+
+		CachedResult<String> stale = cache.get(TYPE, ID, "token").join();
+		assertTrue(stale.isStale());
+		assertEquals("[" + element(TYPE, ID) + "]", stale.getValue());
+		CachedResult<Map<String, JSONArray>> staleBatch = cache.getAll(Arrays.asList(new MasterDataReference(TYPE, ID)), "token").join();
+		assertTrue(staleBatch.isStale());
+		assertEquals(1, staleBatch.getValue().get(ID).length());
+
+		// a client error is not answered from the cache
+		try {
+			cache.get(TYPE, ID, "other").join();
+			fail();
+		} catch (CompletionException e) {
+			assertTrue(e.getCause() instanceof HttpClientErrorException);
+		}
+	}
+
+	private static String element(String type, String id) {
+		return "{\"type\": \"" + (type == null ? "urn:epcglobal:epcis:vtype:BusinessStep" : type) + "\", \"id\": \"" + id + "\"}";
+	}
+}
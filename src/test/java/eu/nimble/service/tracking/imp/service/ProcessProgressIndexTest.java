@@ -0,0 +1,124 @@
+package eu.nimble.service.tracking.imp.service;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import eu.nimble.service.tracking.imp.service.ProcessProgressIndex.ClassSummary;
+
+public class ProcessProgressIndexTest {
+
+	private static final String TEMPLATE = "[" + step("1", "", "2") + "," + step("2", "1", "3") + "," + step("3", "2", "") + "]";
+
+	private EpcisService epcisService;
+
+	private ProcessProgressIndex index;
+
+	private ProductionProcessModel model;
+
+	@Before
+	public void setUp() {
+		epcisService = Mockito.mock(EpcisService.class);
+		TokenValidator tokenValidator = Mockito.mock(TokenValidator.class);
+		Mockito.when(tokenValidator.validate(Matchers.anyString())).thenReturn(CompletableFuture.completedFuture(null));
+		index = new ProcessProgressIndex();
+		ReflectionTestUtils.setField(index, "epcisService", epcisService);
+		ReflectionTestUtils.setField(index, "tokenValidator", tokenValidator);
+		ReflectionTestUtils.setField(index, "refreshIntervalMs", Long.MAX_VALUE);
+		model = ProductionProcessModel.compile(TEMPLATE);
+	}
+
+	@Test
+	public void testClassSummary() {
+		// TEST-1 is at step 1, TEST-2 skipped step 2, TEST-3 has no event of a step
+		Mockito.when(epcisService.pollEvents(Matchers.<Map<String, String>>any(), Matchers.anyString())).thenReturn(EpcisEventCodec.read("["
+				+ event("TEST-1", "1", 1000) + ","
+				+ event("TEST-2", "1", 2000) + ","
+				+ event("TEST-2", "3", 3000) + ","
+				+ event("TEST-3", "X", 4000) + "]"));
+		index.whenLoaded("token").join();
+
+		ClassSummary summary = index.getSummary("TEST", "v1", model, 5000, 10);
+
+		assertEquals(2, summary.getItemCount());
+		assertEquals(1, summary.getSteps().get(0).getCurrent());
+		assertEquals(1, summary.getSteps().get(1).getSkipped());
+		assertEquals(1, summary.getSteps().get(2).getCurrent());
+		// TEST-2 is at the last step and not stalled
+		assertEquals(1, summary.getStalledCount());
+		assertEquals("TEST-1", summary.getStalledItems().get(0).getEpc());
+		assertEquals("1", summary.getStalledItems().get(0).getCurrentStep().getId());
+	}
+
+	@Test
+	public void testNewEventUpdatesSummary() {
+		Mockito.when(epcisService.pollEvents(Matchers.<Map<String, String>>any(), Matchers.anyString())).thenReturn(EpcisEventCodec.read("["
+				+ event("TEST-1", "1", 1000) + "]"));
+		index.whenLoaded("token").join();
+		assertEquals(1, index.getSummary("TEST", "v1", model, 5000, 10).getSteps().get(0).getCurrent());
+
+		index.accept(EpcisEventCodec.read("[" + event("TEST-1", "2", 6000) + "]"));
+
+		ClassSummary summary = index.getSummary("TEST", "v1", model, 5000, 10);
+		assertEquals(0, summary.getSteps().get(0).getCurrent());
+		assertEquals(1, summary.getSteps().get(1).getCurrent());
+		assertEquals(0, summary.getStalledCount());
+	}
+
+	@Test
+	public void testItemBelongsToClassFromFirstStep() {
+		// TEST-1 has only an event of step 2, which may be a step of another product class as well
+		Mockito.when(epcisService.pollEvents(Matchers.<Map<String, String>>any(), Matchers.anyString())).thenReturn(EpcisEventCodec.read("["
+				+ event("TEST-1", "2", 1000) + "]"));
+		index.whenLoaded("token").join();
+		assertEquals(0, index.getSummary("TEST", "v1", model, 5000, 10).getItemCount());
+
+		index.accept(EpcisEventCodec.read("[" + event("TEST-2", "2", 2000) + "]"));
+		assertEquals(0, index.getSummary("TEST", "v1", model, 5000, 10).getItemCount());
+
+		// TEST-1 reached step 1 only after step 2
+		index.accept(EpcisEventCodec.read("[" + event("TEST-1", "1", 3000) + "]"));
+		ClassSummary summary = index.getSummary("TEST", "v1", model, 5000, 10);
+		assertEquals(1, summary.getItemCount());
+		assertEquals(1, summary.getSteps().get(0).getOutOfOrder());
+	}
+
+	@Test
+	public void testEventWithoutBizLocation() {
+		// step 1 and the event of TEST-1 have no bizLocation, the event of TEST-2 has neither bizLocation nor bizStep
+		ProductionProcessModel withoutBizLocation = ProductionProcessModel.compile("[{\"id\":\"1\",\"hasPrev\":\"\","
+				+ "\"readPoint\":\"urn:epc:id:sgln:readPoint.test.1\",\"bizStep\":\"urn:epcglobal:cbv:bizstep:step1\",\"hasNext\":\"\"}]");
+		Mockito.when(epcisService.pollEvents(Matchers.<Map<String, String>>any(), Matchers.anyString())).thenReturn(EpcisEventCodec.read("["
+				+ "{\"eventType\":\"ObjectEvent\",\"epcList\":[{\"epc\":\"TEST-1\"}],\"readPoint\":{\"id\":\"urn:epc:id:sgln:readPoint.test.1\"},"
+				+ "\"bizStep\":\"urn:epcglobal:cbv:bizstep:step1\",\"eventTime\":{\"$date\":1000},\"recordTime\":{\"$date\":1000}},"
+				+ "{\"eventType\":\"ObjectEvent\",\"epcList\":[{\"epc\":\"TEST-2\"}],\"readPoint\":{\"id\":\"urn:epc:id:sgln:readPoint.test.1\"},"
+				+ "\"eventTime\":{\"$date\":2000},\"recordTime\":{\"$date\":2000}}]"));
+		index.whenLoaded("token").join();
+
+		ClassSummary summary = index.getSummary("TEST", "v0", withoutBizLocation, 5000, 10);
+
+		assertEquals(1, summary.getItemCount());
+		assertEquals(1, summary.getSteps().get(0).getCurrent());
+	}
+
+	private static String step(String id, String hasPrev, String hasNext) {
+		return "{\"id\":\"" + id + "\",\"hasPrev\":\"" + hasPrev + "\",\"readPoint\":\"urn:epc:id:sgln:readPoint.test." + id + "\","
+				+ "\"bizLocation\":\"urn:epc:id:sgln:bizLocation.test." + id + "\",\"bizStep\":\"urn:epcglobal:cbv:bizstep:step" + id + "\","
+				+ "\"hasNext\":\"" + hasNext + "\"}";
+	}
+
+	private static String event(String epc, String stepId, long eventTime) {
+		return "{\"eventType\":\"ObjectEvent\",\"epcList\":[{\"epc\":\"" + epc + "\"}],"
+				+ "\"readPoint\":{\"id\":\"urn:epc:id:sgln:readPoint.test." + stepId + "\"},"
+				+ "\"bizLocation\":{\"id\":\"urn:epc:id:sgln:bizLocation.test." + stepId + "\"},"
+				+ "\"bizStep\":\"urn:epcglobal:cbv:bizstep:step" + stepId + "\",\"eventTime\":{\"$date\":" + eventTime + "},"
+				+ "\"recordTime\":{\"$date\":" + eventTime + "}}";
+	}
+}
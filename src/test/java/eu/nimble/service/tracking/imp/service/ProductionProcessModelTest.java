@@ -0,0 +1,90 @@
+package eu.nimble.service.tracking.imp.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import eu.nimble.service.tracking.imp.service.ProductionProcessModel.Conformance;
+import eu.nimble.service.tracking.imp.service.ProductionProcessModel.StepResult;
+import eu.nimble.service.tracking.imp.service.ProductionProcessModel.StepStatus;
+import eu.nimble.service.tracking.model.ProductionProcessStep;
+
+public class ProductionProcessModelTest {
+
+	// steps listed out of process order: 1 -> 2 -> 3 -> 4
+	private static final String TEMPLATE = "["
+			+ step("3", "2", "4") + ","
+			+ step("1", "", "2") + ","
+			+ step("4", "3", "") + ","
+			+ step("2", "1", "3") + "]";
+
+	@Test
+	public void testStepsFollowHasNext() {
+		ProductionProcessModel model = ProductionProcessModel.compile(TEMPLATE);
+
+		List<String> stepIds = new ArrayList<>();
+		for (ProductionProcessStep step : model.getSteps()) {
+			stepIds.add(step.getId());
+		}
+		assertEquals(Arrays.asList("1", "2", "3", "4"), stepIds);
+	}
+
+	@Test
+	public void testSkippedAndOutOfOrderSteps() {
+		ProductionProcessModel model = ProductionProcessModel.compile(TEMPLATE);
+
+		// step 2 is done after step 3, step 1 twice, and one event does not belong to the template
+		Conformance conformance = model.replay(EpcisEventCodec.read("["
+				+ event("3", 3000) + ","
+				+ event("1", 1000) + ","
+				+ event("2", 4000) + ","
+				+ event("1", 2000) + ","
+				+ event("X", 5000) + "]"));
+
+		assertEquals("3", conformance.getCurrentStep().getStep().getId());
+		assertEquals(1, conformance.getUnmatchedEvents());
+		List<StepResult> steps = conformance.getSteps();
+		assertEquals(StepStatus.COMPLETED, steps.get(0).getStatus());
+		assertEquals(1000, steps.get(0).getFirstEventTime());
+		assertEquals(2000, steps.get(0).getLastEventTime());
+		assertEquals(2, steps.get(0).getEventCount());
+		assertEquals(StepStatus.OUT_OF_ORDER, steps.get(1).getStatus());
+		assertEquals(StepStatus.COMPLETED, steps.get(2).getStatus());
+		assertEquals(StepStatus.PENDING, steps.get(3).getStatus());
+	}
+
+	@Test
+	public void testSkippedStep() {
+		Conformance conformance = ProductionProcessModel.compile(TEMPLATE).replay(EpcisEventCodec.read("["
+				+ event("1", 1000) + "," + event("3", 2000) + "]"));
+
+		assertEquals(StepStatus.SKIPPED, conformance.getSteps().get(1).getStatus());
+		assertEquals(-1, conformance.getSteps().get(1).getFirstEventTime());
+	}
+
+	@Test
+	public void testNoEvents() {
+		Conformance conformance = ProductionProcessModel.compile(TEMPLATE).replay(Collections.emptyList());
+
+		assertNull(conformance.getCurrentStep());
+		assertEquals(StepStatus.PENDING, conformance.getSteps().get(0).getStatus());
+	}
+
+	private static String step(String id, String hasPrev, String hasNext) {
+		return "{\"id\":\"" + id + "\",\"hasPrev\":\"" + hasPrev + "\",\"readPoint\":\"urn:epc:id:sgln:readPoint.test." + id + "\","
+				+ "\"bizLocation\":\"urn:epc:id:sgln:bizLocation.test." + id + "\",\"bizStep\":\"urn:epcglobal:cbv:bizstep:step" + id + "\","
+				+ "\"hasNext\":\"" + hasNext + "\"}";
+	}
+
+	private static String event(String stepId, long eventTime) {
+		return "{\"eventType\":\"ObjectEvent\",\"readPoint\":{\"id\":\"urn:epc:id:sgln:readPoint.test." + stepId + "\"},"
+				+ "\"bizLocation\":{\"id\":\"urn:epc:id:sgln:bizLocation.test." + stepId + "\"},"
+				+ "\"bizStep\":\"urn:epcglobal:cbv:bizstep:step" + stepId + "\",\"eventTime\":{\"$date\":" + eventTime + "}}";
+	}
+}
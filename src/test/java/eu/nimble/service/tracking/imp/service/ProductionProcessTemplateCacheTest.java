@@ -0,0 +1,99 @@
+package eu.nimble.service.tracking.imp.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.util.ReflectionTestUtils;
+
+public class ProductionProcessTemplateCacheTest {
+
+	private static final String TEMPLATE = "[{\"id\": \"1\", \"hasPrev\": \"\", \"hasNext\": \"\"}]";
+
+	private EpcisService epcisService;
+
+	private ProductionProcessTemplateCache cache;
+
+	@Before
+	public void setUp() {
+		epcisService = Mockito.mock(EpcisService.class);
+		TokenValidator tokenValidator = Mockito.mock(TokenValidator.class);
+		Mockito.when(tokenValidator.validate(Mockito.anyString())).thenReturn(CompletableFuture.completedFuture(null));
+		cache = new ProductionProcessTemplateCache();
+		ReflectionTestUtils.setField(cache, "epcisService", epcisService);
+		ReflectionTestUtils.setField(cache, "tokenValidator", tokenValidator);
+		ReflectionTestUtils.setField(cache, "maxSize", 10);
+		ReflectionTestUtils.setField(cache, "revalidateAfterMs", 0L);
+		cache.init();
+	}
+
+	@Test
+	public void testRevalidationWithETag() {
+		HttpHeaders headers = new HttpHeaders();
+		headers.setETag("\"v1\"");
+		Mockito.when(epcisService.getProductionProcessTemplateAsync("TEST", null, -1, "token"))
+				.thenReturn(CompletableFuture.completedFuture(new ResponseEntity<>(TEMPLATE, headers, HttpStatus.OK)));
+		Mockito.when(epcisService.getProductionProcessTemplateAsync("TEST", "\"v1\"", -1, "token"))
+				.thenReturn(CompletableFuture.completedFuture(new ResponseEntity<>(HttpStatus.NOT_MODIFIED)));
+
+		ProductionProcessTemplateCache.Template first = cache.get("TEST", "token").join();
+		ProductionProcessTemplateCache.Template second = cache.get("TEST", "token").join();
+
+		assertEquals(TEMPLATE, second.getContent());
+		assertEquals(first.getFingerprint(), second.getFingerprint());
+		Mockito.verify(epcisService).getProductionProcessTemplateAsync("TEST", "\"v1\"", -1, "token");
+	}
+
+	@Test
+	public void testFingerprintWithoutValidators() {
+		Mockito.when(epcisService.getProductionProcessTemplateAsync("TEST", null, -1, "token"))
+				.thenReturn(CompletableFuture.completedFuture(new ResponseEntity<>(TEMPLATE, HttpStatus.OK)))
+				.thenReturn(CompletableFuture.completedFuture(new ResponseEntity<>(TEMPLATE, HttpStatus.OK)))
+				.thenReturn(CompletableFuture.completedFuture(new ResponseEntity<>("[]", HttpStatus.OK)));
+
+		String fingerprint = cache.get("TEST", "token").join().getFingerprint();
+		assertEquals(fingerprint, cache.get("TEST", "token").join().getFingerprint());
+		assertNotEquals(fingerprint, cache.get("TEST", "token").join().getFingerprint());
+	}
+
+	@Test
+	public void testCachedWithinRevalidationTime() {
+		ReflectionTestUtils.setField(cache, "revalidateAfterMs", 60000L);
+		Mockito.when(epcisService.getProductionProcessTemplateAsync("TEST", null, -1, "token"))
+				.thenReturn(CompletableFuture.completedFuture(new ResponseEntity<>(TEMPLATE, HttpStatus.OK)));
+
+		cache.get("TEST", "token").join();
+		cache.get("TEST", "token").join();
+
+		Mockito.verify(epcisService, Mockito.times(1)).getProductionProcessTemplateAsync("TEST", null, -1, "token");
+	}
+
+	@Test
+	public void testStaleWhileUnavailable() {
+		CompletableFuture<ResponseEntity<String>> timedOut = new CompletableFuture<>();
+		timedOut.completeExceptionally(new UpstreamUnavailableException(UpstreamCommands.Upstream.PROCESS_TEMPLATE,
+				HttpStatus.GATEWAY_TIMEOUT, "timed out"));
+		Mockito.when(epcisService.getProductionProcessTemplateAsync("TEST", null, -1, "token"))
+				.thenReturn(CompletableFuture.completedFuture(new ResponseEntity<>(TEMPLATE, HttpStatus.OK)))
+				.thenReturn(timedOut)
+				.thenReturn(CompletableFuture.completedFuture(new ResponseEntity<>(TEMPLATE, HttpStatus.OK)));
+
+		ProductionProcessTemplateCache.Template fresh = cache.get("TEST", "token").join();
+		ProductionProcessTemplateCache.Template stale = cache.get("TEST", "token").join();
+
+		assertFalse(fresh.isStale());
+		assertTrue(stale.isStale());
+		assertEquals(fresh.getFingerprint(), stale.getFingerprint());
+		// the stale template is not kept, the next request revalidates
+		assertFalse(cache.get("TEST", "token").join().isStale());
+	}
+}
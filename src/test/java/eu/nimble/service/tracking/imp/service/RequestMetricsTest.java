@@ -0,0 +1,91 @@
+package eu.nimble.service.tracking.imp.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.HttpServerErrorException;
+
+import eu.nimble.service.tracking.imp.service.UpstreamCommands.Upstream;
+
+public class RequestMetricsTest {
+
+	private RequestMetrics requestMetrics;
+
+	@Before
+	public void setUp() {
+		requestMetrics = new RequestMetrics();
+	}
+
+	@Test
+	public void testServerRequestHistogram() throws IOException {
+		long now = System.nanoTime();
+		requestMetrics.recordServerRequest("GET", "/simpleTracking/{itemID:.+}", 200, now, -1, 100);
+		requestMetrics.recordServerRequest("GET", "/simpleTracking/{itemID:.+}", 502, now - TimeUnit.MILLISECONDS.toNanos(300), -1, 20);
+		requestMetrics.recordServerRequest("POST", "/verifyEventsInBlockchain", 200, now, 50, 4);
+
+		String text = this.scrape();
+		String labels = "{endpoint=\"/simpleTracking/{itemID:.+}\",method=\"GET\"";
+		assertTrue(text.contains("tracking_http_server_requests_seconds_bucket" + labels + ",le=\"0.25\"} 1\n"));
+		assertTrue(text.contains("tracking_http_server_requests_seconds_bucket" + labels + ",le=\"0.5\"} 2\n"));
+		assertTrue(text.contains("tracking_http_server_requests_seconds_bucket" + labels + ",le=\"+Inf\"} 2\n"));
+		assertTrue(text.contains("tracking_http_server_requests_seconds_count" + labels + "} 2\n"));
+		assertTrue(text.contains("tracking_http_server_errors_total" + labels + "} 1\n"));
+		assertTrue(text.contains("tracking_http_server_response_bytes_total" + labels + "} 120\n"));
+		assertTrue(text.contains("tracking_http_server_request_bytes_total{endpoint=\"/verifyEventsInBlockchain\",method=\"POST\"} 50\n"));
+
+		String max = this.getSample(text, "tracking_http_server_requests_seconds_max" + labels + "}");
+		assertTrue(Double.parseDouble(max) >= 0.3);
+	}
+
+	@Test
+	public void testUpstreamCallsByQuery() throws IOException {
+		long now = System.nanoTime();
+		String objectEvents = RequestMetrics.getEventQuery(Collections.singletonMap("eventType", "ObjectEvent"));
+		assertEquals("SimpleEventQuery:ObjectEvent", objectEvents);
+		assertEquals("SimpleEventQuery", RequestMetrics.getEventQuery(Collections.singletonMap("MATCH_epc", "TEST-1")));
+
+		requestMetrics.recordUpstreamCall(Upstream.EPCIS_EVENTS, objectEvents, now, null, 1000);
+		requestMetrics.recordUpstreamCall(Upstream.EPCIS_EVENTS, objectEvents, now,
+				new HttpServerErrorException(HttpStatus.BAD_GATEWAY), -1);
+		// a client error is an answer of the upstream
+		requestMetrics.recordUpstreamCall(Upstream.PROCESS_TEMPLATE, "GetProductionProcessTemplate", now,
+				new HttpClientErrorException(HttpStatus.NOT_FOUND), 10);
+
+		String text = this.scrape();
+		String events = "{upstream=\"epcis-events\",query=\"SimpleEventQuery:ObjectEvent\"";
+		assertTrue(text.contains("tracking_upstream_requests_seconds_count" + events + "} 2\n"));
+		assertTrue(text.contains("tracking_upstream_errors_total" + events + "} 1\n"));
+		assertTrue(text.contains("tracking_upstream_response_bytes_total" + events + "} 1000\n"));
+		assertTrue(text.contains("tracking_upstream_errors_total{upstream=\"process-template\",query=\"GetProductionProcessTemplate\"} 0\n"));
+		assertTrue(text.contains("# TYPE tracking_upstream_requests_seconds histogram\n"));
+	}
+
+	@Test
+	public void testLabelValuesEscaped() {
+		assertEquals("a\\\"b\\\\c\\n", RequestMetrics.escape("a\"b\\c\n"));
+	}
+
+	private String scrape() throws IOException {
+		StringWriter writer = new StringWriter();
+		requestMetrics.writePrometheus(writer);
+		return writer.toString();
+	}
+
+	private String getSample(String text, String series) {
+		for (String line : text.split("\n")) {
+			if (line.startsWith(series + " ")) {
+				return line.substring(series.length() + 1);
+			}
+		}
+		throw new AssertionError(series + " not found");
+	}
+}
@@ -0,0 +1,81 @@
+package eu.nimble.service.tracking.imp.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.After;
+import org.junit.Test;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+import org.springframework.cloud.sleuth.Span;
+import org.springframework.cloud.sleuth.Tracer;
+
+import eu.nimble.service.tracking.imp.service.RequestTiming.Phase;
+
+public class RequestTimingTest {
+
+	@After
+	public void tearDown() {
+		RequestTiming.bind(null);
+	}
+
+	@Test
+	public void testServerTimingOfRecordedPhases() {
+		RequestTiming timing = new RequestTiming(null, null);
+		RequestTiming.Stopwatch upstream = timing.start(Phase.UPSTREAM);
+		upstream.stop();
+		timing.start(Phase.UPSTREAM).stop();
+		assertEquals("[]", timing.time(Phase.SERIALIZATION, () -> "[]"));
+
+		String serverTiming = timing.getServerTiming();
+		assertTrue(serverTiming, serverTiming.matches("upstream;dur=\\d+\\.\\d;desc=\"Upstream fetch \\(2\\)\", "
+				+ "serialize;dur=\\d+\\.\\d;desc=\"JSON serialization \\(1\\)\", total;dur=\\d+\\.\\d"));
+		assertFalse(serverTiming.contains("parse"));
+	}
+
+	@Test
+	public void testBoundToCompletingThread() throws Exception {
+		RequestTiming timing = new RequestTiming(null, null);
+		CompletableFuture<String> call = new CompletableFuture<>();
+		CompletableFuture<String> parsed = call.thenApply(body -> RequestTiming.current().time(Phase.PARSE, () -> body));
+
+		Thread completion = new Thread(() -> timing.runBound(() -> call.complete("[]")));
+		completion.start();
+		completion.join();
+
+		assertEquals("[]", parsed.get());
+		assertTrue(timing.getServerTiming().startsWith("parse;dur="));
+		// not bound to this thread, so nothing is recorded outside of a request
+		RequestTiming.current().time(Phase.HASHING, () -> "hash");
+		assertFalse(timing.getServerTiming().contains("hash"));
+	}
+
+	@Test
+	public void testPhasesAreChildSpans() {
+		Tracer tracer = Mockito.mock(Tracer.class);
+		Span requestSpan = Span.builder().traceId(1).spanId(1).name("http:/genealogy").build();
+		Span phaseSpan = Span.builder().traceId(1).spanId(2).parent(1L).name("traversal").build();
+		Mockito.when(tracer.createSpan(Matchers.anyString(), Matchers.any(Span.class))).thenAnswer(invocation -> phaseSpan);
+		Mockito.when(tracer.continueSpan(phaseSpan)).thenAnswer(invocation -> phaseSpan);
+
+		RequestTiming timing = new RequestTiming(tracer, requestSpan);
+		RequestTiming.bind(timing);
+		assertSame(timing, RequestTiming.current());
+
+		timing.time(Phase.TRAVERSAL, () -> null);
+		Mockito.verify(tracer).createSpan("traversal", requestSpan);
+		Mockito.verify(tracer).close(phaseSpan);
+
+		// a phase ending on another thread is detached from the starting thread and continued at its end
+		RequestTiming.Stopwatch upstream = timing.start(Phase.UPSTREAM);
+		Mockito.verify(tracer).createSpan("upstream", requestSpan);
+		Mockito.verify(tracer).detach(phaseSpan);
+		upstream.stop();
+		Mockito.verify(tracer).continueSpan(phaseSpan);
+		Mockito.verify(tracer, Mockito.times(2)).close(phaseSpan);
+	}
+}
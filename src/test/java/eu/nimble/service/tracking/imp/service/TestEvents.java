@@ -0,0 +1,24 @@
+package eu.nimble.service.tracking.imp.service;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import eu.nimble.service.tracking.model.AggregationEvent;
+import eu.nimble.service.tracking.model.TransformationEvent;
+
+/**
+ * Typed EPCIS events of the tests, as returned by the mocked {@link EpcisService}. Fields, which the tests do not need, are empty.
+ */
+final class TestEvents {
+
+	private TestEvents() {
+	}
+
+	static AggregationEvent aggregationEvent(String action, String parentID, long eventTime, String... childEPCs) {
+		return new AggregationEvent(null, eventTime, -1, action, null, null, null, parentID, Arrays.asList(childEPCs));
+	}
+
+	static TransformationEvent transformationEvent(long eventTime, String inputEPC, String... outputEPCs) {
+		return new TransformationEvent(null, eventTime, -1, null, null, null, Collections.singletonList(inputEPC), Arrays.asList(outputEPCs));
+	}
+}
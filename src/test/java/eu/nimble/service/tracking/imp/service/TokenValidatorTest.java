@@ -0,0 +1,95 @@
+package eu.nimble.service.tracking.imp.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.client.HttpClientErrorException;
+
+import eu.nimble.service.tracking.imp.service.UpstreamCommands.Upstream;
+
+public class TokenValidatorTest {
+
+	private EpcisService epcisService;
+
+	private TokenValidator tokenValidator;
+
+	@Before
+	public void setUp() {
+		epcisService = Mockito.mock(EpcisService.class);
+		tokenValidator = new TokenValidator();
+		ReflectionTestUtils.setField(tokenValidator, "epcisService", epcisService);
+		ReflectionTestUtils.setField(tokenValidator, "ttlMs", 60000L);
+		ReflectionTestUtils.setField(tokenValidator, "graceMs", 3600000L);
+		ReflectionTestUtils.setField(tokenValidator, "maxSize", 100);
+		tokenValidator.init();
+	}
+
+	@Test
+	public void testValidTokenIsCachedAndShared() {
+		CompletableFuture<Void> check = new CompletableFuture<>();
+		Mockito.when(epcisService.checkTokenAsync("token")).thenReturn(check);
+
+		List<CompletableFuture<Void>> validations = new ArrayList<>();
+		for (int i = 0; i < 100; i++) {
+			validations.add(tokenValidator.validate("token"));
+		}
+		check.complete(null);
+		for (CompletableFuture<Void> validation : validations) {
+			validation.join();
+		}
+
+		tokenValidator.validate("token").join();
+		Mockito.verify(epcisService, Mockito.times(1)).checkTokenAsync("token");
+	}
+
+	@Test
+	public void testRejectedToken() {
+		CompletableFuture<Void> rejected = new CompletableFuture<>();
+		rejected.completeExceptionally(new HttpClientErrorException(HttpStatus.UNAUTHORIZED));
+		Mockito.when(epcisService.checkTokenAsync("invalid")).thenReturn(rejected);
+
+		for (int i = 0; i < 2; i++) {
+			try {
+				tokenValidator.validate("invalid").join();
+				fail();
+			} catch (CompletionException e) {
+				assertEquals(HttpStatus.UNAUTHORIZED, ((HttpClientErrorException) e.getCause()).getStatusCode());
+			}
+		}
+		// a rejected token is not cached, it is checked again
+		Mockito.verify(epcisService, Mockito.times(2)).checkTokenAsync("invalid");
+	}
+
+	@Test
+	public void testGraceWhileUnavailable() {
+		Mockito.when(epcisService.checkTokenAsync("token")).thenReturn(CompletableFuture.completedFuture(null));
+		tokenValidator.validate("token").join();
+
+		ReflectionTestUtils.setField(tokenValidator, "ttlMs", -1L);
+		CompletableFuture<Void> unavailable = new CompletableFuture<>();
+		unavailable.completeExceptionally(new UpstreamUnavailableException(Upstream.EPCIS_EVENTS,
+				HttpStatus.SERVICE_UNAVAILABLE, "timed out"));
+		Mockito.when(epcisService.checkTokenAsync(Mockito.anyString())).thenReturn(unavailable);
+
+		// validated before, so accepted while the EPCIS repository is unavailable
+		tokenValidator.validate("token").join();
+
+		try {
+			tokenValidator.validate("unknown").join();
+			fail();
+		} catch (CompletionException e) {
+			assertTrue(e.getCause() instanceof UpstreamUnavailableException);
+		}
+	}
+}
@@ -0,0 +1,108 @@
+package eu.nimble.service.tracking.imp.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static eu.nimble.service.tracking.imp.service.TestEvents.transformationEvent;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import eu.nimble.service.tracking.model.EpcisEvent;
+import eu.nimble.service.tracking.model.TransformationEvent;
+
+public class TransformationFrontierQueryTest {
+
+	private EpcisService epcisService;
+
+	private TransformationFrontierQuery query;
+
+	private final List<TransformationEvent> events = new ArrayList<>();
+
+	// MATCH_inputEPC of each query, in query order
+	private final List<String> queriedInputs = Collections.synchronizedList(new ArrayList<>());
+
+	@Before
+	public void setUp() {
+		epcisService = Mockito.mock(EpcisService.class);
+		query = new TransformationFrontierQuery();
+		ReflectionTestUtils.setField(query, "epcisService", epcisService);
+		ReflectionTestUtils.setField(query, "chunkSize", 2);
+		ReflectionTestUtils.setField(query, "concurrency", 4);
+		Mockito.when(epcisService.pollEventsAsync(Matchers.<Map<String, String>>any(), Matchers.anyString())).thenAnswer(invocation -> {
+			@SuppressWarnings("unchecked")
+			Map<String, String> queryParams = (Map<String, String>) invocation.getArguments()[0];
+			List<String> inputs = Arrays.asList(queryParams.get("MATCH_inputEPC").split(","));
+			queriedInputs.add(queryParams.get("MATCH_inputEPC"));
+
+			// the EPCIS repository returns the events consuming one of the inputs
+			List<EpcisEvent> matching = new ArrayList<>();
+			for (TransformationEvent event : events) {
+				if (inputs.contains(event.getInputEPCList().get(0))) {
+					matching.add(event);
+				}
+			}
+			return CompletableFuture.completedFuture(matching);
+		});
+	}
+
+	@Test
+	public void testOneQueryPerLevelChunk() {
+		events.addAll(Arrays.asList(transformationEvent(1000, "TEST-1", "TEST-2", "TEST-3", "TEST-4"),
+				transformationEvent(1000, "TEST-2", "TEST-5"),
+				transformationEvent(1000, "TEST-3", "TEST-5"),
+				transformationEvent(1000, "TEST-5", "TEST-1")));
+
+		EpcGraphTraversal.Result result = query.getOutputTree("TEST-1", 100, 100, "token").join();
+
+		assertEquals(4, result.getNodes().size());
+		assertEquals(Arrays.asList("TEST-2", "TEST-3", "TEST-4"), result.getNodes().get(0).getSuccessors());
+		assertFalse(result.isTruncated());
+		// level 2 is split into chunks of 2 inputs, TEST-1 is not queried again
+		assertEquals(Arrays.asList("TEST-1", "TEST-2,TEST-3", "TEST-4", "TEST-5"), queriedInputs);
+	}
+
+	@Test
+	public void testChunksLimitedByConcurrency() {
+		String[] outputs = new String[20];
+		for (int i = 0; i < outputs.length; i++) {
+			outputs[i] = "TEST-OUT-" + i;
+		}
+		ReflectionTestUtils.setField(query, "concurrency", 3);
+		List<CompletableFuture<List<EpcisEvent>>> pending = Collections.synchronizedList(new ArrayList<>());
+		Mockito.doAnswer(invocation -> {
+			@SuppressWarnings("unchecked")
+			Map<String, String> queryParams = (Map<String, String>) invocation.getArguments()[0];
+			CompletableFuture<List<EpcisEvent>> events = new CompletableFuture<>();
+			if ("TEST-1".equals(queryParams.get("MATCH_inputEPC"))) {
+				events.complete(Collections.singletonList(transformationEvent(1000, "TEST-1", outputs)));
+			} else {
+				pending.add(events);
+			}
+			return events;
+		}).when(epcisService).pollEventsAsync(Matchers.<Map<String, String>>any(), Matchers.anyString());
+
+		CompletableFuture<EpcGraphTraversal.Result> result = query.getOutputTree("TEST-1", 2, 100, "token");
+
+		// level 2 has 10 chunks, at most 3 of them are queried at a time
+		int completed = 0;
+		while (completed < 10) {
+			assertTrue(pending.size() - completed <= 3);
+			assertFalse(result.isDone());
+			pending.get(completed++).complete(Collections.emptyList());
+		}
+		assertEquals(10, pending.size());
+		assertEquals(20, result.join().getNodes().get(0).getSuccessors().size());
+	}
+
+}
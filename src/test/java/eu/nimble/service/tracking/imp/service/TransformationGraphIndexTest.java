@@ -0,0 +1,79 @@
+package eu.nimble.service.tracking.imp.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static eu.nimble.service.tracking.imp.service.TestEvents.transformationEvent;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import eu.nimble.service.tracking.model.EpcisEvent;
+
+public class TransformationGraphIndexTest {
+
+	private EpcisService epcisService;
+
+	private TransformationGraphIndex index;
+
+	@Before
+	public void setUp() {
+		epcisService = Mockito.mock(EpcisService.class);
+		TokenValidator tokenValidator = Mockito.mock(TokenValidator.class);
+		Mockito.when(tokenValidator.validate(Matchers.anyString())).thenReturn(CompletableFuture.completedFuture(null));
+		index = new TransformationGraphIndex();
+		ReflectionTestUtils.setField(index, "epcisService", epcisService);
+		ReflectionTestUtils.setField(index, "tokenValidator", tokenValidator);
+		ReflectionTestUtils.setField(index, "refreshIntervalMs", Long.MAX_VALUE);
+	}
+
+	@Test
+	public void testSharedOutputIsVisitedOnce() {
+		mockEvents(transformationEvent(1000, "TEST-1", "TEST-2", "TEST-3"),
+				transformationEvent(1000, "TEST-2", "TEST-4"),
+				transformationEvent(1000, "TEST-3", "TEST-4"),
+				transformationEvent(1000, "TEST-4", "TEST-5"));
+
+		EpcGraphTraversal.Result result = index.getOutputTree("TEST-1", 100, 100);
+
+		assertEquals(4, result.getNodes().size());
+		assertEquals("TEST-1", result.getNodes().get(0).getEpc());
+		assertEquals(Arrays.asList("TEST-2", "TEST-3"), result.getNodes().get(0).getSuccessors());
+		assertEquals("TEST-4", result.getNodes().get(3).getEpc());
+		assertFalse(result.isTruncated());
+	}
+
+	@Test
+	public void testCycleTerminates() {
+		mockEvents(transformationEvent(1000, "TEST-1", "TEST-2"), transformationEvent(1000, "TEST-2", "TEST-1"));
+
+		EpcGraphTraversal.Result result = index.getOutputTree("TEST-1", 100, 100);
+
+		assertEquals(2, result.getNodes().size());
+		assertFalse(result.isTruncated());
+	}
+
+	@Test
+	public void testLimits() {
+		mockEvents(transformationEvent(1000, "TEST-1", "TEST-2"), transformationEvent(1000, "TEST-2", "TEST-3"),
+				transformationEvent(1000, "TEST-3", "TEST-4"));
+
+		assertEquals(2, index.getOutputTree("TEST-1", 2, 100).getNodes().size());
+		assertTrue(index.getOutputTree("TEST-1", 2, 100).isTruncated());
+		assertTrue(index.getOutputTree("TEST-1", 100, 2).isTruncated());
+	}
+
+	private void mockEvents(EpcisEvent... events) {
+		Mockito.when(epcisService.pollEvents(Matchers.<Map<String, String>>any(), Matchers.anyString()))
+				.thenReturn(Arrays.asList(events));
+		index.whenLoaded("token").join();
+	}
+
+}
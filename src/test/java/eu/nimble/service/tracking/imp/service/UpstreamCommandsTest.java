@@ -0,0 +1,176 @@
+package eu.nimble.service.tracking.imp.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.HttpServerErrorException;
+
+import com.netflix.hystrix.Hystrix;
+
+import eu.nimble.service.tracking.imp.service.UpstreamCommands.Upstream;
+
+public class UpstreamCommandsTest {
+
+	private UpstreamCommands upstreamCommands;
+
+	@Before
+	public void setUp() {
+		upstreamCommands = new UpstreamCommands();
+		for (String field : new String[] { "epcisEventsTimeoutMs", "epcisEventStreamTimeoutMs", "masterDataTimeoutMs", "templateTimeoutMs", "blockchainTimeoutMs" }) {
+			ReflectionTestUtils.setField(upstreamCommands, field, 200);
+		}
+		for (String field : new String[] { "epcisEventsMaxConcurrent", "epcisEventStreamMaxConcurrent", "masterDataMaxConcurrent", "templateMaxConcurrent", "blockchainMaxConcurrent" }) {
+			ReflectionTestUtils.setField(upstreamCommands, field, 2);
+		}
+		ReflectionTestUtils.setField(upstreamCommands, "blockchainMaxQueued", 1);
+		ReflectionTestUtils.setField(upstreamCommands, "errorThresholdPercentage", 50);
+		ReflectionTestUtils.setField(upstreamCommands, "requestVolumeThreshold", 2);
+		ReflectionTestUtils.setField(upstreamCommands, "sleepWindowMs", 60000);
+		upstreamCommands.init();
+	}
+
+	@After
+	public void tearDown() {
+		Hystrix.reset();
+	}
+
+	@Test
+	public void testClientErrorPassedThrough() {
+		for (int i = 0; i < 10; i++) {
+			CompletableFuture<String> unauthorized = new CompletableFuture<>();
+			unauthorized.completeExceptionally(new HttpClientErrorException(HttpStatus.UNAUTHORIZED));
+			try {
+				upstreamCommands.executeAsync(Upstream.EPCIS_MASTER_DATA, () -> unauthorized).join();
+				fail();
+			} catch (CompletionException e) {
+				assertTrue(e.getCause() instanceof HttpClientErrorException);
+			}
+		}
+		assertFalse(upstreamCommands.isCircuitOpen(Upstream.EPCIS_MASTER_DATA));
+	}
+
+	@Test
+	public void testTimeoutCancelsCall() {
+		CompletableFuture<String> call = new CompletableFuture<>();
+
+		try {
+			upstreamCommands.executeAsync(Upstream.EPCIS_EVENTS, () -> call).join();
+			fail();
+		} catch (CompletionException e) {
+			assertEquals(HttpStatus.GATEWAY_TIMEOUT, ((UpstreamUnavailableException) e.getCause()).getStatusCode());
+		}
+		assertTrue(call.isCancelled());
+	}
+
+	@Test
+	public void testBulkheadRejectsExcessCalls() {
+		CompletableFuture<String> call = new CompletableFuture<>();
+		upstreamCommands.executeAsync(Upstream.PROCESS_TEMPLATE, () -> call);
+		upstreamCommands.executeAsync(Upstream.PROCESS_TEMPLATE, () -> call);
+
+		try {
+			upstreamCommands.executeAsync(Upstream.PROCESS_TEMPLATE, () -> call).join();
+			fail();
+		} catch (CompletionException e) {
+			assertEquals(HttpStatus.SERVICE_UNAVAILABLE, ((UpstreamUnavailableException) e.getCause()).getStatusCode());
+		}
+		// the other upstreams have their own bulkheads
+		assertEquals("ok", upstreamCommands.executeAsync(Upstream.EPCIS_MASTER_DATA, () -> CompletableFuture.completedFuture("ok")).join());
+	}
+
+	@Test
+	public void testCircuitOpensAfterServerErrors() throws InterruptedException {
+		AtomicInteger calls = new AtomicInteger();
+		long deadline = System.currentTimeMillis() + 5000;
+		// the health of the upstream is sampled every 500 ms
+		while (!upstreamCommands.isCircuitOpen(Upstream.EPCIS_EVENTS) && System.currentTimeMillis() < deadline) {
+			CompletableFuture<String> failed = new CompletableFuture<>();
+			failed.completeExceptionally(new HttpServerErrorException(HttpStatus.INTERNAL_SERVER_ERROR));
+			try {
+				upstreamCommands.executeAsync(Upstream.EPCIS_EVENTS, () -> {
+					calls.incrementAndGet();
+					return failed;
+				}).join();
+			} catch (CompletionException e) {
+				assertTrue(e.getCause() instanceof HttpServerErrorException);
+			}
+			Thread.sleep(50);
+		}
+		assertTrue(upstreamCommands.isCircuitOpen(Upstream.EPCIS_EVENTS));
+
+		int callsBefore = calls.get();
+		try {
+			upstreamCommands.executeAsync(Upstream.EPCIS_EVENTS, () -> {
+				calls.incrementAndGet();
+				return CompletableFuture.completedFuture("ok");
+			}).join();
+			fail();
+		} catch (CompletionException e) {
+			assertEquals(HttpStatus.SERVICE_UNAVAILABLE, ((UpstreamUnavailableException) e.getCause()).getStatusCode());
+		}
+		assertEquals(callsBefore, calls.get());
+		assertTrue(UpstreamCommands.isUnavailable(new CompletionException(new UpstreamUnavailableException(Upstream.EPCIS_EVENTS,
+				HttpStatus.SERVICE_UNAVAILABLE, "circuit open"))));
+	}
+
+	@Test
+	public void testBlockingCallTimesOut() {
+		try {
+			upstreamCommands.execute(Upstream.BLOCKCHAIN, () -> {
+				try {
+					Thread.sleep(5000);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return true;
+			});
+			fail();
+		} catch (UpstreamUnavailableException e) {
+			assertEquals(HttpStatus.GATEWAY_TIMEOUT, e.getStatusCode());
+		}
+		assertEquals(Boolean.TRUE, upstreamCommands.execute(Upstream.BLOCKCHAIN, () -> true));
+	}
+
+	@Test
+	public void testSubmittedCallsWaitForThread() {
+		CountDownLatch answered = new CountDownLatch(1);
+		List<CompletableFuture<Boolean>> calls = new ArrayList<>();
+		// two calls running and one waiting
+		for (int i = 0; i < 3; i++) {
+			calls.add(upstreamCommands.submit(Upstream.BLOCKCHAIN, () -> {
+				try {
+					answered.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return true;
+			}));
+		}
+
+		try {
+			upstreamCommands.submit(Upstream.BLOCKCHAIN, () -> true).join();
+			fail();
+		} catch (CompletionException e) {
+			assertEquals(HttpStatus.SERVICE_UNAVAILABLE, ((UpstreamUnavailableException) e.getCause()).getStatusCode());
+		}
+		answered.countDown();
+		for (CompletableFuture<Boolean> call : calls) {
+			assertEquals(Boolean.TRUE, call.join());
+		}
+	}
+}
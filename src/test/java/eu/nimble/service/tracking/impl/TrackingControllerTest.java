@@ -1,9 +1,33 @@
 package eu.nimble.service.tracking.impl;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
 import org.junit.After;
 import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.client.HttpClientErrorException;
 
+import eu.nimble.service.tracking.imp.service.CachedResult;
+import eu.nimble.service.tracking.imp.service.EpcisService;
+import eu.nimble.service.tracking.imp.service.MasterDataCache;
+import eu.nimble.service.tracking.imp.service.TokenValidator;
 import eu.nimble.service.tracking.impl.controller.TrackingController;
+import eu.nimble.service.tracking.model.MasterDataReference;
 
 //@RunWith(SpringRunner.class)
 //@WebMvcTest(value = TrackingController.class, secure = false)
@@ -75,6 +99,73 @@ public class TrackingControllerTest {
 
 */
 
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testEnrichedTrackingResolvesMasterDataOnce() {
+        EpcisService epcisService = Mockito.mock(EpcisService.class);
+        MasterDataCache masterDataCache = Mockito.mock(MasterDataCache.class);
+        ReflectionTestUtils.setField(trackingController, "epcisService", epcisService);
+        ReflectionTestUtils.setField(trackingController, "masterDataCache", masterDataCache);
+
+        String event = "{\"eventType\": \"ObjectEvent\", \"readPoint\": {\"id\": \"urn:epc:id:sgln:readPoint.lindbacks.3\"},"
+                + " \"bizStep\": \"urn:epcglobal:cbv:bizstep:entering_exiting\"}";
+        Mockito.when(epcisService.pollEventsJsonAsync(Matchers.<Map<String, String>>any(), Matchers.eq("token")))
+                .thenReturn(CompletableFuture.completedFuture(new JSONArray("[" + event + "," + event + "]")));
+        Map<String, JSONArray> masterData = Collections.singletonMap("urn:epc:id:sgln:readPoint.lindbacks.3",
+                new JSONArray("[{\"id\": \"urn:epc:id:sgln:readPoint.lindbacks.3\", \"attributes\": {\"name\": \"Door\"}}]"));
+        ArgumentCaptor<Collection<MasterDataReference>> references = ArgumentCaptor.forClass((Class) Collection.class);
+        Mockito.when(masterDataCache.getAll(references.capture(), Matchers.eq("token")))
+                .thenReturn(CompletableFuture.completedFuture(CachedResult.fresh(masterData)));
+
+        ResponseEntity<?> ret = trackingController.enrichedTrackingWithID("urn:epc:id:sgtin:0614141.lindback.testproduct",
+                null, null, null, null, "token").join();
+
+        assertEquals(HttpStatus.OK, ret.getStatusCode());
+        assertEquals(2, references.getValue().size());
+        JSONArray events = new JSONArray((String) ret.getBody());
+        for (int i = 0; i < events.length(); i++) {
+            JSONObject eventMasterData = events.getJSONObject(i).getJSONObject("masterData");
+            assertEquals("Door", eventMasterData.getJSONObject("readPoint").getJSONObject("attributes").getString("name"));
+            assertFalse(eventMasterData.has("bizStep"));
+        }
+    }
+
+    @Test
+    public void testMasterDataPassesEpcisErrorStatus() {
+        MasterDataCache masterDataCache = Mockito.mock(MasterDataCache.class);
+        ReflectionTestUtils.setField(trackingController, "masterDataCache", masterDataCache);
+
+        CompletableFuture<CachedResult<String>> query = new CompletableFuture<>();
+        query.completeExceptionally(new HttpClientErrorException(HttpStatus.UNAUTHORIZED, "Unauthorized",
+                "{\"error\": \"invalid token\"}".getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8));
+        Mockito.when(masterDataCache.get(null, "urn:epc:id:sgln:bizLocation.lindbacks.1", "token"))
+                .thenReturn(query.thenApply(masterData -> masterData));
+
+        ResponseEntity<?> ret = trackingController.getMasterDataByID("urn:epc:id:sgln:bizLocation.lindbacks.1", "token").join();
+
+        assertEquals(HttpStatus.UNAUTHORIZED, ret.getStatusCode());
+        assertEquals("{\"error\": \"invalid token\"}", ret.getBody());
+    }
+
+    @Test
+    public void testMasterDataCacheInvalidationRequiresValidToken() {
+        MasterDataCache masterDataCache = Mockito.mock(MasterDataCache.class);
+        TokenValidator tokenValidator = Mockito.mock(TokenValidator.class);
+        ReflectionTestUtils.setField(trackingController, "masterDataCache", masterDataCache);
+        ReflectionTestUtils.setField(trackingController, "tokenValidator", tokenValidator);
+
+        CompletableFuture<Void> rejected = new CompletableFuture<>();
+        rejected.completeExceptionally(new HttpClientErrorException(HttpStatus.UNAUTHORIZED));
+        Mockito.when(tokenValidator.validate("invalid")).thenReturn(rejected);
+        Mockito.when(tokenValidator.validate("token")).thenReturn(CompletableFuture.completedFuture(null));
+
+        assertEquals(HttpStatus.UNAUTHORIZED, trackingController.invalidateMasterData(null, null, "invalid").join().getStatusCode());
+        Mockito.verify(masterDataCache, Mockito.never()).invalidate(Matchers.anyString(), Matchers.anyString());
+
+        assertEquals(HttpStatus.OK, trackingController.invalidateMasterData(null, null, "token").join().getStatusCode());
+        Mockito.verify(masterDataCache).invalidate(null, null);
+    }
+
     @After
     public void tearDown() {
     }
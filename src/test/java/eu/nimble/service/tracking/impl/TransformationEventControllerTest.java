@@ -19,7 +19,8 @@ import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 import java.util.ArrayList;
 
 @RunWith(SpringJUnit4ClassRunner.class)
-@SpringBootTest(classes = TrackingApplication.class)
+// the shared indexes are loaded with the token of the tracking service
+@SpringBootTest(classes = TrackingApplication.class, properties = "tracking.index.token=${test.accessToken}")
 public class TransformationEventControllerTest {
 
     @Value("${nimble.platformHost}")